@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.android.dx.dex.DexOptions;
+import com.android.dx.dex.file.ClassDefItem;
+import com.android.dx.dex.file.DexFile;
+import com.android.dx.dex.file.EncodedField;
+import com.android.dx.rop.code.AccessFlags;
+import com.android.dx.rop.cst.CstFieldRef;
+import com.android.dx.rop.cst.CstNat;
+import com.android.dx.rop.cst.CstString;
+import com.android.dx.rop.cst.CstType;
+import com.android.dx.rop.type.StdTypeList;
+import com.android.dx.rop.type.Type;
+import java.util.List;
+import org.junit.Test;
+
+public final class DexTest {
+    private static final String[] STRINGS = {
+        "", "\0", "\0\0", "\u0001", "a", "a\0", "ab", "abcdefghi", "\u00e9t\u00e9",
+        "\u07ff", "\u0800", "\ud800\udc00", "\ud83d\ude00", "\uffff",
+        "Landroid/support/v4/app/Fragment;", "Landroid/support/v4/app/FragmentActivity;",
+    };
+
+    @Test
+    public void testCompareStrings() throws Exception {
+        Dex a = makeDex(0, STRINGS.length / 2);
+        Dex b = makeDex(STRINGS.length / 3, STRINGS.length);
+        List<String> aStrings = a.strings();
+        List<String> bStrings = b.strings();
+        for (int i = 0; i < aStrings.size(); i++) {
+            for (int j = 0; j < bStrings.size(); j++) {
+                String message = aStrings.get(i) + " vs " + bStrings.get(j);
+                assertEquals(message, Integer.signum(aStrings.get(i).compareTo(bStrings.get(j))),
+                        Integer.signum(a.compareStrings(i, b, j)));
+            }
+        }
+    }
+
+    @Test
+    public void testStringCache() throws Exception {
+        Dex dex = makeDex(0, STRINGS.length);
+        List<String> strings = dex.strings();
+        assertNotSame(strings.get(1), strings.get(1));
+
+        dex.setStringCacheSize(3);
+        String cached = strings.get(1);
+        assertSame(cached, strings.get(1));
+
+        // With 4 slots, string 5 takes the slot of string 1.
+        strings.get(5);
+        String decoded = strings.get(1);
+        assertEquals(cached, decoded);
+        assertNotSame(cached, decoded);
+
+        dex.setStringCacheSize(0);
+        assertNotSame(strings.get(5), strings.get(5));
+    }
+
+    @Test
+    public void testFindString() throws Exception {
+        Dex dex = makeDex(0, STRINGS.length / 2);
+        List<String> strings = dex.strings();
+        for (int i = 0; i < strings.size(); i++) {
+            assertEquals(strings.get(i), i, dex.findString(strings.get(i)));
+        }
+        for (int i = STRINGS.length / 2; i < STRINGS.length; i++) {
+            assertEquals(STRINGS[i], -1, dex.findString(STRINGS[i]));
+        }
+    }
+
+    @Test
+    public void testFindClassDef() throws Exception {
+        Dex dex = makeDex(0, STRINGS.length);
+        ClassDef classDef = dex.findClassDef("LStrings;");
+        assertEquals("LStrings;", dex.typeNames().get(classDef.getTypeIndex()));
+        assertNull(dex.findClassDef("Ljava/lang/Object;"));
+        assertNull(dex.findClassDef("LMissing;"));
+        assertEquals(-1, dex.findType("LMissing;"));
+        assertEquals(-1, dex.findType("f0"));
+
+        List<String> typeNames = dex.typeNames();
+        for (int i = 0; i < typeNames.size(); i++) {
+            assertEquals(i, dex.findType(typeNames.get(i)));
+        }
+    }
+
+    @Test
+    public void testMemberIdRanges() throws Exception {
+        Dex dex = makeDex(0, STRINGS.length);
+        int type = dex.findType("LStrings;");
+        int object = dex.findType("Ljava/lang/Object;");
+        assertEquals(0, dex.fieldIdsStart(type));
+        assertEquals(STRINGS.length, dex.fieldIdsStart(type + 1));
+        assertEquals(dex.fieldIdsStart(object), dex.fieldIdsStart(object + 1));
+        for (int i = 0; i < STRINGS.length; i++) {
+            assertEquals(type, dex.fieldIds().get(i).getDeclaringClassIndex());
+        }
+        assertEquals(0, dex.methodIdsStart(type));
+        assertEquals(0, dex.methodIdsStart(type + 1));
+    }
+
+    /**
+     * Returns a dex holding {@code STRINGS[from..to)} as the values of the
+     * static fields of a class, among the strings naming the class and
+     * its fields.
+     */
+    private static Dex makeDex(int from, int to) throws Exception {
+        DexFile dexFile = new DexFile(new DexOptions());
+        CstType type = new CstType(Type.intern("LStrings;"));
+        ClassDefItem classDef = new ClassDefItem(type, AccessFlags.ACC_PUBLIC,
+                CstType.OBJECT, StdTypeList.EMPTY, null);
+        CstString stringType = new CstString(Type.STRING.getDescriptor());
+        for (int i = from; i < to; i++) {
+            CstFieldRef field = new CstFieldRef(type,
+                    new CstNat(new CstString("f" + i), stringType));
+            classDef.addStaticField(new EncodedField(field, AccessFlags.ACC_STATIC),
+                    new CstString(STRINGS[i]));
+        }
+        dexFile.add(classDef);
+        return new Dex(dexFile.toDex(null, false));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+public final class Mutf8Test {
+    private static final String[] STRINGS = {
+        "", "\0", "\0\0", "\u0001", "a", "a\0", "a\0b", "a\u0001", "ab", "abcdefgh",
+        "abcdefghi", "abcdefgh\0", "abcdefg\u0080", "abcdefg\u07ff", "abcdefg\u0800",
+        "\u00e9t\u00e9", "\u07ff", "\u0800", "\ud800\udc00", "\ud83d\ude00", "\uffff",
+        "Landroid/support/v4/app/Fragment;", "Landroid/support/v4/app/FragmentActivity;",
+        "Landroid/support/v4/app/Fragment\0;",
+    };
+
+    @Test
+    public void testCompare() throws Exception {
+        for (String a : STRINGS) {
+            for (String b : STRINGS) {
+                for (ByteOrder order : new ByteOrder[] {
+                        ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+                    // Leave no slack after b, so that its end is compared byte by byte.
+                    ByteBuffer aBuffer = encode(a, 3, 8, order);
+                    ByteBuffer bBuffer = encode(b, 1, 0, order);
+                    assertEquals(a + " vs " + b, Integer.signum(a.compareTo(b)),
+                            Integer.signum(Mutf8.compare(aBuffer, 3, bBuffer, 1)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMismatch() throws Exception {
+        for (String a : STRINGS) {
+            for (String b : STRINGS) {
+                byte[] aBytes = Mutf8.encode(a);
+                byte[] bBytes = Mutf8.encode(b);
+                int expected = a.equals(b) ? -1 : 0;
+                if (expected == 0) {
+                    while (expected < aBytes.length && expected < bBytes.length
+                            && aBytes[expected] == bBytes[expected]) {
+                        expected++;
+                    }
+                }
+                assertEquals(a + " vs " + b, expected, Mutf8.mismatch(
+                        encode(a, 0, 8, ByteOrder.BIG_ENDIAN), 0,
+                        encode(b, 2, 0, ByteOrder.LITTLE_ENDIAN), 2));
+            }
+        }
+    }
+
+    /**
+     * Returns a buffer holding the 0x00 delimited encoding of {@code s},
+     * with {@code before} and {@code after} bytes of 0x41 around it.
+     */
+    private static ByteBuffer encode(String s, int before, int after, ByteOrder order)
+            throws Exception {
+        byte[] bytes = Mutf8.encode(s);
+        ByteBuffer result = ByteBuffer.allocate(before + bytes.length + 1 + after);
+        for (int i = 0; i < result.capacity(); i++) {
+            result.put(i, (byte) 0x41);
+        }
+        result.position(before);
+        result.put(bytes);
+        result.put((byte) 0);
+        result.clear();
+        return result.order(order);
+    }
+}
@@ -16,19 +16,44 @@
 
 package com.android.dx.merge;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import com.android.dex.ClassData;
+import com.android.dex.ClassDef;
+import com.android.dex.Code;
 import com.android.dex.Dex;
 import com.android.dx.command.Main;
 import com.android.dx.command.dexer.DxContext;
+import com.android.dx.dex.DexOptions;
+import com.android.dx.dex.file.ClassDefItem;
+import com.android.dx.dex.file.DexFile;
+import com.android.dx.dex.file.EncodedField;
+import com.android.dx.io.IndexType;
+import com.android.dx.io.OpcodeInfo;
+import com.android.dx.io.Opcodes;
+import com.android.dx.io.instructions.DecodedInstruction;
+import com.android.dx.io.instructions.FillArrayDataPayloadDecodedInstruction;
+import com.android.dx.io.instructions.PackedSwitchPayloadDecodedInstruction;
+import com.android.dx.io.instructions.SparseSwitchPayloadDecodedInstruction;
+import com.android.dx.rop.code.AccessFlags;
+import com.android.dx.rop.cst.CstFieldRef;
+import com.android.dx.rop.cst.CstNat;
+import com.android.dx.rop.cst.CstString;
+import com.android.dx.rop.cst.CstType;
+import com.android.dx.rop.type.StdTypeList;
+import com.android.dx.rop.type.Type;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Function;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import org.junit.Rule;
@@ -41,6 +66,58 @@ public class DexMergerTest {
     static class NoFieldsClassB {
     }
 
+    /** Two call sites of dx that are equal, as javac shares their constant. */
+    static class SameMethodReferences {
+        static Function<Object, String> first() {
+            return String::valueOf;
+        }
+
+        static Function<Object, String> second() {
+            return String::valueOf;
+        }
+    }
+
+    /** Code whose strings sort after those of {@link #getDexWithManyStrings}. */
+    static class LateStrings {
+        static String packed(int i) {
+            switch (i) {
+                case 0: return "x0";
+                case 1: return "x1";
+                case 2: return "x2";
+                case 3: return "x3";
+                default: return "x4";
+            }
+        }
+
+        static String sparse(int i) {
+            switch (i) {
+                case 10: return "xa";
+                case 1000: return "xb";
+                case 100000: return "xc";
+                default: return "xd";
+            }
+        }
+
+        static int length(Object o) {
+            try {
+                return ((String) o).length() + "x5".length();
+            } catch (ClassCastException e) {
+                return "x6".length();
+            }
+        }
+
+        static int[] data(int n) {
+            String s = "x7";
+            while (n > 0) {
+                s = s + "x8";
+                n--;
+            }
+            int[] result = { 1, 2, 3, 4, 5, 6, 7, 8 };
+            result[0] = s.length();
+            return result;
+        }
+    }
+
     @Rule
     public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
@@ -61,7 +138,235 @@ public class DexMergerTest {
         assertEquals(0, merged.getTableOfContents().fieldIds.off);
     }
 
-    private Dex getDexForClass(Class<?> clazz) throws IOException {
+    @Test
+    public void test_merge_keepsEqualCallSitesOfTheSameDex() throws IOException {
+        Dex dex = getDexForClass(SameMethodReferences.class, "--min-sdk-version=26");
+        assertEquals(2, dex.getTableOfContents().callSiteIds.size);
+
+        Dex merged =
+                new DexMerger(
+                        new Dex[] {dex, getDexForClass(NoFieldsClassA.class)},
+                        CollisionPolicy.FAIL,
+                        new DxContext())
+                        .merge();
+        assertEquals(2, merged.getTableOfContents().callSiteIds.size);
+    }
+
+    @Test
+    public void test_merge_copiesCodeOfDexesThatKeepTheirIndexes() throws IOException {
+        // Merged with itself, each id of the dex keeps its index.
+        Dex dex = getDexForClass(DexMergerTest.class);
+        Dex merged =
+                new DexMerger(
+                        new Dex[] {dex, new Dex(dex.getBytes())},
+                        CollisionPolicy.KEEP_FIRST,
+                        new DxContext())
+                        .merge();
+
+        ClassData.Method[] methods = dex.readClassData(dex.classDefs().iterator().next())
+                .allMethods();
+        ClassData.Method[] mergedMethods =
+                merged.readClassData(merged.classDefs().iterator().next()).allMethods();
+        assertEquals(methods.length, mergedMethods.length);
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].getCodeOffset() == 0) {
+                assertEquals(0, mergedMethods[i].getCodeOffset());
+                continue;
+            }
+            Code code = dex.readCode(methods[i]);
+            Code mergedCode = merged.readCode(mergedMethods[i]);
+            assertEquals(code.getRegistersSize(), mergedCode.getRegistersSize());
+            assertArrayEquals(code.getInstructions(), mergedCode.getInstructions());
+            assertEquals(code.getTries().length, mergedCode.getTries().length);
+            assertEquals(code.getCatchHandlers().length, mergedCode.getCatchHandlers().length);
+            assertEquals(code.getDebugInfoOffset() == 0, mergedCode.getDebugInfoOffset() == 0);
+        }
+    }
+
+    @Test
+    public void test_merge_widensConstStringsPastIndex0xffff() throws IOException {
+        Dex dex = getDexForClass(LateStrings.class);
+        Dex merged =
+                new DexMerger(
+                        new Dex[] {getDexWithManyStrings(), dex},
+                        CollisionPolicy.FAIL,
+                        new DxContext())
+                        .merge();
+        assertTrue(merged.getTableOfContents().stringIds.size > 0x10000);
+
+        ClassData.Method[] methods = dex.readClassData(dex.classDefs().iterator().next())
+                .allMethods();
+        ClassData.Method[] mergedMethods = null;
+        for (ClassDef classDef : merged.classDefs()) {
+            if (merged.typeNames().get(classDef.getTypeIndex()).contains("LateStrings")) {
+                mergedMethods = merged.readClassData(classDef).allMethods();
+            }
+        }
+        assertEquals(methods.length, mergedMethods.length);
+        int widened = 0;
+        for (int i = 0; i < methods.length; i++) {
+            Code mergedCode = merged.readCode(mergedMethods[i]);
+            assertEquals(describe(dex, dex.readCode(methods[i])), describe(merged, mergedCode));
+            for (DecodedInstruction insn
+                    : DecodedInstruction.decodeAll(mergedCode.getInstructions())) {
+                if (insn != null && insn.getOpcode() == Opcodes.CONST_STRING_JUMBO) {
+                    assertTrue(insn.getIndex() > 0xffff);
+                    widened++;
+                }
+            }
+        }
+        assertTrue(widened > 0);
+    }
+
+    /**
+     * Returns a dex with a class whose static fields add more than 0x10000
+     * strings, which sort before those of {@link LateStrings}.
+     */
+    private static Dex getDexWithManyStrings() throws IOException {
+        CstType type = CstType.intern(Type.intern("LManyStrings;"));
+        ClassDefItem classDef = new ClassDefItem(type, AccessFlags.ACC_PUBLIC, CstType.OBJECT,
+                StdTypeList.EMPTY, null);
+        CstString descriptor = new CstString("Ljava/lang/String;");
+        for (int i = 0; i < 0x8100; i++) {
+            CstNat nat = new CstNat(new CstString(String.format("f%05d", i)), descriptor);
+            classDef.addStaticField(
+                    new EncodedField(new CstFieldRef(type, nat),
+                            AccessFlags.ACC_STATIC | AccessFlags.ACC_FINAL),
+                    new CstString(String.format("v%05d", i)));
+        }
+        DexFile dexFile = new DexFile(new DexOptions());
+        dexFile.add(classDef);
+        return new Dex(dexFile.toDex(null, false));
+    }
+
+    /**
+     * Describes {@code code} with its indexes resolved, and its addresses
+     * given as the ordinal of their instruction, not counting nops.
+     */
+    private static List<String> describe(Dex dex, Code code) {
+        short[] instructions = code.getInstructions();
+        DecodedInstruction[] decoded = DecodedInstruction.decodeAll(instructions);
+        int[] ordinals = new int[instructions.length + 1];
+        int ordinal = 0;
+        for (int address = 0; address < instructions.length; address++) {
+            ordinals[address] = ordinal;
+            if (decoded[address] != null && decoded[address].getOpcode() != Opcodes.NOP) {
+                ordinal++;
+            }
+        }
+        ordinals[instructions.length] = ordinal;
+
+        List<String> result = new ArrayList<>();
+        for (DecodedInstruction insn : decoded) {
+            if (insn == null || insn.getOpcode() == Opcodes.NOP) {
+                continue;
+            }
+            int opcode = insn.getOpcode() == Opcodes.CONST_STRING_JUMBO
+                    ? Opcodes.CONST_STRING : insn.getOpcode();
+            StringBuilder sb = new StringBuilder(OpcodeInfo.getName(opcode));
+            if (insn instanceof PackedSwitchPayloadDecodedInstruction) {
+                PackedSwitchPayloadDecodedInstruction payload =
+                        (PackedSwitchPayloadDecodedInstruction) insn;
+                sb.append(" ").append(payload.getFirstKey())
+                        .append(" ").append(describeTargets(payload.getTargets(), ordinals));
+            } else if (insn instanceof SparseSwitchPayloadDecodedInstruction) {
+                SparseSwitchPayloadDecodedInstruction payload =
+                        (SparseSwitchPayloadDecodedInstruction) insn;
+                sb.append(" ").append(Arrays.toString(payload.getKeys()))
+                        .append(" ").append(describeTargets(payload.getTargets(), ordinals));
+            } else if (insn instanceof FillArrayDataPayloadDecodedInstruction) {
+                sb.append(" ").append(Arrays.deepToString(
+                        new Object[] {((FillArrayDataPayloadDecodedInstruction) insn).getData()}));
+            } else {
+                sb.append(" v").append(insn.getA()).append(" v").append(insn.getB())
+                        .append(" v").append(insn.getC())
+                        .append(" #").append(insn.getLiteral())
+                        .append(" @").append(ordinals[insn.getTarget()]);
+                if (insn.getIndexType() == IndexType.STRING_REF) {
+                    sb.append(" ").append(dex.strings().get(insn.getIndex()));
+                } else if (insn.getIndexType() == IndexType.TYPE_REF) {
+                    sb.append(" ").append(dex.typeNames().get(insn.getIndex()));
+                } else if (insn.getIndexType() == IndexType.METHOD_REF) {
+                    sb.append(" ").append(dex.methodIds().get(insn.getIndex()));
+                }
+            }
+            result.add(sb.toString());
+        }
+
+        for (Code.Try tryItem : code.getTries()) {
+            Code.CatchHandler handler = code.getCatchHandlers()[tryItem.getCatchHandlerIndex()];
+            result.add("try " + ordinals[tryItem.getStartAddress()] + "-"
+                    + ordinals[tryItem.getStartAddress() + tryItem.getInstructionCount()]
+                    + " catch " + describeTargets(handler.getAddresses(), ordinals));
+        }
+
+        if (code.getDebugInfoOffset() != 0) {
+            describePositions(dex.open(code.getDebugInfoOffset()), ordinals, result);
+        }
+        return result;
+    }
+
+    private static String describeTargets(int[] targets, int[] ordinals) {
+        int[] result = new int[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            result[i] = ordinals[targets[i]];
+        }
+        return Arrays.toString(result);
+    }
+
+    /**
+     * Describes the positions of the debug info item read from {@code in}.
+     */
+    private static void describePositions(Dex.Section in, int[] ordinals, List<String> out) {
+        int line = in.readUleb128();
+        int parametersSize = in.readUleb128();
+        for (int p = 0; p < parametersSize; p++) {
+            in.readUleb128p1();
+        }
+        int address = 0;
+        while (true) {
+            int opcode = in.readByte() & 0xff;
+            switch (opcode) {
+                case 0x00: // DBG_END_SEQUENCE
+                    return;
+                case 0x01: // DBG_ADVANCE_PC
+                    address += in.readUleb128();
+                    break;
+                case 0x02: // DBG_ADVANCE_LINE
+                    line += in.readSleb128();
+                    break;
+                case 0x03: // DBG_START_LOCAL
+                case 0x04: // DBG_START_LOCAL_EXTENDED
+                    in.readUleb128();
+                    in.readUleb128p1();
+                    in.readUleb128p1();
+                    if (opcode == 0x04) {
+                        in.readUleb128p1();
+                    }
+                    out.add("local at " + ordinals[address]);
+                    break;
+                case 0x05: // DBG_END_LOCAL
+                case 0x06: // DBG_RESTART_LOCAL
+                    in.readUleb128();
+                    out.add("local at " + ordinals[address]);
+                    break;
+                case 0x09: // DBG_SET_FILE
+                    in.readUleb128p1();
+                    break;
+                case 0x07: // DBG_SET_PROLOGUE_END
+                case 0x08: // DBG_SET_EPILOGUE_BEGIN
+                    break;
+                default:
+                    int adjustedOpcode = opcode - 0x0a;
+                    address += adjustedOpcode / 15;
+                    line += -4 + adjustedOpcode % 15;
+                    out.add("line " + line + " at " + ordinals[address]);
+                    break;
+            }
+        }
+    }
+
+    private Dex getDexForClass(Class<?> clazz, String... options) throws IOException {
         String path = clazz.getName().replace('.', '/') + ".class";
         Path classesJar = temporaryFolder.newFile(clazz.getName() + ".jar").toPath();
         try (InputStream in = getClass().getClassLoader().getResourceAsStream(path);
@@ -74,7 +379,12 @@ public class DexMergerTest {
         }
 
         Path output = temporaryFolder.newFolder().toPath();
-        Main.main(new String[]{"--dex", "--output=" + output.toString(), classesJar.toString()});
+        List<String> args = new ArrayList<>();
+        args.add("--dex");
+        args.addAll(Arrays.asList(options));
+        args.add("--output=" + output.toString());
+        args.add(classesJar.toString());
+        Main.main(args.toArray(new String[args.size()]));
 
         return new Dex(Files.readAllBytes(output.resolve("classes.dex")));
     }
@@ -16,6 +16,7 @@
 
 package com.android.dx.rop.type;
 
+import com.android.dx.util.Interner;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
@@ -38,4 +39,61 @@ public class TypeTest {
         assertEquals(myClass, myClass2);
         assertFalse(myClass == myClass2);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testInternerScope() {
+        Interner first = new Interner();
+        Interner second = new Interner();
+
+        Interner previous = Interner.bind(first);
+        Type myClass = Type.intern("Lcom/example/Foo;");
+        Type string = Type.intern("Ljava/lang/String;");
+        Type stringArray = Type.intern("[Ljava/lang/String;");
+
+        Interner.bind(second);
+        assertFalse(myClass == Type.intern("Lcom/example/Foo;"));
+        assertEquals(myClass, Type.intern("Lcom/example/Foo;"));
+        assertTrue(string == Type.STRING);
+        assertFalse(stringArray == Type.intern("[Ljava/lang/String;"));
+        assertEquals(stringArray, Type.intern("[Ljava/lang/String;"));
+        assertTrue(Type.SERIALIZABLE == Type.intern("Ljava/io/Serializable;"));
+        assertTrue(Type.REFLECT_ARRAY == Type.intern("Ljava/lang/reflect/Array;"));
+
+        Interner.bind(first);
+        assertTrue(myClass == Type.intern("Lcom/example/Foo;"));
+
+        Interner.bind(previous);
+    }
+
+    @Test
+    public void testSharedTierIsFixed() {
+        Interner first = new Interner();
+        Interner second = new Interner();
+        String[] descriptors = {
+            "Ljava/lang/Runnable;",
+            "Ljava/lang/foo/Bar;",
+            "Ldalvik/annotation/Foo;",
+            "[Ljava/lang/String;",
+            "[[I",
+        };
+
+        Interner previous = Interner.bind(first);
+        Type[] types = new Type[descriptors.length];
+        for (int i = 0; i < descriptors.length; i++) {
+            types[i] = Type.intern(descriptors[i]);
+            assertFalse(types[i].isShared());
+        }
+        Type stringArrayArray = Type.intern("[Ljava/lang/String;").getArrayType();
+
+        Interner.bind(second);
+        for (int i = 0; i < descriptors.length; i++) {
+            assertFalse(types[i] == Type.intern(descriptors[i]));
+        }
+        assertFalse(stringArrayArray == Type.intern("[Ljava/lang/String;").getArrayType());
+        assertTrue(Type.intern("[I").isShared());
+        assertTrue(Type.intern("Ljava/lang/Error;").isShared());
+        assertTrue(Type.intern("Ldalvik/annotation/Throws;").isShared());
+
+        Interner.bind(previous);
+    }
+}
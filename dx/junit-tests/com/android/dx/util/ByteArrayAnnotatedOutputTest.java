@@ -53,4 +53,21 @@ public final class ByteArrayAnnotatedOutputTest {
             assertEquals("Position " + i + " has not been zeroed out", 0, data[i]);
         }
     }
+
+    @Test
+    public void testInitialCursor() {
+        byte[] data = new byte[8];
+        Arrays.fill(data, (byte) 0xFF);
+
+        ByteArrayAnnotatedOutput output = new ByteArrayAnnotatedOutput(data, 4);
+
+        assertEquals(4, output.getCursor());
+        output.writeInt(0x04030201);
+        assertEquals(8, output.getCursor());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals("Position " + i + " has been written", (byte) 0xFF, data[i]);
+            assertEquals(i + 1, data[i + 4]);
+        }
+    }
 }
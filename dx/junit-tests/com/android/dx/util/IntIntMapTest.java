@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public final class IntIntMapTest {
+    @Test
+    public void testPutAndGet() {
+        IntIntMap map = new IntIntMap();
+        map.put(0, 0);
+        map.put(4, 40);
+        map.put(Integer.MIN_VALUE, -1);
+        map.put(4, 44);
+        assertEquals(3, map.size());
+        assertEquals(0, map.get(0));
+        assertEquals(44, map.get(4));
+        assertEquals(-1, map.get(Integer.MIN_VALUE));
+        assertTrue(map.containsKey(0));
+        assertFalse(map.containsKey(8));
+    }
+
+    @Test
+    public void testMissingKey() {
+        IntIntMap map = new IntIntMap();
+        map.put(4, 40);
+        try {
+            map.get(8);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            map.get(0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testGrowth() {
+        // Keys are aligned offsets, like those of the sections of a dex.
+        Random random = new Random(0);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        IntIntMap map = new IntIntMap(0);
+        for (int i = 0; i < 10000; i++) {
+            int key = random.nextInt(1 << 20) * 4;
+            map.put(key, i);
+            expected.put(key, i);
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+}
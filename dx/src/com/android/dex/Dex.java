@@ -29,12 +29,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UTFDataFormatException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -67,6 +70,12 @@ public final class Dex {
     private final FieldIdTable fieldIds = new FieldIdTable();
     private final MethodIdTable methodIds = new MethodIdTable();
 
+    /** {@code null-ok;} recently decoded strings, see {@link #setStringCacheSize} */
+    private volatile CachedString[] stringCache;
+
+    /** {@code null-ok;} class def index of each type, see {@link #classDefIndexFromTypeIndex} */
+    private volatile int[] classDefIndexes;
+
     /**
      * Creates a new dex that reads from {@code data}. It is an error to modify
      * {@code data} after using it to create a dex buffer.
@@ -105,25 +114,100 @@ public final class Dex {
      */
     public Dex(File file) throws IOException {
         if (FileUtils.hasArchiveSuffix(file.getName())) {
-            ZipFile zipFile = new ZipFile(file);
-            ZipEntry entry = zipFile.getEntry(DexFormat.DEX_IN_JAR_NAME);
-            if (entry != null) {
-                try (InputStream inputStream = zipFile.getInputStream(entry)) {
-                    loadFrom(inputStream);
-                }
-                zipFile.close();
-            } else {
-                throw new DexException("Expected " + DexFormat.DEX_IN_JAR_NAME + " in " + file);
+            try (ZipFile zipFile = new ZipFile(file)) {
+                loadFrom(zipFile, DexFormat.DEX_IN_JAR_NAME);
             }
         } else if (file.getName().endsWith(".dex")) {
             try (InputStream inputStream = new FileInputStream(file)) {
-                loadFrom(inputStream);
+                loadFrom(inputStream, file.length());
             }
         } else {
             throw new DexException("unknown output extension: " + file);
         }
     }
 
+    /**
+     * Returns a read-only dex of the dex file {@code file}, or of the
+     * {@code classes.dex} entry of the archive {@code file}, that reads the
+     * file through a memory mapping rather than from a copy on the heap.
+     * See {@link #map(File, String)} for archives.
+     */
+    public static Dex map(File file) throws IOException {
+        if (FileUtils.hasArchiveSuffix(file.getName())) {
+            return map(file, DexFormat.DEX_IN_JAR_NAME);
+        } else if (file.getName().endsWith(".dex")) {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                FileChannel channel = randomAccessFile.getChannel();
+                return new Dex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        } else {
+            throw new DexException("unknown output extension: " + file);
+        }
+    }
+
+    /**
+     * Returns a read-only dex of the entry {@code entryName}, such as
+     * {@code classes2.dex}, of the archive {@code archive}. An entry that is
+     * stored uncompressed, as they are in APKs aligned for mapping, is
+     * read through a memory mapping of its bytes in the archive. A
+     * compressed entry has to be inflated to the heap.
+     */
+    public static Dex map(File archive, String entryName) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(archive, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            StoredZipEntry stored = StoredZipEntry.find(channel, entryName);
+            if (stored != null) {
+                return new Dex(channel.map(
+                        FileChannel.MapMode.READ_ONLY, stored.offset, stored.size));
+            }
+        }
+
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            Dex result = new Dex();
+            result.loadFrom(zipFile, entryName);
+            return result;
+        }
+    }
+
+    private Dex() {
+    }
+
+    private void loadFrom(ZipFile zipFile, String entryName) throws IOException {
+        ZipEntry entry = zipFile.getEntry(entryName);
+        if (entry == null) {
+            throw new DexException("Expected " + entryName + " in " + zipFile.getName());
+        }
+        try (InputStream inputStream = zipFile.getInputStream(entry)) {
+            loadFrom(inputStream, entry.getSize());
+        }
+    }
+
+    /**
+     * Reads {@code in}, which holds {@code length} bytes if that isn't -1,
+     * straight into an array of that size. It is the caller's
+     * responsibility to close {@code in}.
+     */
+    private void loadFrom(InputStream in, long length) throws IOException {
+        if (length == -1 || length > Integer.MAX_VALUE) {
+            loadFrom(in);
+            return;
+        }
+
+        byte[] bytes = new byte[(int) length];
+        int count = 0;
+        while (count < bytes.length) {
+            int read = in.read(bytes, count, bytes.length - count);
+            if (read == -1) {
+                throw new DexException("Unexpected end of dex after " + count + " bytes");
+            }
+            count += read;
+        }
+
+        this.data = ByteBuffer.wrap(bytes);
+        this.data.order(ByteOrder.LITTLE_ENDIAN);
+        this.tableOfContents.readFrom(this);
+    }
+
     /**
      * It is the caller's responsibility to close {@code in}.
      */
@@ -324,6 +408,217 @@ public final class Dex {
        return data.getInt(position);
     }
 
+    /**
+     * Returns the index of the string {@code value}, or -1 if this dex
+     * doesn't have it. This is a binary search of the sorted string ids.
+     */
+    public int findString(String value) {
+        ByteBuffer key = encodeStringData(value);
+        int low = 0;
+        int high = tableOfContents.stringIds.size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int compare = Mutf8.compare(data, skipUleb128(stringDataOffset(mid)), key, 0);
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the type {@code descriptor}, or -1 if this dex
+     * doesn't have it. This is a binary search of the string ids and then
+     * of the type ids, which are sorted by descriptor index.
+     */
+    public int findType(String descriptor) {
+        int descriptorIndex = findString(descriptor);
+        if (descriptorIndex == -1) {
+            return -1;
+        }
+        int low = 0;
+        int high = tableOfContents.typeIds.size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midDescriptorIndex = descriptorIndexFromTypeIndex(mid);
+            if (midDescriptorIndex < descriptorIndex) {
+                low = mid + 1;
+            } else if (midDescriptorIndex > descriptorIndex) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the class def of the type {@code descriptor}, or null if
+     * this dex doesn't define it.
+     */
+    public ClassDef findClassDef(String descriptor) {
+        int typeIndex = findType(descriptor);
+        if (typeIndex == -1) {
+            return null;
+        }
+        int classDefIndex = classDefIndexFromTypeIndex(typeIndex);
+        if (classDefIndex == -1) {
+            return null;
+        }
+        return open(tableOfContents.classDefs.off + (SizeOf.CLASS_DEF_ITEM * classDefIndex))
+                .readClassDef();
+    }
+
+    /**
+     * Returns the index of the class def of the type {@code typeIndex}, or
+     * -1 if this dex doesn't define it. Class defs aren't sorted by type,
+     * so the first call builds an index of all of them.
+     */
+    public int classDefIndexFromTypeIndex(int typeIndex) {
+        checkBounds(typeIndex, tableOfContents.typeIds.size);
+        int[] index = classDefIndexes;
+        if (index == null) {
+            index = new int[tableOfContents.typeIds.size];
+            Arrays.fill(index, -1);
+            int position = tableOfContents.classDefs.off;
+            for (int i = 0; i < tableOfContents.classDefs.size; i++) {
+                index[data.getInt(position)] = i;
+                position += SizeOf.CLASS_DEF_ITEM;
+            }
+            classDefIndexes = index;
+        }
+        return index[typeIndex];
+    }
+
+    /**
+     * Returns the index of the first method id declared by the type {@code
+     * typeIndex}. Method ids are sorted by declaring type, so those of a
+     * type run from this index to {@code methodIdsStart(typeIndex + 1)}.
+     */
+    public int methodIdsStart(int typeIndex) {
+        return memberIdsStart(tableOfContents.methodIds, typeIndex);
+    }
+
+    /**
+     * Returns the index of the first field id declared by the type {@code
+     * typeIndex}. Field ids are sorted by declaring type, so those of a
+     * type run from this index to {@code fieldIdsStart(typeIndex + 1)}.
+     */
+    public int fieldIdsStart(int typeIndex) {
+        return memberIdsStart(tableOfContents.fieldIds, typeIndex);
+    }
+
+    /**
+     * Returns the index of the first member id of {@code section} whose
+     * declaring type is not less than {@code typeIndex}.
+     */
+    private int memberIdsStart(TableOfContents.Section section, int typeIndex) {
+        int low = 0;
+        int high = section.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int declaringType = data.getShort(section.off + (SizeOf.MEMBER_ID_ITEM * mid)) & 0xffff;
+            if (declaringType < typeIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the modified UTF-8 bytes of {@code value} followed by the
+     * terminating 0 of string data, and possibly more zeroes.
+     */
+    private static ByteBuffer encodeStringData(String value) {
+        // No char takes more than three bytes.
+        byte[] result = new byte[value.length() * 3 + 1];
+        Mutf8.encode(result, 0, value);
+        return ByteBuffer.wrap(result);
+    }
+
+    /**
+     * Makes {@link #strings} and {@link #typeNames} keep up to {@code size}
+     * decoded strings, rounded up to a power of two, so that the strings
+     * they return repeatedly, such as the name of a class for each of its
+     * members, are decoded only once. The cache is direct-mapped: the last
+     * string decoded for each slot takes it. The cache is off by default,
+     * and a size of 0 turns it off again.
+     */
+    public void setStringCacheSize(int size) {
+        if (size < 0 || size > (1 << 30)) {
+            throw new IllegalArgumentException("size=" + size);
+        }
+        stringCache = size == 0
+                ? null
+                : new CachedString[Integer.highestOneBit(size * 2 - 1)];
+    }
+
+    /**
+     * Compares the string at {@code index} in this dex with the string at
+     * {@code otherIndex} in {@code other} without decoding them. The result
+     * has the sign of {@link String#compareTo}, which is the order of the
+     * string ids of a dex.
+     */
+    public int compareStrings(int index, Dex other, int otherIndex) {
+        return Mutf8.compare(data, skipUleb128(stringDataOffset(index)),
+                other.data, other.skipUleb128(other.stringDataOffset(otherIndex)));
+    }
+
+    private int stringDataOffset(int index) {
+        checkBounds(index, tableOfContents.stringIds.size);
+        return data.getInt(tableOfContents.stringIds.off + (index * SizeOf.STRING_ID_ITEM));
+    }
+
+    /**
+     * Returns the index of the first byte at which the strings of the
+     * string_data_items at {@code offset} in this dex and {@code
+     * otherOffset} in {@code other} differ, or -1 if they are equal. The
+     * strings must be known to be equal before index {@code from}.
+     */
+    public int stringDataMismatch(int offset, Dex other, int otherOffset, int from) {
+        int index = Mutf8.mismatch(data, skipUleb128(offset) + from,
+                other.data, other.skipUleb128(otherOffset) + from);
+        return index == -1 ? -1 : from + index;
+    }
+
+    /**
+     * Returns the position in the order of {@link String#compareTo} of the
+     * byte at {@code index} in the string of the string_data_item at {@code
+     * offset}, among strings that are equal before that byte. The end of
+     * the string comes first, at 0.
+     */
+    public int stringDataOrder(int offset, int index) {
+        return Mutf8.order(data, skipUleb128(offset) + index);
+    }
+
+    /**
+     * Returns the offset of the first byte after the uleb128 at {@code offset}.
+     */
+    private int skipUleb128(int offset) {
+        while ((data.get(offset++) & 0x80) != 0) {
+            // keep going
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the offset of the first byte after the string_data_item at
+     * {@code offset}.
+     */
+    private int endOfStringData(int offset) {
+        offset = skipUleb128(offset);
+        while (data.get(offset++) != 0) {
+            // keep going
+        }
+        return offset;
+    }
+
 
     public final class Section implements ByteInput, ByteOutput {
         private final String name;
@@ -693,6 +988,24 @@ public final class Dex {
             }
         }
 
+        /**
+         * Copies the string_data_item at {@code offset} in {@code source}
+         * as is, which is cheaper than reading and writing the string.
+         */
+        public void writeStringData(Dex source, int offset) {
+            write(source, offset, source.endOfStringData(offset) - offset);
+        }
+
+        /**
+         * Copies the {@code length} bytes at {@code offset} in {@code source}.
+         */
+        public void write(Dex source, int offset, int length) {
+            ByteBuffer bytes = source.data.duplicate();
+            bytes.limit(offset + length);
+            bytes.position(offset);
+            data.put(bytes);
+        }
+
         public void writeTypeList(TypeList typeList) {
             short[] types = typeList.getTypes();
             writeInt(types.length);
@@ -714,6 +1027,22 @@ public final class Dex {
         @Override
         public String get(int index) {
             checkBounds(index, tableOfContents.stringIds.size);
+            CachedString[] cache = stringCache;
+            if (cache == null) {
+                return read(index);
+            }
+
+            int slot = index & (cache.length - 1);
+            CachedString cached = cache[slot];
+            if (cached != null && cached.index == index) {
+                return cached.value;
+            }
+            String result = read(index);
+            cache[slot] = new CachedString(index, result);
+            return result;
+        }
+
+        private String read(int index) {
             return open(tableOfContents.stringIds.off + (index * SizeOf.STRING_ID_ITEM))
                     .readString();
         }
@@ -723,6 +1052,20 @@ public final class Dex {
         }
     }
 
+    /**
+     * A decoded string in {@link #stringCache}. Instances are immutable, so
+     * that threads sharing a dex may race to fill a slot.
+     */
+    private static final class CachedString {
+        private final int index;
+        private final String value;
+
+        CachedString(int index, String value) {
+            this.index = index;
+            this.value = value;
+        }
+    }
+
     private final class TypeIndexToDescriptorIndexTable extends AbstractList<Integer>
             implements RandomAccess {
         @Override
@@ -18,6 +18,8 @@ package com.android.dex;
 
 import com.android.dex.util.ByteInput;
 import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Modified UTF-8 as described in the dex file format spec.
@@ -58,6 +60,77 @@ public final class Mutf8 {
         }
     }
 
+    /**
+     * Compares the 0x00 delimited modified UTF-8 strings at {@code aOffset}
+     * in {@code a} and {@code bOffset} in {@code b} without decoding them.
+     * The result has the sign of {@link String#compareTo} applied to the
+     * decoded strings.
+     */
+    public static int compare(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset) {
+        int index = mismatch(a, aOffset, b, bOffset);
+        if (index == -1) {
+            return 0;
+        }
+        return order(a, aOffset + index) - order(b, bOffset + index);
+    }
+
+    /**
+     * Returns the index of the first byte at which the 0x00 delimited
+     * modified UTF-8 strings at {@code aOffset} in {@code a} and {@code
+     * bOffset} in {@code b} differ, or -1 if they are equal.
+     */
+    public static int mismatch(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset) {
+        int index = 0;
+
+        // Compare eight bytes at a time while both buffers have them.
+        while (aOffset + index + 8 <= a.limit() && bOffset + index + 8 <= b.limit()) {
+            long x = littleEndianLong(a, aOffset + index);
+            long y = littleEndianLong(b, bOffset + index);
+            long zeroes = (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+            if (x != y) {
+                int bit = Long.numberOfTrailingZeros(x ^ y);
+                if (zeroes != 0 && Long.numberOfTrailingZeros(zeroes) < bit) {
+                    return -1; // both strings end before the first difference
+                }
+                return index + (bit >> 3);
+            } else if (zeroes != 0) {
+                return -1;
+            }
+            index += 8;
+        }
+
+        while (true) {
+            int x = a.get(aOffset + index);
+            if (x != b.get(bOffset + index)) {
+                return index;
+            } else if (x == 0) {
+                return -1;
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Returns the position in the order of {@link String#compareTo} of the
+     * character starting with the byte at {@code offset} in {@code buffer},
+     * for strings that are equal up to that byte: the delimiter comes
+     * first, then U+0000, then every other character by its first byte.
+     * The encoding preserves the order of UTF-16 code units, except for
+     * U+0000 which is encoded as 0xc0 0x80 instead of 0x00.
+     */
+    public static int order(ByteBuffer buffer, int offset) {
+        int b = buffer.get(offset) & 0xff;
+        if (b == 0) {
+            return 0;
+        }
+        return b == 0xc0 ? 1 : b + 1;
+    }
+
+    private static long littleEndianLong(ByteBuffer buffer, int offset) {
+        long result = buffer.getLong(offset);
+        return buffer.order() == ByteOrder.LITTLE_ENDIAN ? result : Long.reverseBytes(result);
+    }
+
     /**
      * Returns the number of bytes the modified UTF8 representation of 's' would take.
      */
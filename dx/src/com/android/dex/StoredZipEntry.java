@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Location of the data of an uncompressed entry of a zip archive, found
+ * by reading the archive's central directory. Zip64 archives aren't
+ * supported.
+ */
+final class StoredZipEntry {
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_DIRECTORY_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int METHOD_STORED = 0;
+    private static final long ZIP64_MARKER = 0xffffffffL;
+
+    /** offset of the entry's data in the archive */
+    final long offset;
+
+    /** size of the entry's data */
+    final long size;
+
+    private StoredZipEntry(long offset, long size) {
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /**
+     * Returns the location of the entry {@code name} of the archive read by
+     * {@code channel}, or null if there is no such entry, if it is
+     * compressed, or if its location can't be found this way.
+     */
+    static StoredZipEntry find(FileChannel channel, String name) throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize,
+                END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+
+        int end = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE;
+        while (end >= 0 && tail.getInt(end) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            end--;
+        }
+        if (end < 0) {
+            return null;
+        }
+        long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+        if (directoryOffset == ZIP64_MARKER
+                || directoryOffset + directorySize > fileSize) {
+            return null;
+        }
+
+        byte[] nameBytes = name.getBytes(Charset.forName("UTF-8"));
+        ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+        int position = 0;
+        while (position + CENTRAL_DIRECTORY_SIZE <= directorySize
+                && directory.getInt(position) == CENTRAL_DIRECTORY_SIGNATURE) {
+            int method = directory.getShort(position + 10) & 0xffff;
+            long size = directory.getInt(position + 24) & 0xffffffffL;
+            int nameSize = directory.getShort(position + 28) & 0xffff;
+            int extraSize = directory.getShort(position + 30) & 0xffff;
+            int commentSize = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+
+            if (position + CENTRAL_DIRECTORY_SIZE + nameSize > directorySize) {
+                return null;
+            }
+
+            if (nameSize == nameBytes.length && Arrays.equals(nameBytes,
+                    bytes(directory, position + CENTRAL_DIRECTORY_SIZE, nameSize))) {
+                if (method != METHOD_STORED || size == ZIP64_MARKER
+                        || localHeaderOffset == ZIP64_MARKER) {
+                    return null;
+                }
+                ByteBuffer localHeader = read(channel, localHeaderOffset, LOCAL_HEADER_SIZE);
+                if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                    return null;
+                }
+                long offset = localHeaderOffset + LOCAL_HEADER_SIZE
+                        + (localHeader.getShort(26) & 0xffff)
+                        + (localHeader.getShort(28) & 0xffff);
+                if (offset + size > fileSize) {
+                    return null;
+                }
+                return new StoredZipEntry(offset, size);
+            }
+
+            position += CENTRAL_DIRECTORY_SIZE + nameSize + extraSize + commentSize;
+        }
+
+        return null;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size)
+            throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (result.hasRemaining()) {
+            if (channel.read(result, position + result.position()) == -1) {
+                throw new DexException("Unexpected end of archive at " + position);
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int position, int size) {
+        byte[] result = new byte[size];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.get(result);
+        return result;
+    }
+}
@@ -54,7 +54,7 @@ import java.util.ArrayList;
 /*package*/ final class RopperMachine extends ValueAwareMachine {
     /** {@code non-null;} array reflection class */
     private static final CstType ARRAY_REFLECT_TYPE =
-        new CstType(Type.internClassName("java/lang/reflect/Array"));
+        new CstType(Type.REFLECT_ARRAY);
 
     /**
      * {@code non-null;} method constant for use in converting
@@ -31,25 +31,65 @@ public class Main {
         "  [--dump-method=<name>[*]] [--verbose-dump] [--no-files] [--core-library]\n" +
         "  [--num-threads=<n>] [--incremental] [--force-jumbo] [--no-warning]\n" +
         "  [--multi-dex [--main-dex-list=<file> [--minimal-main-dex]]\n" +
-        "  [--input-list=<file>] [--min-sdk-version=<n>]\n" +
+        "  [--multi-dex-layout=greedy|packed]]\n" +
+        "  [--input-list=<file>] [--min-sdk-version=<n>] [--method-threads=<n>]\n" +
         "  [--allow-all-interface-method-invokes]\n" +
+        "  [--reduced-optimize-above=<insns>,<blocks>]\n" +
+        "  [--no-optimize-above=<insns>,<blocks>] [--optimize-budget=<ms>]\n" +
+        "  [--linear-scan | --linear-scan-above=<regs>]\n" +
+        "  [--translation-cache=<directory> [--translation-cache-size=<megabytes>]]\n" +
         "  [<file>.class | <file>.{zip,jar,apk} | <directory>] ...\n" +
         "    Convert a set of classfiles into a dex file, optionally embedded in a\n" +
         "    jar/zip. Output name must end with one of: .dex .jar .zip .apk or be a\n" +
         "    directory.\n" +
         "    Positions options: none, important, lines.\n" +
-        "    --multi-dex: allows to generate several dex files if needed. This option is\n" +
-        "    exclusive with --incremental, causes --num-threads to be ignored and only\n" +
-        "    supports folder or archive output.\n" +
+        "    --multi-dex: allows to generate several dex files if needed. This option\n" +
+        "    causes --num-threads to be ignored and only supports folder or archive\n" +
+        "    output. With --incremental, it only supports folder output, where it keeps\n" +
+        "    a manifest of the build, and rewrites only the dex files that held changed\n" +
+        "    or removed classes.\n" +
         "    --main-dex-list=<file>: <file> is a list of class file names, classes\n" +
         "    defined by those class files are put in classes.dex.\n" +
         "    --minimal-main-dex: only classes selected by --main-dex-list are to be put\n" +
         "    in the main dex.\n" +
+        "    --multi-dex-layout: greedy (the default) fills dex files one after the\n" +
+        "    other in input order. packed lays out the classes once they are all\n" +
+        "    translated, grouping those that share references, so that fewer dex\n" +
+        "    files repeat the same ids.\n" +
         "    --input-list: <file> is a list of inputs.\n" +
         "    Each line in <file> must end with one of: .class .jar .zip .apk or be a\n" +
         "    directory.\n" +
         "    --min-sdk-version=<n>: Enable dex file features that require at least sdk\n" +
         "    version <n>.\n" +
+        "    --method-threads=<n>: optimize the methods of large classes on <n>\n" +
+        "    threads, rather than each class on a single thread.\n" +
+        "    --reduced-optimize-above=<insns>,<blocks>: optimize methods with more\n" +
+        "    rop insns or basic blocks than these without SCCP and constant\n" +
+        "    collection (default 16384,8192, 0 for no limit).\n" +
+        "    --no-optimize-above=<insns>,<blocks>: don't optimize methods with more\n" +
+        "    rop insns or basic blocks than these (default 32768,16384).\n" +
+        "    --optimize-budget=<ms>: don't optimize methods that take longer than\n" +
+        "    <ms> milliseconds to optimize, which makes the output depend on the\n" +
+        "    speed of the machine. --statistics lists the methods not optimized.\n" +
+        "    --linear-scan-above=<regs>: allocate the registers of optimized methods\n" +
+        "    with more SSA registers than <regs> by linear scan, which is faster on\n" +
+        "    very large methods but uses more registers (default 3072).\n" +
+        "    --linear-scan: allocate the registers of all optimized methods by\n" +
+        "    linear scan.\n" +
+        "    --translation-cache=<directory>: reuse classes translated by previous runs\n" +
+        "    from <directory>, and store newly translated ones there. The output has\n" +
+        "    the same classes and code as without the cache, laid out differently.\n" +
+        "    Least recently used entries are evicted once the cache exceeds\n" +
+        "    --translation-cache-size megabytes (default 256). Not supported with\n" +
+        "    --multi-dex.\n" +
+        "  dx --daemon [--port=<n>] [--max-jobs=<n>] [--token-file=<path>]\n" +
+        "    Run a dexer daemon on a loopback port (default 8799), running up to\n" +
+        "    <n> jobs at a time (default: number of processors). Only jobs sent with\n" +
+        "    the token the daemon writes to <path>, readable only by its owner, are\n" +
+        "    run (default: ~/.dx/daemon-<port>.token).\n" +
+        "  dx --daemon-client [--port=<n>] [--token-file=<path>]\n" +
+        "  <--dex arguments, without --dex>\n" +
+        "    Run a --dex job in a running daemon, avoiding the JVM startup cost.\n" +
         "  dx --annotool --annotation=<class> [--element=<element types>]\n" +
         "  [--print=<print types>]\n" +
         "  dx --dump [--debug] [--strict] [--bytes] [--optimize]\n" +
@@ -94,6 +134,12 @@ public class Main {
                 if (arg.equals("--dex")) {
                     com.android.dx.command.dexer.Main.main(without(args, i));
                     break;
+                } else if (arg.equals("--daemon")) {
+                    com.android.dx.command.dexer.Daemon.main(without(args, i));
+                    break;
+                } else if (arg.equals("--daemon-client")) {
+                    com.android.dx.command.dexer.Daemon.client(without(args, i));
+                    break;
                 } else if (arg.equals("--dump")) {
                     com.android.dx.command.dump.Main.main(without(args, i));
                     break;
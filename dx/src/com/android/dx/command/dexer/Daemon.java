@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.command.dexer;
+
+import com.android.dx.command.UsageException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long running dexer, accepting {@code --dex} jobs on a loopback socket so
+ * that a build running many small dx steps pays for JVM startup and JIT
+ * warm-up only once. Each job runs in its own {@link DxContext}, with
+ * its own intern tables, and at most {@code --max-jobs} jobs run at the
+ * same time. Requests are read and checked as they are accepted, so that
+ * only jobs ready to run wait for one of these.
+ *
+ * <p>Any local user may connect to a loopback port, so the daemon writes a
+ * random token to a file only its owner may read, and runs only the jobs
+ * that come with it. A job is sent by {@link #client} as the token, the
+ * argument count, and the arguments, with all file paths made absolute
+ * since the daemon has its own working directory. The daemon replies with
+ * the exit code, the job's elapsed time in milliseconds, and the job's
+ * standard output and error output. Requests without the token or larger
+ * than the limits below, and jobs coming while {@link #MAX_QUEUED_JOBS}
+ * jobs are already waiting, are replied to with exit code 1 and not
+ * run.</p>
+ */
+public final class Daemon {
+
+    /** default port to listen on */
+    public static final int DEFAULT_PORT = 8799;
+
+    /** maximum number of arguments of a job */
+    private static final int MAX_ARGS = 1 << 16;
+
+    /** maximum total length of the arguments of a job, in chars */
+    private static final int MAX_ARGS_LENGTH = 1 << 24;
+
+    /**
+     * time a client may take to send its request, in milliseconds; no other
+     * request is accepted meanwhile
+     */
+    private static final int REQUEST_TIMEOUT_MILLIS = 5000;
+
+    /** maximum number of jobs waiting for one of the running jobs to end */
+    private static final int MAX_QUEUED_JOBS = 64;
+
+    /** number of random bytes of the token */
+    private static final int TOKEN_BYTES = 32;
+
+    /** {@code non-null;} charset of the token file */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** {@code non-null;} options of {@code --dex} taking a path as their value */
+    private static final Set<String> PATH_OPTIONS = new HashSet<String>(Arrays.asList(
+            "--output", "--dump-to", "--main-dex-list", "--input-list",
+            "--optimize-list", "--no-optimize-list", "--translation-cache"));
+
+    /** {@code non-null;} where to log job completion */
+    private final PrintStream log;
+
+    /** {@code non-null;} token that requests must start with */
+    private final byte[] token;
+
+    /** number of jobs accepted so far */
+    private final AtomicInteger jobCount = new AtomicInteger(0);
+
+    private Daemon(PrintStream log, byte[] token) {
+        this.log = log;
+        this.token = token;
+    }
+
+    /**
+     * Runs the daemon until the process is killed.
+     *
+     * @param args {@code non-null;} {@code [--port=<n>] [--max-jobs=<n>]
+     * [--token-file=<path>]}
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int maxJobs = Runtime.getRuntime().availableProcessors();
+        String tokenFile = null;
+
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("--max-jobs=")) {
+                maxJobs = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("--token-file=")) {
+                tokenFile = arg.substring(arg.indexOf('=') + 1);
+            } else {
+                System.err.println("unknown option: " + arg);
+                throw new UsageException();
+            }
+        }
+
+        ServerSocket serverSocket =
+                new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        File file = (tokenFile != null)
+                ? new File(tokenFile) : defaultTokenFile(serverSocket.getLocalPort());
+        byte[] token = newToken();
+        writeTokenFile(file, token);
+
+        new Daemon(System.err, token).serve(serverSocket, maxJobs);
+    }
+
+    /**
+     * Sends one {@code --dex} job to a running daemon and exits with the
+     * job's exit code.
+     *
+     * @param args {@code non-null;} {@code [--port=<n>] [--token-file=<path>]}
+     * followed by the arguments of {@code --dex}
+     */
+    public static void client(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        String tokenFile = null;
+        int first = 0;
+        for (; first < args.length; first++) {
+            String arg = args[first];
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("--token-file=")) {
+                tokenFile = arg.substring(arg.indexOf('=') + 1);
+            } else {
+                break;
+            }
+        }
+        String[] jobArgs = absolutePaths(Arrays.copyOfRange(args, first, args.length));
+
+        File file = (tokenFile != null) ? new File(tokenFile) : defaultTokenFile(port);
+        byte[] token;
+        try {
+            token = Files.readAllBytes(file.toPath());
+        } catch (IOException ex) {
+            System.err.println("dx daemon client: cannot read token file "
+                    + file + ": " + ex);
+            System.exit(1);
+            return;
+        }
+
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(new String(token, UTF_8).trim());
+            out.writeInt(jobArgs.length);
+            for (String arg : jobArgs) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            int result = in.readInt();
+            in.readLong(); // elapsed time, only logged by the daemon
+            copyBytes(in, System.out);
+            System.out.flush();
+            copyBytes(in, System.err);
+            System.err.flush();
+
+            if (result != 0) {
+                System.exit(result);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Gets the token file used when none is given: one per port, in a
+     * directory of the user's home.
+     */
+    private static File defaultTokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".dx"),
+                "daemon-" + port + ".token");
+    }
+
+    /**
+     * Makes a new random token, as hexadecimal digits.
+     */
+    private static byte[] newToken() {
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+
+        StringBuilder sb = new StringBuilder(TOKEN_BYTES * 2);
+        for (byte b : random) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Writes the token to a new file that only the current user may read
+     * and write, replacing any file left by a previous daemon, and deletes
+     * it when the daemon exits.
+     */
+    private static void writeTokenFile(File file, byte[] token) throws IOException {
+        Path path = file.getAbsoluteFile().toPath();
+        Path parent = path.getParent();
+        boolean posix = Files.getFileStore(Files.exists(parent) ? parent : path.getRoot())
+                .supportsFileAttributeView("posix");
+
+        if (!Files.exists(parent)) {
+            if (posix) {
+                Files.createDirectories(parent,
+                        PosixFilePermissions.asFileAttribute(
+                                PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(parent);
+            }
+        }
+
+        // Creating the file fails rather than reuse one made in between.
+        Files.deleteIfExists(path);
+        if (posix) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(path);
+            File created = path.toFile();
+            if (!created.setReadable(false, false) || !created.setReadable(true, true)
+                    || !created.setWritable(false, false)
+                    || !created.setWritable(true, true)) {
+                Files.delete(path);
+                throw new IOException("cannot restrict access to " + path);
+            }
+        }
+        Files.write(path, token);
+
+        final File toDelete = path.toFile();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                toDelete.delete();
+            }
+        });
+    }
+
+    /**
+     * Accepts and runs jobs until the process is killed.
+     */
+    private void serve(ServerSocket serverSocket, int maxJobs) throws IOException {
+        ExecutorService jobPool = new ThreadPoolExecutor(maxJobs, maxJobs,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_JOBS));
+        log.println("dx daemon listening on port " + serverSocket.getLocalPort()
+                + ", running up to " + maxJobs + " jobs at a time");
+
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                int jobNumber = jobCount.incrementAndGet();
+                boolean queued = false;
+                try {
+                    String[] args = readRequest(jobNumber, socket);
+                    queued = (args != null) && queueJob(jobPool, jobNumber, socket, args);
+                } catch (IOException ex) {
+                    log.println("job " + jobNumber + ": " + ex);
+                } finally {
+                    if (!queued) {
+                        closeQuietly(socket);
+                    }
+                }
+            }
+        } finally {
+            jobPool.shutdownNow();
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Reads the arguments of a job from {@code socket}, replying to the
+     * client if they are rejected.
+     *
+     * @return {@code null-ok;} the arguments, or {@code null} if rejected
+     */
+    private String[] readRequest(int jobNumber, Socket socket) throws IOException {
+        socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+        try {
+            return readRequest(in);
+        } catch (ProtocolException ex) {
+            reject(jobNumber, socket, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Hands a job over to {@code jobPool}, which then closes
+     * {@code socket}, or replies to the client if too many jobs are waiting.
+     *
+     * @return whether the job was queued
+     */
+    private boolean queueJob(ExecutorService jobPool, final int jobNumber,
+            final Socket socket, final String[] args) throws IOException {
+        try {
+            jobPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runJob(jobNumber, socket, args);
+                    } catch (Throwable ex) {
+                        log.println("job " + jobNumber + ": " + ex);
+                    } finally {
+                        closeQuietly(socket);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            reject(jobNumber, socket, "too many jobs waiting");
+            return false;
+        }
+    }
+
+    private void reject(int jobNumber, Socket socket, String reason) throws IOException {
+        reply(socket, 1, 0, new byte[0], ("dx daemon: " + reason + "\n").getBytes(UTF_8));
+        log.println("job " + jobNumber + ": rejected, " + reason);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+    }
+
+    /**
+     * Runs one job in its own context and replies with the result.
+     */
+    private void runJob(int jobNumber, Socket socket, String[] args) throws IOException {
+        ByteArrayOutputStream jobOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream jobErr = new ByteArrayOutputStream();
+        DxContext context = new DxContext(jobOut, jobErr);
+
+        long start = System.nanoTime();
+        int result;
+        try {
+            Main.Arguments arguments = new Main.Arguments(context);
+            arguments.parse(args);
+            result = new Main(context).runDx(arguments);
+        } catch (UsageException ex) {
+            context.err.println("usage error; see dx --help");
+            result = 1;
+        } catch (RuntimeException ex) {
+            context.err.println("\nUNEXPECTED TOP-LEVEL EXCEPTION:");
+            ex.printStackTrace(context.err);
+            result = 2;
+        } catch (Throwable ex) {
+            // Such as running out of memory, which the next job may not.
+            context.err.println("\nUNEXPECTED TOP-LEVEL ERROR:");
+            ex.printStackTrace(context.err);
+            result = 3;
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        context.out.flush();
+        context.err.flush();
+
+        reply(socket, result, elapsed, jobOut.toByteArray(), jobErr.toByteArray());
+
+        log.println("job " + jobNumber + ": exit " + result + " in " + elapsed + "ms");
+    }
+
+    /**
+     * Reads the arguments of a job, after checking its token.
+     *
+     * @throws ProtocolException if the token is wrong, or if the arguments
+     * are over the limits
+     */
+    private String[] readRequest(DataInputStream in) throws IOException {
+        byte[] requestToken = in.readUTF().getBytes(UTF_8);
+        if (!MessageDigest.isEqual(token, requestToken)) {
+            throw new ProtocolException("bad token");
+        }
+
+        int argCount = in.readInt();
+        if (argCount < 0 || argCount > MAX_ARGS) {
+            throw new ProtocolException("bad argument count: " + argCount);
+        }
+
+        String[] args = new String[argCount];
+        long length = 0;
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+            length += args[i].length();
+            if (length > MAX_ARGS_LENGTH) {
+                throw new ProtocolException("arguments too long");
+            }
+        }
+        return args;
+    }
+
+    private static void reply(Socket socket, int result, long elapsed, byte[] jobOut,
+            byte[] jobErr) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(result);
+        out.writeLong(elapsed);
+        writeBytes(out, jobOut);
+        writeBytes(out, jobErr);
+        out.flush();
+    }
+
+    /**
+     * Returns a copy of the given {@code --dex} arguments, with relative
+     * file paths resolved against the current directory.
+     */
+    private static String[] absolutePaths(String[] args) {
+        String[] result = args.clone();
+        boolean inFiles = false;
+        for (int i = 0; i < result.length; i++) {
+            String arg = result[i];
+            if (inFiles || !arg.startsWith("--")) {
+                inFiles = true;
+                result[i] = absolutePath(arg);
+            } else if (arg.equals("--")) {
+                inFiles = true;
+            } else {
+                int equalsAt = arg.indexOf('=');
+                if (equalsAt != -1) {
+                    if (PATH_OPTIONS.contains(arg.substring(0, equalsAt))) {
+                        result[i] = arg.substring(0, equalsAt + 1)
+                                + absolutePath(arg.substring(equalsAt + 1));
+                    }
+                } else if (PATH_OPTIONS.contains(arg) && i + 1 < result.length) {
+                    // "--name value" form
+                    i++;
+                    result[i] = absolutePath(result[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String absolutePath(String path) {
+        // "-" stands for standard output
+        if (path.equals("-") || path.startsWith("-.")) {
+            return path;
+        }
+        return new File(path).getAbsolutePath();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Copies bytes written by {@link #writeBytes} as they arrive, rather
+     * than allocating as many as the daemon claims to send.
+     */
+    private static void copyBytes(DataInputStream in, OutputStream out)
+            throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new ProtocolException("bad length: " + length);
+        }
+
+        byte[] buffer = new byte[Math.min(length, 8192)];
+        while (length > 0) {
+            int count = in.read(buffer, 0, Math.min(length, buffer.length));
+            if (count < 0) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, count);
+            length -= count;
+        }
+    }
+}
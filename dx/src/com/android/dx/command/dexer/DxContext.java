@@ -2,9 +2,12 @@ package com.android.dx.command.dexer;
 
 import com.android.dx.dex.cf.CodeStatistics;
 import com.android.dx.dex.cf.OptimizerOptions;
+import com.android.dx.util.Interner;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * State used by a single invocation of {@link Main}.
@@ -12,6 +15,17 @@ import java.io.PrintStream;
 public class DxContext {
     public final CodeStatistics codeStatistics = new CodeStatistics();
     public final OptimizerOptions optimizerOptions = new OptimizerOptions();
+    /** intern tables of this invocation, bound to all of its threads */
+    public final Interner interner = new Interner();
+    /**
+     * pool that translates the methods of large classes in parallel, or
+     * {@code null} to translate each class on a single thread
+     */
+    public ForkJoinPool methodPool;
+    /** number of classes found in the translation cache */
+    public final AtomicInteger translationCacheHits = new AtomicInteger();
+    /** number of classes translated and stored in the translation cache */
+    public final AtomicInteger translationCacheMisses = new AtomicInteger();
     public final PrintStream out;
     public final PrintStream err;
 
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.command.dexer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Record of an incremental multi-dex build, kept in the output directory.
+ * For each class file it holds the hash of its contents, the type it
+ * defines and the index of the dex file of the output that holds that
+ * type. The next incremental build translates only the class files that
+ * changed since, and rewrites only the dex files that hold their types.
+ *
+ * <p>The first line of the file holds a format version, a hash of the
+ * options of the build and the time the build started. Each other line
+ * describes one class file.</p>
+ */
+final class IncrementalManifest {
+
+    /** name of the manifest file in the output directory */
+    static final String FILE_NAME = "dx-incremental.manifest";
+
+    /** first word of the first line of the file */
+    private static final String MAGIC = "dx-incremental-manifest";
+
+    /** version of the format of the file */
+    private static final int VERSION = 1;
+
+    /** charset of the file */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** {@code non-null;} hash of the options of the build */
+    private final String optionsHash;
+
+    /**
+     * time the build started, rounded down to the coarsest precision of
+     * file modification times
+     */
+    private final long timestamp;
+
+    /** {@code non-null;} entries by class file path, in insertion order */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Constructs an empty instance.
+     *
+     * @param optionsHash {@code non-null;} hash of the options of the build,
+     * as returned by {@link #hashOptions}
+     * @param startTime time the build started, in milliseconds
+     */
+    public IncrementalManifest(String optionsHash, long startTime) {
+        this.optionsHash = optionsHash;
+        // Zip entries only keep even seconds.
+        this.timestamp = startTime - startTime % 2000;
+    }
+
+    /**
+     * Reads the manifest of a previous build.
+     *
+     * @param file {@code non-null;} the manifest file
+     * @param optionsHash {@code non-null;} hash of the options of this build
+     * @return {@code null-ok;} the manifest, or {@code null} if there is
+     * none, or if it was written by a build with other options or by
+     * another version of this class
+     */
+    public static IncrementalManifest read(File file, String optionsHash) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String[] header = split(in.readLine(), 4);
+            if (header == null || !header[0].equals(MAGIC)
+                    || !header[1].equals(Integer.toString(VERSION))
+                    || !header[2].equals(optionsHash)) {
+                return null;
+            }
+
+            IncrementalManifest result =
+                    new IncrementalManifest(optionsHash, Long.parseLong(header[3]));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = split(line, 4);
+                if (fields == null) {
+                    return null;
+                }
+                result.put(new Entry(fields[3], fields[2], fields[1],
+                        Integer.parseInt(fields[0])));
+            }
+            return result;
+        } catch (NumberFormatException ex) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Splits {@code line} into {@code count} space separated fields, the
+     * last one taking the rest of the line.
+     *
+     * @return {@code null-ok;} the fields, or {@code null} if there are
+     * fewer
+     */
+    private static String[] split(String line, int count) {
+        if (line == null) {
+            return null;
+        }
+        String[] result = line.split(" ", count);
+        return result.length == count ? result : null;
+    }
+
+    /**
+     * Writes this manifest, replacing {@code file}.
+     *
+     * @param file {@code non-null;} the manifest file
+     */
+    public void write(File file) throws IOException {
+        File temp = File.createTempFile(FILE_NAME, ".tmp", file.getAbsoluteFile().getParentFile());
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), UTF_8);
+        try {
+            out.write(MAGIC + " " + VERSION + " " + optionsHash + " " + timestamp + "\n");
+            for (Entry entry : entries.values()) {
+                out.write(entry.dex + " " + entry.hash + " " + entry.descriptor + " "
+                        + entry.path + "\n");
+            }
+        } finally {
+            out.close();
+        }
+
+        file.delete();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("unable to write " + file);
+        }
+    }
+
+    /**
+     * Returns whether a class file modified at {@code lastModified} is
+     * known to be older than the build of this manifest.
+     */
+    public boolean isOlder(long lastModified) {
+        return lastModified < timestamp;
+    }
+
+    /**
+     * Gets the number of dex files of the output of the build, which is
+     * one more than the largest index of a dex file holding a class.
+     */
+    public int getDexCount() {
+        int result = 0;
+        for (Entry entry : entries.values()) {
+            result = Math.max(result, entry.dex + 1);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the entry of a class file.
+     *
+     * @param path {@code non-null;} the path of the class file
+     * @return {@code null-ok;} the entry, or {@code null} if the class file
+     * is not part of the build
+     */
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Gets all entries, in the order they were added.
+     */
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * Adds an entry, replacing that of the same class file if any.
+     */
+    public void put(Entry entry) {
+        entries.put(entry.path, entry);
+    }
+
+    /**
+     * Hashes the contents of a class file.
+     *
+     * @param bytes {@code non-null;} contents of the class file
+     * @return {@code non-null;} the hash
+     */
+    public static String hash(byte[] bytes) {
+        MessageDigest digest = TranslationCache.newDigest();
+        return TranslationCache.toHex(digest.digest(bytes));
+    }
+
+    /**
+     * Hashes every option that affects the contents of the output of a
+     * multi-dex build, including those of the main dex list.
+     *
+     * @param args {@code non-null;} the arguments of the build
+     * @return {@code non-null;} the hash
+     */
+    public static String hashOptions(Main.Arguments args) {
+        MessageDigest digest =
+                TranslationCache.newOptionsDigest(args.cfOptions, args.dexOptions);
+        TranslationCache.updateWithFile(digest, args.mainDexListFile);
+        TranslationCache.update(digest, "minimal-main-dex=" + args.minimalMainDex);
+        TranslationCache.update(digest, "max-idx=" + args.maxNumberOfIdxPerDex);
+        TranslationCache.update(digest, "packed=" + args.packedMultiDexLayout);
+        return TranslationCache.toHex(digest.digest());
+    }
+
+    /**
+     * The record of one class file.
+     */
+    public static final class Entry {
+        /** {@code non-null;} path of the class file, as given to the dexer */
+        final String path;
+
+        /** {@code non-null;} descriptor of the type the class file defines */
+        final String descriptor;
+
+        /** {@code non-null;} hash of the contents of the class file */
+        final String hash;
+
+        /** {@code >= 0;} index of the dex file holding the type */
+        final int dex;
+
+        public Entry(String path, String descriptor, String hash, int dex) {
+            this.path = path;
+            this.descriptor = descriptor;
+            this.hash = hash;
+            this.dex = dex;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.dx.command.dexer;
 
+import com.android.dex.ClassDef;
 import com.android.dex.Dex;
 import com.android.dex.DexException;
 import com.android.dex.DexFormat;
@@ -33,10 +34,13 @@ import com.android.dx.dex.cf.CfOptions;
 import com.android.dx.dex.cf.CfTranslator;
 import com.android.dx.dex.code.PositionList;
 import com.android.dx.dex.file.ClassDefItem;
+import com.android.dx.dex.file.ClassIds;
 import com.android.dx.dex.file.DexFile;
 import com.android.dx.dex.file.EncodedMethod;
+import com.android.dx.dex.file.PackedDexLayout;
 import com.android.dx.merge.CollisionPolicy;
 import com.android.dx.merge.DexMerger;
+import com.android.dx.merge.MultiDexMerger;
 import com.android.dx.rop.annotation.Annotation;
 import com.android.dx.rop.annotation.Annotations;
 import com.android.dx.rop.annotation.AnnotationsList;
@@ -46,10 +50,13 @@ import com.android.dx.rop.cst.CstString;
 import com.android.dx.rop.cst.CstType;
 import com.android.dx.rop.type.Prototype;
 import com.android.dx.rop.type.Type;
+import com.android.dx.ssa.Optimizer;
+import com.android.dx.util.Interner;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
@@ -58,6 +65,7 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -65,12 +73,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -156,13 +168,6 @@ public class Main {
         "transaction", "xml"
     };
 
-    /* Array.newInstance may be added by RopperMachine,
-     * ArrayIndexOutOfBoundsException.<init> may be added by EscapeAnalysis */
-    private static final int MAX_METHOD_ADDED_DURING_DEX_CREATION = 2;
-
-    /* <primitive types box class>.TYPE */
-    private static final int MAX_FIELD_ADDED_DURING_DEX_CREATION = 9;
-
     /** number of errors during processing */
     private AtomicInteger errors = new AtomicInteger(0);
 
@@ -178,12 +183,46 @@ public class Main {
      */
     private TreeMap<String, byte[]> outputResources;
 
+    /**
+     * {@code null-ok;} map of the {@code .dex} files to include in the
+     * output jar that have been streamed to temporary files, or
+     * {@code null} if not writing a jar
+     */
+    private TreeMap<String, File> outputDexFiles;
+
     /** Library .dex files to merge into the output .dex. */
     private final List<byte[]> libraryDexBuffers = new ArrayList<byte[]>();
 
+    /** {@code null-ok;} thread pool object used for multi-thread class
+     * parsing, or {@code null} if classes are parsed on the reading thread. */
+    private ExecutorService classParserPool;
+
+    /** Single thread executor, for passing parsed classes on to the
+     * translation phase in original input file order. Only used together
+     * with {@code classParserPool}. */
+    private ExecutorService directClassFileConsumer;
+
+    /** Futures for {@code directClassFileConsumer} tasks. */
+    private List<Future<Boolean>> directClassFileConsumerFutures =
+            new ArrayList<Future<Boolean>>();
+
+    /** Bounds the number of classes submitted to the parsing phase and not
+     * yet passed on to the translation phase. */
+    private Semaphore parsedClassPermits;
+
+    /** Number of permits of {@code parsedClassPermits}. */
+    private int maxParsedClassesInProcess;
+
     /** Thread pool object used for multi-thread class translation. */
     private ExecutorService classTranslatorPool;
 
+    /** {@code null-ok;} cache of translated classes, if enabled */
+    private TranslationCache translationCache;
+
+    /** Futures for single class dex files translated through
+     * {@code translationCache}, in input file order. */
+    private List<Future<byte[]>> classDexFutures = new ArrayList<Future<byte[]>>();
+
     /** Single thread executor, for collecting results of parallel translation,
      * and adding classes to dex file in original input file order. */
     private ExecutorService classDefItemConsumer;
@@ -200,28 +239,43 @@ public class Main {
     /** Futures for {@code dexOutPool} task. */
     private List<Future<byte[]>> dexOutputFutures = new ArrayList<Future<byte[]>>();
 
-    /** Lock object used to to coordinate dex file rotation, and
-     * multi-threaded translation. */
-    private Object dexRotationLock = new Object();
-
-    /** Record the number if method indices "reserved" for files
-     * committed to translation in the context of the current dex
-     * file, but not yet added. */
-    private int maxMethodIdsInProcess = 0;
-
-    /** Record the number if field indices "reserved" for files
-     * committed to translation in the context of the current dex
-     * file, but not yet added. */
-    private int maxFieldIdsInProcess = 0;
-
     /** true if any files are successfully processed */
     private volatile boolean anyFilesProcessed;
 
+    /**
+     * {@code null-ok;} with {@code --multi-dex-layout=packed}, the classes
+     * translated so far, to lay out once they all are
+     */
+    private PackedDexLayout packedLayout;
+
+    /**
+     * whether the classes passed on to the translation phase are those of
+     * the main dex list
+     */
+    private volatile boolean inMainDexPass;
+
     /** class files older than this must be defined in the target dex file. */
     private long minimumFileAge = 0;
 
     private Set<String> classesInMainDex = null;
 
+    /** {@code null-ok;} manifest of the previous incremental multi-dex
+     * build, or {@code null} if there is none to build upon */
+    private IncrementalManifest previousManifest;
+
+    /** {@code null-ok;} paths of the class files of an incremental
+     * multi-dex build, or {@code null} if this is not such a build */
+    private Set<String> incrementalClassFiles;
+
+    /** Hashes of the class files of an incremental multi-dex build that
+     * changed since the previous build, by path. */
+    private final Map<String, String> changedClassHashes = new HashMap<String, String>();
+
+    /** Descriptors of the types defined by the class files translated by
+     * an incremental multi-dex build, by path. */
+    private final Map<String, String> translatedDescriptors =
+            new ConcurrentHashMap<String, String>();
+
     private List<byte[]> dexOutputArrays = new ArrayList<byte[]>();
 
     private OutputStreamWriter humanOutWriter = null;
@@ -248,6 +302,12 @@ public class Main {
         }
     }
 
+    /**
+     * Clears the intern tables of the current thread's {@link Interner}.
+     * Since every invocation interns through the one of its
+     * {@link DxContext}, this is only useful for callers that intern
+     * outside of an invocation.
+     */
     public static void clearInternTables() {
         Prototype.clearInternTable();
         RegisterSpec.clearInternTable();
@@ -265,6 +325,15 @@ public class Main {
     }
 
     public int runDx(Arguments arguments) throws IOException {
+        Interner previousInterner = Interner.bind(context.interner);
+        try {
+            return runDx0(arguments);
+        } finally {
+            Interner.bind(previousInterner);
+        }
+    }
+
+    private int runDx0(Arguments arguments) throws IOException {
 
         // Reset the error count to start fresh.
         errors.set(0);
@@ -289,11 +358,20 @@ public class Main {
             }
         } finally {
             closeOutput(humanOutRaw);
+            deleteTempDexFiles();
         }
     }
 
     private int runMonoDex() throws IOException {
 
+        classDexFutures.clear();
+        if (args.translationCacheDir != null) {
+            translationCache = new TranslationCache(new File(args.translationCacheDir),
+                    args.translationCacheSize, args.cfOptions, args.dexOptions);
+        } else {
+            translationCache = null;
+        }
+
         File incrementalOutFile = null;
         if (args.incremental) {
             if (args.outName == null) {
@@ -318,7 +396,18 @@ public class Main {
         // this array is null if no classes were defined
         byte[] outArray = null;
 
-        if (!outputDex.isEmpty() || (args.humanOutName != null)) {
+        if (translationCache != null) {
+            outArray = mergeClassDexBuffers();
+        } else if (!outputDex.isEmpty() && streamsDexOutput() && !args.incremental
+                && libraryDexBuffers.isEmpty()
+                && (args.jarOutput || !isStandardOutput(args.outName))) {
+            // Nothing left to merge in, so stream the file to its destination.
+            File dexOut = args.jarOutput
+                    ? createTempDexFile(DexFormat.DEX_IN_JAR_NAME) : new File(args.outName);
+            if (!writeDex(outputDex, dexOut)) {
+                return 2;
+            }
+        } else if (!outputDex.isEmpty() || (args.humanOutName != null)) {
             outArray = writeDex(outputDex);
 
             if (outArray == null) {
@@ -353,27 +442,41 @@ public class Main {
 
     private int runMultiDex() throws IOException {
 
-        assert !args.incremental;
-
         if (args.mainDexListFile != null) {
             classesInMainDex = new HashSet<String>();
             readPathsFromFile(args.mainDexListFile, classesInMainDex);
         }
 
-        dexOutPool = Executors.newFixedThreadPool(args.numThreads);
+        File manifestFile = null;
+        IncrementalManifest manifest = null;
+        if (args.incremental) {
+            manifestFile = new File(args.outName, IncrementalManifest.FILE_NAME);
+            String optionsHash = IncrementalManifest.hashOptions(args);
+            manifest = new IncrementalManifest(optionsHash, System.currentTimeMillis());
+            previousManifest = IncrementalManifest.read(manifestFile, optionsHash);
+            for (int i = 0; previousManifest != null && i < previousManifest.getDexCount();
+                    i++) {
+                if (!new File(args.outName, getDexFileName(i)).isFile()) {
+                    // Start over if the output has been tampered with.
+                    previousManifest = null;
+                }
+            }
+            incrementalClassFiles = new HashSet<String>();
+            changedClassHashes.clear();
+            translatedDescriptors.clear();
+        }
+
+        dexOutPool = Executors.newFixedThreadPool(args.numThreads,
+                Interner.threadFactory(context.interner));
 
         if (!processAllFiles()) {
             return 1;
         }
 
-        if (!libraryDexBuffers.isEmpty()) {
-            throw new DexException("Library dex files are not supported in multi-dex mode");
-        }
-
         if (outputDex != null) {
             // this array is null if no classes were defined
 
-            dexOutputFutures.add(dexOutPool.submit(new DexWriter(outputDex)));
+            dexOutputFutures.add(dexOutPool.submit(newDexWriter(outputDex)));
 
             // Effectively free up the (often massive) DexFile memory.
             outputDex = null;
@@ -396,10 +499,21 @@ public class Main {
             throw new RuntimeException("Unexpected exception in dex writer thread");
         }
 
+        if (args.incremental) {
+            return finishIncrementalMultiDex(manifest, manifestFile);
+        }
+
+        if (!libraryDexBuffers.isEmpty()) {
+            mergeLibraryDexBuffersMultiDex();
+        }
+
+        // Arrays are null for the dex files that have already been streamed out.
         if (args.jarOutput) {
             for (int i = 0; i < dexOutputArrays.size(); i++) {
-                outputResources.put(getDexFileName(i),
-                        dexOutputArrays.get(i));
+                if (dexOutputArrays.get(i) != null) {
+                    outputResources.put(getDexFileName(i),
+                            dexOutputArrays.get(i));
+                }
             }
 
             if (!createJar(args.outName)) {
@@ -409,6 +523,9 @@ public class Main {
             File outDir = new File(args.outName);
             assert outDir.isDirectory();
             for (int i = 0; i < dexOutputArrays.size(); i++) {
+                if (dexOutputArrays.get(i) == null) {
+                    continue;
+                }
                 OutputStream out = new FileOutputStream(new File(outDir, getDexFileName(i)));
                 try {
                     out.write(dexOutputArrays.get(i));
@@ -421,6 +538,165 @@ public class Main {
         return 0;
     }
 
+    /**
+     * Completes an incremental multi-dex build, whose changed classes are
+     * in {@link #dexOutputArrays}. The dex files of the previous build
+     * that held changed or removed classes are merged with the changed
+     * classes, and split again into as many dex files as it takes. The
+     * other dex files are kept as they are.
+     *
+     * @param manifest {@code non-null;} the empty manifest of this build
+     * @param manifestFile {@code non-null;} where to write the manifest
+     * @return the exit code of dx
+     */
+    private int finishIncrementalMultiDex(IncrementalManifest manifest, File manifestFile)
+            throws IOException {
+        if (!libraryDexBuffers.isEmpty()) {
+            context.err.println("error: " + Arguments.INCREMENTAL_OPTION + " with "
+                    + Arguments.MULTI_DEX_OPTION + " does not support dex file inputs");
+            return 1;
+        }
+
+        int previousCount = previousManifest != null ? previousManifest.getDexCount() : 0;
+
+        /*
+         * The dex files holding changed or removed classes are rewritten.
+         * The changed classes come first in the merge, so that they replace
+         * their previous definitions.
+         */
+        BitSet rewritten = new BitSet();
+        Set<String> dropped = new HashSet<String>();
+        Map<String, String> classFiles = new HashMap<String, String>();
+        if (previousManifest != null) {
+            for (IncrementalManifest.Entry entry : previousManifest.entries()) {
+                if (incrementalClassFiles.contains(entry.path)
+                        && !changedClassHashes.containsKey(entry.path)) {
+                    classFiles.put(entry.descriptor, entry.path);
+                } else {
+                    rewritten.set(entry.dex);
+                    dropped.add(entry.descriptor);
+                }
+            }
+        }
+        for (String path : changedClassHashes.keySet()) {
+            String descriptor = translatedDescriptors.get(path);
+            classFiles.put(descriptor, path);
+            dropped.remove(descriptor);
+            if (previousManifest != null && previousManifest.get(path) == null) {
+                // New classes go to the main dex if listed, else to the last dex.
+                boolean main = classesInMainDex != null && classesInMainDex.contains(path);
+                rewritten.set(main ? 0 : Math.max(previousCount - 1, 0));
+            }
+        }
+
+        List<Dex> outputs = new ArrayList<Dex>();
+        if (previousManifest == null) {
+            // Nothing to build upon, so this is a full build.
+            for (byte[] outArray : dexOutputArrays) {
+                outputs.add(new Dex(outArray));
+            }
+        } else if (!rewritten.isEmpty()) {
+            List<Dex> dexes = new ArrayList<Dex>();
+            for (byte[] outArray : dexOutputArrays) {
+                Dex dex = new Dex(outArray);
+                if (dex.getTableOfContents().classDefs.size > 0) {
+                    dexes.add(dex);
+                }
+            }
+            for (int i = rewritten.nextSetBit(0); i >= 0 && i < previousCount;
+                    i = rewritten.nextSetBit(i + 1)) {
+                dexes.add(new Dex(new File(args.outName, getDexFileName(i))));
+            }
+
+            // Don't report each of the merges.
+            DxContext mergeContext = new DxContext(context.noop, context.err);
+            MultiDexMerger merger = new MultiDexMerger(dexes.toArray(new Dex[dexes.size()]),
+                    CollisionPolicy.KEEP_FIRST, mergeContext);
+            merger.setExcludedClasses(dropped);
+            if (rewritten.get(0) && classesInMainDex != null) {
+                List<String> descriptors = new ArrayList<String>();
+                for (String path : classesInMainDex) {
+                    IncrementalManifest.Entry entry = previousManifest.get(path);
+                    String descriptor = translatedDescriptors.get(path);
+                    if (descriptor != null) {
+                        descriptors.add(descriptor);
+                    } else if (entry != null) {
+                        descriptors.add(entry.descriptor);
+                    }
+                }
+                merger.setMainDexClasses(descriptors);
+                merger.setMinimalMainDex(args.minimalMainDex);
+            }
+            merger.setMaxMemberIndexCount(args.maxNumberOfIdxPerDex);
+            merger.setThreadCount(args.numThreads);
+            outputs = merger.merge();
+        }
+        dexOutputArrays.clear();
+
+        /*
+         * The new dex files take the places of the rewritten ones, in order.
+         * Extra ones go last. If there are fewer, the dex files after the
+         * rewritten ones move down to keep the names contiguous.
+         */
+        List<Integer> sources = new ArrayList<Integer>(); // old index, or ~output index
+        int next = 0;
+        for (int i = 0; i < previousCount; i++) {
+            if (!rewritten.get(i)) {
+                sources.add(i);
+            } else if (next < outputs.size()) {
+                sources.add(~next++);
+            }
+        }
+        while (next < outputs.size()) {
+            sources.add(~next++);
+        }
+
+        int[] newIndexes = new int[previousCount];
+        for (int i = 0; i < sources.size(); i++) {
+            int source = sources.get(i);
+            File target = new File(args.outName, getDexFileName(i));
+            if (source < 0) {
+                Dex dex = outputs.get(~source);
+                dex.writeTo(target);
+                for (ClassDef classDef : dex.classDefs()) {
+                    String descriptor = dex.typeNames().get(classDef.getTypeIndex());
+                    String path = classFiles.get(descriptor);
+                    String hash = changedClassHashes.get(path);
+                    if (hash == null) {
+                        hash = previousManifest.get(path).hash;
+                    }
+                    manifest.put(new IncrementalManifest.Entry(path, descriptor, hash, i));
+                }
+            } else {
+                if (source != i) {
+                    target.delete();
+                    if (!new File(args.outName, getDexFileName(source)).renameTo(target)) {
+                        throw new IOException("unable to rename " + getDexFileName(source)
+                                + " to " + target);
+                    }
+                }
+                newIndexes[source] = i;
+            }
+        }
+        if (previousManifest != null) {
+            for (IncrementalManifest.Entry entry : previousManifest.entries()) {
+                if (!rewritten.get(entry.dex)) {
+                    manifest.put(new IncrementalManifest.Entry(entry.path, entry.descriptor,
+                            entry.hash, newIndexes[entry.dex]));
+                }
+            }
+        }
+
+        // Delete the dex files past the new last one, including stale ones.
+        int stale = sources.size();
+        while (new File(args.outName, getDexFileName(stale)).delete()) {
+            stale++;
+        }
+
+        manifest.write(manifestFile);
+        return 0;
+    }
+
     private static String getDexFileName(int i) {
         if (i == 0) {
             return DexFormat.DEX_IN_JAR_NAME;
@@ -477,7 +753,10 @@ public class Main {
         } else if (dexB == null) {
             result = dexA;
         } else {
-            result = new DexMerger(new Dex[] {dexA, dexB}, CollisionPolicy.KEEP_FIRST, context).merge();
+            DexMerger merger = new DexMerger(new Dex[] {dexA, dexB},
+                    CollisionPolicy.KEEP_FIRST, context);
+            merger.setThreadCount(args.numThreads);
+            result = merger.merge();
         }
 
         ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
@@ -485,6 +764,38 @@ public class Main {
         return bytesOut.toByteArray();
     }
 
+    /**
+     * Merges the single class dex files translated through the translation
+     * cache, in input file order.
+     *
+     * @return {@code null-ok;} the bytes of the merged dex file, or null if
+     *     no classes were translated
+     */
+    private byte[] mergeClassDexBuffers() throws IOException {
+        ArrayList<Dex> dexes = new ArrayList<Dex>();
+        for (Future<byte[]> f : classDexFutures) {
+            byte[] classDex;
+            try {
+                classDex = f.get();
+            } catch (Exception ex) {
+                // Failures have already been reported by processAllFiles().
+                throw new RuntimeException("Unexpected exception in translator thread.", ex);
+            }
+            if (classDex != null) {
+                dexes.add(new Dex(classDex));
+            }
+        }
+        if (dexes.isEmpty()) {
+            return null;
+        }
+        // Don't report each of the (many) merged classes.
+        DxContext mergeContext = new DxContext(context.noop, context.err);
+        DexMerger merger = new DexMerger(dexes.toArray(new Dex[dexes.size()]),
+                CollisionPolicy.FAIL, mergeContext);
+        merger.setThreadCount(args.numThreads);
+        return merger.merge().getBytes();
+    }
+
     /**
      * Merges the dex files in library jars. If multiple dex files define the
      * same type, this fails with an exception.
@@ -500,8 +811,65 @@ public class Main {
         if (dexes.isEmpty()) {
             return null;
         }
-        Dex merged = new DexMerger(dexes.toArray(new Dex[dexes.size()]), CollisionPolicy.FAIL, context).merge();
-        return merged.getBytes();
+        DexMerger merger = new DexMerger(dexes.toArray(new Dex[dexes.size()]),
+                CollisionPolicy.FAIL, context);
+        merger.setThreadCount(args.numThreads);
+        return merger.merge().getBytes();
+    }
+
+    /**
+     * Merges the dex files in library jars into the multi-dex output, which
+     * is split again into as many dex files as it takes. If multiple dex
+     * files define the same type, this fails with an exception.
+     */
+    private void mergeLibraryDexBuffersMultiDex() throws IOException {
+        int dexCount = dexOutputArrays.size();
+        ArrayList<Dex> dexes = new ArrayList<Dex>();
+        for (int i = 0; i < dexCount; i++) {
+            byte[] outArray = dexOutputArrays.get(i);
+            if (outArray != null) {
+                dexes.add(new Dex(outArray));
+            } else {
+                // Read back the dex file that has been streamed out.
+                dexes.add(new Dex(args.jarOutput
+                        ? outputDexFiles.get(getDexFileName(i))
+                        : new File(args.outName, getDexFileName(i))));
+            }
+        }
+        for (byte[] libraryDex : libraryDexBuffers) {
+            dexes.add(new Dex(libraryDex));
+        }
+
+        // Don't report each of the merges.
+        DxContext mergeContext = new DxContext(context.noop, context.err);
+        MultiDexMerger merger = new MultiDexMerger(dexes.toArray(new Dex[dexes.size()]),
+                CollisionPolicy.FAIL, mergeContext);
+        if (classesInMainDex != null) {
+            List<String> descriptors = new ArrayList<String>(classesInMainDex.size());
+            for (String path : classesInMainDex) {
+                if (path.endsWith(".class")) {
+                    descriptors.add("L" + path.substring(0, path.length() - 6) + ";");
+                }
+            }
+            merger.setMainDexClasses(descriptors);
+        }
+        merger.setMinimalMainDex(args.minimalMainDex);
+        merger.setMaxMemberIndexCount(args.maxNumberOfIdxPerDex);
+        merger.setThreadCount(args.numThreads);
+        List<Dex> merged = merger.merge();
+
+        // The merged dex files replace those written so far.
+        dexOutputArrays.clear();
+        for (Dex dex : merged) {
+            dexOutputArrays.add(dex.getBytes());
+        }
+        if (args.jarOutput) {
+            deleteTempDexFiles();
+        } else if (args.outName != null) {
+            for (int i = merged.size(); i < dexCount; i++) {
+                new File(args.outName, getDexFileName(i)).delete();
+            }
+        }
     }
 
     /**
@@ -512,22 +880,49 @@ public class Main {
      */
     private boolean processAllFiles() {
         createDexFile();
+        packedLayout = (args.multiDex && args.packedMultiDexLayout)
+                ? new PackedDexLayout(args.maxNumberOfIdxPerDex) : null;
 
         if (args.jarOutput) {
             outputResources = new TreeMap<String, byte[]>();
+            outputDexFiles = new TreeMap<String, File>();
         }
 
         anyFilesProcessed = false;
         String[] fileNames = args.fileNames;
         Arrays.sort(fileNames);
 
+        if (args.numThreads > 1) {
+            // parse classes in parallel, and pass them on to translation
+            // in input file order
+            classParserPool = new ThreadPoolExecutor(args.numThreads,
+                   args.numThreads, 0, TimeUnit.SECONDS,
+                   new ArrayBlockingQueue<Runnable>(2 * args.numThreads, true),
+                   Interner.threadFactory(context.interner),
+                   new ThreadPoolExecutor.CallerRunsPolicy());
+            directClassFileConsumer = Executors.newSingleThreadExecutor(
+                    Interner.threadFactory(context.interner));
+            maxParsedClassesInProcess = 2 * args.numThreads;
+            parsedClassPermits = new Semaphore(maxParsedClassesInProcess);
+        } else {
+            classParserPool = null;
+            directClassFileConsumer = null;
+            parsedClassPermits = null;
+        }
         // translate classes in parallel
         classTranslatorPool = new ThreadPoolExecutor(args.numThreads,
                args.numThreads, 0, TimeUnit.SECONDS,
                new ArrayBlockingQueue<Runnable>(2 * args.numThreads, true),
+               Interner.threadFactory(context.interner),
                new ThreadPoolExecutor.CallerRunsPolicy());
         // collect translated and write to dex in order
-        classDefItemConsumer = Executors.newSingleThreadExecutor();
+        classDefItemConsumer = Executors.newSingleThreadExecutor(
+                Interner.threadFactory(context.interner));
+        // translate the methods of large classes in parallel
+        if (args.methodThreads > 1) {
+            context.methodPool = new ForkJoinPool(args.methodThreads,
+                    Interner.forkJoinThreadFactory(context.interner), null, false);
+        }
 
 
         try {
@@ -537,29 +932,22 @@ public class Main {
                     new BestEffortMainDexListFilter();
 
                 // forced in main dex
+                inMainDexPass = true;
                 for (int i = 0; i < fileNames.length; i++) {
                     processOne(fileNames[i], mainPassFilter);
                 }
 
+                awaitParsedClasses();
+                awaitAddedClasses();
+                inMainDexPass = false;
+
                 if (dexOutputFutures.size() > 0) {
                     throw new DexException("Too many classes in " + Arguments.MAIN_DEX_LIST_OPTION
                             + ", main dex capacity exceeded");
                 }
 
-                if (args.minimalMainDex) {
+                if (args.minimalMainDex && packedLayout == null) {
                     // start second pass directly in a secondary dex file.
-
-                    // Wait for classes in progress to complete
-                    synchronized(dexRotationLock) {
-                        while(maxMethodIdsInProcess > 0 || maxFieldIdsInProcess > 0) {
-                            try {
-                                dexRotationLock.wait();
-                            } catch(InterruptedException ex) {
-                                /* ignore */
-                            }
-                        }
-                    }
-
                     rotateDexFile();
                 }
 
@@ -580,41 +968,44 @@ public class Main {
              * Ignore it and just let the error reporting do
              * their things.
              */
+        } catch (Error ex) {
+            // Such as running out of memory: stop the pools, and wait for
+            // the tasks they are running, so that a daemon going on to the
+            // next job gets their memory back.
+            ExecutorService[] pools = { classParserPool, directClassFileConsumer,
+                    classTranslatorPool, classDefItemConsumer, context.methodPool };
+            shutdownPoolsNow();
+            awaitTermination(pools);
+            throw ex;
         }
 
         try {
+            if (classParserPool != null) {
+                // The consumer submits to the translator pool, so it has to
+                // be done before the translator pool is shut down.
+                classParserPool.shutdown();
+                directClassFileConsumer.shutdown();
+                directClassFileConsumer.awaitTermination(600L, TimeUnit.SECONDS);
+                classParserPool.awaitTermination(600L, TimeUnit.SECONDS);
+            }
             classTranslatorPool.shutdown();
             classTranslatorPool.awaitTermination(600L, TimeUnit.SECONDS);
             classDefItemConsumer.shutdown();
             classDefItemConsumer.awaitTermination(600L, TimeUnit.SECONDS);
-
-            for (Future<Boolean> f : addToDexFutures) {
-                try {
-                    f.get();
-                } catch(ExecutionException ex) {
-                    // Catch any previously uncaught exceptions from
-                    // class translation and adding to dex.
-                    int count = errors.incrementAndGet();
-                    if (count < 10) {
-                        if (args.debug) {
-                            context.err.println("Uncaught translation error:");
-                            ex.getCause().printStackTrace(context.err);
-                        } else {
-                            context.err.println("Uncaught translation error: " + ex.getCause());
-                        }
-                    } else {
-                        throw new InterruptedException("Too many errors");
-                    }
-                }
+            if (context.methodPool != null) {
+                context.methodPool.shutdown();
+                context.methodPool = null;
             }
 
+            checkFutures(directClassFileConsumerFutures);
+            checkFutures(addToDexFutures);
+            checkFutures(classDexFutures);
+
         } catch (InterruptedException ie) {
-            classTranslatorPool.shutdownNow();
-            classDefItemConsumer.shutdownNow();
+            shutdownPoolsNow();
             throw new RuntimeException("Translation has been interrupted", ie);
         } catch (Exception e) {
-            classTranslatorPool.shutdownNow();
-            classDefItemConsumer.shutdownNow();
+            shutdownPoolsNow();
             e.printStackTrace(context.out);
             throw new RuntimeException("Unexpected exception in translator thread.", e);
         }
@@ -635,25 +1026,131 @@ public class Main {
             return false;
         }
 
+        if (packedLayout != null) {
+            addPackedClasses();
+        }
+
         if (args.optimize && args.statistics) {
             context.codeStatistics.dumpStatistics(context.out);
         }
 
+        if (translationCache != null && args.statistics) {
+            context.out.println("Translation cache: "
+                    + context.translationCacheHits.get() + " hits, "
+                    + context.translationCacheMisses.get() + " misses");
+        }
+
         return true;
     }
 
+    /**
+     * Reports any uncaught exception of the given parsing or translation
+     * futures, which must all be done.
+     */
+    private void checkFutures(List<? extends Future<?>> futures)
+            throws InterruptedException {
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch(ExecutionException ex) {
+                // Catch any previously uncaught exceptions from
+                // class translation and adding to dex.
+                int count = errors.incrementAndGet();
+                if (count < 10) {
+                    if (args.debug) {
+                        context.err.println("Uncaught translation error:");
+                        ex.getCause().printStackTrace(context.err);
+                    } else {
+                        context.err.println("Uncaught translation error: " + ex.getCause());
+                    }
+                } else {
+                    throw new InterruptedException("Too many errors");
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the given pools, which have been shut down, to finish
+     * their running tasks.
+     *
+     * @param pools {@code non-null;} pools, some of which may be {@code null}
+     */
+    private static void awaitTermination(ExecutorService[] pools) {
+        try {
+            for (ExecutorService pool : pools) {
+                if (pool != null) {
+                    pool.awaitTermination(600L, TimeUnit.SECONDS);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void shutdownPoolsNow() {
+        if (classParserPool != null) {
+            classParserPool.shutdownNow();
+            directClassFileConsumer.shutdownNow();
+        }
+        classTranslatorPool.shutdownNow();
+        classDefItemConsumer.shutdownNow();
+        if (context.methodPool != null) {
+            context.methodPool.shutdownNow();
+            context.methodPool = null;
+        }
+    }
+
+    /**
+     * Waits until all classes submitted to the parsing phase so far have
+     * been passed on to the translation phase. This is a no-op if classes
+     * are parsed on the reading thread.
+     */
+    private void awaitParsedClasses() {
+        if (parsedClassPermits != null) {
+            parsedClassPermits.acquireUninterruptibly(maxParsedClassesInProcess);
+            parsedClassPermits.release(maxParsedClassesInProcess);
+        }
+    }
+
+    /**
+     * Waits until all classes passed on to the translation phase so far
+     * have been added to the dex file. Rotating the dex file is then safe
+     * from the calling thread, until more classes are passed on.
+     */
+    private void awaitAddedClasses() {
+        try {
+            classDefItemConsumer.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    return null;
+                }
+            }).get();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException("Translation has been interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
     private void createDexFile() {
         outputDex = new DexFile(args.dexOptions);
 
         if (args.dumpWidth != 0) {
             outputDex.setDumpWidth(args.dumpWidth);
         }
+
+        // With multi-dex, dex files are already written concurrently with
+        // each other, and streamed rather than built in memory.
+        if (!args.multiDex) {
+            outputDex.setWriteThreads(args.numThreads);
+        }
     }
 
     private void rotateDexFile() {
         if (outputDex != null) {
             if (dexOutPool != null) {
-                dexOutputFutures.add(dexOutPool.submit(new DexWriter(outputDex)));
+                dexOutputFutures.add(dexOutPool.submit(newDexWriter(outputDex)));
             } else {
                 dexOutputArrays.add(writeDex(outputDex));
             }
@@ -721,6 +1218,10 @@ public class Main {
             if (lastModified < minimumFileAge) {
                 return true;
             }
+            if (incrementalClassFiles != null
+                    && !isChangedClassFile(fixedName, lastModified, bytes)) {
+                return true;
+            }
             processClass(fixedName, bytes);
             // Assume that an exception may occur. Status will be updated
             // asynchronously, if the class compiles without error.
@@ -738,6 +1239,26 @@ public class Main {
         }
     }
 
+    /**
+     * Records a class file of an incremental multi-dex build, and returns
+     * whether it changed since the previous build. A class file known to
+     * be older than the previous build didn't, else its contents tell.
+     */
+    private boolean isChangedClassFile(String name, long lastModified, byte[] bytes) {
+        incrementalClassFiles.add(name);
+        IncrementalManifest.Entry entry =
+                previousManifest != null ? previousManifest.get(name) : null;
+        if (entry != null && previousManifest.isOlder(lastModified)) {
+            return false;
+        }
+        String hash = IncrementalManifest.hash(bytes);
+        if (entry != null && entry.hash.equals(hash)) {
+            return false;
+        }
+        changedClassHashes.put(name, hash);
+        return true;
+    }
+
     /**
      * Processes one classfile.
      *
@@ -751,6 +1272,23 @@ public class Main {
             checkClassName(name);
         }
 
+        if (translationCache != null) {
+            classDexFutures.add(classTranslatorPool.submit(
+                    new CachedClassTranslatorTask(name, bytes)));
+            return true;
+        }
+
+        if (classParserPool != null) {
+            // Blocks while too many parsed classes are waiting for the
+            // translation phase.
+            parsedClassPermits.acquireUninterruptibly();
+            Future<DirectClassFile> dcff =
+                    classParserPool.submit(new ClassParserTask(name, bytes));
+            directClassFileConsumerFutures.add(directClassFileConsumer.submit(
+                    new DirectClassFileConsumer(name, bytes, dcff)));
+            return true;
+        }
+
         try {
             new DirectClassFileConsumer(name, bytes, null).call(
                     new ClassParserTask(name, bytes).call());
@@ -771,13 +1309,17 @@ public class Main {
                 args.cfOptions.strictNameCheck);
         cf.setAttributeFactory(StdAttributeFactory.THE_ONE);
         cf.getMagic(); // triggers the actual parsing
+        if (incrementalClassFiles != null) {
+            translatedDescriptors.put(name, cf.getThisClass().getClassType().getDescriptor());
+        }
         return cf;
     }
 
-    private ClassDefItem translateClass(byte[] bytes, DirectClassFile cf) {
+    private ClassDefItem translateClass(byte[] bytes, DirectClassFile cf,
+            DexFile dexFile) {
         try {
             return CfTranslator.translate(context, cf, bytes, args.cfOptions,
-                    args.dexOptions, outputDex);
+                    args.dexOptions, dexFile);
         } catch (ParseException ex) {
             context.err.println("\ntrouble processing:");
             if (args.debug) {
@@ -797,6 +1339,43 @@ public class Main {
         return true;
     }
 
+    /**
+     * Adds a class to the current dex file, after rotating it if the ids
+     * of the class do not fit in it. A class that does not fit in an
+     * empty dex file is added anyway, and fails when the dex file is
+     * written.
+     *
+     * @param clazz {@code non-null;} the class to add
+     * @param ids {@code non-null;} the ids of the class
+     */
+    private boolean addClassToDex(ClassDefItem clazz, ClassIds ids) {
+        if (!outputDex.isEmpty() && !ids.fitsIn(outputDex, args.maxNumberOfIdxPerDex)) {
+            rotateDexFile();
+        }
+        synchronized (outputDex) {
+            ids.internInto(outputDex);
+            outputDex.add(clazz);
+        }
+        return true;
+    }
+
+    /**
+     * Lays out the classes collected by {@link #packedLayout}, and adds them
+     * to as many dex files as the layout takes.
+     */
+    private void addPackedClasses() {
+        List<List<ClassDefItem>> dexes = packedLayout.plan(args.minimalMainDex);
+        packedLayout = null;
+        for (int i = 0; i < dexes.size(); i++) {
+            if (i > 0) {
+                rotateDexFile();
+            }
+            for (ClassDefItem clazz : dexes.get(i)) {
+                addClassToDex(clazz);
+            }
+        }
+    }
+
     /**
      * Check the class name to make sure it's not a "core library"
      * class. If there is a problem, this updates the error count and
@@ -886,6 +1465,116 @@ public class Main {
         return outArray;
     }
 
+    /**
+     * Streams {@code outputDex} to the given file, instead of converting
+     * it into a {@code byte[]}. This does no human-oriented dumping.
+     * The dex file is written to a temporary file in the same directory,
+     * which is renamed once complete, so that a failure never leaves a
+     * partially written dex file in place of {@code file}.
+     *
+     * @param outputDex {@code non-null;} the dex file to write
+     * @param file {@code non-null;} the file to write to
+     * @return whether the writing was successful
+     */
+    private boolean writeDex(DexFile outputDex, File file) {
+        File temp = null;
+        try {
+            temp = File.createTempFile(DEX_PREFIX, ".tmp", file.getAbsoluteFile().getParentFile());
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                outputDex.writeTo(out.getChannel());
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                // Some platforms don't rename over an existing file.
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("unable to rename " + temp + " to " + file);
+                }
+            }
+            temp = null;
+
+            if (args.statistics) {
+                context.out.println(outputDex.getStatistics().toHuman());
+            }
+        } catch (Exception ex) {
+            if (args.debug) {
+                context.err.println("\ntrouble writing output:");
+                ex.printStackTrace(context.err);
+            } else {
+                context.err.println("\ntrouble writing output: " +
+                                   ex.getMessage());
+            }
+            return false;
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether completed dex files can be streamed to their
+     * destination, rather than converted into a {@code byte[]}.
+     */
+    private boolean streamsDexOutput() {
+        return args.outName != null && args.humanOutName == null && !args.incremental;
+    }
+
+    /**
+     * Creates a temporary file to stream a dex file of the output jar to,
+     * and puts it in {@link #outputDexFiles}. It is deleted at the end of
+     * the run, whether or not that succeeds.
+     *
+     * @param name {@code non-null;} name of the dex file in the jar
+     * @return {@code non-null;} the file
+     */
+    private File createTempDexFile(String name) throws IOException {
+        File result = File.createTempFile(DEX_PREFIX, DEX_EXTENSION);
+        outputDexFiles.put(name, result);
+        return result;
+    }
+
+    /**
+     * Deletes the temporary files of {@link #outputDexFiles}, if any.
+     */
+    private void deleteTempDexFiles() {
+        if (outputDexFiles != null) {
+            for (File dexFile : outputDexFiles.values()) {
+                dexFile.delete();
+            }
+            outputDexFiles.clear();
+        }
+    }
+
+    /**
+     * Creates the {@link DexWriter} for the next dex file of a multi-dex
+     * output, streaming it to its destination if possible.
+     *
+     * @param dexFile {@code non-null;} the dex file to write
+     * @return {@code non-null;} the writer
+     */
+    private DexWriter newDexWriter(DexFile dexFile) {
+        if (!streamsDexOutput()) {
+            return new DexWriter(dexFile, null);
+        }
+
+        File target;
+        if (args.jarOutput) {
+            try {
+                target = createTempDexFile(getDexFileName(dexOutputFutures.size()));
+            } catch (IOException ex) {
+                throw new RuntimeException("Unable to create temporary dex file", ex);
+            }
+        } else {
+            target = new File(args.outName, getDexFileName(dexOutputFutures.size()));
+        }
+        return new DexWriter(dexFile, target);
+    }
+
     /**
      * Creates a jar file from the resources (including dex file arrays).
      *
@@ -905,12 +1594,14 @@ public class Main {
             JarOutputStream jarOut = new JarOutputStream(out, manifest);
 
             try {
-                for (Map.Entry<String, byte[]> e :
-                         outputResources.entrySet()) {
-                    String name = e.getKey();
-                    byte[] contents = e.getValue();
+                TreeSet<String> names = new TreeSet<String>(outputResources.keySet());
+                names.addAll(outputDexFiles.keySet());
+
+                for (String name : names) {
+                    File dexFile = outputDexFiles.get(name);
+                    byte[] contents = (dexFile == null) ? outputResources.get(name) : null;
                     JarEntry entry = new JarEntry(name);
-                    int length = contents.length;
+                    long length = (dexFile == null) ? contents.length : dexFile.length();
 
                     if (args.verbose) {
                         context.out.println("writing " + name + "; size " + length + "...");
@@ -918,7 +1609,11 @@ public class Main {
 
                     entry.setSize(length);
                     jarOut.putNextEntry(entry);
-                    jarOut.write(contents);
+                    if (dexFile == null) {
+                        jarOut.write(contents);
+                    } else {
+                        copyFile(dexFile, jarOut);
+                    }
                     jarOut.closeEntry();
                 }
             } finally {
@@ -940,6 +1635,22 @@ public class Main {
         return true;
     }
 
+    /**
+     * Copies the contents of a file to the given stream.
+     */
+    private static void copyFile(File file, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int amt;
+            while ((amt = in.read(buffer)) != -1) {
+                out.write(buffer, 0, amt);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * Creates and returns the manifest to use for the output. This may
      * modify {@link #outputResources} (removing the pre-existing manifest).
@@ -983,14 +1694,21 @@ public class Main {
      * @return {@code non-null;} the opened file
      */
     private OutputStream openOutput(String name) throws IOException {
-        if (name.equals("-") ||
-                name.startsWith("-.")) {
+        if (isStandardOutput(name)) {
             return context.out;
         }
 
         return new FileOutputStream(name);
     }
 
+    /**
+     * Returns whether the given output file name stands for the standard
+     * output.
+     */
+    private static boolean isStandardOutput(String name) {
+        return name.equals("-") || name.startsWith("-.");
+    }
+
     /**
      * Flushes and closes the given output stream, except if it happens to be
      * {@link System#out} in which case this method does the flush but not
@@ -1257,12 +1975,28 @@ public class Main {
 
         private static final String MULTI_DEX_OPTION = "--multi-dex";
 
+        private static final String MULTI_DEX_LAYOUT_OPTION = "--multi-dex-layout";
+
         private static final String NUM_THREADS_OPTION = "--num-threads";
 
+        private static final String METHOD_THREADS_OPTION = "--method-threads";
+
+        private static final String REDUCED_OPTIMIZE_ABOVE_OPTION = "--reduced-optimize-above";
+
+        private static final String NO_OPTIMIZE_ABOVE_OPTION = "--no-optimize-above";
+
+        private static final String OPTIMIZE_BUDGET_OPTION = "--optimize-budget";
+
+        private static final String LINEAR_SCAN_OPTION = "--linear-scan";
+
+        private static final String LINEAR_SCAN_ABOVE_OPTION = "--linear-scan-above";
+
         private static final String INCREMENTAL_OPTION = "--incremental";
 
         private static final String INPUT_LIST_OPTION = "--input-list";
 
+        private static final String TRANSLATION_CACHE_OPTION = "--translation-cache";
+
         public final DxContext context;
 
         /** whether to run in debug mode */
@@ -1344,6 +2078,31 @@ public class Main {
         /** Filename containing list of methods to NOT optimize */
         public String dontOptimizeListFile = null;
 
+        /**
+         * {@code null-ok;} numbers of rop insns and of blocks above which a
+         * method is optimized with fewer steps, or {@code null} for the
+         * default ones
+         */
+        public int[] reducedOptimizeLimit = null;
+
+        /**
+         * {@code null-ok;} numbers of rop insns and of blocks above which a
+         * method is not optimized, or {@code null} for the default ones
+         */
+        public int[] noOptimizeLimit = null;
+
+        /**
+         * time optimizing a method may take, in milliseconds, or {@code 0}
+         * for no limit
+         */
+        public long optimizeBudgetMillis = 0;
+
+        /**
+         * number of SSA registers above which a method's registers are
+         * allocated by linear scan, or {@code 0} for all methods
+         */
+        public int linearScanRegs = Optimizer.DEFAULT_LINEAR_SCAN_REGS;
+
         /** Whether to print statistics to stdout at end of compile cycle */
         public boolean statistics;
 
@@ -1356,9 +2115,16 @@ public class Main {
         /** number of threads to run with */
         public int numThreads = 1;
 
+        /** number of threads to translate the methods of large classes with */
+        public int methodThreads = 1;
+
         /** generation of multiple dex is allowed */
         public boolean multiDex = false;
 
+        /** whether to lay out the classes of a multi-dex build once they are
+         * all translated, rather than in input order */
+        public boolean packedMultiDexLayout = false;
+
         /** Optional file containing a list of class files containing classes to be forced in main
          * dex */
         public String mainDexListFile = null;
@@ -1369,6 +2135,12 @@ public class Main {
 
         public int maxNumberOfIdxPerDex = DexFormat.MAX_MEMBER_IDX + 1;
 
+        /** {@code null-ok;} directory of the translation cache, if enabled */
+        public String translationCacheDir = null;
+
+        /** maximum size of the translation cache, in bytes */
+        public long translationCacheSize = 256L * 1024 * 1024;
+
         /** Optional list containing inputs read in from a file. */
         private List<String> inputList = null;
 
@@ -1521,6 +2293,42 @@ public class Main {
                     }
                     optimize = true;
                     dontOptimizeListFile = parser.getLastValue();
+                } else if (parser.isArg(REDUCED_OPTIMIZE_ABOVE_OPTION + "=")) {
+                    reducedOptimizeLimit = parseSizeLimit(REDUCED_OPTIMIZE_ABOVE_OPTION,
+                            parser.getLastValue());
+                } else if (parser.isArg(NO_OPTIMIZE_ABOVE_OPTION + "=")) {
+                    noOptimizeLimit = parseSizeLimit(NO_OPTIMIZE_ABOVE_OPTION,
+                            parser.getLastValue());
+                } else if (parser.isArg(OPTIMIZE_BUDGET_OPTION + "=")) {
+                    String arg = parser.getLastValue();
+                    long value;
+                    try {
+                        value = Long.parseLong(arg);
+                    } catch (NumberFormatException ex) {
+                        value = -1;
+                    }
+                    if (value < 0) {
+                        context.err.println("improper " + OPTIMIZE_BUDGET_OPTION + " option: "
+                                + arg);
+                        throw new UsageException();
+                    }
+                    optimizeBudgetMillis = value;
+                } else if (parser.isArg(LINEAR_SCAN_OPTION)) {
+                    linearScanRegs = 0;
+                } else if (parser.isArg(LINEAR_SCAN_ABOVE_OPTION + "=")) {
+                    String arg = parser.getLastValue();
+                    int value;
+                    try {
+                        value = Integer.parseInt(arg);
+                    } catch (NumberFormatException ex) {
+                        value = -1;
+                    }
+                    if (value < 0) {
+                        context.err.println("improper " + LINEAR_SCAN_ABOVE_OPTION
+                                + " option: " + arg);
+                        throw new UsageException();
+                    }
+                    linearScanRegs = value;
                 } else if (parser.isArg("--keep-classes")) {
                     keepClassesInJar = true;
                 } else if (parser.isArg("--output=")) {
@@ -1563,12 +2371,25 @@ public class Main {
                     localInfo = false;
                 } else if (parser.isArg(NUM_THREADS_OPTION + "=")) {
                     numThreads = Integer.parseInt(parser.getLastValue());
+                } else if (parser.isArg(METHOD_THREADS_OPTION + "=")) {
+                    methodThreads = Integer.parseInt(parser.getLastValue());
                 } else if (parser.isArg(INCREMENTAL_OPTION)) {
                     incremental = true;
                 } else if (parser.isArg("--force-jumbo")) {
                     forceJumbo = true;
                 } else if (parser.isArg(MULTI_DEX_OPTION)) {
                     multiDex = true;
+                } else if (parser.isArg(MULTI_DEX_LAYOUT_OPTION + "=")) {
+                    String layout = parser.getLastValue();
+                    if (layout.equals("greedy")) {
+                        packedMultiDexLayout = false;
+                    } else if (layout.equals("packed")) {
+                        packedMultiDexLayout = true;
+                    } else {
+                        context.err.println("unknown " + MULTI_DEX_LAYOUT_OPTION + " option: "
+                                + layout);
+                        throw new UsageException();
+                    }
                 } else if (parser.isArg(MAIN_DEX_LIST_OPTION + "=")) {
                     mainDexListFile = parser.getLastValue();
                 } else if (parser.isArg(MINIMAL_MAIN_DEX_OPTION)) {
@@ -1586,6 +2407,22 @@ public class Main {
                         // problem reading the file so we should halt execution
                         throw new UsageException();
                     }
+                } else if (parser.isArg(TRANSLATION_CACHE_OPTION + "=")) {
+                    translationCacheDir = parser.getLastValue();
+                } else if (parser.isArg(TRANSLATION_CACHE_OPTION + "-size=")) {
+                    String arg = parser.getLastValue();
+                    long value;
+                    try {
+                        value = Long.parseLong(arg);
+                    } catch (NumberFormatException ex) {
+                        value = -1;
+                    }
+                    if (value < 0 || value > Long.MAX_VALUE / (1024 * 1024)) {
+                        context.err.println("improper " + TRANSLATION_CACHE_OPTION
+                                + "-size option: " + arg);
+                        throw new UsageException();
+                    }
+                    translationCacheSize = value * 1024 * 1024;
                 } else if (parser.isArg("--min-sdk-version=")) {
                     String arg = parser.getLastValue();
                     int value;
@@ -1609,13 +2446,40 @@ public class Main {
         }
 
 
+        /**
+         * Parses the value of an option made of a number of rop insns and a
+         * number of blocks, such as {@code 16384,8192}, {@code 0} being no
+         * limit.
+         *
+         * @param option {@code non-null;} the option, for errors
+         * @param value {@code non-null;} the value of the option
+         * @return {@code non-null;} the two numbers
+         */
+        private int[] parseSizeLimit(String option, String value) {
+            String[] parts = value.split(",", -1);
+            if (parts.length == 2) {
+                try {
+                    int[] result = new int[] {
+                        Integer.parseInt(parts[0]), Integer.parseInt(parts[1])
+                    };
+                    if (result[0] >= 0 && result[1] >= 0) {
+                        return result;
+                    }
+                } catch (NumberFormatException ex) {
+                    // Reported below.
+                }
+            }
+            context.err.println("improper " + option + " option: " + value);
+            throw new UsageException();
+        }
+
         /**
          * Parses all command-line arguments and updates the state of the {@code Arguments} object
          * accordingly.
          *
          * @param args {@code non-null;} the arguments
          */
-        private void parse(String[] args) {
+        void parse(String[] args) {
             ArgumentsParser parser = new ArgumentsParser(args);
 
             parseFlags(parser);
@@ -1646,18 +2510,36 @@ public class Main {
                 throw new UsageException();
             }
 
+            if (packedMultiDexLayout && !multiDex) {
+                context.err.println(MULTI_DEX_LAYOUT_OPTION + " is only supported in combination"
+                    + " with " + MULTI_DEX_OPTION);
+                throw new UsageException();
+            }
+
             if (minimalMainDex && (mainDexListFile == null || !multiDex)) {
                 context.err.println(MINIMAL_MAIN_DEX_OPTION + " is only supported in combination with "
                     + MULTI_DEX_OPTION + " and " + MAIN_DEX_LIST_OPTION);
                 throw new UsageException();
             }
 
-            if (multiDex && incremental) {
-                context.err.println(INCREMENTAL_OPTION + " is not supported with "
+            if (multiDex && incremental && !outputIsDirectory) {
+                context.err.println(INCREMENTAL_OPTION + " with " + MULTI_DEX_OPTION
+                    + " supports only directory output");
+                throw new UsageException();
+            }
+
+            if (translationCacheDir != null && multiDex) {
+                context.err.println(TRANSLATION_CACHE_OPTION + " is not supported with "
                     + MULTI_DEX_OPTION);
                 throw new UsageException();
             }
 
+            if (translationCacheDir != null && humanOutName != null) {
+                context.err.println(TRANSLATION_CACHE_OPTION + " is not supported with "
+                    + "--dump-to and --dump-method");
+                throw new UsageException();
+            }
+
             if (multiDex && outputIsDirectDex) {
                 context.err.println("Unsupported output \"" + outName +"\". " + MULTI_DEX_OPTION +
                         " supports only archive or directory output");
@@ -1692,6 +2574,16 @@ public class Main {
             cfOptions.optimize = optimize;
             cfOptions.optimizeListFile = optimizeListFile;
             cfOptions.dontOptimizeListFile = dontOptimizeListFile;
+            if (reducedOptimizeLimit != null) {
+                cfOptions.reducedOptimizeInsns = reducedOptimizeLimit[0];
+                cfOptions.reducedOptimizeBlocks = reducedOptimizeLimit[1];
+            }
+            if (noOptimizeLimit != null) {
+                cfOptions.noOptimizeInsns = noOptimizeLimit[0];
+                cfOptions.noOptimizeBlocks = noOptimizeLimit[1];
+            }
+            cfOptions.optimizeBudgetMillis = optimizeBudgetMillis;
+            cfOptions.linearScanRegs = linearScanRegs;
             cfOptions.statistics = statistics;
 
             if (warnings) {
@@ -1771,18 +2663,8 @@ public class Main {
 
     /**
      * Callable helper class used to sequentially collect the results of
-     * the (optionally parallel) translation phase, in correct input file order.
-     * This class is also responsible for coordinating dex file rotation
-     * with the ClassDefItemConsumer class.
-     * We maintain invariant that the number of indices used in the current
-     * dex file plus the max number of indices required by classes passed to
-     * the translation phase and not yet added to the dex file, is less than
-     * or equal to the dex file limit.
-     * For each parsed file, we estimate the maximum number of indices it may
-     * require. If passing the file to the translation phase would invalidate
-     * the invariant, we wait, until the next class is added to the dex file,
-     * and then reevaluate the invariant. If there are no further classes in
-     * the translation phase, we rotate the dex file.
+     * the (optionally parallel) parsing phase, and pass them on to the
+     * translation phase in correct input file order.
      */
     private class DirectClassFileConsumer implements Callable<Boolean> {
 
@@ -1799,82 +2681,32 @@ public class Main {
 
         @Override
         public Boolean call() throws Exception {
-
-            DirectClassFile cf = dcff.get();
-            return call(cf);
-        }
-
-        private Boolean call(DirectClassFile cf) {
-
-            int maxMethodIdsInClass = 0;
-            int maxFieldIdsInClass = 0;
-
-            if (args.multiDex) {
-
-                // Calculate max number of indices this class will add to the
-                // dex file.
-                // The possibility of overloading means that we can't easily
-                // know how many constant are needed for declared methods and
-                // fields. We therefore make the simplifying assumption that
-                // all constants are external method or field references.
-
-                int constantPoolSize = cf.getConstantPool().size();
-                maxMethodIdsInClass = constantPoolSize + cf.getMethods().size()
-                        + MAX_METHOD_ADDED_DURING_DEX_CREATION;
-                maxFieldIdsInClass = constantPoolSize + cf.getFields().size()
-                        + MAX_FIELD_ADDED_DURING_DEX_CREATION;
-                synchronized(dexRotationLock) {
-
-                    int numMethodIds;
-                    int numFieldIds;
-                    // Number of indices used in current dex file.
-                    synchronized(outputDex) {
-                        numMethodIds = outputDex.getMethodIds().items().size();
-                        numFieldIds = outputDex.getFieldIds().items().size();
-                    }
-                    // Wait until we're sure this class will fit in the current
-                    // dex file.
-                    while(((numMethodIds + maxMethodIdsInClass + maxMethodIdsInProcess
-                            > args.maxNumberOfIdxPerDex) ||
-                           (numFieldIds + maxFieldIdsInClass + maxFieldIdsInProcess
-                            > args.maxNumberOfIdxPerDex))) {
-
-                        if (maxMethodIdsInProcess > 0 || maxFieldIdsInProcess > 0) {
-                            // There are classes in the translation phase that
-                            // have not yet been added to the dex file, so we
-                            // wait for the next class to complete.
-                            try {
-                                dexRotationLock.wait();
-                            } catch(InterruptedException ex) {
-                                /* ignore */
-                            }
-                        } else if (outputDex.getClassDefs().items().size() > 0) {
-                            // There are no further classes in the translation
-                            // phase, and we have a full dex file. Rotate!
-                            rotateDexFile();
-                        } else {
-                            // The estimated number of indices is too large for
-                            // an empty dex file. We proceed hoping the actual
-                            // number of indices needed will fit.
-                            break;
-                        }
-                        synchronized(outputDex) {
-                            numMethodIds = outputDex.getMethodIds().items().size();
-                            numFieldIds = outputDex.getFieldIds().items().size();
-                        }
+            try {
+                DirectClassFile cf;
+                try {
+                    cf = dcff.get();
+                } catch (ExecutionException ex) {
+                    // Report parse errors the same way they are reported
+                    // when parsing on the reading thread.
+                    Throwable t = ex.getCause();
+                    if (!(t instanceof ParseException)) {
+                        t = new RuntimeException("Exception parsing classes", t);
                     }
-                    // Add our estimate to the total estimate for
-                    // classes under translation.
-                    maxMethodIdsInProcess += maxMethodIdsInClass;
-                    maxFieldIdsInProcess += maxFieldIdsInClass;
+                    new FileBytesConsumer().onException((Exception) t);
+                    return false;
                 }
+                return call(cf);
+            } finally {
+                parsedClassPermits.release();
             }
+        }
 
+        private Boolean call(DirectClassFile cf) {
             // Submit class to translation phase.
-            Future<ClassDefItem> cdif = classTranslatorPool.submit(
-                    new ClassTranslatorTask(name, bytes, cf));
+            ClassTranslatorTask task = new ClassTranslatorTask(name, bytes, cf);
+            Future<ClassDefItem> cdif = classTranslatorPool.submit(task);
             Future<Boolean> res = classDefItemConsumer.submit(new ClassDefItemConsumer(
-                    name, cdif, maxMethodIdsInClass, maxFieldIdsInClass));
+                    name, cdif, task));
             addToDexFutures.add(res);
 
             return true;
@@ -1889,6 +2721,12 @@ public class Main {
         byte[] bytes;
         DirectClassFile classFile;
 
+        /**
+         * {@code null-ok;} with multi-dex, the ids of the translated class,
+         * set once the class is translated
+         */
+        ClassIds ids;
+
         private ClassTranslatorTask(String name, byte[] bytes,
                 DirectClassFile classFile) {
             this.name = name;
@@ -1898,31 +2736,86 @@ public class Main {
 
         @Override
         public ClassDefItem call() {
-            ClassDefItem clazz = translateClass(bytes, classFile);
+            if (!args.multiDex) {
+                return translateClass(bytes, classFile, outputDex);
+            }
+
+            // The dex file the class ends up in is only known once it is
+            // added, so translate it on its own, and collect its ids.
+            DexFile classDexFile = new DexFile(args.dexOptions);
+            ClassDefItem clazz = translateClass(bytes, classFile, classDexFile);
+            if (clazz != null) {
+                ids = new ClassIds(clazz, classDexFile);
+            }
             return clazz;
         }
     }
 
+    /**
+     * Callable helper class to translate classes in parallel through the
+     * translation cache. Each class ends up in its own dex file, either
+     * read from the cache or translated and stored into it.
+     */
+    private class CachedClassTranslatorTask implements Callable<byte[]> {
+
+        String name;
+        byte[] bytes;
+
+        private CachedClassTranslatorTask(String name, byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            String key = translationCache.key(name, bytes);
+            byte[] classDex = translationCache.get(key);
+
+            if (classDex != null) {
+                context.translationCacheHits.incrementAndGet();
+            } else {
+                DirectClassFile cf;
+                try {
+                    cf = parseClass(name, bytes);
+                } catch (ParseException ex) {
+                    new FileBytesConsumer().onException(ex);
+                    return null;
+                }
+
+                DexFile classDexFile = new DexFile(args.dexOptions);
+                ClassDefItem clazz = translateClass(bytes, cf, classDexFile);
+                if (clazz == null) {
+                    return null;
+                }
+                classDexFile.add(clazz);
+                classDex = classDexFile.toDex(null, false);
+                translationCache.put(key, classDex);
+                context.translationCacheMisses.incrementAndGet();
+            }
+
+            updateStatus(true);
+            return classDex;
+        }
+    }
+
     /**
      * Callable helper class used to collect the results of
      * the parallel translation phase, adding the translated classes to
      * the current dex file in correct (deterministic) file order.
-     * This class is also responsible for coordinating dex file rotation
-     * with the DirectClassFileConsumer class.
+     * With multi-dex, this class also rotates the dex file when a class
+     * does not fit in the current one.
      */
     private class ClassDefItemConsumer implements Callable<Boolean> {
 
         String name;
         Future<ClassDefItem> futureClazz;
-        int maxMethodIdsInClass;
-        int maxFieldIdsInClass;
+        ClassTranslatorTask task;
 
         private ClassDefItemConsumer(String name, Future<ClassDefItem> futureClazz,
-                int maxMethodIdsInClass, int maxFieldIdsInClass) {
+                ClassTranslatorTask task) {
             this.name = name;
             this.futureClazz = futureClazz;
-            this.maxMethodIdsInClass = maxMethodIdsInClass;
-            this.maxFieldIdsInClass = maxFieldIdsInClass;
+            this.task = task;
         }
 
         @Override
@@ -1930,7 +2823,13 @@ public class Main {
             try {
                 ClassDefItem clazz = futureClazz.get();
                 if (clazz != null) {
-                    addClassToDex(clazz);
+                    if (packedLayout != null) {
+                        packedLayout.add(clazz, task.ids, inMainDexPass);
+                    } else if (args.multiDex) {
+                        addClassToDex(clazz, task.ids);
+                    } else {
+                        addClassToDex(clazz);
+                    }
                     updateStatus(true);
                 }
                 return true;
@@ -1940,19 +2839,6 @@ public class Main {
                 // are handled and reported in processAllFiles().
                 Throwable t = ex.getCause();
                 throw (t instanceof Exception) ? (Exception) t : ex;
-            } finally {
-                if (args.multiDex) {
-                    // Having added our actual indicies to the dex file,
-                    // we subtract our original estimate from the total estimate,
-                    // and signal the translation phase, which may be paused
-                    // waiting to determine if more classes can be added to the
-                    // current dex file, or if a new dex file must be created.
-                    synchronized(dexRotationLock) {
-                        maxMethodIdsInProcess -= maxMethodIdsInClass;
-                        maxFieldIdsInProcess -= maxFieldIdsInClass;
-                        dexRotationLock.notifyAll();
-                    }
-                }
             }
         }
     }
@@ -1962,13 +2848,28 @@ public class Main {
 
         private final DexFile dexFile;
 
-        private DexWriter(DexFile dexFile) {
+        /** {@code null-ok;} file to stream the dex file to, if any */
+        private final File target;
+
+        private DexWriter(DexFile dexFile, File target) {
             this.dexFile = dexFile;
+            this.target = target;
         }
 
+        /**
+         * Returns the converted dex file, or {@code null} if it was
+         * streamed to {@link #target} instead.
+         */
         @Override
         public byte[] call() throws IOException {
-            return writeDex(dexFile);
+            if (target == null) {
+                return writeDex(dexFile);
+            }
+
+            if (!writeDex(dexFile, target)) {
+                throw new IOException("trouble writing " + target);
+            }
+            return null;
         }
     }
 }
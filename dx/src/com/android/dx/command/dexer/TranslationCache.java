@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.command.dexer;
+
+import com.android.dex.Dex;
+import com.android.dex.TableOfContents;
+import com.android.dex.util.FileUtils;
+import com.android.dx.Version;
+import com.android.dx.dex.DexOptions;
+import com.android.dx.dex.cf.CfOptions;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of translated classes. Each entry is a {@code .dex} file
+ * holding a single translated class, keyed by a SHA-1 hash of the class
+ * file bytes together with every option that affects translation. The
+ * total size of the cache is bounded; when it is exceeded the least
+ * recently used entries, as recorded by their file modification time,
+ * are evicted.
+ *
+ * <p>Entries are written to a temporary file and renamed into place, so
+ * a cache directory may be shared by concurrent dx processes. An entry
+ * that is truncated or corrupted anyway, such as by a full disk, is
+ * evicted when it is read, and the class is translated again.</p>
+ */
+final class TranslationCache {
+
+    /** file name suffix of cache entries */
+    private static final String ENTRY_SUFFIX = ".dex";
+
+    /** charset used to hash strings into keys */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** {@code non-null;} directory holding the cache entries */
+    private final File directory;
+
+    /** maximum total size of the cache entries, in bytes */
+    private final long maxSize;
+
+    /** {@code non-null;} hash of the options, as the prefix of every key */
+    private final byte[] optionsHash;
+
+    /** approximate total size of the cache entries, in bytes */
+    private long size;
+
+    /**
+     * Constructs an instance, creating the cache directory if needed.
+     *
+     * @param directory {@code non-null;} directory holding the entries
+     * @param maxSize maximum total size of the entries, in bytes
+     * @param cfOptions {@code non-null;} options for class translation
+     * @param dexOptions {@code non-null;} options for dex output
+     */
+    public TranslationCache(File directory, long maxSize, CfOptions cfOptions,
+            DexOptions dexOptions) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create translation cache directory "
+                    + directory);
+        }
+
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        optionsHash = newOptionsDigest(cfOptions, dexOptions).digest();
+
+        for (File entry : listEntries()) {
+            size += entry.length();
+        }
+    }
+
+    /**
+     * Computes the cache key of a class file.
+     *
+     * @param name {@code non-null;} name of the class file
+     * @param bytes {@code non-null;} contents of the class file
+     * @return {@code non-null;} the key
+     */
+    public String key(String name, byte[] bytes) {
+        MessageDigest digest = newDigest();
+        digest.update(optionsHash);
+        update(digest, name);
+        digest.update(bytes);
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Gets the translated class for the given key, and marks the entry as
+     * most recently used.
+     *
+     * @param key {@code non-null;} the key, as returned by {@link #key}
+     * @return {@code null-ok;} the single class {@code .dex} file, or
+     * {@code null} if the cache has no valid entry for {@code key}
+     */
+    public byte[] get(String key) {
+        File entry = entryFile(key);
+        if (!entry.isFile()) {
+            return null;
+        }
+
+        byte[] result;
+        try {
+            result = FileUtils.readFile(entry);
+        } catch (RuntimeException ex) {
+            // evicted by a concurrent process
+            return null;
+        }
+        if (!isValid(result)) {
+            if (entry.delete()) {
+                synchronized (this) {
+                    size -= result.length;
+                }
+            }
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return result;
+    }
+
+    /**
+     * Returns whether {@code bytes} is a whole dex file of a single class,
+     * as stored by {@link #put}.
+     */
+    private static boolean isValid(byte[] bytes) {
+        try {
+            Dex dex = new Dex(bytes);
+            TableOfContents contents = dex.getTableOfContents();
+            return contents.fileSize == bytes.length
+                    && contents.checksum == dex.computeChecksum()
+                    && contents.classDefs.size == 1;
+        } catch (IOException ex) {
+            return false;
+        } catch (RuntimeException ex) {
+            // such as a DexException, or reading past the end
+            return false;
+        }
+    }
+
+    /**
+     * Stores a translated class, evicting the least recently used entries
+     * if the cache grows too large.
+     *
+     * @param key {@code non-null;} the key, as returned by {@link #key}
+     * @param dex {@code non-null;} the single class {@code .dex} file
+     */
+    public void put(String key, byte[] dex) throws IOException {
+        File temp = File.createTempFile(key, ".tmp", directory);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(dex);
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(entryFile(key))) {
+            // Most likely stored by a concurrent process in the meantime.
+            temp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            size += dex.length;
+            if (size > maxSize) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is down to
+     * three quarters of its maximum size, so that eviction does not have
+     * to list the directory on every store.
+     */
+    private void evict() {
+        File[] entries = listEntries();
+        final long[] lastModified = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        size = 0;
+        for (int i = 0; i < entries.length; i++) {
+            lastModified[i] = entries[i].lastModified();
+            order[i] = i;
+            size += entries[i].length();
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long diff = lastModified[a] - lastModified[b];
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        long target = maxSize - maxSize / 4;
+        for (int i = 0; i < order.length && size > target; i++) {
+            File entry = entries[order[i]];
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(directory, key + ENTRY_SUFFIX);
+    }
+
+    private File[] listEntries() {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return new File[0];
+        }
+
+        int count = 0;
+        for (File entry : entries) {
+            if (entry.getName().endsWith(ENTRY_SUFFIX)) {
+                entries[count++] = entry;
+            }
+        }
+        return Arrays.copyOf(entries, count);
+    }
+
+    /**
+     * Returns a new digest updated with every option that affects
+     * translation.
+     */
+    static MessageDigest newOptionsDigest(CfOptions cfOptions, DexOptions dexOptions) {
+        MessageDigest digest = newDigest();
+        update(digest, Version.VERSION);
+        update(digest, "positions=" + cfOptions.positionInfo);
+        update(digest, "locals=" + cfOptions.localInfo);
+        update(digest, "strict=" + cfOptions.strictNameCheck);
+        update(digest, "optimize=" + cfOptions.optimize);
+        updateWithFile(digest, cfOptions.optimizeListFile);
+        updateWithFile(digest, cfOptions.dontOptimizeListFile);
+        update(digest, "reduced-optimize-above=" + cfOptions.reducedOptimizeInsns + ","
+                + cfOptions.reducedOptimizeBlocks);
+        update(digest, "no-optimize-above=" + cfOptions.noOptimizeInsns + ","
+                + cfOptions.noOptimizeBlocks);
+        update(digest, "optimize-budget=" + cfOptions.optimizeBudgetMillis);
+        update(digest, "linear-scan-above=" + cfOptions.linearScanRegs);
+        update(digest, "min-sdk=" + dexOptions.minSdkVersion);
+        update(digest, "jumbo=" + dexOptions.forceJumbo);
+        update(digest, "interface-invokes=" + dexOptions.allowAllInterfaceMethodInvokes);
+        update(digest, "align=" + dexOptions.ALIGN_64BIT_REGS_IN_OUTPUT_FINISHER);
+        return digest;
+    }
+
+    static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    static void update(MessageDigest digest, String s) {
+        digest.update(s.getBytes(UTF_8));
+        digest.update((byte) 0);
+    }
+
+    static void updateWithFile(MessageDigest digest, String fileName) {
+        if (fileName == null) {
+            update(digest, "");
+        } else {
+            update(digest, fileName);
+            digest.update(FileUtils.readFile(fileName));
+        }
+    }
+}
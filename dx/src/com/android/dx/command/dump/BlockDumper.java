@@ -285,8 +285,8 @@ public class BlockDumper
         if (optimize) {
             boolean isStatic = AccessFlags.isStatic(meth.getAccessFlags());
             int paramWidth = computeParamWidth(meth, isStatic);
-            rmeth =
-                Optimizer.optimize(rmeth, paramWidth, isStatic, true, advice);
+            rmeth = new Optimizer(true, advice).optimize(rmeth, paramWidth,
+                    isStatic);
         }
 
         BasicBlockList blocks = rmeth.getBlocks();
@@ -126,9 +126,8 @@ public class DotDumper implements ParseObserver {
 
         if (optimize) {
             boolean isStatic = AccessFlags.isStatic(meth.getAccessFlags());
-            rmeth = Optimizer.optimize(rmeth,
-                    BaseDumper.computeParamWidth(meth, isStatic), isStatic,
-                    true, advice);
+            rmeth = new Optimizer(true, advice).optimize(rmeth,
+                    BaseDumper.computeParamWidth(meth, isStatic), isStatic);
         }
 
         System.out.println("digraph "  + name + "{");
@@ -24,6 +24,7 @@ import com.android.dx.rop.code.AccessFlags;
 import com.android.dx.rop.code.DexTranslationAdvice;
 import com.android.dx.rop.code.RopMethod;
 import com.android.dx.rop.code.TranslationAdvice;
+import com.android.dx.ssa.EdgeSet;
 import com.android.dx.ssa.Optimizer;
 import com.android.dx.ssa.SsaBasicBlock;
 import com.android.dx.ssa.SsaInsn;
@@ -33,7 +34,6 @@ import com.android.dx.util.Hex;
 import com.android.dx.util.IntList;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.Collections;
 import java.util.EnumSet;
 
@@ -95,22 +95,23 @@ public class SsaDumper extends BlockDumper {
         boolean isStatic = AccessFlags.isStatic(meth.getAccessFlags());
         int paramWidth = computeParamWidth(meth, isStatic);
 
+        Optimizer optimizer = new Optimizer(true, advice);
+
         if (args.ssaStep == null) {
-            ssaMeth = Optimizer.debugNoRegisterAllocation(rmeth,
-                    paramWidth, isStatic, true, advice,
+            ssaMeth = optimizer.debugNoRegisterAllocation(rmeth,
+                    paramWidth, isStatic,
                     EnumSet.allOf(Optimizer.OptionalStep.class));
         } else if ("edge-split".equals(args.ssaStep)) {
-            ssaMeth = Optimizer.debugEdgeSplit(rmeth, paramWidth,
-                    isStatic, true, advice);
+            ssaMeth = optimizer.debugEdgeSplit(rmeth, paramWidth, isStatic);
         } else if ("phi-placement".equals(args.ssaStep)) {
-            ssaMeth = Optimizer.debugPhiPlacement(
-                    rmeth, paramWidth, isStatic, true, advice);
+            ssaMeth = optimizer.debugPhiPlacement(
+                    rmeth, paramWidth, isStatic);
         } else if ("renaming".equals(args.ssaStep)) {
-            ssaMeth = Optimizer.debugRenaming(
-                    rmeth, paramWidth, isStatic, true, advice);
+            ssaMeth = optimizer.debugRenaming(
+                    rmeth, paramWidth, isStatic);
         } else if ("dead-code".equals(args.ssaStep)) {
-            ssaMeth = Optimizer.debugDeadCodeRemover(
-                    rmeth, paramWidth, isStatic,true, advice);
+            ssaMeth = optimizer.debugDeadCodeRemover(
+                    rmeth, paramWidth, isStatic);
         }
 
         StringBuilder sb = new StringBuilder(2000);
@@ -129,12 +130,11 @@ public class SsaDumper extends BlockDumper {
             sb.append("block ")
                     .append(Hex.u2(block.getRopLabel())).append('\n');
 
-            BitSet preds = block.getPredecessors();
+            EdgeSet preds = block.getPredecessors();
 
-            for (int i = preds.nextSetBit(0); i >= 0;
-                 i = preds.nextSetBit(i+1)) {
+            for (int i = 0, sz = preds.size(); i < sz; i++) {
                 sb.append("  pred ");
-                sb.append(Hex.u2(ssaMeth.blockIndexToRopLabel(i)));
+                sb.append(Hex.u2(ssaMeth.blockIndexToRopLabel(preds.get(i))));
                 sb.append('\n');
             }
 
@@ -147,7 +147,7 @@ public class SsaDumper extends BlockDumper {
                 sb.append('\n');
             }
 
-            if (block.getSuccessors().cardinality() == 0) {
+            if (block.getSuccessors().size() == 0) {
                 sb.append("  returns\n");
             } else {
                 int primary = block.getPrimarySuccessorRopLabel();
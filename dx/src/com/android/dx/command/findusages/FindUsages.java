@@ -155,13 +155,12 @@ public final class FindUsages {
      */
     private Set<Integer> getFieldIds(Dex dex, Set<Integer> memberNameIndexes, int declaringType) {
         Set<Integer> fields = new HashSet<Integer>();
-        int fieldIndex = 0;
-        for (FieldId fieldId : dex.fieldIds()) {
-            if (memberNameIndexes.contains(fieldId.getNameIndex())
-                    && declaringType == fieldId.getDeclaringClassIndex()) {
+        List<FieldId> fieldIds = dex.fieldIds();
+        int end = dex.fieldIdsStart(declaringType + 1);
+        for (int fieldIndex = dex.fieldIdsStart(declaringType); fieldIndex < end; fieldIndex++) {
+            if (memberNameIndexes.contains(fieldIds.get(fieldIndex).getNameIndex())) {
                 fields.add(fieldIndex);
             }
-            fieldIndex++;
         }
         return fields;
     }
@@ -174,13 +173,15 @@ public final class FindUsages {
         Set<Integer> subtypes = findAssignableTypes(dex, declaringType);
 
         Set<Integer> methods = new HashSet<Integer>();
-        int methodIndex = 0;
-        for (MethodId method : dex.methodIds()) {
-            if (memberNameIndexes.contains(method.getNameIndex())
-                    && subtypes.contains(method.getDeclaringClassIndex())) {
-                methods.add(methodIndex);
+        List<MethodId> methodIds = dex.methodIds();
+        for (int subtype : subtypes) {
+            int end = dex.methodIdsStart(subtype + 1);
+            for (int methodIndex = dex.methodIdsStart(subtype); methodIndex < end;
+                    methodIndex++) {
+                if (memberNameIndexes.contains(methodIds.get(methodIndex).getNameIndex())) {
+                    methods.add(methodIndex);
+                }
             }
-            methodIndex++;
         }
         return methods;
     }
@@ -27,7 +27,9 @@ public final class Main {
         String declaredBy = args[1];
         String memberName = args[2];
 
-        Dex dex = new Dex(new File(dexFile));
+        Dex dex = Dex.map(new File(dexFile));
+        // Each usage is reported with the names of its class and method.
+        dex.setStringCacheSize(4096);
         PrintWriter out = new PrintWriter(System.out);
         new FindUsages(dex, declaredBy, memberName, out).findUsages();
         out.flush();
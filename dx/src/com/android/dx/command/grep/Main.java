@@ -27,7 +27,9 @@ public final class Main {
         String dexFile = args[0];
         String pattern = args[1];
 
-        Dex dex = new Dex(new File(dexFile));
+        Dex dex = Dex.map(new File(dexFile));
+        // Each match is reported with the names of its class and method.
+        dex.setStringCacheSize(4096);
         int count = new Grep(dex, Pattern.compile(pattern), new PrintWriter(System.out)).grep();
         System.exit((count > 0) ? 0 : 1);
     }
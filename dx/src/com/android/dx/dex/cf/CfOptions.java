@@ -17,6 +17,7 @@
 package com.android.dx.dex.cf;
 
 import com.android.dx.dex.code.PositionList;
+import com.android.dx.ssa.Optimizer;
 import java.io.PrintStream;
 
 /**
@@ -41,6 +42,42 @@ public class CfOptions {
     /** filename containing list of methods <i>not</i> to optimize */
     public String dontOptimizeListFile = null;
 
+    /**
+     * number of rop insns above which a method is optimized with fewer
+     * steps, or {@code 0} for no limit
+     */
+    public int reducedOptimizeInsns = 16384;
+
+    /**
+     * number of basic blocks above which a method is optimized with fewer
+     * steps, or {@code 0} for no limit
+     */
+    public int reducedOptimizeBlocks = 8192;
+
+    /**
+     * number of rop insns above which a method is not optimized, or
+     * {@code 0} for no limit
+     */
+    public int noOptimizeInsns = 32768;
+
+    /**
+     * number of basic blocks above which a method is not optimized, or
+     * {@code 0} for no limit
+     */
+    public int noOptimizeBlocks = 16384;
+
+    /**
+     * time optimizing a method may take, in milliseconds, before it is
+     * translated without optimization, or {@code 0} for no limit
+     */
+    public long optimizeBudgetMillis = 0;
+
+    /**
+     * number of SSA registers above which a method's registers are
+     * allocated by linear scan, or {@code 0} for all methods
+     */
+    public int linearScanRegs = Optimizer.DEFAULT_LINEAR_SCAN_REGS;
+
     /** whether to print statistics to stdout at end of compile cycle */
     public boolean statistics;
 
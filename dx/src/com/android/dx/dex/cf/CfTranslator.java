@@ -17,6 +17,7 @@
 package com.android.dx.dex.cf;
 
 import com.android.dex.util.ExceptionWithContext;
+import com.android.dx.cf.attrib.AttCode;
 import com.android.dx.cf.code.BootstrapMethodsList;
 import com.android.dx.cf.code.ConcreteMethod;
 import com.android.dx.cf.code.Ropper;
@@ -45,7 +46,6 @@ import com.android.dx.rop.code.DexTranslationAdvice;
 import com.android.dx.rop.code.LocalVariableExtractor;
 import com.android.dx.rop.code.LocalVariableInfo;
 import com.android.dx.rop.code.RopMethod;
-import com.android.dx.rop.code.TranslationAdvice;
 import com.android.dx.rop.cst.Constant;
 import com.android.dx.rop.cst.ConstantPool;
 import com.android.dx.rop.cst.CstBaseMethodRef;
@@ -67,7 +67,9 @@ import com.android.dx.rop.cst.CstType;
 import com.android.dx.rop.cst.TypedConstant;
 import com.android.dx.rop.type.Type;
 import com.android.dx.rop.type.TypeList;
+import com.android.dx.ssa.BudgetExceededException;
 import com.android.dx.ssa.Optimizer;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Static method that turns {@code byte[]}s containing Java
@@ -77,6 +79,12 @@ public class CfTranslator {
     /** set to {@code true} to enable development-time debugging code */
     private static final boolean DEBUG = false;
 
+    /**
+     * number of bytes of bytecode from which the methods of a class are
+     * optimized in parallel, if {@link DxContext#methodPool} is set
+     */
+    private static final int PARALLEL_CODE_SIZE = 4096;
+
     /**
      * This class is uninstantiable.
      */
@@ -279,6 +287,45 @@ public class CfTranslator {
         CstType thisClass = cf.getThisClass();
         MethodList methods = cf.getMethods();
         int sz = methods.size();
+        Optimizer optimizer = new Optimizer(cfOptions.localInfo,
+                DexTranslationAdvice.THE_ONE, cfOptions.optimizeBudgetMillis,
+                cfOptions.linearScanRegs);
+        boolean parallel = context.methodPool != null
+            && getCodeSize(methods) >= PARALLEL_CODE_SIZE;
+        CodeTranslation[] translations = new CodeTranslation[sz];
+
+        /*
+         * The methods are converted to rop form in order, since that
+         * numbers the call sites of the class. The rest of their
+         * translation may run in parallel.
+         */
+        for (int i = 0; i < sz; i++) {
+            Method one = methods.get(i);
+            try {
+                int accessFlags = one.getAccessFlags();
+                if (AccessFlags.isNative(accessFlags)
+                        || AccessFlags.isAbstract(accessFlags)) {
+                    // There's no code for native or abstract methods.
+                    continue;
+                }
+
+                translations[i] = new CodeTranslation(context, cf, cfOptions,
+                        dexOptions, optimizer, one);
+                if (!parallel) {
+                    translations[i].run();
+                    // Report the first method that fails.
+                    translations[i].getCode();
+                }
+            } catch (RuntimeException ex) {
+                String msg = "...while processing " + one.getName().toHuman() +
+                    " " + one.getDescriptor().toHuman();
+                throw ExceptionWithContext.withContext(ex, msg);
+            }
+        }
+
+        if (parallel) {
+            context.methodPool.invoke(new CodeTranslationTask(translations, 0, sz));
+        }
 
         for (int i = 0; i < sz; i++) {
             Method one = methods.get(i);
@@ -288,69 +335,10 @@ public class CfTranslator {
                 boolean isStatic = AccessFlags.isStatic(accessFlags);
                 boolean isPrivate = AccessFlags.isPrivate(accessFlags);
                 boolean isNative = AccessFlags.isNative(accessFlags);
-                boolean isAbstract = AccessFlags.isAbstract(accessFlags);
                 boolean isConstructor = meth.isInstanceInit() ||
                     meth.isClassInit();
-                DalvCode code;
-
-                if (isNative || isAbstract) {
-                    // There's no code for native or abstract methods.
-                    code = null;
-                } else {
-                    ConcreteMethod concrete =
-                        new ConcreteMethod(one, cf,
-                                (cfOptions.positionInfo != PositionList.NONE),
-                                cfOptions.localInfo);
-
-                    TranslationAdvice advice;
-
-                    advice = DexTranslationAdvice.THE_ONE;
-
-                    RopMethod rmeth = Ropper.convert(concrete, advice, methods, dexOptions);
-                    RopMethod nonOptRmeth = null;
-                    int paramSize;
-
-                    paramSize = meth.getParameterWordCount(isStatic);
-
-                    String canonicalName
-                            = thisClass.getClassType().getDescriptor()
-                                + "." + one.getName().getString();
-
-                    if (cfOptions.optimize &&
-                            context.optimizerOptions.shouldOptimize(canonicalName)) {
-                        if (DEBUG) {
-                            System.err.println("Optimizing " + canonicalName);
-                        }
-
-                        nonOptRmeth = rmeth;
-                        rmeth = Optimizer.optimize(rmeth,
-                                paramSize, isStatic, cfOptions.localInfo, advice);
-
-                        if (DEBUG) {
-                            context.optimizerOptions.compareOptimizerStep(nonOptRmeth,
-                                    paramSize, isStatic, cfOptions, advice, rmeth);
-                        }
-
-                        if (cfOptions.statistics) {
-                            context.codeStatistics.updateRopStatistics(
-                                    nonOptRmeth, rmeth);
-                        }
-                    }
-
-                    LocalVariableInfo locals = null;
-
-                    if (cfOptions.localInfo) {
-                        locals = LocalVariableExtractor.extract(rmeth);
-                    }
-
-                    code = RopTranslator.translate(rmeth, cfOptions.positionInfo,
-                            locals, paramSize, dexOptions);
-
-                    if (cfOptions.statistics && nonOptRmeth != null) {
-                        updateDexStatistics(context, cfOptions, dexOptions, rmeth, nonOptRmeth, locals,
-                                paramSize, concrete.getCode().size());
-                    }
-                }
+                DalvCode code = (translations[i] == null) ? null
+                    : translations[i].getCode();
 
                 // Preserve the synchronized flag as its "declared" variant...
                 if (AccessFlags.isSynchronized(accessFlags)) {
@@ -400,6 +388,210 @@ public class CfTranslator {
         }
     }
 
+    /**
+     * Gets the total size of the bytecode of the given methods.
+     *
+     * @param methods {@code non-null;} the methods
+     * @return {@code >= 0;} the size, in bytes
+     */
+    private static int getCodeSize(MethodList methods) {
+        int result = 0;
+
+        for (int i = 0, sz = methods.size(); i < sz; i++) {
+            AttCode code = (AttCode) methods.get(i).getAttributes()
+                .findFirst(AttCode.ATTRIBUTE_NAME);
+            if (code != null) {
+                result += code.getCode().size();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Translation of the code of one method, from its rop form to its
+     * dex form.
+     */
+    private static final class CodeTranslation {
+        private final DxContext context;
+        private final CfOptions cfOptions;
+        private final DexOptions dexOptions;
+        private final Optimizer optimizer;
+
+        /** {@code non-null;} the method */
+        private final ConcreteMethod concrete;
+
+        /** {@code non-null;} name of the method, for the optimize lists */
+        private final String canonicalName;
+
+        /** whether the method is static */
+        private final boolean isStatic;
+
+        /** size of the parameters of the method, in words */
+        private final int paramSize;
+
+        /** {@code null-ok;} the rop form, until it is translated */
+        private RopMethod rmeth;
+
+        /** {@code null-ok;} the dex form, once translated */
+        private DalvCode code;
+
+        /** {@code null-ok;} the failure of the translation, if any */
+        private RuntimeException failure;
+
+        /**
+         * Constructs an instance, converting the method to rop form.
+         */
+        CodeTranslation(DxContext context, DirectClassFile cf, CfOptions cfOptions,
+                DexOptions dexOptions, Optimizer optimizer, Method one) {
+            this.context = context;
+            this.cfOptions = cfOptions;
+            this.dexOptions = dexOptions;
+            this.optimizer = optimizer;
+
+            CstType thisClass = cf.getThisClass();
+            CstMethodRef meth = new CstMethodRef(thisClass, one.getNat());
+            isStatic = AccessFlags.isStatic(one.getAccessFlags());
+            paramSize = meth.getParameterWordCount(isStatic);
+            canonicalName = thisClass.getClassType().getDescriptor()
+                + "." + one.getName().getString();
+            concrete = new ConcreteMethod(one, cf,
+                    (cfOptions.positionInfo != PositionList.NONE),
+                    cfOptions.localInfo);
+            rmeth = Ropper.convert(concrete, optimizer.getAdvice(),
+                    cf.getMethods(), dexOptions);
+        }
+
+        /**
+         * Optimizes the method, if it's to be, and translates it to dex
+         * form. Failures are kept for {@link #getCode}.
+         */
+        void run() {
+            try {
+                code = translate();
+            } catch (RuntimeException ex) {
+                failure = ex;
+            } finally {
+                rmeth = null;
+            }
+        }
+
+        /**
+         * Gets the dex form of the method.
+         *
+         * @return {@code non-null;} the code
+         * @throws RuntimeException the failure of the translation, if any
+         */
+        DalvCode getCode() {
+            if (failure != null) {
+                throw failure;
+            }
+            return code;
+        }
+
+        private DalvCode translate() {
+            RopMethod nonOptRmeth = null;
+
+            if (cfOptions.optimize &&
+                    context.optimizerOptions.shouldOptimize(canonicalName)) {
+                if (DEBUG) {
+                    System.err.println("Optimizing " + canonicalName);
+                }
+
+                RopMethod optRmeth = optimize();
+
+                if (optRmeth != null) {
+                    nonOptRmeth = rmeth;
+                    rmeth = optRmeth;
+
+                    if (DEBUG) {
+                        context.optimizerOptions.compareOptimizerStep(
+                                nonOptRmeth, paramSize, isStatic, optimizer,
+                                rmeth);
+                    }
+
+                    if (cfOptions.statistics) {
+                        context.codeStatistics.updateRopStatistics(
+                                nonOptRmeth, rmeth);
+                    }
+                }
+            }
+
+            LocalVariableInfo locals = null;
+
+            if (cfOptions.localInfo) {
+                locals = LocalVariableExtractor.extract(rmeth);
+            }
+
+            DalvCode result = RopTranslator.translate(rmeth,
+                    cfOptions.positionInfo, locals, paramSize, dexOptions);
+
+            if (cfOptions.statistics && nonOptRmeth != null) {
+                updateDexStatistics(context, cfOptions, dexOptions, rmeth, nonOptRmeth,
+                        locals, paramSize, concrete.getCode().size());
+            }
+
+            return result;
+        }
+
+        /**
+         * Optimizes the method with the steps of its tier.
+         *
+         * @return {@code null-ok;} the optimized method, or {@code null} if
+         * the method is too large to optimize, or optimizing it took longer
+         * than the budget
+         */
+        private RopMethod optimize() {
+            OptimizerOptions.Tier tier = OptimizerOptions.getTier(cfOptions, rmeth);
+
+            if (cfOptions.statistics) {
+                context.codeStatistics.updateTier(canonicalName, tier);
+            }
+
+            if (tier == OptimizerOptions.Tier.NONE) {
+                return null;
+            }
+
+            try {
+                return optimizer.optimize(rmeth, paramSize, isStatic, tier.getSteps());
+            } catch (BudgetExceededException ex) {
+                if (cfOptions.statistics) {
+                    context.codeStatistics.updateOverBudget(canonicalName);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Runs the translations of a range of methods, splitting it in halves
+     * until each holds one method.
+     */
+    private static final class CodeTranslationTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CodeTranslation[] translations;
+        private final int start;
+        private final int end;
+
+        CodeTranslationTask(CodeTranslation[] translations, int start, int end) {
+            this.translations = translations;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new CodeTranslationTask(translations, start, middle),
+                        new CodeTranslationTask(translations, middle, end));
+            } else if (translations[start] != null) {
+                translations[start].run();
+            }
+        }
+    }
+
     /**
      * Helper that updates the dex statistics.
      */
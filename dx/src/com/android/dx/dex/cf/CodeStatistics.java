@@ -19,6 +19,8 @@ package com.android.dx.dex.cf;
 import com.android.dx.dex.code.DalvCode;
 import com.android.dx.rop.code.RopMethod;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * Static methods and variables for collecting statistics on generated
@@ -65,22 +67,59 @@ public final class CodeStatistics {
     /** running sum of original class bytecode bytes */
     public int runningOriginalBytes = 0;
 
+    /** number of methods optimized with fewer steps, as they are large */
+    public int reducedMethods = 0;
+
+    /** {@code non-null;} methods not optimized as they are too large */
+    private final ArrayList<String> tooLargeMethods = new ArrayList<String>();
+
+    /**
+     * {@code non-null;} methods not optimized as optimizing them took
+     * longer than the budget
+     */
+    private final ArrayList<String> overBudgetMethods = new ArrayList<String>();
+
     /**
      * Updates the number of original bytecode bytes processed.
      *
      * @param count {@code >= 0;} the number of bytes to add
      */
-    public void updateOriginalByteCount(int count) {
+    public synchronized void updateOriginalByteCount(int count) {
         runningOriginalBytes += count;
     }
 
+    /**
+     * Updates the number of methods of each tier of optimization.
+     *
+     * @param methodName {@code non-null;} name of the method
+     * @param tier {@code non-null;} the tier of the method
+     */
+    public synchronized void updateTier(String methodName,
+            OptimizerOptions.Tier tier) {
+        if (tier == OptimizerOptions.Tier.REDUCED) {
+            reducedMethods++;
+        } else if (tier == OptimizerOptions.Tier.NONE) {
+            tooLargeMethods.add(methodName);
+        }
+    }
+
+    /**
+     * Records a method that is not optimized, as optimizing it took longer
+     * than the budget.
+     *
+     * @param methodName {@code non-null;} name of the method
+     */
+    public synchronized void updateOverBudget(String methodName) {
+        overBudgetMethods.add(methodName);
+    }
+
     /**
      * Updates the dex statistics.
      *
      * @param nonOptCode non-optimized code block
      * @param code optimized code block
      */
-    public void updateDexStatistics(DalvCode nonOptCode,
+    public synchronized void updateDexStatistics(DalvCode nonOptCode,
             DalvCode code) {
         if (DEBUG) {
             System.err.println("dex insns (old/new) "
@@ -109,7 +148,7 @@ public final class CodeStatistics {
      * @param nonOptRmeth non-optimized method
      * @param rmeth optimized method
      */
-    public void updateRopStatistics(RopMethod nonOptRmeth,
+    public synchronized void updateRopStatistics(RopMethod nonOptRmeth,
             RopMethod rmeth) {
         int oldCountInsns
                 = nonOptRmeth.getBlocks().getEffectiveInstructionCount();
@@ -140,7 +179,7 @@ public final class CodeStatistics {
      *
      * @param out {@code non-null;} where to output to
      */
-    public void dumpStatistics(PrintStream out) {
+    public synchronized void dumpStatistics(PrintStream out) {
         out.printf("Optimizer Delta Rop Insns: %d total: %d "
                 + "(%.2f%%) Delta Registers: %d\n",
                 runningDeltaInsns,
@@ -160,5 +199,27 @@ public final class CodeStatistics {
 
         out.printf("Original bytecode byte count: %d\n",
                 runningOriginalBytes);
+
+        out.printf("Optimizer reduced methods: %d not optimized: %d "
+                + "(too large: %d over budget: %d)\n",
+                reducedMethods,
+                tooLargeMethods.size() + overBudgetMethods.size(),
+                tooLargeMethods.size(), overBudgetMethods.size());
+
+        dumpMethods(out, "too large", tooLargeMethods);
+        dumpMethods(out, "over budget", overBudgetMethods);
+    }
+
+    /**
+     * Prints the names of methods not optimized for a reason, sorted, as
+     * they are recorded in the order their translations end.
+     */
+    private static void dumpMethods(PrintStream out, String reason,
+            ArrayList<String> methods) {
+        ArrayList<String> sorted = new ArrayList<String>(methods);
+        Collections.sort(sorted);
+        for (String method : sorted) {
+            out.println("  not optimized, " + reason + ": " + method);
+        }
     }
 }
@@ -17,7 +17,6 @@
 package com.android.dx.dex.cf;
 
 import com.android.dx.rop.code.RopMethod;
-import com.android.dx.rop.code.TranslationAdvice;
 import com.android.dx.ssa.Optimizer;
 import java.io.BufferedReader;
 import java.io.FileReader;
@@ -29,6 +28,40 @@ import java.util.HashSet;
  * Settings for optimization of code.
  */
 public class OptimizerOptions {
+    /**
+     * How much of the optimizer runs on a method, depending on its size.
+     * Some steps take much longer than the others on large methods, such
+     * as the large static initializers and parser tables of generated code.
+     */
+    public enum Tier {
+        /** all optimization steps */
+        FULL(EnumSet.allOf(Optimizer.OptionalStep.class)),
+
+        /** the steps other than {@code SCCP} and {@code CONST_COLLECTOR} */
+        REDUCED(EnumSet.complementOf(EnumSet.of(
+                Optimizer.OptionalStep.SCCP,
+                Optimizer.OptionalStep.CONST_COLLECTOR))),
+
+        /** no optimization */
+        NONE(EnumSet.noneOf(Optimizer.OptionalStep.class));
+
+        /** {@code non-null;} the optional steps to run */
+        private final EnumSet<Optimizer.OptionalStep> steps;
+
+        private Tier(EnumSet<Optimizer.OptionalStep> steps) {
+            this.steps = steps;
+        }
+
+        /**
+         * Gets the optional steps to run. The optimizer doesn't modify
+         * them, so they are shared by all methods of this tier.
+         *
+         * @return {@code non-null;} the steps
+         */
+        public EnumSet<Optimizer.OptionalStep> getSteps() {
+            return steps;
+        }
+    }
     /**
      * {@code null-ok;} hash set of class name + method names that
      * should be optimized. {@code null} if this constraint was not
@@ -116,13 +149,12 @@ public class OptimizerOptions {
      * @param nonOptRmeth {@code non-null;} origional rop method
      * @param paramSize {@code >= 0;} parameter size of method
      * @param isStatic true if this method has no 'this' pointer argument.
-     * @param args {@code non-null;} translator arguments
-     * @param advice {@code non-null;} translation advice
+     * @param optimizer {@code non-null;} optimizer of the method
      * @param rmeth {@code non-null;} method with all optimization steps run.
      */
     public void compareOptimizerStep(RopMethod nonOptRmeth,
-            int paramSize, boolean isStatic, CfOptions args,
-            TranslationAdvice advice, RopMethod rmeth) {
+            int paramSize, boolean isStatic, Optimizer optimizer,
+            RopMethod rmeth) {
         EnumSet<Optimizer.OptionalStep> steps;
 
         steps = EnumSet.allOf(Optimizer.OptionalStep.class);
@@ -131,8 +163,7 @@ public class OptimizerOptions {
         steps.remove(Optimizer.OptionalStep.CONST_COLLECTOR);
 
         RopMethod skipRopMethod
-                = Optimizer.optimize(nonOptRmeth,
-                        paramSize, isStatic, args.localInfo, advice, steps);
+                = optimizer.optimize(nonOptRmeth, paramSize, isStatic, steps);
 
         int normalInsns
                 = rmeth.getBlocks().getEffectiveInstructionCount();
@@ -151,6 +182,39 @@ public class OptimizerOptions {
                 100.0 * ((skipInsns - normalInsns) / (float) skipInsns));
     }
 
+    /**
+     * Gets the tier of optimization of a method, from the number of its
+     * insns and blocks.
+     *
+     * @param cfOptions {@code non-null;} the options with the limits of
+     * each tier
+     * @param rmeth {@code non-null;} the method, in rop form
+     * @return {@code non-null;} the tier
+     */
+    public static Tier getTier(CfOptions cfOptions, RopMethod rmeth) {
+        int insns = rmeth.getBlocks().getEffectiveInstructionCount();
+        int blocks = rmeth.getBlocks().size();
+
+        if (isAbove(insns, cfOptions.noOptimizeInsns)
+                || isAbove(blocks, cfOptions.noOptimizeBlocks)) {
+            return Tier.NONE;
+        }
+
+        if (isAbove(insns, cfOptions.reducedOptimizeInsns)
+                || isAbove(blocks, cfOptions.reducedOptimizeBlocks)) {
+            return Tier.REDUCED;
+        }
+
+        return Tier.FULL;
+    }
+
+    /**
+     * Returns whether a count is above a limit, {@code 0} being no limit.
+     */
+    private static boolean isAbove(int count, int limit) {
+        return limit > 0 && count > limit;
+    }
+
     /**
      * Checks whether the specified method should be optimized
      *
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.dex.file;
+
+import com.android.dex.Leb128;
+import com.android.dex.util.ByteOutput;
+import com.android.dex.util.ExceptionWithContext;
+import com.android.dx.util.AnnotatedOutput;
+import com.android.dx.util.ByteArray;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * Implementation of {@link AnnotatedOutput} which writes a {@code .dex}
+ * file to a {@link FileChannel} through a small fixed size buffer, so that
+ * the file is never held in memory as a whole. The signature and checksum
+ * are computed as the bytes go by, and patched into the header by
+ * {@link #finish}. This class never keeps annotations.
+ *
+ * <p><b>Note:</b> As per the {@link com.android.dx.util.Output}
+ * interface, multi-byte writes all use little-endian order.</p>
+ */
+final class ChannelDexOutput implements AnnotatedOutput, ByteOutput {
+    /** size of the buffer */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** offset of the checksum in the header */
+    private static final int CHECKSUM_OFFSET = 8;
+
+    /** offset of the signature in the header */
+    private static final int SIGNATURE_OFFSET = 12;
+
+    /** offset of the first byte covered by the signature */
+    private static final int SIGNED_DATA_OFFSET = 32;
+
+    /** largest prime smaller than 65536, as used by Adler-32 */
+    private static final int ADLER_BASE = 65521;
+
+    /** {@code non-null;} the channel to write to */
+    private final FileChannel channel;
+
+    /** position of the start of the file in {@link #channel} */
+    private final long channelStart;
+
+    /** {@code non-null;} buffered data not yet written to the channel */
+    private final byte[] data = new byte[BUFFER_SIZE];
+
+    /** {@code >= 0;} number of bytes in {@link #data} */
+    private int count;
+
+    /** {@code >= 0;} file offset of {@code data[0]} */
+    private int flushed;
+
+    /** {@code non-null;} SHA-1 of the bytes from {@link #SIGNED_DATA_OFFSET} on */
+    private final MessageDigest signature;
+
+    /** {@code non-null;} Adler-32 of the bytes from {@link #SIGNED_DATA_OFFSET} on */
+    private final Adler32 checksum = new Adler32();
+
+    /**
+     * Constructs an instance writing a file starting at the current
+     * position of {@code channel}.
+     *
+     * @param channel {@code non-null;} the channel to write to
+     */
+    public ChannelDexOutput(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.channelStart = channel.position();
+
+        try {
+            signature = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Writes out the remaining buffered data and patches the checksum and
+     * signature into the header. No other method may be called after this
+     * one.
+     *
+     * @return the size of the file
+     */
+    public int finish() throws IOException {
+        flush();
+
+        byte[] header = new byte[SIGNED_DATA_OFFSET - CHECKSUM_OFFSET];
+        byte[] sha1 = signature.digest();
+        System.arraycopy(sha1, 0, header, SIGNATURE_OFFSET - CHECKSUM_OFFSET, sha1.length);
+
+        // The checksum covers the signature, which is only known now.
+        Adler32 signatureChecksum = new Adler32();
+        signatureChecksum.update(sha1);
+        int sum = combineChecksums(signatureChecksum.getValue(), checksum.getValue(),
+                flushed - SIGNED_DATA_OFFSET);
+        header[0] = (byte) sum;
+        header[1] = (byte) (sum >> 8);
+        header[2] = (byte) (sum >> 16);
+        header[3] = (byte) (sum >> 24);
+
+        write(ByteBuffer.wrap(header), channelStart + CHECKSUM_OFFSET);
+        return flushed;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getCursor() {
+        return flushed + count;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void assertCursor(int expectedCursor) {
+        if (getCursor() != expectedCursor) {
+            throw new ExceptionWithContext("expected cursor " +
+                    expectedCursor + "; actual value: " + getCursor());
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeByte(int value) {
+        ensureAvailable(1);
+        data[count++] = (byte) value;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeShort(int value) {
+        ensureAvailable(2);
+        data[count] = (byte) value;
+        data[count + 1] = (byte) (value >> 8);
+        count += 2;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeInt(int value) {
+        ensureAvailable(4);
+        data[count] = (byte) value;
+        data[count + 1] = (byte) (value >> 8);
+        data[count + 2] = (byte) (value >> 16);
+        data[count + 3] = (byte) (value >> 24);
+        count += 4;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeLong(long value) {
+        writeInt((int) value);
+        writeInt((int) (value >> 32));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int writeUleb128(int value) {
+        ensureAvailable(5); // pessimistic
+        int cursorBefore = count;
+        Leb128.writeUnsignedLeb128(this, value);
+        return count - cursorBefore;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int writeSleb128(int value) {
+        ensureAvailable(5); // pessimistic
+        int cursorBefore = count;
+        Leb128.writeSignedLeb128(this, value);
+        return count - cursorBefore;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(ByteArray bytes) {
+        int blen = bytes.size();
+
+        if (blen <= BUFFER_SIZE) {
+            ensureAvailable(blen);
+            bytes.getBytes(data, count);
+            count += blen;
+        } else {
+            byte[] array = new byte[blen];
+            bytes.getBytes(array, 0);
+            write(array);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        // twos-complement math trick: ((x < 0) || (y < 0)) <=> ((x|y) < 0)
+        if (((offset | length | (offset + length)) < 0)
+                || (offset + length > bytes.length)) {
+            throw new IndexOutOfBoundsException("bytes.length " +
+                    bytes.length + "; " + offset + "..!" + (offset + length));
+        }
+
+        while (length > 0) {
+            ensureAvailable(1);
+            int amt = Math.min(length, BUFFER_SIZE - count);
+            System.arraycopy(bytes, offset, data, count, amt);
+            count += amt;
+            offset += amt;
+            length -= amt;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeZeroes(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0");
+        }
+
+        while (count > 0) {
+            ensureAvailable(1);
+            int amt = Math.min(count, BUFFER_SIZE - this.count);
+            Arrays.fill(data, this.count, this.count + amt, (byte) 0);
+            this.count += amt;
+            count -= amt;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void alignTo(int alignment) {
+        int mask = alignment - 1;
+
+        if ((alignment < 0) || ((mask & alignment) != 0)) {
+            throw new IllegalArgumentException("bogus alignment");
+        }
+
+        int cursor = getCursor();
+        writeZeroes(((cursor + mask) & ~mask) - cursor);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean annotates() {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isVerbose() {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void annotate(String msg) {
+        // This space intentionally left blank.
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void annotate(int amt, String msg) {
+        // This space intentionally left blank.
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void endAnnotation() {
+        // This space intentionally left blank.
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getAnnotationWidth() {
+        return 0;
+    }
+
+    /**
+     * Makes room for {@code amt <= BUFFER_SIZE} bytes in the buffer,
+     * flushing it if needed.
+     */
+    private void ensureAvailable(int amt) {
+        if (count + amt > BUFFER_SIZE) {
+            try {
+                flush();
+            } catch (IOException ex) {
+                throw new ExceptionWithContext(ex);
+            }
+        }
+    }
+
+    /**
+     * Digests and writes out the buffered data.
+     */
+    private void flush() throws IOException {
+        int signedStart = Math.max(0, Math.min(count, SIGNED_DATA_OFFSET - flushed));
+        signature.update(data, signedStart, count - signedStart);
+        checksum.update(data, signedStart, count - signedStart);
+
+        write(ByteBuffer.wrap(data, 0, count), channelStart + flushed);
+        flushed += count;
+        count = 0;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive byte ranges into
+     * the checksum of the whole, as zlib's {@code adler32_combine()} does.
+     *
+     * @param first checksum of the first range
+     * @param second checksum of the second range
+     * @param secondLength {@code >= 0;} length of the second range
+     * @return the checksum of both ranges
+     */
+    private static int combineChecksums(long first, long second, int secondLength) {
+        long rem = secondLength % ADLER_BASE;
+        long sum1 = first & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (second & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((first >> 16) & 0xffff) + ((second >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return (int) (sum1 | (sum2 << 16));
+    }
+}
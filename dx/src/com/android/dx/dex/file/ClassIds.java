@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.dex.file;
+
+import com.android.dx.dex.code.DalvCode;
+import com.android.dx.rop.annotation.Annotation;
+import com.android.dx.rop.annotation.NameValuePair;
+import com.android.dx.rop.cst.Constant;
+import com.android.dx.rop.cst.CstAnnotation;
+import com.android.dx.rop.cst.CstArray;
+import com.android.dx.rop.cst.CstBaseMethodRef;
+import com.android.dx.rop.cst.CstCallSiteRef;
+import com.android.dx.rop.cst.CstEnumRef;
+import com.android.dx.rop.cst.CstFieldRef;
+import com.android.dx.rop.cst.CstInterfaceMethodRef;
+import com.android.dx.rop.cst.CstMethodHandle;
+import com.android.dx.rop.cst.CstProtoRef;
+import com.android.dx.rop.cst.CstString;
+import com.android.dx.rop.cst.CstType;
+import com.android.dx.rop.type.Prototype;
+import com.android.dx.rop.type.Type;
+import com.android.dx.rop.type.TypeList;
+import java.util.HashSet;
+
+/**
+ * The method, field and type ids that a class needs in the dex file that
+ * holds it. Multi-dex uses this to know how many ids adding the class
+ * adds to a dex file before adding it, so that it starts a new dex file
+ * only when the class does not fit.
+ *
+ * <p>This also holds the strings of the class. Their number is not
+ * limited, but {@link PackedDexLayout} weighs them when it looks for the
+ * dex file that already holds most of what the class refers to.</p>
+ */
+public final class ClassIds {
+    /** {@code non-null;} the method ids */
+    /*package*/ final HashSet<CstBaseMethodRef> methods = new HashSet<CstBaseMethodRef>();
+
+    /** {@code non-null;} the field ids */
+    /*package*/ final HashSet<CstFieldRef> fields = new HashSet<CstFieldRef>();
+
+    /** {@code non-null;} the type ids */
+    /*package*/ final HashSet<Type> types = new HashSet<Type>();
+
+    /** {@code non-null;} the strings */
+    /*package*/ final HashSet<String> strings = new HashSet<String>();
+
+    /**
+     * Collects the ids of a class.
+     *
+     * @param clazz {@code non-null;} the class
+     * @param file {@code non-null;} the file the class was translated
+     * into, which holds no other class. It holds the ids interned during
+     * translation: those of the constant pool, of the members and of the
+     * annotations of the class.
+     */
+    public ClassIds(ClassDefItem clazz, DexFile file) {
+        for (Item item : file.getMethodIds().items()) {
+            addMethod(((MethodIdItem) item).getMethodRef());
+        }
+        for (Item item : file.getFieldIds().items()) {
+            addField(((FieldIdItem) item).getFieldRef());
+        }
+        for (Item item : file.getTypeIds().items()) {
+            types.add(((TypeIdItem) item).getDefiningClass().getClassType());
+        }
+        for (Item item : file.getStringIds().items()) {
+            strings.add(((StringIdItem) item).getValue().getString());
+        }
+
+        types.add(clazz.getThisClass().getClassType());
+        if (clazz.getSuperclass() != null) {
+            types.add(clazz.getSuperclass().getClassType());
+        }
+        addTypes(clazz.getInterfaces());
+
+        // The code may refer to ids that are not in the constant pool.
+        for (EncodedMethod method : clazz.getMethods()) {
+            CodeItem codeItem = method.getCode();
+            if (codeItem == null) {
+                continue;
+            }
+            DalvCode code = codeItem.getCode();
+            if (code.hasAnyCatches()) {
+                types.addAll(code.getCatchTypes());
+            }
+            for (Constant cst : code.getInsnConstants()) {
+                add(cst);
+            }
+        }
+
+        if (clazz.getSourceFile() != null) {
+            strings.add(clazz.getSourceFile().getString());
+        }
+        for (Type type : types) {
+            strings.add(type.getDescriptor());
+        }
+    }
+
+    /**
+     * Adds the ids of a constant, as {@link ValueEncoder#addContents} and
+     * {@link DexFile#internIfAppropriate} would intern them.
+     */
+    private void add(Constant cst) {
+        if (cst instanceof CstString) {
+            strings.add(((CstString) cst).getString());
+        } else if (cst instanceof CstType) {
+            types.add(((CstType) cst).getClassType());
+        } else if (cst instanceof CstBaseMethodRef) {
+            addMethod((CstBaseMethodRef) cst);
+        } else if (cst instanceof CstFieldRef) {
+            addField((CstFieldRef) cst);
+        } else if (cst instanceof CstEnumRef) {
+            addField(((CstEnumRef) cst).getFieldRef());
+        } else if (cst instanceof CstProtoRef) {
+            addPrototype(((CstProtoRef) cst).getPrototype());
+        } else if (cst instanceof CstMethodHandle) {
+            Constant ref = ((CstMethodHandle) cst).getRef();
+            if (ref instanceof CstInterfaceMethodRef) {
+                // As MethodHandleItem refers to it.
+                ref = ((CstInterfaceMethodRef) ref).toMethodRef();
+            }
+            add(ref);
+        } else if (cst instanceof CstCallSiteRef) {
+            add(((CstCallSiteRef) cst).getCallSite());
+        } else if (cst instanceof CstArray) {
+            CstArray.List list = ((CstArray) cst).getList();
+            for (int i = 0; i < list.size(); i++) {
+                add(list.get(i));
+            }
+        } else if (cst instanceof CstAnnotation) {
+            Annotation annotation = ((CstAnnotation) cst).getAnnotation();
+            types.add(annotation.getType().getClassType());
+            for (NameValuePair pair : annotation.getNameValuePairs()) {
+                strings.add(pair.getName().getString());
+                add(pair.getValue());
+            }
+        }
+    }
+
+    private void addMethod(CstBaseMethodRef method) {
+        if (methods.add(method)) {
+            strings.add(method.getNat().getName().getString());
+            types.add(method.getDefiningClass().getClassType());
+            addPrototype(method.getPrototype());
+        }
+    }
+
+    private void addField(CstFieldRef field) {
+        if (fields.add(field)) {
+            strings.add(field.getNat().getName().getString());
+            types.add(field.getDefiningClass().getClassType());
+            types.add(field.getType());
+        }
+    }
+
+    private void addPrototype(Prototype prototype) {
+        types.add(prototype.getReturnType());
+        addTypes(prototype.getParameterTypes());
+    }
+
+    private void addTypes(TypeList list) {
+        for (int i = 0; i < list.size(); i++) {
+            types.add(list.getType(i));
+        }
+    }
+
+    /**
+     * Returns whether adding the class to a file keeps each of its method,
+     * field and type id sections within a number of ids.
+     *
+     * @param file {@code non-null;} the file to add the class to
+     * @param maxIds the number of ids each section may hold
+     * @return whether the class fits
+     */
+    public boolean fitsIn(DexFile file, int maxIds) {
+        MethodIdsSection methodIds = file.getMethodIds();
+        int newMethods = 0;
+        for (CstBaseMethodRef method : methods) {
+            if (!methodIds.contains(method)) {
+                newMethods++;
+            }
+        }
+
+        FieldIdsSection fieldIds = file.getFieldIds();
+        int newFields = 0;
+        for (CstFieldRef field : fields) {
+            if (!fieldIds.contains(field)) {
+                newFields++;
+            }
+        }
+
+        TypeIdsSection typeIds = file.getTypeIds();
+        int newTypes = 0;
+        for (Type type : types) {
+            if (!typeIds.contains(type)) {
+                newTypes++;
+            }
+        }
+
+        return methodIds.items().size() + newMethods <= maxIds
+                && fieldIds.items().size() + newFields <= maxIds
+                && typeIds.items().size() + newTypes <= maxIds;
+    }
+
+    /**
+     * Interns all the ids into a file, so that {@link #fitsIn} counts them
+     * for the classes added after this one.
+     *
+     * @param file {@code non-null;} the file the class is added to
+     */
+    public void internInto(DexFile file) {
+        MethodIdsSection methodIds = file.getMethodIds();
+        for (CstBaseMethodRef method : methods) {
+            methodIds.intern(method);
+        }
+        FieldIdsSection fieldIds = file.getFieldIds();
+        for (CstFieldRef field : fields) {
+            fieldIds.intern(field);
+        }
+        TypeIdsSection typeIds = file.getTypeIds();
+        for (Type type : types) {
+            typeIds.intern(type);
+        }
+    }
+}
@@ -147,6 +147,15 @@ public final class CodeItem extends OffsettedItem {
         return ref;
     }
 
+    /**
+     * Gets the code of the method.
+     *
+     * @return {@code non-null;} the code
+     */
+    /*package*/ DalvCode getCode() {
+        return code;
+    }
+
     /**
      * Does a human-friendly dump of this instance.
      *
@@ -30,13 +30,23 @@ import com.android.dx.rop.cst.CstProtoRef;
 import com.android.dx.rop.cst.CstString;
 import com.android.dx.rop.cst.CstType;
 import com.android.dx.rop.type.Type;
+import com.android.dx.util.AnnotatedOutput;
 import com.android.dx.util.ByteArrayAnnotatedOutput;
+import com.android.dx.util.IntList;
+import com.android.dx.util.Interner;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.Adler32;
@@ -46,6 +56,12 @@ import java.util.zip.Adler32;
  * file, which itself consists of a set of Dalvik classes.
  */
 public final class DexFile {
+    /**
+     * minimum size in bytes of a run of items written by a single task,
+     * when writing with more than one thread
+     */
+    private static final int MIN_WRITE_CHUNK_SIZE = 64 * 1024;
+
     /** options controlling the creation of the file */
     private final DexOptions dexOptions;
 
@@ -114,6 +130,9 @@ public final class DexFile {
     /** {@code >= 40;} maximum width of the file dump */
     private int dumpWidth;
 
+    /** {@code >= 1;} number of threads to write the file with */
+    private int writeThreads;
+
     /**
      * Constructs an instance. It is initially empty.
      *
@@ -166,6 +185,7 @@ public final class DexFile {
 
         fileSize = -1;
         dumpWidth = 79;
+        writeThreads = 1;
     }
 
     /**
@@ -257,6 +277,32 @@ public final class DexFile {
     }
 
 
+    /**
+     * Writes the contents of this instance as a binary to the given
+     * channel, starting at its current position. Unlike the other
+     * methods writing the contents, this one streams the sections to
+     * the channel instead of building the whole file in memory first,
+     * unless the file is to be written with more than one thread.
+     *
+     * @param channel {@code non-null;} where to write to
+     * @return the size of the file
+     */
+    public int writeTo(FileChannel channel) throws IOException {
+        if (writeThreads > 1) {
+            ByteBuffer buffer = ByteBuffer.wrap(toDex0(false, false, null).getArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return fileSize;
+        }
+
+        place();
+
+        ChannelDexOutput out = new ChannelDexOutput(channel);
+        writeSections(out);
+        return out.finish();
+    }
+
     /**
      * Returns the contents of this instance as a {@code .dex} file,
      * in {@code byte[]} form.
@@ -290,6 +336,22 @@ public final class DexFile {
         this.dumpWidth = dumpWidth;
     }
 
+    /**
+     * Sets the number of threads to write the file with. With more than
+     * one, the sections, and runs of items within large sections, are
+     * written concurrently once they have been placed. This does not
+     * apply to annotated output.
+     *
+     * @param writeThreads {@code >= 1;} the number of threads
+     */
+    public void setWriteThreads(int writeThreads) {
+        if (writeThreads < 1) {
+            throw new IllegalArgumentException("writeThreads < 1");
+        }
+
+        this.writeThreads = writeThreads;
+    }
+
     /**
      * Gets the total file size, if known.
      *
@@ -540,6 +602,8 @@ public final class DexFile {
             protoIds.intern(((CstProtoRef) cst).getPrototype());
         } else if (cst instanceof CstMethodHandle) {
             methodHandles.intern((CstMethodHandle) cst);
+        } else if (cst instanceof CstCallSiteRef) {
+            callSiteIds.intern((CstCallSiteRef) cst);
         }
     }
 
@@ -610,6 +674,46 @@ public final class DexFile {
     private ByteArrayAnnotatedOutput toDex0(boolean annotate,
             boolean verbose,
             Storage storage) {
+        place();
+
+        byte[] barr = storage == null ? new byte[fileSize] : storage.getStorage(fileSize);
+
+        ByteArrayAnnotatedOutput out = new ByteArrayAnnotatedOutput(barr);
+
+        if (annotate) {
+            out.enableAnnotations(dumpWidth, verbose);
+            writeSections(out);
+        } else if (writeThreads > 1) {
+            if (storage != null) {
+                // The array may be reused across different dx invocations.
+                Arrays.fill(barr, 0, fileSize, (byte) 0);
+            }
+            writeSectionsConcurrently(barr);
+            out = new ByteArrayAnnotatedOutput(barr, fileSize);
+        } else {
+            writeSections(out);
+        }
+
+        // Perform final bookkeeping.
+
+        calcSignature(barr, out.getCursor());
+        calcChecksum(barr, out.getCursor());
+
+        if (annotate) {
+            wordData.writeIndexAnnotation(out, ItemType.TYPE_CODE_ITEM,
+                    "\nmethod code index:\n\n");
+            getStatistics().writeAnnotation(out);
+            out.finishAnnotating();
+        }
+
+        return out;
+    }
+
+    /**
+     * Prepares all the sections and places them within the file, which
+     * sets {@link #fileSize}.
+     */
+    private void place() {
         /*
          * The following is ordered so that the prepare() calls which
          * add items happen before the calls to the sections that get
@@ -684,16 +788,16 @@ public final class DexFile {
             }
         }
 
-        // Write out all the sections.
-
         fileSize = offset;
-        byte[] barr = storage == null ? new byte[fileSize] : storage.getStorage(fileSize);
-
-        ByteArrayAnnotatedOutput out = new ByteArrayAnnotatedOutput(barr);
+    }
 
-        if (annotate) {
-            out.enableAnnotations(dumpWidth, verbose);
-        }
+    /**
+     * Writes out all the sections, once they have been placed.
+     *
+     * @param out {@code non-null;} where to write to
+     */
+    private void writeSections(AnnotatedOutput out) {
+        int count = sections.length;
 
         for (int i = 0; i < count; i++) {
             try {
@@ -723,20 +827,132 @@ public final class DexFile {
         if (out.getCursor() != fileSize) {
             throw new RuntimeException("foreshortened write");
         }
+    }
 
-        // Perform final bookkeeping.
+    /**
+     * Writes out all the sections concurrently, once they have been
+     * placed, each directly at its offset in the given array. Large
+     * {@link MixedItemSection}s are further split into runs of items.
+     * The gaps between sections and items are left as is, so the array
+     * must be zeroed.
+     *
+     * @param barr {@code non-null;} where to write to
+     */
+    private void writeSectionsConcurrently(byte[] barr) {
+        Interner interner = Interner.current();
+        int chunkSize = Math.max(MIN_WRITE_CHUNK_SIZE, fileSize / (writeThreads * 4));
+        ArrayList<SectionWriter> writers = new ArrayList<SectionWriter>();
+        int count = sections.length;
+        int limit = fileSize;
 
-        calcSignature(barr, out.getCursor());
-        calcChecksum(barr, out.getCursor());
+        // Go backwards, so each writer knows where the next one starts.
+        for (int i = count - 1; i >= 0; i--) {
+            Section one = sections[i];
+            if ((one == callSiteIds || one == methodHandles) && one.items().isEmpty()) {
+                continue;
+            }
 
-        if (annotate) {
-            wordData.writeIndexAnnotation(out, ItemType.TYPE_CODE_ITEM,
-                    "\nmethod code index:\n\n");
-            getStatistics().writeAnnotation(out);
-            out.finishAnnotating();
+            if (one instanceof MixedItemSection && one.writeSize() > chunkSize) {
+                MixedItemSection mixed = (MixedItemSection) one;
+                IntList chunks = mixed.chunkItems(chunkSize);
+                for (int j = chunks.size() - 2; j >= 0; j--) {
+                    int start = chunks.get(j);
+                    OffsettedItem first = mixed.getItem(start);
+                    writers.add(new SectionWriter(barr, interner, i, mixed,
+                            start, chunks.get(j + 1), first.getAbsoluteOffset(), limit));
+                    limit = first.getAbsoluteOffset();
+                }
+            } else {
+                writers.add(new SectionWriter(barr, interner, i, one,
+                        -1, -1, one.getFileOffset(), limit));
+            }
+            limit = one.getFileOffset();
         }
 
-        return out;
+        ForkJoinPool pool = new ForkJoinPool(writeThreads);
+        try {
+            pool.invoke(new SectionWriters(writers));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes all the given writers, each in its own fork-join task.
+     */
+    private static final class SectionWriters extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SectionWriter> writers;
+
+        SectionWriters(List<SectionWriter> writers) {
+            this.writers = writers;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(writers);
+        }
+    }
+
+    /**
+     * Writes a section, or a run of items of a {@link MixedItemSection},
+     * at its offset in the file.
+     */
+    private static final class SectionWriter extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /** {@code non-null;} array holding the whole file */
+        private final byte[] barr;
+        /** {@code non-null;} interner of the thread writing the file */
+        private final Interner interner;
+        /** index of the section, for error reporting */
+        private final int index;
+        /** {@code non-null;} the section to write */
+        private final Section section;
+        /** index of the first item to write, or {@code -1} for all of them */
+        private final int start;
+        /** index after the last item to write, if {@code start != -1} */
+        private final int end;
+        /** file offset to write at */
+        private final int offset;
+        /** file offset not to write past */
+        private final int limit;
+
+        SectionWriter(byte[] barr, Interner interner, int index, Section section,
+                int start, int end, int offset, int limit) {
+            this.barr = barr;
+            this.interner = interner;
+            this.index = index;
+            this.section = section;
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        @Override
+        protected void compute() {
+            Interner previousInterner = Interner.bind(interner);
+            try {
+                ByteArrayAnnotatedOutput out = new ByteArrayAnnotatedOutput(barr, offset);
+                if (start == -1) {
+                    section.writeTo(out);
+                } else {
+                    ((MixedItemSection) section).writeItemsTo(out, start, end);
+                }
+
+                if (out.getCursor() > limit) {
+                    throw new ExceptionWithContext("excess write of " +
+                            (out.getCursor() - limit));
+                }
+            } catch (RuntimeException ex) {
+                throw ExceptionWithContext.withContext(ex,
+                        "...while writing section " + index);
+            } finally {
+                Interner.bind(previousInterner);
+            }
+        }
     }
 
     /**
@@ -156,6 +156,16 @@ public final class EncodedMethod extends EncodedMember
         return method;
     }
 
+    /**
+     * Gets the code of the method.
+     *
+     * @return {@code null-ok;} the code, or {@code null} if the method is
+     * {@code abstract} or {@code native}
+     */
+    /*package*/ CodeItem getCode() {
+        return code;
+    }
+
     /** {@inheritDoc} */
     @Override
     public int encode(DexFile file, AnnotatedOutput out,
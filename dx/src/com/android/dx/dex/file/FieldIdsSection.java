@@ -20,8 +20,9 @@ import com.android.dx.rop.cst.Constant;
 import com.android.dx.rop.cst.CstFieldRef;
 import com.android.dx.util.AnnotatedOutput;
 import com.android.dx.util.Hex;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Field refs list section of a {@code .dex} file.
@@ -31,7 +32,10 @@ public final class FieldIdsSection extends MemberIdsSection {
      * {@code non-null;} map from field constants to {@link
      * FieldIdItem} instances
      */
-    private final TreeMap<CstFieldRef, FieldIdItem> fieldIds;
+    private final ConcurrentHashMap<CstFieldRef, FieldIdItem> fieldIds;
+
+    /** {@code null-ok;} the items sorted by field, once ordered */
+    private ArrayList<FieldIdItem> sortedFieldIds;
 
     /**
      * Constructs an instance. The file offset is initially unknown.
@@ -41,13 +45,13 @@ public final class FieldIdsSection extends MemberIdsSection {
     public FieldIdsSection(DexFile file) {
         super("field_ids", file);
 
-        fieldIds = new TreeMap<CstFieldRef, FieldIdItem>();
+        fieldIds = new ConcurrentHashMap<CstFieldRef, FieldIdItem>();
     }
 
     /** {@inheritDoc} */
     @Override
     public Collection<? extends Item> items() {
-        return fieldIds.values();
+        return (sortedFieldIds != null) ? sortedFieldIds : fieldIds.values();
     }
 
     /** {@inheritDoc} */
@@ -94,7 +98,7 @@ public final class FieldIdsSection extends MemberIdsSection {
      * @param field {@code non-null;} the reference to intern
      * @return {@code non-null;} the interned reference
      */
-    public synchronized FieldIdItem intern(CstFieldRef field) {
+    public FieldIdItem intern(CstFieldRef field) {
         if (field == null) {
             throw new NullPointerException("field == null");
         }
@@ -105,12 +109,26 @@ public final class FieldIdsSection extends MemberIdsSection {
 
         if (result == null) {
             result = new FieldIdItem(field);
-            fieldIds.put(field, result);
+            FieldIdItem already = fieldIds.putIfAbsent(field, result);
+            if (already != null) {
+                result = already;
+            }
         }
 
         return result;
     }
 
+    /**
+     * Returns whether the given reference has been interned into this
+     * instance.
+     *
+     * @param ref {@code non-null;} the reference to look up
+     * @return whether the reference is interned
+     */
+    /*package*/ boolean contains(CstFieldRef ref) {
+        return fieldIds.containsKey(ref);
+    }
+
     /**
      * Gets the index of the given reference, which must have been added
      * to this instance.
@@ -133,4 +151,11 @@ public final class FieldIdsSection extends MemberIdsSection {
 
         return item.getIndex();
     }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void orderItems() {
+        sortedFieldIds = sortedValues(fieldIds);
+        super.orderItems();
+    }
 }
@@ -60,6 +60,14 @@ public final class MethodHandleItem extends IndexedItem {
     public void addContents(DexFile file) {
         MethodHandlesSection methodHandles = file.getMethodHandles();
         methodHandles.intern(methodHandle);
+
+        // The target may be in the constant pool of the class only.
+        Constant ref = getTargetRef();
+        if (methodHandle.isAccessor()) {
+            file.getFieldIds().intern((CstFieldRef) ref);
+        } else {
+            file.getMethodIds().intern((CstBaseMethodRef) ref);
+        }
     }
 
     /** {@inheritDoc} */
@@ -87,16 +95,31 @@ public final class MethodHandleItem extends IndexedItem {
     }
 
     private int getTargetIndex(DexFile file) {
-        Constant ref = methodHandle.getRef();
+        Constant ref = getTargetRef();
         if (methodHandle.isAccessor()) {
             FieldIdsSection fieldIds = file.getFieldIds();
             return fieldIds.indexOf((CstFieldRef) ref);
+        } else {
+            MethodIdsSection methodIds = file.getMethodIds();
+            return methodIds.indexOf((CstBaseMethodRef) ref);
+        }
+    }
+
+    /**
+     * Gets the field or method that the method handle refers to, as it is
+     * interned in the field or method ids.
+     *
+     * @return {@code non-null;} the field or method
+     */
+    private Constant getTargetRef() {
+        Constant ref = methodHandle.getRef();
+        if (methodHandle.isAccessor()) {
+            return ref;
         } else if (methodHandle.isInvocation()) {
             if (ref instanceof CstInterfaceMethodRef) {
                 ref = ((CstInterfaceMethodRef)ref).toMethodRef();
             }
-            MethodIdsSection methodIds = file.getMethodIds();
-            return methodIds.indexOf((CstBaseMethodRef) ref);
+            return ref;
         } else {
             throw new IllegalStateException("Unhandled invocation type");
         }
@@ -20,8 +20,9 @@ import com.android.dx.rop.cst.Constant;
 import com.android.dx.rop.cst.CstBaseMethodRef;
 import com.android.dx.util.AnnotatedOutput;
 import com.android.dx.util.Hex;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Method refs list section of a {@code .dex} file.
@@ -31,7 +32,10 @@ public final class MethodIdsSection extends MemberIdsSection {
      * {@code non-null;} map from method constants to {@link
      * MethodIdItem} instances
      */
-    private final TreeMap<CstBaseMethodRef, MethodIdItem> methodIds;
+    private final ConcurrentHashMap<CstBaseMethodRef, MethodIdItem> methodIds;
+
+    /** {@code null-ok;} the items sorted by method, once ordered */
+    private ArrayList<MethodIdItem> sortedMethodIds;
 
     /**
      * Constructs an instance. The file offset is initially unknown.
@@ -41,13 +45,13 @@ public final class MethodIdsSection extends MemberIdsSection {
     public MethodIdsSection(DexFile file) {
         super("method_ids", file);
 
-        methodIds = new TreeMap<CstBaseMethodRef, MethodIdItem>();
+        methodIds = new ConcurrentHashMap<CstBaseMethodRef, MethodIdItem>();
     }
 
     /** {@inheritDoc} */
     @Override
     public Collection<? extends Item> items() {
-        return methodIds.values();
+        return (sortedMethodIds != null) ? sortedMethodIds : methodIds.values();
     }
 
     /** {@inheritDoc} */
@@ -94,7 +98,7 @@ public final class MethodIdsSection extends MemberIdsSection {
      * @param method {@code non-null;} the reference to intern
      * @return {@code non-null;} the interned reference
      */
-    public synchronized MethodIdItem intern(CstBaseMethodRef method) {
+    public MethodIdItem intern(CstBaseMethodRef method) {
         if (method == null) {
             throw new NullPointerException("method == null");
         }
@@ -105,12 +109,26 @@ public final class MethodIdsSection extends MemberIdsSection {
 
         if (result == null) {
             result = new MethodIdItem(method);
-            methodIds.put(method, result);
+            MethodIdItem already = methodIds.putIfAbsent(method, result);
+            if (already != null) {
+                result = already;
+            }
         }
 
         return result;
     }
 
+    /**
+     * Returns whether the given reference has been interned into this
+     * instance.
+     *
+     * @param ref {@code non-null;} the reference to look up
+     * @return whether the reference is interned
+     */
+    /*package*/ boolean contains(CstBaseMethodRef ref) {
+        return methodIds.containsKey(ref);
+    }
+
     /**
      * Gets the index of the given reference, which must have been added
      * to this instance.
@@ -133,4 +151,11 @@ public final class MethodIdsSection extends MemberIdsSection {
 
         return item.getIndex();
     }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void orderItems() {
+        sortedMethodIds = sortedValues(methodIds);
+        super.orderItems();
+    }
 }
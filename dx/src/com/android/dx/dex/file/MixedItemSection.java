@@ -19,15 +19,16 @@ package com.android.dx.dex.file;
 import com.android.dex.util.ExceptionWithContext;
 import com.android.dx.util.AnnotatedOutput;
 import com.android.dx.util.Hex;
+import com.android.dx.util.IntList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A section of a {@code .dex} file which consists of a sequence of
@@ -64,7 +65,7 @@ public final class MixedItemSection extends Section {
     private final ArrayList<OffsettedItem> items;
 
     /** {@code non-null;} items that have been explicitly interned */
-    private final HashMap<OffsettedItem, OffsettedItem> interns;
+    private final ConcurrentHashMap<OffsettedItem, OffsettedItem> interns;
 
     /** {@code non-null;} how to sort the items */
     private final SortType sort;
@@ -90,7 +91,7 @@ public final class MixedItemSection extends Section {
         super(name, file, alignment);
 
         this.items = new ArrayList<OffsettedItem>(100);
-        this.interns = new HashMap<OffsettedItem, OffsettedItem>(100);
+        this.interns = new ConcurrentHashMap<OffsettedItem, OffsettedItem>(100);
         this.sort = sort;
         this.writeSize = -1;
     }
@@ -124,6 +125,16 @@ public final class MixedItemSection extends Section {
         return items.size();
     }
 
+    /**
+     * Gets the item at the given index.
+     *
+     * @param n {@code >= 0, < size();} which item
+     * @return {@code non-null;} the item
+     */
+    public OffsettedItem getItem(int n) {
+        return items.get(n);
+    }
+
     /**
      * Writes the portion of the file header that refers to this instance.
      *
@@ -179,7 +190,9 @@ public final class MixedItemSection extends Section {
             throw new NullPointerException("item == null");
         }
 
-        items.add(item);
+        synchronized (items) {
+            items.add(item);
+        }
     }
 
     /**
@@ -190,17 +203,20 @@ public final class MixedItemSection extends Section {
      * @param item {@code non-null;} the item to intern
      * @return {@code non-null;} the equivalent interned instance
      */
-    public synchronized <T extends OffsettedItem> T intern(T item) {
+    public <T extends OffsettedItem> T intern(T item) {
         throwIfPrepared();
 
         OffsettedItem result = interns.get(item);
 
+        if (result == null) {
+            result = interns.putIfAbsent(item, item);
+        }
+
         if (result != null) {
             return (T) result;
         }
 
         add(item);
-        interns.put(item, item);
         return item;
     }
 
@@ -326,6 +342,55 @@ public final class MixedItemSection extends Section {
         writeSize = outAt;
     }
 
+    /**
+     * Splits the items of this instance into runs of consecutive items,
+     * each about {@code chunkSize} bytes long, so that they can be
+     * written concurrently. This may only be called after
+     * {@link #placeItems}.
+     *
+     * @param chunkSize {@code > 0;} desired size of each run, in bytes
+     * @return {@code non-null;} the index of the first item of each run,
+     * followed by the number of items
+     */
+    /*package*/ IntList chunkItems(int chunkSize) {
+        if (writeSize == -1) {
+            throw new RuntimeException("write size not yet set");
+        }
+
+        IntList result = new IntList();
+        int sz = items.size();
+        int chunkStart = 0;
+
+        for (int i = 0; i < sz; i++) {
+            int at = items.get(i).getRelativeOffset();
+            if (i == 0 || at - chunkStart >= chunkSize) {
+                result.add(i);
+                chunkStart = at;
+            }
+        }
+
+        result.add(sz);
+        return result;
+    }
+
+    /**
+     * Writes a run of consecutive items of this instance. The output
+     * must be at the offset of the first of them. Unlike
+     * {@link #writeTo}, this writes neither the alignment of this
+     * instance, nor the padding after the last item.
+     *
+     * @param out {@code non-null;} where to write to
+     * @param start {@code >= 0;} index of the first item to write
+     * @param end {@code >= start;} index after the last item to write
+     */
+    /*package*/ void writeItemsTo(AnnotatedOutput out, int start, int end) {
+        DexFile file = getFile();
+
+        for (int i = start; i < end; i++) {
+            items.get(i).writeTo(file, out);
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void writeTo0(AnnotatedOutput out) {
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.dex.file;
+
+import com.android.dex.DexIndexOverflowException;
+import com.android.dx.rop.cst.CstBaseMethodRef;
+import com.android.dx.rop.cst.CstFieldRef;
+import com.android.dx.rop.type.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Lays out the classes of a multi-dex build once they are all translated,
+ * instead of filling one dex file after the other in input order.
+ *
+ * <p>The classes are first laid out one dex file after the other in the
+ * order of their names, which keeps the classes of a package together and
+ * makes the layout depend only on the set of classes. Then each class
+ * moves to the dex file that already holds most of the method, field and
+ * type ids and of the strings it refers to, among those it fits in, so
+ * that fewer ids are repeated across dex files, and the classes of the
+ * smallest dex file are spread over the others while they fit. The
+ * classes of the main dex list all go to the first dex file.</p>
+ */
+public final class PackedDexLayout {
+    /** the most times classes are moved between dex files */
+    private static final int MAX_PASSES = 8;
+
+    /** the number of ids each section of a dex file may hold */
+    private final int maxIds;
+
+    /** {@code non-null;} the classes of the main dex list, in input order */
+    private final List<Entry> mainDexClasses = new ArrayList<Entry>();
+
+    /** {@code non-null;} the other classes, in input order */
+    private final List<Entry> classes = new ArrayList<Entry>();
+
+    /**
+     * Constructs an instance.
+     *
+     * @param maxIds the number of method, field and type ids each dex file
+     * may hold
+     */
+    public PackedDexLayout(int maxIds) {
+        this.maxIds = maxIds;
+    }
+
+    /**
+     * Adds a class to lay out.
+     *
+     * @param clazz {@code non-null;} the class
+     * @param ids {@code non-null;} the ids of the class
+     * @param mainDex whether the class must be in the first dex file
+     */
+    public void add(ClassDefItem clazz, ClassIds ids, boolean mainDex) {
+        Entry entry = new Entry(clazz, ids);
+        if (mainDex) {
+            mainDexClasses.add(entry);
+        } else {
+            classes.add(entry);
+        }
+    }
+
+    /**
+     * Lays out the classes added so far.
+     *
+     * @param minimalMainDex whether the first dex file holds only the
+     * classes of the main dex list
+     * @return {@code non-null;} the classes of each dex file
+     * @throws DexIndexOverflowException if the classes of the main dex list
+     * don't fit in one dex file
+     */
+    public List<List<ClassDefItem>> plan(boolean minimalMainDex) {
+        List<Bin> bins = new ArrayList<Bin>();
+        Bin first = new Bin();
+        bins.add(first);
+
+        for (Entry entry : mainDexClasses) {
+            if (!first.fits(entry.ids, maxIds)) {
+                throw new DexIndexOverflowException("Too many classes in the main dex list:"
+                        + " the ids of " + entry.clazz.getThisClass().toHuman()
+                        + " don't fit in the first dex");
+            }
+            first.add(entry);
+        }
+
+        int firstOpen = 0;
+        if (minimalMainDex && !mainDexClasses.isEmpty()) {
+            bins.add(new Bin());
+            firstOpen = 1;
+        }
+
+        List<Entry> sorted = new ArrayList<Entry>(classes);
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.clazz.getThisClass().compareTo(b.clazz.getThisClass());
+            }
+        });
+
+        // Fill the dex files one after the other, which already keeps the
+        // classes of a package together.
+        Bin last = bins.get(bins.size() - 1);
+        for (Entry entry : sorted) {
+            if (!last.fits(entry.ids, maxIds) && !last.entries.isEmpty()) {
+                // A class that doesn't fit in an empty dex file fails when
+                // the dex file is written.
+                last = new Bin();
+                bins.add(last);
+            }
+            last.add(entry);
+        }
+
+        refine(bins, sorted, firstOpen);
+
+        // Then try to spread the classes of the dex file with the fewest
+        // ids over the others, until one of them doesn't fit.
+        while (bins.size() - firstOpen > 1) {
+            Bin smallest = null;
+            for (int i = firstOpen; i < bins.size(); i++) {
+                Bin bin = bins.get(i);
+                if (smallest == null || bin.size() < smallest.size()) {
+                    smallest = bin;
+                }
+            }
+            if (!spread(smallest, bins, firstOpen)) {
+                break;
+            }
+            bins.remove(smallest);
+            refine(bins, sorted, firstOpen);
+        }
+
+        List<List<ClassDefItem>> result = new ArrayList<List<ClassDefItem>>(bins.size());
+        for (Bin bin : bins) {
+            if (bin.entries.isEmpty()) {
+                continue;
+            }
+            List<ClassDefItem> dex = new ArrayList<ClassDefItem>(bin.entries.size());
+            for (Entry entry : bin.entries) {
+                dex.add(entry.clazz);
+            }
+            result.add(dex);
+        }
+        return result;
+    }
+
+    /**
+     * Moves classes to the dex file that shares the most with them, for as
+     * long as that removes more ids than it adds.
+     */
+    private void refine(List<Bin> bins, List<Entry> entries, int firstOpen) {
+        for (int pass = 0; pass < MAX_PASSES; pass++) {
+            boolean moved = false;
+            for (Entry entry : entries) {
+                Bin from = entry.bin;
+                int removed = from.countOwn(entry.ids);
+                Bin best = null;
+                int bestGain = 0;
+                for (int i = firstOpen; i < bins.size(); i++) {
+                    Bin to = bins.get(i);
+                    if (to == from || !to.fits(entry.ids, maxIds)) {
+                        continue;
+                    }
+                    int gain = removed - to.countNew(entry.ids);
+                    if (gain > bestGain) {
+                        best = to;
+                        bestGain = gain;
+                    }
+                }
+                if (best != null) {
+                    from.remove(entry);
+                    best.add(entry);
+                    moved = true;
+                }
+            }
+            if (!moved) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves all the classes of {@code from} to the other dex files, each to
+     * the one it adds the fewest ids to, or none of them if one doesn't fit.
+     *
+     * @return whether the classes were moved
+     */
+    private boolean spread(Bin from, List<Bin> bins, int firstOpen) {
+        List<Entry> moved = new ArrayList<Entry>(from.entries);
+        for (int m = 0; m < moved.size(); m++) {
+            Entry entry = moved.get(m);
+            Bin best = null;
+            int bestCost = Integer.MAX_VALUE;
+            for (int i = firstOpen; i < bins.size(); i++) {
+                Bin to = bins.get(i);
+                if (to == from || !to.fits(entry.ids, maxIds)) {
+                    continue;
+                }
+                int cost = to.countNew(entry.ids);
+                if (cost < bestCost) {
+                    best = to;
+                    bestCost = cost;
+                }
+            }
+            if (best == null) {
+                for (int undo = m - 1; undo >= 0; undo--) {
+                    Entry back = moved.get(undo);
+                    back.bin.remove(back);
+                    from.add(back);
+                }
+                return false;
+            }
+            from.remove(entry);
+            best.add(entry);
+        }
+        return true;
+    }
+
+    /**
+     * A class to lay out.
+     */
+    private static final class Entry {
+        final ClassDefItem clazz;
+        final ClassIds ids;
+
+        /** {@code null-ok;} the dex file the class is in */
+        Bin bin;
+
+        Entry(ClassDefItem clazz, ClassIds ids) {
+            this.clazz = clazz;
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * A dex file being laid out. It counts how many of its classes refer
+     * to each id, so that moving a class out of it knows which ids go.
+     */
+    private static final class Bin {
+        final HashMap<CstBaseMethodRef, int[]> methods = new HashMap<CstBaseMethodRef, int[]>();
+        final HashMap<CstFieldRef, int[]> fields = new HashMap<CstFieldRef, int[]>();
+        final HashMap<Type, int[]> types = new HashMap<Type, int[]>();
+        final HashMap<String, int[]> strings = new HashMap<String, int[]>();
+
+        /** {@code non-null;} the classes, in the order they were added */
+        final LinkedHashSet<Entry> entries = new LinkedHashSet<Entry>();
+
+        /**
+         * Returns whether the ids of a class fit in this dex file.
+         */
+        boolean fits(ClassIds ids, int maxIds) {
+            return methods.size() + countNew(ids.methods, methods) <= maxIds
+                    && fields.size() + countNew(ids.fields, fields) <= maxIds
+                    && types.size() + countNew(ids.types, types) <= maxIds;
+        }
+
+        /**
+         * Returns the number of ids and strings that adding a class would
+         * add to this dex file.
+         */
+        int countNew(ClassIds ids) {
+            return countNew(ids.methods, methods) + countNew(ids.fields, fields)
+                    + countNew(ids.types, types) + countNew(ids.strings, strings);
+        }
+
+        /**
+         * Returns the number of ids and strings that removing a class of
+         * this dex file would remove from it.
+         */
+        int countOwn(ClassIds ids) {
+            return countOwn(ids.methods, methods) + countOwn(ids.fields, fields)
+                    + countOwn(ids.types, types) + countOwn(ids.strings, strings);
+        }
+
+        /**
+         * Returns the number of method, field and type ids of this dex file.
+         */
+        int size() {
+            return methods.size() + fields.size() + types.size();
+        }
+
+        void add(Entry entry) {
+            add(entry.ids.methods, methods);
+            add(entry.ids.fields, fields);
+            add(entry.ids.types, types);
+            add(entry.ids.strings, strings);
+            entries.add(entry);
+            entry.bin = this;
+        }
+
+        void remove(Entry entry) {
+            remove(entry.ids.methods, methods);
+            remove(entry.ids.fields, fields);
+            remove(entry.ids.types, types);
+            remove(entry.ids.strings, strings);
+            entries.remove(entry);
+            entry.bin = null;
+        }
+
+        private static <T> int countNew(HashSet<T> ids, HashMap<T, int[]> in) {
+            int result = 0;
+            for (T id : ids) {
+                if (!in.containsKey(id)) {
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        private static <T> int countOwn(HashSet<T> ids, HashMap<T, int[]> in) {
+            int result = 0;
+            for (T id : ids) {
+                if (in.get(id)[0] == 1) {
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        private static <T> void add(HashSet<T> ids, HashMap<T, int[]> to) {
+            for (T id : ids) {
+                int[] count = to.get(id);
+                if (count == null) {
+                    to.put(id, new int[] { 1 });
+                } else {
+                    count[0]++;
+                }
+            }
+        }
+
+        private static <T> void remove(HashSet<T> ids, HashMap<T, int[]> from) {
+            for (T id : ids) {
+                if (--from.get(id)[0] == 0) {
+                    from.remove(id);
+                }
+            }
+        }
+    }
+}
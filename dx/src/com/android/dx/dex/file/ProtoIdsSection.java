@@ -21,8 +21,9 @@ import com.android.dx.rop.cst.CstProtoRef;
 import com.android.dx.rop.type.Prototype;
 import com.android.dx.util.AnnotatedOutput;
 import com.android.dx.util.Hex;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Proto (method prototype) identifiers list section of a
@@ -32,7 +33,10 @@ public final class ProtoIdsSection extends UniformItemSection {
     /**
      * {@code non-null;} map from method prototypes to {@link ProtoIdItem} instances
      */
-    private final TreeMap<Prototype, ProtoIdItem> protoIds;
+    private final ConcurrentHashMap<Prototype, ProtoIdItem> protoIds;
+
+    /** {@code null-ok;} the items sorted by prototype, once ordered */
+    private ArrayList<ProtoIdItem> sortedProtoIds;
 
     /**
      * Constructs an instance. The file offset is initially unknown.
@@ -42,13 +46,13 @@ public final class ProtoIdsSection extends UniformItemSection {
     public ProtoIdsSection(DexFile file) {
         super("proto_ids", file, 4);
 
-        protoIds = new TreeMap<Prototype, ProtoIdItem>();
+        protoIds = new ConcurrentHashMap<Prototype, ProtoIdItem>();
     }
 
     /** {@inheritDoc} */
     @Override
     public Collection<? extends Item> items() {
-        return protoIds.values();
+        return (sortedProtoIds != null) ? sortedProtoIds : protoIds.values();
     }
 
     /** {@inheritDoc} */
@@ -102,7 +106,7 @@ public final class ProtoIdsSection extends UniformItemSection {
      * @param prototype {@code non-null;} the prototype to intern
      * @return {@code non-null;} the interned reference
      */
-    public synchronized ProtoIdItem intern(Prototype prototype) {
+    public ProtoIdItem intern(Prototype prototype) {
         if (prototype == null) {
             throw new NullPointerException("prototype == null");
         }
@@ -113,7 +117,10 @@ public final class ProtoIdsSection extends UniformItemSection {
 
         if (result == null) {
             result = new ProtoIdItem(prototype);
-            protoIds.put(prototype, result);
+            ProtoIdItem already = protoIds.putIfAbsent(prototype, result);
+            if (already != null) {
+                result = already;
+            }
         }
 
         return result;
@@ -147,8 +154,9 @@ public final class ProtoIdsSection extends UniformItemSection {
     protected void orderItems() {
         int idx = 0;
 
-        for (Object i : items()) {
-            ((ProtoIdItem) i).setIndex(idx);
+        sortedProtoIds = sortedValues(protoIds);
+        for (ProtoIdItem i : sortedProtoIds) {
+            i.setIndex(idx);
             idx++;
         }
     }
@@ -21,8 +21,9 @@ import com.android.dx.rop.cst.CstNat;
 import com.android.dx.rop.cst.CstString;
 import com.android.dx.util.AnnotatedOutput;
 import com.android.dx.util.Hex;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Strings list section of a {@code .dex} file.
@@ -33,7 +34,10 @@ public final class StringIdsSection
      * {@code non-null;} map from string constants to {@link
      * StringIdItem} instances
      */
-    private final TreeMap<CstString, StringIdItem> strings;
+    private final ConcurrentHashMap<CstString, StringIdItem> strings;
+
+    /** {@code null-ok;} the items sorted by string, once ordered */
+    private ArrayList<StringIdItem> sortedStrings;
 
     /**
      * Constructs an instance. The file offset is initially unknown.
@@ -43,13 +47,13 @@ public final class StringIdsSection
     public StringIdsSection(DexFile file) {
         super("string_ids", file, 4);
 
-        strings = new TreeMap<CstString, StringIdItem>();
+        strings = new ConcurrentHashMap<CstString, StringIdItem>();
     }
 
     /** {@inheritDoc} */
     @Override
     public Collection<? extends Item> items() {
-        return strings.values();
+        return (sortedStrings != null) ? sortedStrings : strings.values();
     }
 
     /** {@inheritDoc} */
@@ -117,22 +121,15 @@ public final class StringIdsSection
      * @param string {@code non-null;} the string to intern
      * @return {@code non-null;} the interned string
      */
-    public synchronized StringIdItem intern(StringIdItem string) {
+    public StringIdItem intern(StringIdItem string) {
         if (string == null) {
             throw new NullPointerException("string == null");
         }
 
         throwIfPrepared();
 
-        CstString value = string.getValue();
-        StringIdItem already = strings.get(value);
-
-        if (already != null) {
-            return already;
-        }
-
-        strings.put(value, string);
-        return string;
+        StringIdItem already = strings.putIfAbsent(string.getValue(), string);
+        return (already != null) ? already : string;
     }
 
     /**
@@ -140,7 +137,7 @@ public final class StringIdsSection
      *
      * @param nat {@code non-null;} the name-and-type
      */
-    public synchronized void intern(CstNat nat) {
+    public void intern(CstNat nat) {
         intern(nat.getName());
         intern(nat.getDescriptor());
     }
@@ -173,7 +170,8 @@ public final class StringIdsSection
     protected void orderItems() {
         int idx = 0;
 
-        for (StringIdItem s : strings.values()) {
+        sortedStrings = sortedValues(strings);
+        for (StringIdItem s : sortedStrings) {
             s.setIndex(idx);
             idx++;
         }
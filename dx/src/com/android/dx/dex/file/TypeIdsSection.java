@@ -23,8 +23,9 @@ import com.android.dx.rop.cst.CstType;
 import com.android.dx.rop.type.Type;
 import com.android.dx.util.AnnotatedOutput;
 import com.android.dx.util.Hex;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Type identifiers list section of a {@code .dex} file.
@@ -33,7 +34,10 @@ public final class TypeIdsSection extends UniformItemSection {
     /**
      * {@code non-null;} map from types to {@link TypeIdItem} instances
      */
-    private final TreeMap<Type, TypeIdItem> typeIds;
+    private final ConcurrentHashMap<Type, TypeIdItem> typeIds;
+
+    /** {@code null-ok;} the items sorted by type, once ordered */
+    private ArrayList<TypeIdItem> sortedTypeIds;
 
     /**
      * Constructs an instance. The file offset is initially unknown.
@@ -43,13 +47,13 @@ public final class TypeIdsSection extends UniformItemSection {
     public TypeIdsSection(DexFile file) {
         super("type_ids", file, 4);
 
-        typeIds = new TreeMap<Type, TypeIdItem>();
+        typeIds = new ConcurrentHashMap<Type, TypeIdItem>();
     }
 
     /** {@inheritDoc} */
     @Override
     public Collection<? extends Item> items() {
-        return typeIds.values();
+        return (sortedTypeIds != null) ? sortedTypeIds : typeIds.values();
     }
 
     /** {@inheritDoc} */
@@ -105,7 +109,7 @@ public final class TypeIdsSection extends UniformItemSection {
      * @param type {@code non-null;} the type to intern
      * @return {@code non-null;} the interned reference
      */
-    public synchronized TypeIdItem intern(Type type) {
+    public TypeIdItem intern(Type type) {
         if (type == null) {
             throw new NullPointerException("type == null");
         }
@@ -116,7 +120,10 @@ public final class TypeIdsSection extends UniformItemSection {
 
         if (result == null) {
             result = new TypeIdItem(new CstType(type));
-            typeIds.put(type, result);
+            TypeIdItem already = typeIds.putIfAbsent(type, result);
+            if (already != null) {
+                result = already;
+            }
         }
 
         return result;
@@ -128,7 +135,7 @@ public final class TypeIdsSection extends UniformItemSection {
      * @param type {@code non-null;} the type to intern
      * @return {@code non-null;} the interned reference
      */
-    public synchronized TypeIdItem intern(CstType type) {
+    public TypeIdItem intern(CstType type) {
         if (type == null) {
             throw new NullPointerException("type == null");
         }
@@ -140,12 +147,25 @@ public final class TypeIdsSection extends UniformItemSection {
 
         if (result == null) {
             result = new TypeIdItem(type);
-            typeIds.put(typePerSe, result);
+            TypeIdItem already = typeIds.putIfAbsent(typePerSe, result);
+            if (already != null) {
+                result = already;
+            }
         }
 
         return result;
     }
 
+    /**
+     * Returns whether the given type has been interned into this instance.
+     *
+     * @param type {@code non-null;} the type to look up
+     * @return whether the type is interned
+     */
+    /*package*/ boolean contains(Type type) {
+        return typeIds.containsKey(type);
+    }
+
     /**
      * Gets the index of the given type, which must have
      * been added to this instance.
@@ -189,8 +209,9 @@ public final class TypeIdsSection extends UniformItemSection {
     protected void orderItems() {
         int idx = 0;
 
-        for (Object i : items()) {
-            ((TypeIdItem) i).setIndex(idx);
+        sortedTypeIds = sortedValues(typeIds);
+        for (TypeIdItem i : sortedTypeIds) {
+            i.setIndex(idx);
             idx++;
         }
     }
@@ -18,7 +18,11 @@ package com.android.dx.dex.file;
 
 import com.android.dx.rop.cst.Constant;
 import com.android.dx.util.AnnotatedOutput;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
 
 /**
  * A section of a {@code .dex} file which consists of a sequence of
@@ -108,4 +112,30 @@ public abstract class UniformItemSection extends Section {
      * then this method should also assign indices.
      */
     protected abstract void orderItems();
+
+    /**
+     * Gets the values of the given map, sorted by key. Sections that
+     * intern items while classes are being translated keep them in a
+     * concurrent hash map, so that translator threads don't contend on
+     * a lock, and use this to sort them once, in {@link #orderItems}.
+     *
+     * @param map {@code non-null;} the map
+     * @return {@code non-null;} the values of {@code map}, sorted by key
+     */
+    /*package*/ static <K extends Comparable<? super K>, V> ArrayList<V> sortedValues(
+            Map<K, V> map) {
+        ArrayList<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(map.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<K, V>>() {
+            @Override
+            public int compare(Map.Entry<K, V> a, Map.Entry<K, V> b) {
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+
+        ArrayList<V> result = new ArrayList<V>(entries.size());
+        for (Map.Entry<K, V> entry : entries) {
+            result.add(entry.getValue());
+        }
+        return result;
+    }
 }
@@ -476,6 +476,14 @@ public abstract class DecodedInstruction {
      */
     public abstract DecodedInstruction withIndex(int newIndex);
 
+    /**
+     * Returns an instance just like this one, except with the target replaced
+     * with the given one.
+     */
+    public DecodedInstruction withTarget(int newTarget) {
+        throw new IllegalStateException(getClass().toString());
+    }
+
     /** Update the instruction with a new 45cc or 4rcc proto index. */
     public DecodedInstruction withProtoIndex(int newIndex, int newProtoIndex) {
         throw new IllegalStateException(getClass().toString());
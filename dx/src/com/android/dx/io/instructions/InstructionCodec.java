@@ -29,7 +29,7 @@ import java.util.Arrays;
  * and encode from instances of {@link DecodedInstruction}.
  */
 public enum InstructionCodec {
-    FORMAT_00X() {
+    FORMAT_00X(1) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -44,7 +44,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_10X() {
+    FORMAT_10X(1) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -61,7 +61,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_12X() {
+    FORMAT_12X(1) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -82,7 +82,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_11N() {
+    FORMAT_11N(1) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -103,7 +103,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_11X() {
+    FORMAT_11X(1) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -121,7 +121,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_10T() {
+    FORMAT_10T(1) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -140,7 +140,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_20T() {
+    FORMAT_20T(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -160,7 +160,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_20BC() {
+    FORMAT_20BC(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -181,7 +181,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_22X() {
+    FORMAT_22X(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -202,7 +202,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_21T() {
+    FORMAT_21T(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -223,7 +223,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_21S() {
+    FORMAT_21S(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -244,7 +244,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_21H() {
+    FORMAT_21H(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -276,7 +276,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_21C() {
+    FORMAT_21C(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -298,7 +298,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_23X() {
+    FORMAT_23X(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -321,7 +321,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_22B() {
+    FORMAT_22B(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -345,7 +345,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_22T() {
+    FORMAT_22T(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -370,7 +370,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_22S() {
+    FORMAT_22S(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -393,7 +393,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_22C() {
+    FORMAT_22C(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -417,7 +417,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_22CS() {
+    FORMAT_22CS(2) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -440,7 +440,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_30T() {
+    FORMAT_30T(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -461,7 +461,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_32X() {
+    FORMAT_32X(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -481,7 +481,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_31I() {
+    FORMAT_31I(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -504,7 +504,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_31T() {
+    FORMAT_31T(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -515,12 +515,13 @@ public enum InstructionCodec {
 
             /*
              * Switch instructions need to "forward" their addresses to their
-             * payload target instructions.
+             * payload target instructions. The payload looks its base
+             * address up once its opcode unit has been read.
              */
             switch (opcode) {
                 case Opcodes.PACKED_SWITCH:
                 case Opcodes.SPARSE_SWITCH: {
-                    in.setBaseAddress(target, baseAddress);
+                    in.setBaseAddress(target + 1, baseAddress + 1);
                     break;
                 }
                 default: // fall out
@@ -541,7 +542,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_31C() {
+    FORMAT_31C(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -565,7 +566,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_35C() {
+    FORMAT_35C(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -578,7 +579,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_35MS() {
+    FORMAT_35MS(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -591,7 +592,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_35MI() {
+    FORMAT_35MI(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -604,7 +605,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_3RC() {
+    FORMAT_3RC(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -617,7 +618,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_3RMS() {
+    FORMAT_3RMS(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -630,7 +631,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_3RMI() {
+    FORMAT_3RMI(3) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -643,7 +644,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_51L() {
+    FORMAT_51L(5) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -668,7 +669,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_45CC() {
+    FORMAT_45CC(4) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -712,7 +713,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_4RCC() {
+    FORMAT_4RCC(4) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -743,7 +744,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_PACKED_SWITCH_PAYLOAD() {
+    FORMAT_PACKED_SWITCH_PAYLOAD(0) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -777,7 +778,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_SPARSE_SWITCH_PAYLOAD() {
+    FORMAT_SPARSE_SWITCH_PAYLOAD(0) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -819,7 +820,7 @@ public enum InstructionCodec {
         }
     },
 
-    FORMAT_FILL_ARRAY_DATA_PAYLOAD() {
+    FORMAT_FILL_ARRAY_DATA_PAYLOAD(0) {
         @Override
         public DecodedInstruction decode(int opcodeUnit,
                 CodeInput in) throws EOFException {
@@ -895,6 +896,53 @@ public enum InstructionCodec {
         }
     };
 
+    /**
+     * number of code units of the instructions of this format, or {@code 0}
+     * for the payload formats, whose size depends on their contents
+     */
+    private final int codeUnitCount;
+
+    private InstructionCodec(int codeUnitCount) {
+        this.codeUnitCount = codeUnitCount;
+    }
+
+    /**
+     * Gets the number of code units of the instruction of this format at
+     * {@code offset} in {@code code}, without decoding it.
+     */
+    public int codeUnitCount(short[] code, int offset) {
+        if (codeUnitCount != 0) {
+            return codeUnitCount;
+        }
+
+        try {
+            switch (this) {
+                case FORMAT_PACKED_SWITCH_PAYLOAD: {
+                    int size = code[offset + 1] & 0xffff;
+                    return 4 + size * 2;
+                }
+                case FORMAT_SPARSE_SWITCH_PAYLOAD: {
+                    int size = code[offset + 1] & 0xffff;
+                    return 2 + size * 4;
+                }
+                case FORMAT_FILL_ARRAY_DATA_PAYLOAD: {
+                    int elementWidth = code[offset + 1] & 0xffff;
+                    long size = (code[offset + 2] & 0xffff)
+                            | ((long) (code[offset + 3] & 0xffff) << 16);
+                    long byteCount = size * elementWidth;
+                    if (byteCount > Integer.MAX_VALUE) {
+                        throw new DexException("bogus fill-array-data size: " + size);
+                    }
+                    return 4 + (int) ((byteCount + 1) / 2);
+                }
+                default:
+                    throw new AssertionError(this);
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new DexException(new EOFException());
+        }
+    }
+
     /**
      * Decodes an instruction specified by the given opcode unit, reading
      * any required additional code units from the given input source.
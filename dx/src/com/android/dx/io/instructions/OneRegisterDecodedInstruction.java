@@ -55,4 +55,12 @@ public final class OneRegisterDecodedInstruction extends DecodedInstruction {
                 getFormat(), getOpcode(), newIndex, getIndexType(),
                 getTarget(), getLiteral(), a);
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public DecodedInstruction withTarget(int newTarget) {
+        return new OneRegisterDecodedInstruction(
+                getFormat(), getOpcode(), getIndex(), getIndexType(),
+                newTarget, getLiteral(), a);
+    }
 }
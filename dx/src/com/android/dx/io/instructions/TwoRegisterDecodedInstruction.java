@@ -65,4 +65,12 @@ public final class TwoRegisterDecodedInstruction extends DecodedInstruction {
                 getFormat(), getOpcode(), newIndex, getIndexType(),
                 getTarget(), getLiteral(), a, b);
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public DecodedInstruction withTarget(int newTarget) {
+        return new TwoRegisterDecodedInstruction(
+                getFormat(), getOpcode(), getIndex(), getIndexType(),
+                newTarget, getLiteral(), a, b);
+    }
 }
@@ -43,4 +43,12 @@ public final class ZeroRegisterDecodedInstruction extends DecodedInstruction {
                 getFormat(), getOpcode(), newIndex, getIndexType(),
                 getTarget(), getLiteral());
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public DecodedInstruction withTarget(int newTarget) {
+        return new ZeroRegisterDecodedInstruction(
+                getFormat(), getOpcode(), getIndex(), getIndexType(),
+                newTarget, getLiteral());
+    }
 }
@@ -25,6 +25,7 @@ import com.android.dex.Dex;
 import com.android.dex.DexException;
 import com.android.dex.DexIndexOverflowException;
 import com.android.dex.FieldId;
+import com.android.dex.Leb128;
 import com.android.dex.MethodHandle;
 import com.android.dex.MethodId;
 import com.android.dex.ProtoId;
@@ -32,9 +33,15 @@ import com.android.dex.SizeOf;
 import com.android.dex.TableOfContents;
 import com.android.dex.TypeList;
 import com.android.dx.command.dexer.DxContext;
+import com.android.dx.merge.InstructionTransformer.WidenedCode;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
 
 /**
  * Combine two dex files into one.
@@ -43,19 +50,24 @@ public final class DexMerger {
     private final Dex[] dexes;
     private final IndexMap[] indexMaps;
 
+    /**
+     * {@code null-ok;} the items of each dex to merge, or null to merge all
+     * of them
+     */
+    private final ReferencedItems[] referencedItems;
+
     private final CollisionPolicy collisionPolicy;
     private final DxContext context;
-    private final WriterSizes writerSizes;
 
+    /**
+     * The merged sections, laid out with pessimistic sizes. The result is
+     * a compacted copy, see {@link #compact}.
+     */
     private final Dex dexOut;
 
-    private final Dex.Section headerOut;
-
     /** All IDs and definitions sections */
     private final Dex.Section idsDefsOut;
 
-    private final Dex.Section mapListOut;
-
     private final Dex.Section typeListOut;
 
     private final Dex.Section classDataOut;
@@ -84,21 +96,37 @@ public final class DexMerger {
 
     private final InstructionTransformer instructionTransformer;
 
-    /** minimum number of wasted bytes before it's worthwhile to compact the result */
-    private int compactWasteThreshold = 1024 * 1024; // 1MiB
+    /** number of threads of a merge, see {@link #setThreadCount} */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * {@code null-ok;} the pool that runs the tasks forked during a merge,
+     * or null to run each task when it is joined
+     */
+    private ExecutorService executor;
 
     public DexMerger(Dex[] dexes, CollisionPolicy collisionPolicy, DxContext context)
             throws IOException {
-        this(dexes, collisionPolicy, context, new WriterSizes(dexes));
+        this(dexes, null, collisionPolicy, context);
+    }
+
+    /**
+     * Creates a merger of the classes of {@code referencedItems} only, and of
+     * the items they need.
+     */
+    DexMerger(ReferencedItems[] referencedItems, CollisionPolicy collisionPolicy,
+            DxContext context) throws IOException {
+        this(dexesOf(referencedItems), referencedItems, collisionPolicy, context);
     }
 
-    private DexMerger(Dex[] dexes, CollisionPolicy collisionPolicy, DxContext context,
-            WriterSizes writerSizes) throws IOException {
+    private DexMerger(Dex[] dexes, ReferencedItems[] referencedItems,
+            CollisionPolicy collisionPolicy, DxContext context) throws IOException {
         this.dexes = dexes;
+        this.referencedItems = referencedItems;
         this.collisionPolicy = collisionPolicy;
         this.context = context;
-        this.writerSizes = writerSizes;
 
+        WriterSizes writerSizes = new WriterSizes(dexes);
         dexOut = new Dex(writerSizes.size());
 
         indexMaps = new IndexMap[dexes.length];
@@ -107,87 +135,160 @@ public final class DexMerger {
         }
         instructionTransformer = new InstructionTransformer();
 
-        headerOut = dexOut.appendSection(writerSizes.header, "header");
+        // The header and the map list are only written to the compacted result.
+        dexOut.appendSection(writerSizes.header, "header");
         idsDefsOut = dexOut.appendSection(writerSizes.idsDefs, "ids defs");
-
-        contentsOut = dexOut.getTableOfContents();
-        contentsOut.dataOff = dexOut.getNextSectionStart();
-
-        contentsOut.mapList.off = dexOut.getNextSectionStart();
-        contentsOut.mapList.size = 1;
-        mapListOut = dexOut.appendSection(writerSizes.mapList, "map list");
-
-        contentsOut.typeLists.off = dexOut.getNextSectionStart();
+        dexOut.appendSection(writerSizes.mapList, "map list");
         typeListOut = dexOut.appendSection(writerSizes.typeList, "type list");
-
-        contentsOut.annotationSetRefLists.off = dexOut.getNextSectionStart();
         annotationSetRefListOut = dexOut.appendSection(
                 writerSizes.annotationsSetRefList, "annotation set ref list");
-
-        contentsOut.annotationSets.off = dexOut.getNextSectionStart();
         annotationSetOut = dexOut.appendSection(writerSizes.annotationsSet, "annotation sets");
-
-        contentsOut.classDatas.off = dexOut.getNextSectionStart();
         classDataOut = dexOut.appendSection(writerSizes.classData, "class data");
-
-        contentsOut.codes.off = dexOut.getNextSectionStart();
         codeOut = dexOut.appendSection(writerSizes.code, "code");
-
-        contentsOut.stringDatas.off = dexOut.getNextSectionStart();
         stringDataOut = dexOut.appendSection(writerSizes.stringData, "string data");
-
-        contentsOut.debugInfos.off = dexOut.getNextSectionStart();
         debugInfoOut = dexOut.appendSection(writerSizes.debugInfo, "debug info");
-
-        contentsOut.annotations.off = dexOut.getNextSectionStart();
         annotationOut = dexOut.appendSection(writerSizes.annotation, "annotation");
-
-        contentsOut.encodedArrays.off = dexOut.getNextSectionStart();
         encodedArrayOut = dexOut.appendSection(writerSizes.encodedArray, "encoded array");
-
-        contentsOut.annotationsDirectories.off = dexOut.getNextSectionStart();
         annotationsDirectoryOut = dexOut.appendSection(
                 writerSizes.annotationsDirectory, "annotations directory");
 
-        contentsOut.dataSize = dexOut.getNextSectionStart() - contentsOut.dataOff;
+        contentsOut = dexOut.getTableOfContents();
+    }
+
+    private static Dex[] dexesOf(ReferencedItems[] referencedItems) {
+        Dex[] result = new Dex[referencedItems.length];
+        for (int i = 0; i < referencedItems.length; i++) {
+            result[i] = referencedItems[i].getDex();
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the item of {@code section} of {@code dexes[dex]} at
+     * {@code index} and {@code offset} is merged.
+     */
+    private boolean isMerged(int dex, TableOfContents.Section section, int index, int offset) {
+        return referencedItems == null || referencedItems[dex].contains(section, index, offset);
     }
 
+    /**
+     * @deprecated the result is always compacted, without merging it
+     * again, so there is nothing to tune anymore.
+     */
+    @Deprecated
     public void setCompactWasteThreshold(int compactWasteThreshold) {
-        this.compactWasteThreshold = compactWasteThreshold;
+        // This space intentionally left blank.
+    }
+
+    /**
+     * Sets the number of threads that merge the sections of the dexes which
+     * don't depend on each other, and rewrite the code of their classes.
+     * It defaults to the number of processors. With 1 thread, everything is
+     * merged on the calling thread. The result doesn't depend on it.
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount < 1");
+        }
+        this.threadCount = threadCount;
     }
 
     private Dex mergeDexes() throws IOException {
-        mergeStringIds();
-        mergeTypeIds();
-        mergeTypeLists();
-        mergeProtoIds();
-        mergeFieldIds();
-        mergeMethodIds();
-        mergeMethodHandles();
-        mergeAnnotations();
-        unionAnnotationSetsAndDirectories();
-        mergeCallSiteIds();
-        mergeClassDefs();
+        int classDefCount = 0;
+        for (Dex dex : dexes) {
+            classDefCount += dex.getTableOfContents().classDefs.size;
+        }
+        // Small merges aren't worth the threads.
+        executor = threadCount > 1 && classDefCount > CLASSES_PER_TASK
+                ? new ForkJoinPool(threadCount) : null;
+        try {
+            mergeStringIds();
+            mergeTypeIds();
+            mergeTypeLists();
+            mergeProtoIds();
+            mergeFieldIds();
+            mergeMethodIds();
+            mergeMethodHandles();
+
+            /*
+             * Only the class defs point to annotations, so they are merged
+             * while the static values, the call sites and the code that
+             * points to them are.
+             */
+            FutureTask<Void> annotations = fork(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    mergeAnnotations();
+                    unionAnnotationSetsAndDirectories();
+                    return null;
+                }
+            });
+            for (int i = 0; i < dexes.length; i++) {
+                transformStaticValues(i);
+            }
+            mergeCallSiteIds();
+            mergeClassDefs(annotations);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+
+        Dex result = compact();
 
         // computeSizesFromOffsets expects sections sorted by offset, so make it so
         Arrays.sort(contentsOut.sections);
 
         // write the header
-        contentsOut.header.off = 0;
-        contentsOut.header.size = 1;
-        contentsOut.fileSize = dexOut.getLength();
+        contentsOut.fileSize = result.getLength();
         contentsOut.computeSizesFromOffsets();
-        contentsOut.writeHeader(headerOut, mergeApiLevels());
-        contentsOut.writeMap(mapListOut);
+        contentsOut.writeHeader(result.open(0), mergeApiLevels());
+        contentsOut.writeMap(result.open(contentsOut.mapList.off));
 
         // generate and write the hashes
-        dexOut.writeHashes();
+        result.writeHashes();
 
-        return dexOut;
+        result.getTableOfContents().readFrom(result);
+        return result;
+    }
+
+    /**
+     * Returns a task that runs {@code callable} on the pool of the merge,
+     * if there is one. {@link #join} runs the task if it hasn't started.
+     */
+    private <T> FutureTask<T> fork(Callable<T> callable) {
+        FutureTask<T> result = new FutureTask<T>(callable);
+        if (executor != null) {
+            executor.execute(result);
+        }
+        return result;
+    }
+
+    /**
+     * Runs {@code task} unless it has started, and returns its result once
+     * it is done. Exceptions of the task are thrown as they are.
+     */
+    private static <T> T join(FutureTask<T> task) {
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Merge has been interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
     }
 
     public Dex merge() throws IOException {
-        if (dexes.length == 1) {
+        if (dexes.length == 1 && referencedItems == null) {
             return dexes[0];
         } else if (dexes.length == 0) {
             return null;
@@ -196,23 +297,6 @@ public final class DexMerger {
         long start = System.nanoTime();
         Dex result = mergeDexes();
 
-        /*
-         * We use pessimistic sizes when merging dex files. If those sizes
-         * result in too many bytes wasted, compact the result. To compact,
-         * simply merge the result with itself.
-         */
-        WriterSizes compactedSizes = new WriterSizes(this);
-        int wastedByteCount = writerSizes.size() - compactedSizes.size();
-        if (wastedByteCount >  + compactWasteThreshold) {
-            DexMerger compacter = new DexMerger(
-                    new Dex[] {dexOut, new Dex(0)}, CollisionPolicy.FAIL, context, compactedSizes);
-            result = compacter.mergeDexes();
-            context.out.printf("Result compacted from %.1fKiB to %.1fKiB to save %.1fKiB%n",
-                    dexOut.getLength() / 1024f,
-                    result.getLength() / 1024f,
-                    wastedByteCount / 1024f);
-        }
-
         long elapsed = System.nanoTime() - start;
         for (int i = 0; i < dexes.length; i++) {
             context.out.printf("Merged dex #%d (%d defs/%.1fKiB)%n",
@@ -235,6 +319,16 @@ public final class DexMerger {
     abstract class IdMerger<T extends Comparable<T>> {
         private final Dex.Section out;
 
+        /** the current value of each dex, for the default {@link #readValue} */
+        private final List<T> currentValues =
+                new ArrayList<T>(Collections.<T>nCopies(dexes.length, null));
+
+        /** the last value written by the default {@link #writeValue} */
+        private T lastWritten;
+
+        /** number of values in the section of each dex, for {@link #mergeSorted} */
+        private int[] sizes;
+
         protected IdMerger(Dex.Section out) {
             this.out = out;
         }
@@ -242,63 +336,156 @@ public final class DexMerger {
         /**
          * Merges already-sorted sections, reading one value from each dex into memory
          * at a time.
+         *
+         * <p>The dexes play a tournament on their current values, kept as a
+         * tree of losers: {@code tree[0]} is the dex with the smallest value,
+         * and every other node holds the dex that lost the match played there.
+         * After the winner moves on to its next value, it replays only the
+         * matches on the path from its leaf to the root.</p>
          */
         public final void mergeSorted() {
             TableOfContents.Section[] sections = new TableOfContents.Section[dexes.length];
             Dex.Section[] dexSections = new Dex.Section[dexes.length];
             int[] offsets = new int[dexes.length];
             int[] indexes = new int[dexes.length];
+            sizes = new int[dexes.length];
 
-            // values contains one value from each dex, sorted for fast retrieval of
-            // the smallest value. The list associated with a value has the indexes
-            // of the dexes that had that value.
-            TreeMap<T, List<Integer>> values = new TreeMap<T, List<Integer>>();
-
+            boolean empty = true;
             for (int i = 0; i < dexes.length; i++) {
                 sections[i] = getSection(dexes[i].getTableOfContents());
                 dexSections[i] = sections[i].exists() ? dexes[i].open(sections[i].off) : null;
-                // Fill in values with the first value of each dex.
-                offsets[i] = readIntoMap(
-                        dexSections[i], sections[i], indexMaps[i], indexes[i], values, i);
+                sizes[i] = sections[i].size;
+                empty &= sizes[i] == 0;
+                // Read the first value of each dex.
+                offsets[i] = readNext(dexSections[i], indexMaps[i], indexes, i);
             }
-            if (values.isEmpty()) {
+            if (empty) {
                 getSection(contentsOut).off = 0;
                 getSection(contentsOut).size = 0;
                 return;
             }
             getSection(contentsOut).off = out.getPosition();
 
+            // The leaves of the tree are at dexes.length + dex, so that the
+            // parent of node n is at n / 2.
+            int[] tree = new int[dexes.length];
+            int[] winners = new int[dexes.length * 2];
+            for (int i = 0; i < dexes.length; i++) {
+                winners[dexes.length + i] = i;
+            }
+            for (int n = dexes.length - 1; n > 0; n--) {
+                int a = winners[n * 2];
+                int b = winners[n * 2 + 1];
+                boolean aWins = beats(a, b, indexes);
+                winners[n] = aWins ? a : b;
+                tree[n] = aWins ? b : a;
+            }
+            tree[0] = winners[1];
+
+            // Equal values of the same dex, like call sites, are all kept:
+            // only values of other dexes are duplicates of the last one.
+            int[] lastOutCounts = new int[dexes.length];
             int outCount = 0;
-            while (!values.isEmpty()) {
-                Map.Entry<T, List<Integer>> first = values.pollFirstEntry();
-                for (Integer dex : first.getValue()) {
-                    updateIndex(offsets[dex], indexMaps[dex], indexes[dex]++, outCount);
-                    // Fetch the next value of the dexes we just polled out
-                    offsets[dex] = readIntoMap(dexSections[dex], sections[dex],
-                            indexMaps[dex], indexes[dex], values, dex);
+            while (true) {
+                int dex = tree[0];
+                if (indexes[dex] == sizes[dex]) {
+                    break; // all dexes are done
                 }
-                write(first.getKey());
-                outCount++;
+
+                boolean duplicate = outCount > 0 && lastOutCounts[dex] != outCount
+                        && equalsLastWritten(dex);
+                if (!duplicate) {
+                    outCount++;
+                }
+                lastOutCounts[dex] = outCount;
+                updateIndex(offsets[dex], indexMaps[dex], indexes[dex]++, outCount - 1);
+                if (!duplicate) {
+                    writeValue(dex);
+                }
+
+                // Fetch the next value of the winner, and replay its matches
+                offsets[dex] = readNext(dexSections[dex], indexMaps[dex], indexes, dex);
+                for (int n = (dexes.length + dex) / 2; n > 0; n /= 2) {
+                    if (!beats(dex, tree[n], indexes)) {
+                        int winner = tree[n];
+                        tree[n] = dex;
+                        dex = winner;
+                    }
+                }
+                tree[0] = dex;
             }
 
             getSection(contentsOut).size = outCount;
         }
 
-        private int readIntoMap(Dex.Section in, TableOfContents.Section section, IndexMap indexMap,
-                                int index, TreeMap<T, List<Integer>> values, int dex) {
-            int offset = in != null ? in.getPosition() : -1;
-            if (index < section.size) {
-                T v = read(in, indexMap, index);
-                List<Integer> l = values.get(v);
-                if (l == null) {
-                    l = new ArrayList<Integer>();
-                    values.put(v, l);
-                }
-                l.add(dex);
+        /**
+         * Reads the next value of {@code dex} that is merged, skipping the
+         * others, and returns its offset.
+         */
+        private int readNext(Dex.Section in, IndexMap indexMap, int[] indexes, int dex) {
+            if (in == null) {
+                return -1;
+            }
+            TableOfContents.Section section = getSection(dexes[dex].getTableOfContents());
+            while (indexes[dex] < sizes[dex]
+                    && !isMerged(dex, section, indexes[dex], in.getPosition())) {
+                skip(in);
+                indexes[dex]++;
+            }
+            int offset = in.getPosition();
+            if (indexes[dex] < sizes[dex]) {
+                readValue(in, indexMap, indexes[dex], dex);
             }
             return offset;
         }
 
+        /**
+         * Plays a match between dexes {@code a} and {@code b}, either of
+         * which may have no values left. Returns whether {@code a} wins.
+         */
+        private boolean beats(int a, int b, int[] indexes) {
+            if (indexes[b] == sizes[b]) {
+                return true;
+            } else if (indexes[a] == sizes[a]) {
+                return false;
+            }
+            return compareValues(a, b) <= 0;
+        }
+
+        /**
+         * Reads the value at {@code index} of {@code dex} as its current
+         * value, for {@link #mergeSorted}. The default implementation keeps
+         * the result of {@link #read}.
+         */
+        void readValue(Dex.Section in, IndexMap indexMap, int index, int dex) {
+            currentValues.set(dex, read(in, indexMap, index));
+        }
+
+        /**
+         * Compares the current values of dexes {@code a} and {@code b}, as a
+         * match of {@link #mergeSorted}: {@code a} wins if the result is
+         * not positive.
+         */
+        int compareValues(int a, int b) {
+            return currentValues.get(a).compareTo(currentValues.get(b));
+        }
+
+        /**
+         * Returns whether the current value of {@code dex} is equal to the
+         * value written last.
+         */
+        boolean equalsLastWritten(int dex) {
+            return currentValues.get(dex).compareTo(lastWritten) == 0;
+        }
+
+        /**
+         * Writes the current value of {@code dex}.
+         */
+        void writeValue(int dex) {
+            lastWritten = currentValues.get(dex);
+            write(lastWritten);
+        }
+
         /**
          * Merges unsorted sections by reading them completely into memory and
          * sorting in memory.
@@ -308,7 +495,7 @@ public final class DexMerger {
 
             List<UnsortedValue> all = new ArrayList<UnsortedValue>();
             for (int i = 0; i < dexes.length; i++) {
-                all.addAll(readUnsortedValues(dexes[i], indexMaps[i]));
+                all.addAll(readUnsortedValues(i));
             }
             if (all.isEmpty()) {
                 getSection(contentsOut).off = 0;
@@ -320,11 +507,11 @@ public final class DexMerger {
             int outCount = 0;
             for (int i = 0; i < all.size(); ) {
                 UnsortedValue e1 = all.get(i++);
-                updateIndex(e1.offset, e1.indexMap, e1.index, outCount - 1);
+                updateIndex(e1.offset, e1.indexMap, e1.index, outCount);
 
                 while (i < all.size() && e1.compareTo(all.get(i)) == 0) {
                     UnsortedValue e2 = all.get(i++);
-                    updateIndex(e2.offset, e2.indexMap, e2.index, outCount - 1);
+                    updateIndex(e2.offset, e2.indexMap, e2.index, outCount);
                 }
 
                 write(e1.value);
@@ -334,7 +521,9 @@ public final class DexMerger {
             getSection(contentsOut).size = outCount;
         }
 
-        private List<UnsortedValue> readUnsortedValues(Dex source, IndexMap indexMap) {
+        private List<UnsortedValue> readUnsortedValues(int dex) {
+            Dex source = dexes[dex];
+            IndexMap indexMap = indexMaps[dex];
             TableOfContents.Section section = getSection(source.getTableOfContents());
             if (!section.exists()) {
                 return Collections.emptyList();
@@ -344,6 +533,10 @@ public final class DexMerger {
             Dex.Section in = source.open(section.off);
             for (int i = 0; i < section.size; i++) {
                 int offset = in.getPosition();
+                if (!isMerged(dex, section, i, offset)) {
+                    skip(in);
+                    continue;
+                }
                 T value = read(in, indexMap, 0);
                 result.add(new UnsortedValue(source, indexMap, value, i, offset));
             }
@@ -352,6 +545,11 @@ public final class DexMerger {
 
         abstract TableOfContents.Section getSection(TableOfContents tableOfContents);
         abstract T read(Dex.Section in, IndexMap indexMap, int index);
+
+        /**
+         * Moves {@code in} past the value at its position, which isn't merged.
+         */
+        abstract void skip(Dex.Section in);
         abstract void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex);
         abstract void write(T value);
 
@@ -390,6 +588,26 @@ public final class DexMerger {
 
     private void mergeStringIds() {
         new IdMerger<String>(idsDefsOut) {
+            /** bound on the byte length of strings, for {@link #codes} */
+            private static final int MAX_CODE_OFFSET = 1 << 21;
+
+            /** offset of the string data of the current string of each dex */
+            private final int[] stringDataOffsets = new int[dexes.length];
+
+            /**
+             * Offset-value code of the current string of each dex, relative
+             * to a smaller string: the offset of the first byte that differs
+             * from that string and the order of this byte, such that smaller
+             * codes are for smaller strings and equal strings have code 0.
+             * The codes of two strings relative to the same string compare
+             * like the strings unless they are equal, so that most matches
+             * only compare codes. Each dex in the tree of {@link #mergeSorted}
+             * has its code relative to the winner of its last match, and new
+             * strings are coded relative to the previous string of their dex,
+             * which was the last winner.
+             */
+            private final int[] codes = new int[dexes.length];
+
             @Override TableOfContents.Section getSection(TableOfContents tableOfContents) {
                 return tableOfContents.stringIds;
             }
@@ -398,6 +616,67 @@ public final class DexMerger {
                 return in.readString();
             }
 
+            @Override void skip(Dex.Section in) {
+                in.readInt();
+            }
+
+            @Override void readValue(Dex.Section in, IndexMap indexMap, int index, int dex) {
+                int previous = stringDataOffsets[dex];
+                stringDataOffsets[dex] = in.readInt();
+                int mismatch;
+                if (previous == 0) {
+                    // Code the first string relative to the empty string, the smallest of all.
+                    mismatch = dexes[dex].stringDataOrder(stringDataOffsets[dex], 0) == 0 ? -1 : 0;
+                } else {
+                    mismatch = dexes[dex].stringDataMismatch(
+                            stringDataOffsets[dex], dexes[dex], previous, 0);
+                }
+                codes[dex] = code(dex, mismatch);
+            }
+
+            @Override int compareValues(int a, int b) {
+                if (codes[a] != codes[b]) {
+                    // The loser's code stays valid relative to the winner.
+                    return codes[a] < codes[b] ? -1 : 1;
+                } else if (codes[a] == 0) {
+                    return 0;
+                }
+
+                // Same first difference with the same byte: compare what follows.
+                int index = dexes[a].stringDataMismatch(stringDataOffsets[a],
+                        dexes[b], stringDataOffsets[b], MAX_CODE_OFFSET - (codes[a] >>> 9) + 1);
+                if (index == -1) {
+                    codes[b] = 0;
+                    return 0;
+                }
+                int aCode = code(a, index);
+                int bCode = code(b, index);
+                if (aCode < bCode) {
+                    codes[b] = bCode;
+                    return -1;
+                } else {
+                    codes[a] = aCode;
+                    return 1;
+                }
+            }
+
+            /**
+             * Returns the code of the current string of {@code dex} for a
+             * first difference at {@code index}, or for no difference if
+             * {@code index == -1}.
+             */
+            private int code(int dex, int index) {
+                if (index == -1) {
+                    return 0;
+                }
+                return ((MAX_CODE_OFFSET - index) << 9)
+                        | dexes[dex].stringDataOrder(stringDataOffsets[dex], index);
+            }
+
+            @Override boolean equalsLastWritten(int dex) {
+                return codes[dex] == 0;
+            }
+
             @Override void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex) {
                 indexMap.stringIds[oldIndex] = newIndex;
             }
@@ -407,6 +686,12 @@ public final class DexMerger {
                 idsDefsOut.writeInt(stringDataOut.getPosition());
                 stringDataOut.writeStringData(value);
             }
+
+            @Override void writeValue(int dex) {
+                contentsOut.stringDatas.size++;
+                idsDefsOut.writeInt(stringDataOut.getPosition());
+                stringDataOut.writeStringData(dexes[dex], stringDataOffsets[dex]);
+            }
         }.mergeSorted();
     }
 
@@ -421,6 +706,10 @@ public final class DexMerger {
                 return indexMap.adjustString(stringIndex);
             }
 
+            @Override void skip(Dex.Section in) {
+                in.readInt();
+            }
+
             @Override void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex) {
                 if (newIndex < 0 || newIndex > 0xffff) {
                     throw new DexIndexOverflowException("type ID not in [0, 0xffff]: " + newIndex);
@@ -444,6 +733,10 @@ public final class DexMerger {
                 return indexMap.adjustTypeList(in.readTypeList());
             }
 
+            @Override void skip(Dex.Section in) {
+                in.readTypeList();
+            }
+
             @Override void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex) {
                 indexMap.putTypeListOffset(offset, typeListOut.getPosition());
             }
@@ -464,6 +757,10 @@ public final class DexMerger {
                 return indexMap.adjust(in.readProtoId());
             }
 
+            @Override void skip(Dex.Section in) {
+                in.readProtoId();
+            }
+
             @Override void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex) {
                 if (newIndex < 0 || newIndex > 0xffff) {
                     throw new DexIndexOverflowException("proto ID not in [0, 0xffff]: " + newIndex);
@@ -490,6 +787,11 @@ public final class DexMerger {
                 return indexMap.adjust(in.readCallSiteId());
             }
 
+            @Override
+            void skip(Dex.Section in) {
+                in.readCallSiteId();
+            }
+
             @Override
             void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex) {
                 indexMap.callSiteIds[oldIndex] = newIndex;
@@ -514,9 +816,14 @@ public final class DexMerger {
                 return indexMap.adjust(in.readMethodHandle());
             }
 
+            @Override
+            void skip(Dex.Section in) {
+                in.readMethodHandle();
+            }
+
             @Override
             void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex) {
-                indexMap.methodHandleIds.put(oldIndex, indexMap.methodHandleIds.size());
+                indexMap.methodHandleIds.put(oldIndex, newIndex);
             }
 
             @Override
@@ -536,6 +843,10 @@ public final class DexMerger {
                 return indexMap.adjust(in.readFieldId());
             }
 
+            @Override void skip(Dex.Section in) {
+                in.readFieldId();
+            }
+
             @Override void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex) {
                 if (newIndex < 0 || newIndex > 0xffff) {
                     throw new DexIndexOverflowException("field ID not in [0, 0xffff]: " + newIndex);
@@ -559,6 +870,10 @@ public final class DexMerger {
                 return indexMap.adjust(in.readMethodId());
             }
 
+            @Override void skip(Dex.Section in) {
+                in.readMethodId();
+            }
+
             @Override void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex) {
                 if (newIndex < 0 || newIndex > 0xffff) {
                     throw new DexIndexOverflowException(
@@ -583,6 +898,10 @@ public final class DexMerger {
                 return indexMap.adjust(in.readAnnotation());
             }
 
+            @Override void skip(Dex.Section in) {
+                in.readAnnotation();
+            }
+
             @Override void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex) {
                 indexMap.putAnnotationOffset(offset, annotationOut.getPosition());
             }
@@ -593,14 +912,119 @@ public final class DexMerger {
         }.mergeUnsorted();
     }
 
-    private void mergeClassDefs() {
-        SortableType[] types = getSortedTypes();
+    /**
+     * Writes the class defs, once {@code annotations} is done. The class
+     * data and the code of chunks of classes are read and rewritten by
+     * tasks, a few chunks ahead of the class defs written out.
+     */
+    private void mergeClassDefs(FutureTask<Void> annotations) {
+        final SortableType[] types = getSortedTypes();
+        final Set<IndexMap> copiesCode = new HashSet<IndexMap>();
+        for (IndexMap indexMap : indexMaps) {
+            if (indexMap.keepsIndexes()) {
+                copiesCode.add(indexMap);
+            }
+        }
         contentsOut.classDefs.off = idsDefsOut.getPosition();
         contentsOut.classDefs.size = types.length;
 
-        for (SortableType type : types) {
-            Dex in = type.getDex();
-            transformClassDef(in, type.getClassDef(), type.getIndexMap());
+        List<FutureTask<TransformedClass[]>> tasks =
+                new ArrayList<FutureTask<TransformedClass[]>>();
+        int tasksAhead = executor != null ? threadCount * 2 : 0;
+        for (int start = 0; start < types.length; start += CLASSES_PER_TASK) {
+            final int from = start;
+            final int to = Math.min(start + CLASSES_PER_TASK, types.length);
+            FutureTask<TransformedClass[]> task = new FutureTask<TransformedClass[]>(
+                    new Callable<TransformedClass[]>() {
+                        @Override
+                        public TransformedClass[] call() {
+                            return transformClasses(types, from, to, copiesCode);
+                        }
+                    });
+            if (tasks.size() < tasksAhead) {
+                executor.execute(task);
+            }
+            tasks.add(task);
+        }
+
+        join(annotations);
+        for (int t = 0; t < tasks.size(); t++) {
+            if (executor != null && t + tasksAhead < tasks.size()) {
+                executor.execute(tasks.get(t + tasksAhead));
+            }
+            TransformedClass[] transformedClasses = join(tasks.get(t));
+            int from = t * CLASSES_PER_TASK;
+            for (int i = 0; i < transformedClasses.length; i++) {
+                SortableType type = types[from + i];
+                transformClassDef(type.getClassDef(), type.getIndexMap(), transformedClasses[i]);
+            }
+            tasks.set(t, null);
+        }
+    }
+
+    /**
+     * Reads the class data of {@code types[from..to)} and the code of their
+     * methods, and rewrites the indexes of the instructions. The code of
+     * dexes whose index maps are in {@code copiesCode} isn't read, as it is
+     * copied as is.
+     */
+    private TransformedClass[] transformClasses(SortableType[] types, int from, int to,
+            Set<IndexMap> copiesCode) {
+        TransformedClass[] result = new TransformedClass[to - from];
+        for (int i = from; i < to; i++) {
+            ClassDef classDef = types[i].getClassDef();
+            if (classDef.getClassDataOffset() == 0) {
+                continue;
+            }
+            Dex in = types[i].getDex();
+            ClassData classData = in.readClassData(classDef);
+            if (copiesCode.contains(types[i].getIndexMap())) {
+                result[i - from] = new TransformedClass(in, classData, null, null);
+                continue;
+            }
+            ClassData.Method[] methods = classData.allMethods();
+            Code[] codes = new Code[methods.length];
+            WidenedCode[] widenedCodes = null;
+            for (int m = 0; m < methods.length; m++) {
+                if (methods[m].getCodeOffset() != 0) {
+                    codes[m] = in.readCode(methods[m]);
+                    WidenedCode widenedCode = instructionTransformer.transform(
+                            types[i].getIndexMap(), codes[m].getInstructions());
+                    if (widenedCode != null) {
+                        if (widenedCodes == null) {
+                            widenedCodes = new WidenedCode[methods.length];
+                        }
+                        widenedCodes[m] = widenedCode;
+                    }
+                }
+            }
+            result[i - from] = new TransformedClass(in, classData, codes, widenedCodes);
+        }
+        return result;
+    }
+
+    /** number of classes rewritten by each task of {@link #mergeClassDefs} */
+    private static final int CLASSES_PER_TASK = 64;
+
+    /**
+     * The class data of a class, and the code of its methods in the order
+     * of {@link ClassData#allMethods}, with rewritten instructions. The
+     * code is null if it is copied as is. The widened code of a method
+     * replaces its instructions; it is null unless const-strings had to be
+     * widened.
+     */
+    private static final class TransformedClass {
+        final Dex in;
+        final ClassData classData;
+        final Code[] codes;
+        final WidenedCode[] widenedCodes;
+
+        TransformedClass(Dex in, ClassData classData, Code[] codes,
+                WidenedCode[] widenedCodes) {
+            this.in = in;
+            this.classData = classData;
+            this.codes = codes;
+            this.widenedCodes = widenedCodes;
         }
     }
 
@@ -612,7 +1036,7 @@ public final class DexMerger {
         // size is pessimistic; doesn't include arrays
         SortableType[] sortableTypes = new SortableType[contentsOut.typeIds.size];
         for (int i = 0; i < dexes.length; i++) {
-            readSortableTypes(sortableTypes, dexes[i], indexMaps[i]);
+            readSortableTypes(sortableTypes, i);
         }
 
         /*
@@ -647,9 +1071,15 @@ public final class DexMerger {
      * Reads just enough data on each class so that we can sort it and then find
      * it later.
      */
-    private void readSortableTypes(SortableType[] sortableTypes, Dex buffer,
-            IndexMap indexMap) {
+    private void readSortableTypes(SortableType[] sortableTypes, int dex) {
+        Dex buffer = dexes[dex];
+        IndexMap indexMap = indexMaps[dex];
+        TableOfContents.Section section = buffer.getTableOfContents().classDefs;
+        int index = 0;
         for (ClassDef classDef : buffer.classDefs()) {
+            if (!isMerged(dex, section, index++, classDef.getOffset())) {
+                continue;
+            }
             SortableType sortableType = indexMap.adjust(
                     new SortableType(buffer, indexMap, classDef));
             int t = sortableType.getTypeIndex();
@@ -670,64 +1100,81 @@ public final class DexMerger {
      */
     private void unionAnnotationSetsAndDirectories() {
         for (int i = 0; i < dexes.length; i++) {
-            transformAnnotationSets(dexes[i], indexMaps[i]);
+            transformAnnotationSets(i);
         }
         for (int i = 0; i < dexes.length; i++) {
-            transformAnnotationSetRefLists(dexes[i], indexMaps[i]);
+            transformAnnotationSetRefLists(i);
         }
         for (int i = 0; i < dexes.length; i++) {
-            transformAnnotationDirectories(dexes[i], indexMaps[i]);
-        }
-        for (int i = 0; i < dexes.length; i++) {
-            transformStaticValues(dexes[i], indexMaps[i]);
+            transformAnnotationDirectories(i);
         }
     }
 
-    private void transformAnnotationSets(Dex in, IndexMap indexMap) {
-        TableOfContents.Section section = in.getTableOfContents().annotationSets;
+    private void transformAnnotationSets(int dex) {
+        TableOfContents.Section section = dexes[dex].getTableOfContents().annotationSets;
         if (section.exists()) {
-            Dex.Section setIn = in.open(section.off);
+            Dex.Section setIn = dexes[dex].open(section.off);
             for (int i = 0; i < section.size; i++) {
-                transformAnnotationSet(indexMap, setIn);
+                if (isMerged(dex, section, i, setIn.getPosition())) {
+                    transformAnnotationSet(indexMaps[dex], setIn);
+                } else {
+                    setIn.skip(setIn.readInt() * SizeOf.UINT);
+                }
             }
         }
     }
 
-    private void transformAnnotationSetRefLists(Dex in, IndexMap indexMap) {
-        TableOfContents.Section section = in.getTableOfContents().annotationSetRefLists;
+    private void transformAnnotationSetRefLists(int dex) {
+        TableOfContents.Section section = dexes[dex].getTableOfContents().annotationSetRefLists;
         if (section.exists()) {
-            Dex.Section setIn = in.open(section.off);
+            Dex.Section setIn = dexes[dex].open(section.off);
             for (int i = 0; i < section.size; i++) {
-                transformAnnotationSetRefList(indexMap, setIn);
+                if (isMerged(dex, section, i, setIn.getPosition())) {
+                    transformAnnotationSetRefList(indexMaps[dex], setIn);
+                } else {
+                    setIn.skip(setIn.readInt() * SizeOf.UINT);
+                }
             }
         }
     }
 
-    private void transformAnnotationDirectories(Dex in, IndexMap indexMap) {
-        TableOfContents.Section section = in.getTableOfContents().annotationsDirectories;
+    private void transformAnnotationDirectories(int dex) {
+        TableOfContents.Section section = dexes[dex].getTableOfContents().annotationsDirectories;
         if (section.exists()) {
-            Dex.Section directoryIn = in.open(section.off);
+            Dex.Section directoryIn = dexes[dex].open(section.off);
             for (int i = 0; i < section.size; i++) {
-                transformAnnotationDirectory(directoryIn, indexMap);
+                if (isMerged(dex, section, i, directoryIn.getPosition())) {
+                    transformAnnotationDirectory(directoryIn, indexMaps[dex]);
+                } else {
+                    directoryIn.readInt(); // class annotations offset
+                    int annotatedCount = directoryIn.readInt() + directoryIn.readInt()
+                            + directoryIn.readInt();
+                    directoryIn.skip(annotatedCount * 2 * SizeOf.UINT);
+                }
             }
         }
     }
 
-    private void transformStaticValues(Dex in, IndexMap indexMap) {
-        TableOfContents.Section section = in.getTableOfContents().encodedArrays;
+    private void transformStaticValues(int dex) {
+        TableOfContents.Section section = dexes[dex].getTableOfContents().encodedArrays;
         if (section.exists()) {
-            Dex.Section staticValuesIn = in.open(section.off);
+            Dex.Section staticValuesIn = dexes[dex].open(section.off);
             for (int i = 0; i < section.size; i++) {
-                transformStaticValues(staticValuesIn, indexMap);
+                if (isMerged(dex, section, i, staticValuesIn.getPosition())) {
+                    transformStaticValues(staticValuesIn, indexMaps[dex]);
+                } else {
+                    staticValuesIn.readEncodedArray();
+                }
             }
         }
     }
 
     /**
-     * Reads a class_def_item beginning at {@code in} and writes the index and
-     * data.
+     * Writes a class_def_item and its class data, read and rewritten as
+     * {@code transformedClass}, which is null if it has none.
      */
-    private void transformClassDef(Dex in, ClassDef classDef, IndexMap indexMap) {
+    private void transformClassDef(ClassDef classDef, IndexMap indexMap,
+            TransformedClass transformedClass) {
         idsDefsOut.assertFourByteAligned();
         idsDefsOut.writeInt(classDef.getTypeIndex());
         idsDefsOut.writeInt(classDef.getAccessFlags());
@@ -740,13 +1187,11 @@ public final class DexMerger {
         int annotationsOff = classDef.getAnnotationsOffset();
         idsDefsOut.writeInt(indexMap.adjustAnnotationDirectory(annotationsOff));
 
-        int classDataOff = classDef.getClassDataOffset();
-        if (classDataOff == 0) {
+        if (transformedClass == null) {
             idsDefsOut.writeInt(0);
         } else {
             idsDefsOut.writeInt(classDataOut.getPosition());
-            ClassData classData = in.readClassData(classDef);
-            transformClassData(in, classData, indexMap);
+            transformClassData(transformedClass, indexMap);
         }
 
         int staticValuesOff = classDef.getStaticValuesOffset();
@@ -834,9 +1279,14 @@ public final class DexMerger {
         }
     }
 
-    private void transformClassData(Dex in, ClassData classData, IndexMap indexMap) {
+    private void transformClassData(TransformedClass transformedClass, IndexMap indexMap) {
         contentsOut.classDatas.size++;
 
+        Dex in = transformedClass.in;
+        ClassData classData = transformedClass.classData;
+        Code[] codes = transformedClass.codes;
+        WidenedCode[] widenedCodes = transformedClass.widenedCodes;
+
         ClassData.Field[] staticFields = classData.getStaticFields();
         ClassData.Field[] instanceFields = classData.getInstanceFields();
         ClassData.Method[] directMethods = classData.getDirectMethods();
@@ -849,8 +1299,9 @@ public final class DexMerger {
 
         transformFields(indexMap, staticFields);
         transformFields(indexMap, instanceFields);
-        transformMethods(in, indexMap, directMethods);
-        transformMethods(in, indexMap, virtualMethods);
+        transformMethods(in, indexMap, directMethods, codes, widenedCodes, 0);
+        transformMethods(in, indexMap, virtualMethods, codes, widenedCodes,
+                directMethods.length);
     }
 
     private void transformFields(IndexMap indexMap, ClassData.Field[] fields) {
@@ -863,9 +1314,15 @@ public final class DexMerger {
         }
     }
 
-    private void transformMethods(Dex in, IndexMap indexMap, ClassData.Method[] methods) {
+    /**
+     * Writes {@code methods}, whose code is at {@code codes[firstCode..]}
+     * and {@code widenedCodes[firstCode..]}.
+     */
+    private void transformMethods(Dex in, IndexMap indexMap, ClassData.Method[] methods,
+            Code[] codes, WidenedCode[] widenedCodes, int firstCode) {
         int lastOutMethodIndex = 0;
-        for (ClassData.Method method : methods) {
+        for (int i = 0; i < methods.length; i++) {
+            ClassData.Method method = methods[i];
             int outMethodIndex = indexMap.adjustMethod(method.getMethodIndex());
             classDataOut.writeUleb128(outMethodIndex - lastOutMethodIndex);
             lastOutMethodIndex = outMethodIndex;
@@ -877,12 +1334,22 @@ public final class DexMerger {
             } else {
                 codeOut.alignToFourBytesWithZeroFill();
                 classDataOut.writeUleb128(codeOut.getPosition());
-                transformCode(in, in.readCode(method), indexMap);
+                if (codes != null) {
+                    WidenedCode widenedCode =
+                            (widenedCodes == null) ? null : widenedCodes[firstCode + i];
+                    transformCode(in, codes[firstCode + i], widenedCode, indexMap);
+                } else {
+                    copyCode(in, method.getCodeOffset());
+                }
             }
         }
     }
 
-    private void transformCode(Dex in, Code code, IndexMap indexMap) {
+    /**
+     * Writes {@code code}, whose instructions have been rewritten, or
+     * replaced by {@code widenedCode} if it is non-null.
+     */
+    private void transformCode(Dex in, Code code, WidenedCode widenedCode, IndexMap indexMap) {
         contentsOut.codes.size++;
         codeOut.assertFourByteAligned();
 
@@ -897,13 +1364,13 @@ public final class DexMerger {
         int debugInfoOffset = code.getDebugInfoOffset();
         if (debugInfoOffset != 0) {
             codeOut.writeInt(debugInfoOut.getPosition());
-            transformDebugInfoItem(in.open(debugInfoOffset), indexMap);
+            transformDebugInfoItem(in.open(debugInfoOffset), indexMap, widenedCode);
         } else {
             codeOut.writeInt(0);
         }
 
-        short[] instructions = code.getInstructions();
-        short[] newInstructions = instructionTransformer.transform(indexMap, instructions);
+        short[] newInstructions =
+                (widenedCode == null) ? code.getInstructions() : widenedCode.getInstructions();
         codeOut.writeInt(newInstructions.length);
         codeOut.write(newInstructions);
 
@@ -919,30 +1386,82 @@ public final class DexMerger {
              */
             Dex.Section triesSection = dexOut.open(codeOut.getPosition());
             codeOut.skip(tries.length * SizeOf.TRY_ITEM);
-            int[] offsets = transformCatchHandlers(indexMap, catchHandlers);
-            transformTries(triesSection, tries, offsets);
+            int[] offsets = transformCatchHandlers(indexMap, catchHandlers, widenedCode);
+            transformTries(triesSection, tries, offsets, widenedCode);
+        }
+    }
+
+    /**
+     * Copies the code item at {@code offset} in {@code in} and its debug
+     * info, which is what {@link #transformCode} writes when the ids of
+     * {@code in} keep their indexes. Only the debug info offset changes.
+     */
+    private void copyCode(Dex in, int offset) {
+        contentsOut.codes.size++;
+        codeOut.assertFourByteAligned();
+
+        Dex.Section code = in.open(offset);
+        code.skip(6); // registers_size, ins_size and outs_size
+        int triesSize = code.readUnsignedShort();
+        int debugInfoOffset = code.readInt();
+        int instructionsSize = code.readInt();
+        code.skip(instructionsSize * 2);
+        if (triesSize > 0) {
+            if (instructionsSize % 2 == 1) {
+                code.skip(2); // padding
+            }
+            code.skip(triesSize * SizeOf.TRY_ITEM);
+            int catchHandlersSize = code.readUleb128();
+            for (int i = 0; i < catchHandlersSize; i++) {
+                int size = code.readSleb128();
+                for (int j = 0; j < Math.abs(size); j++) {
+                    code.readUleb128(); // type_idx
+                    code.readUleb128(); // addr
+                }
+                if (size <= 0) {
+                    code.readUleb128(); // catch_all_addr
+                }
+            }
         }
+        int end = code.getPosition();
+
+        codeOut.write(in, offset, 8);
+        if (debugInfoOffset != 0) {
+            codeOut.writeInt(debugInfoOut.getPosition());
+            copyDebugInfoItem(in, debugInfoOffset);
+        } else {
+            codeOut.writeInt(0);
+        }
+        codeOut.write(in, offset + 12, end - offset - 12);
     }
 
     /**
      * Writes the catch handlers to {@code codeOut} and returns their indices.
      */
-    private int[] transformCatchHandlers(IndexMap indexMap, Code.CatchHandler[] catchHandlers) {
+    private int[] transformCatchHandlers(IndexMap indexMap, Code.CatchHandler[] catchHandlers,
+            WidenedCode widenedCode) {
         int baseOffset = codeOut.getPosition();
         codeOut.writeUleb128(catchHandlers.length);
         int[] offsets = new int[catchHandlers.length];
         for (int i = 0; i < catchHandlers.length; i++) {
             offsets[i] = codeOut.getPosition() - baseOffset;
-            transformEncodedCatchHandler(catchHandlers[i], indexMap);
+            transformEncodedCatchHandler(catchHandlers[i], indexMap, widenedCode);
         }
         return offsets;
     }
 
     private void transformTries(Dex.Section out, Code.Try[] tries,
-            int[] catchHandlerOffsets) {
+            int[] catchHandlerOffsets, WidenedCode widenedCode) {
         for (Code.Try tryItem : tries) {
-            out.writeInt(tryItem.getStartAddress());
-            out.writeUnsignedShort(tryItem.getInstructionCount());
+            int startAddress = tryItem.getStartAddress();
+            int instructionCount = tryItem.getInstructionCount();
+            if (widenedCode != null) {
+                int endAddress = widenedCode.getNewAddress(startAddress + instructionCount);
+                startAddress = widenedCode.getNewAddress(startAddress);
+                instructionCount = endAddress - startAddress;
+            }
+            out.writeInt(startAddress);
+            out.writeUnsignedShort(instructionCount);
             out.writeUnsignedShort(catchHandlerOffsets[tryItem.getCatchHandlerIndex()]);
         }
     }
@@ -957,8 +1476,15 @@ public final class DexMerger {
     private static final byte DBG_SET_PROLOGUE_END = 0x07;
     private static final byte DBG_SET_EPILOGUE_BEGIN = 0x08;
     private static final byte DBG_SET_FILE = 0x09;
+    private static final int DBG_FIRST_SPECIAL = 0x0a;
+    private static final int DBG_LINE_RANGE = 15;
 
-    private void transformDebugInfoItem(Dex.Section in, IndexMap indexMap) {
+    /**
+     * Writes the debug info item read from {@code in}. If the instructions
+     * were widened, {@code widenedCode} moves its addresses.
+     */
+    private void transformDebugInfoItem(Dex.Section in, IndexMap indexMap,
+            WidenedCode widenedCode) {
         contentsOut.debugInfos.size++;
         int lineStart = in.readUleb128();
         debugInfoOut.writeUleb128(lineStart);
@@ -977,9 +1503,28 @@ public final class DexMerger {
         int nameIndex;   // uleb128p1 string index.    Needs indexMap adjustment.
         int typeIndex;   // uleb128p1 type index.      Needs indexMap adjustment.
         int sigIndex;    // uleb128p1 string index.    Needs indexMap adjustment.
+        int address = 0;    // address in the original instructions.
+        int newAddress = 0; // address in the widened instructions.
 
         while (true) {
             int opcode = in.readByte();
+
+            if (widenedCode != null && (opcode & 0xff) >= DBG_FIRST_SPECIAL) {
+                int adjustedOpcode = (opcode & 0xff) - DBG_FIRST_SPECIAL;
+                int lineOpcode = adjustedOpcode % DBG_LINE_RANGE;
+                address += adjustedOpcode / DBG_LINE_RANGE;
+                addrDiff = widenedCode.getNewAddress(address) - newAddress;
+                newAddress += addrDiff;
+                int newOpcode = DBG_FIRST_SPECIAL + lineOpcode + addrDiff * DBG_LINE_RANGE;
+                if (newOpcode > 0xff) {
+                    debugInfoOut.writeByte(DBG_ADVANCE_PC);
+                    debugInfoOut.writeUleb128(addrDiff);
+                    newOpcode = DBG_FIRST_SPECIAL + lineOpcode;
+                }
+                debugInfoOut.writeByte(newOpcode);
+                continue;
+            }
+
             debugInfoOut.writeByte(opcode);
 
             switch (opcode) {
@@ -988,6 +1533,11 @@ public final class DexMerger {
 
             case DBG_ADVANCE_PC:
                 addrDiff = in.readUleb128();
+                if (widenedCode != null) {
+                    address += addrDiff;
+                    addrDiff = widenedCode.getNewAddress(address) - newAddress;
+                    newAddress += addrDiff;
+                }
                 debugInfoOut.writeUleb128(addrDiff);
                 break;
 
@@ -1029,11 +1579,74 @@ public final class DexMerger {
         }
     }
 
-    private void transformEncodedCatchHandler(Code.CatchHandler catchHandler, IndexMap indexMap) {
+    /**
+     * Copies the debug info item at {@code offset} in {@code in}, which is
+     * what {@link #transformDebugInfoItem} writes when the strings and types
+     * of {@code in} keep their indexes.
+     */
+    private void copyDebugInfoItem(Dex in, int offset) {
+        contentsOut.debugInfos.size++;
+        Dex.Section debugInfo = in.open(offset);
+        debugInfo.readUleb128(); // line_start
+        int parametersSize = debugInfo.readUleb128();
+        for (int p = 0; p < parametersSize; p++) {
+            debugInfo.readUleb128(); // parameter_names
+        }
+
+        while (true) {
+            int opcode = debugInfo.readByte();
+            switch (opcode) {
+            case DBG_END_SEQUENCE:
+                debugInfoOut.write(in, offset, debugInfo.getPosition() - offset);
+                return;
+
+            case DBG_ADVANCE_LINE:
+                debugInfo.readSleb128();
+                break;
+
+            case DBG_START_LOCAL:
+                debugInfo.readUleb128(); // register_num
+                debugInfo.readUleb128(); // name_idx
+                debugInfo.readUleb128(); // type_idx
+                break;
+
+            case DBG_START_LOCAL_EXTENDED:
+                debugInfo.readUleb128(); // register_num
+                debugInfo.readUleb128(); // name_idx
+                debugInfo.readUleb128(); // type_idx
+                debugInfo.readUleb128(); // sig_idx
+                break;
+
+            case DBG_ADVANCE_PC:
+            case DBG_END_LOCAL:
+            case DBG_RESTART_LOCAL:
+            case DBG_SET_FILE:
+                debugInfo.readUleb128();
+                break;
+
+            default:
+                break;
+            }
+        }
+    }
+
+    private void transformEncodedCatchHandler(Code.CatchHandler catchHandler, IndexMap indexMap,
+            WidenedCode widenedCode) {
         int catchAllAddress = catchHandler.getCatchAllAddress();
         int[] typeIndexes = catchHandler.getTypeIndexes();
         int[] addresses = catchHandler.getAddresses();
 
+        if (widenedCode != null) {
+            int[] newAddresses = new int[addresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                newAddresses[i] = widenedCode.getNewAddress(addresses[i]);
+            }
+            addresses = newAddresses;
+            if (catchAllAddress != -1) {
+                catchAllAddress = widenedCode.getNewAddress(catchAllAddress);
+            }
+        }
+
         if (catchAllAddress != -1) {
             codeOut.writeSleb128(-typeIndexes.length);
         } else {
@@ -1056,6 +1669,269 @@ public final class DexMerger {
         indexMap.adjustEncodedArray(in.readEncodedArray()).writeTo(encodedArrayOut);
     }
 
+    /**
+     * Returns a copy of the merged sections in which every section takes
+     * exactly the bytes it needs. The merge writes to {@link #dexOut}, with
+     * sizes guessed up front, since the duplication between the inputs and
+     * the lengths of the ULEB-encoded indices are only known once it is
+     * done. Moving the sections only requires adjusting the offsets from one
+     * section to another, which is much cheaper than merging again.
+     */
+    private Dex compact() throws IOException {
+        contentsOut.header.off = 0;
+        contentsOut.header.size = 1;
+        contentsOut.mapList.size = 1;
+
+        /*
+         * The class data comes before the code, so moving the code shortens
+         * the ULEB-encoded code offsets, which may shorten the class data
+         * and let the code move further.
+         */
+        WriterSizes sizes = new WriterSizes(this);
+        int classDatasOff = sizes.header + sizes.idsDefs + sizes.mapList + sizes.typeList
+                + sizes.annotationsSetRefList + sizes.annotationsSet;
+        int codeDelta;
+        while (true) {
+            codeDelta = classDatasOff + sizes.classData - start(codeOut);
+            int classData = WriterSizes.fourByteAlign(measureClassData(codeDelta));
+            if (classData == sizes.classData) {
+                break;
+            }
+            sizes.classData = classData;
+        }
+
+        Dex result = new Dex(sizes.size());
+        result.appendSection(sizes.header, "header");
+        copy(idsDefsOut, result.appendSection(sizes.idsDefs, "ids defs"));
+
+        contentsOut.dataOff = result.getNextSectionStart();
+        contentsOut.mapList.off = result.getNextSectionStart();
+        result.appendSection(sizes.mapList, "map list");
+
+        contentsOut.typeLists.off = result.getNextSectionStart();
+        copy(typeListOut, result.appendSection(sizes.typeList, "type list"));
+        int typeListDelta = contentsOut.typeLists.off - start(typeListOut);
+
+        contentsOut.annotationSetRefLists.off = result.getNextSectionStart();
+        Dex.Section annotationSetRefLists = result.appendSection(
+                sizes.annotationsSetRefList, "annotation set ref list");
+        int annotationSetRefListDelta =
+                contentsOut.annotationSetRefLists.off - start(annotationSetRefListOut);
+
+        contentsOut.annotationSets.off = result.getNextSectionStart();
+        Dex.Section annotationSets = result.appendSection(sizes.annotationsSet, "annotation sets");
+        int annotationSetDelta = contentsOut.annotationSets.off - start(annotationSetOut);
+
+        contentsOut.classDatas.off = result.getNextSectionStart();
+        Dex.Section classDatas = result.appendSection(sizes.classData, "class data");
+
+        contentsOut.codes.off = result.getNextSectionStart();
+        copy(codeOut, result.appendSection(sizes.code, "code"));
+
+        contentsOut.stringDatas.off = result.getNextSectionStart();
+        copy(stringDataOut, result.appendSection(sizes.stringData, "string data"));
+        int stringDataDelta = contentsOut.stringDatas.off - start(stringDataOut);
+
+        contentsOut.debugInfos.off = result.getNextSectionStart();
+        copy(debugInfoOut, result.appendSection(sizes.debugInfo, "debug info"));
+        int debugInfoDelta = contentsOut.debugInfos.off - start(debugInfoOut);
+
+        contentsOut.annotations.off = result.getNextSectionStart();
+        copy(annotationOut, result.appendSection(sizes.annotation, "annotation"));
+        int annotationDelta = contentsOut.annotations.off - start(annotationOut);
+
+        contentsOut.encodedArrays.off = result.getNextSectionStart();
+        copy(encodedArrayOut, result.appendSection(sizes.encodedArray, "encoded array"));
+        int encodedArrayDelta = contentsOut.encodedArrays.off - start(encodedArrayOut);
+
+        contentsOut.annotationsDirectories.off = result.getNextSectionStart();
+        Dex.Section annotationsDirectories = result.appendSection(
+                sizes.annotationsDirectory, "annotations directory");
+        int annotationsDirectoryDelta =
+                contentsOut.annotationsDirectories.off - start(annotationsDirectoryOut);
+
+        contentsOut.dataSize = result.getNextSectionStart() - contentsOut.dataOff;
+
+        // The IDs don't move, but some of them point to data that does.
+        Dex.Section in = dexOut.open(contentsOut.stringIds.off);
+        Dex.Section out = result.open(contentsOut.stringIds.off);
+        for (int i = 0; i < contentsOut.stringIds.size; i++) {
+            relocate(in, out, stringDataDelta);
+        }
+
+        in = dexOut.open(contentsOut.protoIds.off);
+        out = result.open(contentsOut.protoIds.off);
+        for (int i = 0; i < contentsOut.protoIds.size; i++) {
+            skip(in, out, 8); // shorty and return type
+            relocate(in, out, typeListDelta);
+        }
+
+        in = dexOut.open(contentsOut.callSiteIds.off);
+        out = result.open(contentsOut.callSiteIds.off);
+        for (int i = 0; i < contentsOut.callSiteIds.size; i++) {
+            relocate(in, out, encodedArrayDelta);
+        }
+
+        in = dexOut.open(contentsOut.classDefs.off);
+        out = result.open(contentsOut.classDefs.off);
+        for (int i = 0; i < contentsOut.classDefs.size; i++) {
+            skip(in, out, 12); // type, access flags and supertype
+            relocate(in, out, typeListDelta);
+            skip(in, out, 4); // source file
+            relocate(in, out, annotationsDirectoryDelta);
+            int classDataOff = in.readInt();
+            if (classDataOff == 0) {
+                out.writeInt(0);
+            } else {
+                out.writeInt(classDatas.getPosition());
+                relocateClassData(dexOut.open(classDataOff), classDatas,
+                        result, codeDelta, debugInfoDelta);
+            }
+            relocate(in, out, encodedArrayDelta);
+        }
+
+        if (contentsOut.annotationSetRefLists.exists()) {
+            in = dexOut.open(start(annotationSetRefListOut));
+            for (int i = 0; i < contentsOut.annotationSetRefLists.size; i++) {
+                int size = in.readInt();
+                annotationSetRefLists.writeInt(size);
+                for (int j = 0; j < size; j++) {
+                    relocate(in, annotationSetRefLists, annotationSetDelta);
+                }
+            }
+        }
+
+        if (contentsOut.annotationSets.exists()) {
+            in = dexOut.open(start(annotationSetOut));
+            for (int i = 0; i < contentsOut.annotationSets.size; i++) {
+                int size = in.readInt();
+                annotationSets.writeInt(size);
+                for (int j = 0; j < size; j++) {
+                    relocate(in, annotationSets, annotationDelta);
+                }
+            }
+        }
+
+        if (contentsOut.annotationsDirectories.exists()) {
+            in = dexOut.open(start(annotationsDirectoryOut));
+            out = annotationsDirectories;
+            for (int i = 0; i < contentsOut.annotationsDirectories.size; i++) {
+                relocate(in, out, annotationSetDelta);
+                int fieldsSize = in.readInt();
+                out.writeInt(fieldsSize);
+                int methodsSize = in.readInt();
+                out.writeInt(methodsSize);
+                int parameterListSize = in.readInt();
+                out.writeInt(parameterListSize);
+                for (int j = 0; j < fieldsSize + methodsSize; j++) {
+                    out.writeInt(in.readInt()); // field or method index
+                    relocate(in, out, annotationSetDelta);
+                }
+                for (int j = 0; j < parameterListSize; j++) {
+                    out.writeInt(in.readInt()); // method index
+                    relocate(in, out, annotationSetRefListDelta);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of bytes of the class data once the code moves by
+     * {@code codeDelta}.
+     */
+    private int measureClassData(int codeDelta) {
+        if (!contentsOut.classDatas.exists()) {
+            return 0;
+        }
+
+        int result = classDataOut.used();
+        Dex.Section in = dexOut.open(start(classDataOut));
+        for (int i = 0; i < contentsOut.classDatas.size; i++) {
+            int fieldCount = in.readUleb128() + in.readUleb128();
+            int methodCount = in.readUleb128() + in.readUleb128();
+            for (int j = 0; j < fieldCount; j++) {
+                in.readUleb128(); // field index delta
+                in.readUleb128(); // access flags
+            }
+            for (int j = 0; j < methodCount; j++) {
+                in.readUleb128(); // method index delta
+                in.readUleb128(); // access flags
+                int codeOff = in.readUleb128();
+                if (codeOff != 0) {
+                    result += Leb128.unsignedLeb128Size(codeOff + codeDelta)
+                            - Leb128.unsignedLeb128Size(codeOff);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies a class_data_item for code that moved by {@code codeDelta}, and
+     * relocates the debug info offset of that code in {@code result}.
+     */
+    private void relocateClassData(Dex.Section in, Dex.Section out, Dex result,
+            int codeDelta, int debugInfoDelta) {
+        int staticFieldsSize = in.readUleb128();
+        out.writeUleb128(staticFieldsSize);
+        int instanceFieldsSize = in.readUleb128();
+        out.writeUleb128(instanceFieldsSize);
+        int directMethodsSize = in.readUleb128();
+        out.writeUleb128(directMethodsSize);
+        int virtualMethodsSize = in.readUleb128();
+        out.writeUleb128(virtualMethodsSize);
+
+        for (int i = 0; i < staticFieldsSize + instanceFieldsSize; i++) {
+            out.writeUleb128(in.readUleb128()); // field index delta
+            out.writeUleb128(in.readUleb128()); // access flags
+        }
+        for (int i = 0; i < directMethodsSize + virtualMethodsSize; i++) {
+            out.writeUleb128(in.readUleb128()); // method index delta
+            out.writeUleb128(in.readUleb128()); // access flags
+            int codeOff = in.readUleb128();
+            if (codeOff == 0) {
+                out.writeUleb128(0);
+            } else {
+                out.writeUleb128(codeOff + codeDelta);
+                // Each code item belongs to a single method.
+                relocate(dexOut.open(codeOff + CODE_DEBUG_INFO_OFFSET),
+                        result.open(codeOff + codeDelta + CODE_DEBUG_INFO_OFFSET),
+                        debugInfoDelta);
+            }
+        }
+    }
+
+    /** offset of {@code debug_info_off} in a code_item */
+    private static final int CODE_DEBUG_INFO_OFFSET = 8;
+
+    /**
+     * Copies an offset from {@code in} to {@code out}, adjusted by
+     * {@code delta} unless it is 0.
+     */
+    private static void relocate(Dex.Section in, Dex.Section out, int delta) {
+        int offset = in.readInt();
+        out.writeInt(offset != 0 ? offset + delta : 0);
+    }
+
+    private static void skip(Dex.Section in, Dex.Section out, int count) {
+        in.skip(count);
+        out.skip(count);
+    }
+
+    /**
+     * Copies the bytes written to {@code section} of {@link #dexOut} to
+     * {@code out}.
+     */
+    private void copy(Dex.Section section, Dex.Section out) {
+        out.write(dexOut, start(section), section.used());
+    }
+
+    private static int start(Dex.Section section) {
+        return section.getPosition() - section.used();
+    }
+
     /**
      * Byte counts for the sections written when creating a dex. Target sizes
      * are defined in one of two ways:
@@ -1092,10 +1968,19 @@ public final class DexMerger {
             fourByteAlign();
         }
 
+        /**
+         * Compute exact sizes for the sections merged by {@code dexMerger},
+         * before their offsets are relocated.
+         */
         public WriterSizes(DexMerger dexMerger) {
-            header = dexMerger.headerOut.used();
             idsDefs = dexMerger.idsDefsOut.used();
-            mapList = dexMerger.mapListOut.used();
+            int mapItemCount = 0;
+            for (TableOfContents.Section section : dexMerger.contentsOut.sections) {
+                if (section.exists()) {
+                    mapItemCount++;
+                }
+            }
+            mapList = SizeOf.UINT + mapItemCount * SizeOf.MAP_ITEM;
             typeList = dexMerger.typeListOut.used();
             classData = dexMerger.classDataOut.used();
             code = dexMerger.codeOut.used();
@@ -1186,7 +2071,7 @@ public final class DexMerger {
 
         Dex[] dexes = new Dex[args.length - 1];
         for (int i = 1; i < args.length; i++) {
-            dexes[i - 1] = new Dex(new File(args[i]));
+            dexes[i - 1] = Dex.map(new File(args[i]));
         }
         Dex merged = new DexMerger(dexes, CollisionPolicy.KEEP_FIRST, new DxContext()).merge();
         merged.writeTo(new File(args[0]));
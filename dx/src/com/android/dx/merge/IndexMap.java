@@ -51,7 +51,7 @@ import com.android.dex.TableOfContents;
 import com.android.dex.TypeList;
 import com.android.dex.util.ByteOutput;
 import com.android.dx.util.ByteArrayAnnotatedOutput;
-import java.util.HashMap;
+import com.android.dx.util.IntIntMap;
 
 /**
  * Maps the index offsets from one dex file to those in another. For example, if
@@ -66,13 +66,14 @@ public final class IndexMap {
     public final short[] fieldIds;
     public final short[] methodIds;
     public final int[] callSiteIds;
-    public final HashMap<Integer, Integer> methodHandleIds;
-    private final HashMap<Integer, Integer> typeListOffsets;
-    private final HashMap<Integer, Integer> annotationOffsets;
-    private final HashMap<Integer, Integer> annotationSetOffsets;
-    private final HashMap<Integer, Integer> annotationSetRefListOffsets;
-    private final HashMap<Integer, Integer> annotationDirectoryOffsets;
-    private final HashMap<Integer, Integer> encodedArrayValueOffset;
+    public final IntIntMap methodHandleIds;
+    private final int methodHandleCount;
+    private final IntIntMap typeListOffsets;
+    private final IntIntMap annotationOffsets;
+    private final IntIntMap annotationSetOffsets;
+    private final IntIntMap annotationSetRefListOffsets;
+    private final IntIntMap annotationDirectoryOffsets;
+    private final IntIntMap encodedArrayValueOffset;
 
     public IndexMap(Dex target, TableOfContents tableOfContents) {
         this.target = target;
@@ -82,13 +83,16 @@ public final class IndexMap {
         this.fieldIds = new short[tableOfContents.fieldIds.size];
         this.methodIds = new short[tableOfContents.methodIds.size];
         this.callSiteIds = new int[tableOfContents.callSiteIds.size];
-        this.methodHandleIds = new HashMap<Integer, Integer>();
-        this.typeListOffsets = new HashMap<Integer, Integer>();
-        this.annotationOffsets = new HashMap<Integer, Integer>();
-        this.annotationSetOffsets = new HashMap<Integer, Integer>();
-        this.annotationSetRefListOffsets = new HashMap<Integer, Integer>();
-        this.annotationDirectoryOffsets = new HashMap<Integer, Integer>();
-        this.encodedArrayValueOffset = new HashMap<Integer, Integer>();
+        this.methodHandleIds = new IntIntMap(tableOfContents.methodHandles.size);
+        this.methodHandleCount = tableOfContents.methodHandles.size;
+        this.typeListOffsets = new IntIntMap(tableOfContents.typeLists.size + 1);
+        this.annotationOffsets = new IntIntMap(tableOfContents.annotations.size);
+        this.annotationSetOffsets = new IntIntMap(tableOfContents.annotationSets.size + 1);
+        this.annotationSetRefListOffsets =
+                new IntIntMap(tableOfContents.annotationSetRefLists.size);
+        this.annotationDirectoryOffsets =
+                new IntIntMap(tableOfContents.annotationsDirectories.size + 1);
+        this.encodedArrayValueOffset = new IntIntMap(tableOfContents.encodedArrays.size + 1);
 
         /*
          * A type list, annotation set, annotation directory, or static value at
@@ -205,6 +209,43 @@ public final class IndexMap {
         return methodHandleIds.get(methodHandleIndex);
     }
 
+    /**
+     * Returns whether every string, type, proto, field, method, call site
+     * and method handle keeps its index in the target. Code and debug info
+     * that only point to those are then the same in the target.
+     */
+    public boolean keepsIndexes() {
+        for (int i = 0; i < stringIds.length; i++) {
+            if (stringIds[i] != i) {
+                return false;
+            }
+        }
+        if (!keepsIndexes(typeIds) || !keepsIndexes(protoIds)
+                || !keepsIndexes(fieldIds) || !keepsIndexes(methodIds)) {
+            return false;
+        }
+        for (int i = 0; i < callSiteIds.length; i++) {
+            if (callSiteIds[i] != i) {
+                return false;
+            }
+        }
+        for (int i = 0; i < methodHandleCount; i++) {
+            if (!methodHandleIds.containsKey(i) || methodHandleIds.get(i) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean keepsIndexes(short[] indexes) {
+        for (int i = 0; i < indexes.length; i++) {
+            if ((indexes[i] & 0xffff) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public MethodId adjust(MethodId methodId) {
         return new MethodId(target,
                 adjustType(methodId.getDeclaringClassIndex()),
@@ -18,118 +18,247 @@ package com.android.dx.merge;
 
 import com.android.dex.DexException;
 import com.android.dex.DexIndexOverflowException;
-import com.android.dx.io.CodeReader;
+import com.android.dx.io.IndexType;
+import com.android.dx.io.OpcodeInfo;
 import com.android.dx.io.Opcodes;
 import com.android.dx.io.instructions.DecodedInstruction;
+import com.android.dx.io.instructions.InstructionCodec;
+import com.android.dx.io.instructions.OneRegisterDecodedInstruction;
+import com.android.dx.io.instructions.PackedSwitchPayloadDecodedInstruction;
 import com.android.dx.io.instructions.ShortArrayCodeOutput;
+import com.android.dx.io.instructions.SparseSwitchPayloadDecodedInstruction;
+import java.io.EOFException;
 
+/**
+ * Rewrites the string, type, field, method, proto and call site indexes of
+ * a method body for the merged dex. Instructions are walked with the
+ * format table of {@link OpcodeInfo} and their index operands are patched
+ * in place, without decoding them. A const-string whose new index doesn't
+ * fit in 16 bits is widened to const-string/jumbo, which moves the code
+ * that follows it; such a method body is decoded and encoded again.
+ */
 final class InstructionTransformer {
-    private final CodeReader reader;
-
-    private DecodedInstruction[] mappedInstructions;
-    private int mappedAt;
-    private IndexMap indexMap;
-
-    public InstructionTransformer() {
-        this.reader = new CodeReader();
-        this.reader.setAllVisitors(new GenericVisitor());
-        this.reader.setStringVisitor(new StringVisitor());
-        this.reader.setTypeVisitor(new TypeVisitor());
-        this.reader.setFieldVisitor(new FieldVisitor());
-        this.reader.setMethodVisitor(new MethodVisitor());
-        this.reader.setMethodAndProtoVisitor(new MethodAndProtoVisitor());
-        this.reader.setCallSiteVisitor(new CallSiteVisitor());
-    }
-
-    public short[] transform(IndexMap indexMap, short[] encodedInstructions) throws DexException {
-        DecodedInstruction[] decodedInstructions =
-            DecodedInstruction.decodeAll(encodedInstructions);
-        int size = decodedInstructions.length;
+    /**
+     * Rewrites the indexes of {@code encodedInstructions}, in place unless a
+     * const-string has to be widened.
+     *
+     * @return {@code null} if the instructions were rewritten in place, or
+     * the widened instructions
+     */
+    public WidenedCode transform(IndexMap indexMap, short[] encodedInstructions)
+            throws DexException {
+        short[] code = encodedInstructions;
+        int offset = 0;
 
-        this.indexMap = indexMap;
-        mappedInstructions = new DecodedInstruction[size];
-        mappedAt = 0;
-        reader.visitAll(decodedInstructions);
+        while (offset < code.length) {
+            int opcode = Opcodes.extractOpcodeFromUnit(code[offset] & 0xffff);
+            OpcodeInfo.Info info = OpcodeInfo.get(opcode);
+            InstructionCodec format = info.getFormat();
+            int next = offset + format.codeUnitCount(code, offset);
+            if (next > code.length) {
+                throw new DexException(new EOFException());
+            }
 
-        ShortArrayCodeOutput out = new ShortArrayCodeOutput(size);
-        for (DecodedInstruction instruction : mappedInstructions) {
-            if (instruction != null) {
-                instruction.encode(out);
+            // Every index operand is in the second code unit.
+            switch (info.getIndexType()) {
+                case STRING_REF: {
+                    if (format == InstructionCodec.FORMAT_31C) {
+                        int stringId = readInt(code, offset + 1);
+                        writeInt(code, offset + 1, indexMap.adjustString(stringId));
+                    } else {
+                        int mappedId = indexMap.adjustString(code[offset + 1] & 0xffff);
+                        if (mappedId > 0xffff) {
+                            return widen(indexMap, code, offset);
+                        }
+                        code[offset + 1] = (short) mappedId;
+                    }
+                    break;
+                }
+                case TYPE_REF: {
+                    int mappedId = indexMap.adjustType(code[offset + 1] & 0xffff);
+                    jumboCheck(false, mappedId);
+                    code[offset + 1] = (short) mappedId;
+                    break;
+                }
+                case FIELD_REF: {
+                    int mappedId = indexMap.adjustField(code[offset + 1] & 0xffff);
+                    jumboCheck(false, mappedId);
+                    code[offset + 1] = (short) mappedId;
+                    break;
+                }
+                case METHOD_REF: {
+                    int mappedId = indexMap.adjustMethod(code[offset + 1] & 0xffff);
+                    jumboCheck(false, mappedId);
+                    code[offset + 1] = (short) mappedId;
+                    break;
+                }
+                case METHOD_AND_PROTO_REF: {
+                    // The proto index is in the fourth code unit.
+                    code[offset + 1] = (short) indexMap.adjustMethod(code[offset + 1] & 0xffff);
+                    code[offset + 3] = (short) indexMap.adjustProto(code[offset + 3] & 0xffff);
+                    break;
+                }
+                case CALL_SITE_REF: {
+                    code[offset + 1] = (short) indexMap.adjustCallSite(code[offset + 1] & 0xffff);
+                    break;
+                }
+                default:
+                    break;
             }
+
+            offset = next;
         }
 
-        this.indexMap = null;
-        return out.getArray();
+        return null;
     }
 
-    private class GenericVisitor implements CodeReader.Visitor {
-        @Override
-        public void visit(DecodedInstruction[] all, DecodedInstruction one) {
-            mappedInstructions[mappedAt++] = one;
+    /**
+     * Rewrites the indexes of {@code code} by decoding and encoding it again,
+     * widening const-string instructions whose new index doesn't fit in 16
+     * bits. Branch targets and switch payloads are moved along with the
+     * instructions, and payloads are kept 32-bit aligned.
+     *
+     * @param from the address of the first instruction whose indexes are
+     * still to be rewritten; those before it were rewritten in place
+     */
+    private static WidenedCode widen(IndexMap indexMap, short[] code, int from) {
+        DecodedInstruction[] decoded = DecodedInstruction.decodeAll(code);
+        DecodedInstruction[] mapped = new DecodedInstruction[code.length];
+        int[] addresses = new int[code.length + 1];
+
+        int address = 0;
+        for (int i = 0; i < code.length; ) {
+            DecodedInstruction one = decoded[i];
+            int next = i + one.getFormat().codeUnitCount(code, i);
+            if (isPayload(one.getFormat()) && (address & 1) != 0) {
+                address++; // nop padding
+            }
+            mapped[i] = (i < from) ? one : transform(indexMap, one);
+            for (int j = i; j < next; j++) {
+                addresses[j] = address;
+            }
+            address += next - i;
+            if (mapped[i].getOpcode() != one.getOpcode()) {
+                address++; // widened to const-string/jumbo
+            }
+            i = next;
         }
-    }
+        addresses[code.length] = address;
 
-    private class StringVisitor implements CodeReader.Visitor {
-        @Override
-        public void visit(DecodedInstruction[] all, DecodedInstruction one) {
-            int stringId = one.getIndex();
-            int mappedId = indexMap.adjustString(stringId);
-            boolean isJumbo = (one.getOpcode() == Opcodes.CONST_STRING_JUMBO);
-            jumboCheck(isJumbo, mappedId);
-            mappedInstructions[mappedAt++] = one.withIndex(mappedId);
+        ShortArrayCodeOutput out = new ShortArrayCodeOutput(address);
+        for (int i = 0; i < code.length; i++) {
+            DecodedInstruction one = decoded[i];
+            if (one != null && (one.getOpcode() == Opcodes.PACKED_SWITCH
+                    || one.getOpcode() == Opcodes.SPARSE_SWITCH)) {
+                out.setBaseAddress(addresses[one.getTarget()], addresses[i]);
+            }
+        }
+        for (int i = 0; i < code.length; i++) {
+            DecodedInstruction one = mapped[i];
+            if (one == null) {
+                continue;
+            }
+            while (out.cursor() < addresses[i]) {
+                out.write((short) Opcodes.NOP);
+            }
+            moveTargets(one, addresses).encode(out);
         }
+
+        return new WidenedCode(out.getArray(), addresses);
     }
 
-    private class FieldVisitor implements CodeReader.Visitor {
-        @Override
-        public void visit(DecodedInstruction[] all, DecodedInstruction one) {
-            int fieldId = one.getIndex();
-            int mappedId = indexMap.adjustField(fieldId);
-            boolean isJumbo = (one.getOpcode() == Opcodes.CONST_STRING_JUMBO);
-            jumboCheck(isJumbo, mappedId);
-            mappedInstructions[mappedAt++] = one.withIndex(mappedId);
+    /**
+     * Returns {@code one} with its indexes rewritten, widened to
+     * const-string/jumbo if needed.
+     */
+    private static DecodedInstruction transform(IndexMap indexMap, DecodedInstruction one) {
+        IndexType indexType = one.getIndexType();
+        if (indexType == null) {
+            return one;
+        }
+        switch (indexType) {
+            case STRING_REF: {
+                int mappedId = indexMap.adjustString(one.getIndex());
+                if (one.getOpcode() == Opcodes.CONST_STRING && mappedId > 0xffff) {
+                    return new OneRegisterDecodedInstruction(InstructionCodec.FORMAT_31C,
+                            Opcodes.CONST_STRING_JUMBO, mappedId, IndexType.STRING_REF,
+                            0, 0L, one.getA());
+                }
+                return one.withIndex(mappedId);
+            }
+            case TYPE_REF: {
+                int mappedId = indexMap.adjustType(one.getIndex());
+                jumboCheck(false, mappedId);
+                return one.withIndex(mappedId);
+            }
+            case FIELD_REF: {
+                int mappedId = indexMap.adjustField(one.getIndex());
+                jumboCheck(false, mappedId);
+                return one.withIndex(mappedId);
+            }
+            case METHOD_REF: {
+                int mappedId = indexMap.adjustMethod(one.getIndex());
+                jumboCheck(false, mappedId);
+                return one.withIndex(mappedId);
+            }
+            case METHOD_AND_PROTO_REF:
+                return one.withProtoIndex(indexMap.adjustMethod(one.getIndex()),
+                        indexMap.adjustProto(one.getProtoIndex() & 0xffff));
+            case CALL_SITE_REF:
+                return one.withIndex(indexMap.adjustCallSite(one.getIndex()));
+            default:
+                return one;
         }
     }
 
-    private class TypeVisitor implements CodeReader.Visitor {
-        @Override
-        public void visit(DecodedInstruction[] all, DecodedInstruction one) {
-            int typeId = one.getIndex();
-            int mappedId = indexMap.adjustType(typeId);
-            boolean isJumbo = (one.getOpcode() == Opcodes.CONST_STRING_JUMBO);
-            jumboCheck(isJumbo, mappedId);
-            mappedInstructions[mappedAt++] = one.withIndex(mappedId);
+    /**
+     * Returns {@code one} with its branch targets moved to their new
+     * {@code addresses}.
+     */
+    private static DecodedInstruction moveTargets(DecodedInstruction one, int[] addresses) {
+        InstructionCodec format = one.getFormat();
+        if (format == InstructionCodec.FORMAT_PACKED_SWITCH_PAYLOAD) {
+            PackedSwitchPayloadDecodedInstruction payload =
+                    (PackedSwitchPayloadDecodedInstruction) one;
+            return new PackedSwitchPayloadDecodedInstruction(format, one.getOpcode(),
+                    payload.getFirstKey(), moveTargets(payload.getTargets(), addresses));
+        } else if (format == InstructionCodec.FORMAT_SPARSE_SWITCH_PAYLOAD) {
+            SparseSwitchPayloadDecodedInstruction payload =
+                    (SparseSwitchPayloadDecodedInstruction) one;
+            return new SparseSwitchPayloadDecodedInstruction(format, one.getOpcode(),
+                    payload.getKeys(), moveTargets(payload.getTargets(), addresses));
+        } else if (format == InstructionCodec.FORMAT_10T
+                || format == InstructionCodec.FORMAT_20T
+                || format == InstructionCodec.FORMAT_30T
+                || format == InstructionCodec.FORMAT_21T
+                || format == InstructionCodec.FORMAT_22T
+                || format == InstructionCodec.FORMAT_31T) {
+            return one.withTarget(addresses[one.getTarget()]);
         }
+        return one;
     }
 
-    private class MethodVisitor implements CodeReader.Visitor {
-        @Override
-        public void visit(DecodedInstruction[] all, DecodedInstruction one) {
-            int methodId = one.getIndex();
-            int mappedId = indexMap.adjustMethod(methodId);
-            boolean isJumbo = (one.getOpcode() == Opcodes.CONST_STRING_JUMBO);
-            jumboCheck(isJumbo, mappedId);
-            mappedInstructions[mappedAt++] = one.withIndex(mappedId);
+    private static int[] moveTargets(int[] targets, int[] addresses) {
+        int[] result = new int[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            result[i] = addresses[targets[i]];
         }
+        return result;
     }
 
-    private class MethodAndProtoVisitor implements CodeReader.Visitor {
-        @Override
-        public void visit(DecodedInstruction[] all, DecodedInstruction one) {
-            int methodId = one.getIndex();
-            int protoId = one.getProtoIndex();
-            mappedInstructions[mappedAt++] =
-                one.withProtoIndex(indexMap.adjustMethod(methodId), indexMap.adjustProto(protoId));
-        }
+    private static boolean isPayload(InstructionCodec format) {
+        return format == InstructionCodec.FORMAT_PACKED_SWITCH_PAYLOAD
+                || format == InstructionCodec.FORMAT_SPARSE_SWITCH_PAYLOAD
+                || format == InstructionCodec.FORMAT_FILL_ARRAY_DATA_PAYLOAD;
     }
 
-    private class CallSiteVisitor implements CodeReader.Visitor {
-        @Override
-        public void visit(DecodedInstruction[] all, DecodedInstruction one) {
-            int callSiteId = one.getIndex();
-            int mappedCallSiteId = indexMap.adjustCallSite(callSiteId);
-            mappedInstructions[mappedAt++] = one.withIndex(mappedCallSiteId);
-        }
+    private static int readInt(short[] code, int offset) {
+        return (code[offset] & 0xffff) | (code[offset + 1] << 16);
+    }
+
+    private static void writeInt(short[] code, int offset, int value) {
+        code[offset] = (short) value;
+        code[offset + 1] = (short) (value >> 16);
     }
 
     private static void jumboCheck(boolean isJumbo, int newIndex) {
@@ -138,4 +267,35 @@ final class InstructionTransformer {
                                    " into a non-jumbo instruction!");
         }
     }
+
+    /**
+     * The instructions of a method body in which const-strings were widened,
+     * and the new addresses of its old ones.
+     */
+    static final class WidenedCode {
+        private final short[] instructions;
+        private final int[] addresses;
+
+        WidenedCode(short[] instructions, int[] addresses) {
+            this.instructions = instructions;
+            this.addresses = addresses;
+        }
+
+        public short[] getInstructions() {
+            return instructions;
+        }
+
+        /**
+         * Returns the new address of the instruction at {@code address}, or of
+         * the end of the code.
+         */
+        public int getNewAddress(int address) {
+            int end = addresses.length - 1;
+            if (address > end) {
+                // Past the end, as a debug info address may be.
+                return addresses[end] + (address - end);
+            }
+            return addresses[address];
+        }
+    }
 }
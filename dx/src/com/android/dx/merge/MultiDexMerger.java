@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.merge;
+
+import com.android.dex.ClassDef;
+import com.android.dex.Dex;
+import com.android.dex.DexException;
+import com.android.dex.DexFormat;
+import com.android.dex.DexIndexOverflowException;
+import com.android.dex.FieldId;
+import com.android.dex.MethodId;
+import com.android.dex.ProtoId;
+import com.android.dex.SizeOf;
+import com.android.dex.TableOfContents;
+import com.android.dx.command.dexer.DxContext;
+import com.android.dx.util.IntList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges the classes of several dex files into as many dex files as it
+ * takes to keep the ids of each under the limits of the format.
+ *
+ * <p>Classes are placed in input order, each in the last output so far
+ * unless the ids it needs, including those of its code, annotations and
+ * static values, would take that output over a limit. Each output is then
+ * a {@link DexMerger} merge of its classes and of the ids and data they
+ * need. Classes of the main dex list all go to the first output.</p>
+ */
+public final class MultiDexMerger {
+    /** kinds of ids that have limits */
+    private static final int TYPES = 0;
+    private static final int PROTOS = 1;
+    private static final int FIELDS = 2;
+    private static final int METHODS = 3;
+    private static final int KINDS = 4;
+
+    private final Dex[] dexes;
+    private final CollisionPolicy collisionPolicy;
+    private final DxContext context;
+
+    /** {@code non-null;} descriptors of the classes of the first output */
+    private Set<String> mainDexClasses = Collections.emptySet();
+    /** {@code non-null;} descriptors of the classes left out of the outputs */
+    private Set<String> excludedClasses = Collections.emptySet();
+    private boolean minimalMainDex;
+    private int maxMemberIndexCount = DexFormat.MAX_MEMBER_IDX + 1;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /** number of each distinct id of each kind, by key */
+    private final List<Map<String, Integer>> globalIds = new ArrayList<Map<String, Integer>>();
+
+    /** global number of each id of each kind of each dex, or -1 if not known yet */
+    private final int[][][] globalIdCache;
+
+    public MultiDexMerger(Dex[] dexes, CollisionPolicy collisionPolicy, DxContext context) {
+        this.dexes = dexes;
+        this.collisionPolicy = collisionPolicy;
+        this.context = context;
+        this.globalIdCache = new int[dexes.length][KINDS][];
+        for (int kind = 0; kind < KINDS; kind++) {
+            globalIds.add(new HashMap<String, Integer>());
+        }
+    }
+
+    /**
+     * Sets the classes that go to the first output, as type descriptors
+     * such as {@code Ljava/lang/Object;}.
+     */
+    public void setMainDexClasses(Collection<String> descriptors) {
+        this.mainDexClasses = new HashSet<String>(descriptors);
+    }
+
+    /**
+     * Sets the classes of the inputs that are left out of the outputs, as
+     * type descriptors.
+     */
+    public void setExcludedClasses(Collection<String> descriptors) {
+        this.excludedClasses = new HashSet<String>(descriptors);
+    }
+
+    /**
+     * Sets whether the first output holds the classes of the main dex
+     * list only.
+     */
+    public void setMinimalMainDex(boolean minimalMainDex) {
+        this.minimalMainDex = minimalMainDex;
+    }
+
+    /**
+     * Sets the largest number of method ids, and of field ids, of each
+     * output. It defaults to the limit of the format.
+     */
+    public void setMaxMemberIndexCount(int maxMemberIndexCount) {
+        if (maxMemberIndexCount < 1 || maxMemberIndexCount > DexFormat.MAX_MEMBER_IDX + 1) {
+            throw new IllegalArgumentException("maxMemberIndexCount=" + maxMemberIndexCount);
+        }
+        this.maxMemberIndexCount = maxMemberIndexCount;
+    }
+
+    /**
+     * Sets the number of threads of each merge, see
+     * {@link DexMerger#setThreadCount}.
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount < 1");
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Returns the merged dex files, the first one holding the classes of
+     * the main dex list.
+     */
+    public List<Dex> merge() throws IOException {
+        List<Output> outputs = plan();
+
+        List<Dex> result = new ArrayList<Dex>(outputs.size());
+        for (Output output : outputs) {
+            if (output.classCount == 0) {
+                continue; // there are no classes at all
+            }
+            List<ReferencedItems> items = new ArrayList<ReferencedItems>();
+            for (int dex = 0; dex < dexes.length; dex++) {
+                IntList classDefs = output.classDefs[dex];
+                if (classDefs.size() == 0) {
+                    continue;
+                }
+                ReferencedItems dexItems = new ReferencedItems(dexes[dex]);
+                for (int i = 0; i < classDefs.size(); i++) {
+                    dexItems.addClass(readClassDef(dexes[dex], classDefs.get(i)));
+                }
+                items.add(dexItems);
+            }
+            DexMerger merger = new DexMerger(items.toArray(new ReferencedItems[items.size()]),
+                    collisionPolicy, context);
+            merger.setThreadCount(threadCount);
+            result.add(merger.merge());
+        }
+        return result;
+    }
+
+    /**
+     * Assigns each class to an output.
+     */
+    private List<Output> plan() {
+        // Pick the definition of each class to keep.
+        IntList[] classDefs = new IntList[dexes.length];
+        Set<String> defined = new HashSet<String>();
+        for (int dex = 0; dex < dexes.length; dex++) {
+            classDefs[dex] = new IntList();
+            int index = 0;
+            for (ClassDef classDef : dexes[dex].classDefs()) {
+                String descriptor = dexes[dex].typeNames().get(classDef.getTypeIndex());
+                if (!excludedClasses.contains(descriptor)) {
+                    if (defined.add(descriptor)) {
+                        classDefs[dex].add(index);
+                    } else if (collisionPolicy != CollisionPolicy.KEEP_FIRST) {
+                        throw new DexException("Multiple dex files define " + descriptor);
+                    }
+                }
+                index++;
+            }
+        }
+
+        ReferencedItems[] scratch = new ReferencedItems[dexes.length];
+        for (int dex = 0; dex < dexes.length; dex++) {
+            scratch[dex] = new ReferencedItems(dexes[dex]);
+        }
+
+        List<Output> outputs = new ArrayList<Output>();
+        Output current = new Output();
+        outputs.add(current);
+        IntList ids = new IntList();
+
+        // The main dex classes first, all of them in the first output.
+        for (int dex = 0; dex < dexes.length; dex++) {
+            for (int i = 0; i < classDefs[dex].size(); i++) {
+                int classDef = classDefs[dex].get(i);
+                if (!isMainDexClass(dex, classDef)) {
+                    continue;
+                }
+                collectIds(scratch[dex], dex, classDef, ids);
+                if (!current.fits(ids)) {
+                    throw new DexIndexOverflowException("Too many classes in the main dex list:"
+                            + " the ids of " + typeName(dex, classDef)
+                            + " don't fit in the first dex");
+                }
+                current.add(dex, classDef, ids);
+            }
+        }
+
+        if (minimalMainDex && current.classCount > 0) {
+            current = new Output();
+            outputs.add(current);
+        }
+
+        for (int dex = 0; dex < dexes.length; dex++) {
+            for (int i = 0; i < classDefs[dex].size(); i++) {
+                int classDef = classDefs[dex].get(i);
+                if (isMainDexClass(dex, classDef)) {
+                    continue;
+                }
+                collectIds(scratch[dex], dex, classDef, ids);
+                if (!current.fits(ids) && current.classCount > 0) {
+                    current = new Output();
+                    outputs.add(current);
+                }
+                // A class that doesn't fit in an empty output fails to merge.
+                current.add(dex, classDef, ids);
+            }
+        }
+
+        return outputs;
+    }
+
+    private boolean isMainDexClass(int dex, int classDef) {
+        return !mainDexClasses.isEmpty() && mainDexClasses.contains(typeName(dex, classDef));
+    }
+
+    private String typeName(int dex, int classDef) {
+        return dexes[dex].typeNames().get(readClassDef(dexes[dex], classDef).getTypeIndex());
+    }
+
+    private static ClassDef readClassDef(Dex dex, int index) {
+        TableOfContents.Section classDefs = dex.getTableOfContents().classDefs;
+        return dex.open(classDefs.off + index * SizeOf.CLASS_DEF_ITEM)
+                .readClassDef();
+    }
+
+    /**
+     * Sets {@code ids} to the kinds and global numbers of the ids that the
+     * class def at {@code classDef} of {@code dex} needs, as pairs.
+     */
+    private void collectIds(ReferencedItems scratch, int dex, int classDef, IntList ids) {
+        scratch.clear();
+        scratch.addClass(readClassDef(dexes[dex], classDef));
+
+        TableOfContents contents = dexes[dex].getTableOfContents();
+        IntList added = scratch.getAdded();
+        ids.shrink(0);
+        for (int i = 0; i < added.size(); i += 2) {
+            int sectionType = added.get(i);
+            int kind;
+            if (sectionType == contents.typeIds.type) {
+                kind = TYPES;
+            } else if (sectionType == contents.protoIds.type) {
+                kind = PROTOS;
+            } else if (sectionType == contents.fieldIds.type) {
+                kind = FIELDS;
+            } else if (sectionType == contents.methodIds.type) {
+                kind = METHODS;
+            } else {
+                continue;
+            }
+            ids.add(kind);
+            ids.add(globalId(dex, kind, added.get(i + 1)));
+        }
+    }
+
+    /**
+     * Returns the number shared by the equal ids of all dexes of the id at
+     * {@code index} of kind {@code kind} of {@code dex}.
+     */
+    private int globalId(int dex, int kind, int index) {
+        int[] cache = globalIdCache[dex][kind];
+        if (cache == null) {
+            TableOfContents contents = dexes[dex].getTableOfContents();
+            int size = kind == TYPES ? contents.typeIds.size
+                    : kind == PROTOS ? contents.protoIds.size
+                    : kind == FIELDS ? contents.fieldIds.size
+                    : contents.methodIds.size;
+            cache = new int[size];
+            Arrays.fill(cache, -1);
+            globalIdCache[dex][kind] = cache;
+        }
+
+        if (cache[index] == -1) {
+            Map<String, Integer> ids = globalIds.get(kind);
+            String key = key(dexes[dex], kind, index);
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                ids.put(key, id);
+            }
+            cache[index] = id;
+        }
+        return cache[index];
+    }
+
+    /**
+     * Returns a string equal for equal ids of any dex.
+     */
+    private static String key(Dex dex, int kind, int index) {
+        List<String> typeNames = dex.typeNames();
+        switch (kind) {
+        case TYPES:
+            return typeNames.get(index);
+        case PROTOS:
+            return protoKey(dex, dex.protoIds().get(index));
+        case FIELDS:
+            FieldId fieldId = dex.fieldIds().get(index);
+            return typeNames.get(fieldId.getDeclaringClassIndex()) + "->"
+                    + dex.strings().get(fieldId.getNameIndex()) + ":"
+                    + typeNames.get(fieldId.getTypeIndex());
+        default:
+            MethodId methodId = dex.methodIds().get(index);
+            return typeNames.get(methodId.getDeclaringClassIndex()) + "->"
+                    + dex.strings().get(methodId.getNameIndex())
+                    + protoKey(dex, dex.protoIds().get(methodId.getProtoIndex()));
+        }
+    }
+
+    private static String protoKey(Dex dex, ProtoId protoId) {
+        StringBuilder result = new StringBuilder();
+        result.append('(');
+        for (short type : dex.readTypeList(protoId.getParametersOffset()).getTypes()) {
+            result.append(dex.typeNames().get(type & 0xffff));
+        }
+        result.append(')');
+        result.append(dex.typeNames().get(protoId.getReturnTypeIndex()));
+        return result.toString();
+    }
+
+    /**
+     * The classes of one output, and the ids they need.
+     */
+    private final class Output {
+        /** index of each class def of each dex in this output */
+        final IntList[] classDefs = new IntList[dexes.length];
+
+        /** global numbers of the ids of each kind */
+        final BitSet[] ids = new BitSet[KINDS];
+        final int[] counts = new int[KINDS];
+        int classCount;
+
+        Output() {
+            for (int dex = 0; dex < dexes.length; dex++) {
+                classDefs[dex] = new IntList();
+            }
+            for (int kind = 0; kind < KINDS; kind++) {
+                ids[kind] = new BitSet();
+            }
+        }
+
+        /**
+         * Returns whether the ids of this output and {@code classIds}, as
+         * set by {@link #collectIds}, are within limits.
+         */
+        boolean fits(IntList classIds) {
+            int[] newCounts = counts.clone();
+            for (int i = 0; i < classIds.size(); i += 2) {
+                int kind = classIds.get(i);
+                if (!ids[kind].get(classIds.get(i + 1))) {
+                    newCounts[kind]++;
+                }
+            }
+            return newCounts[TYPES] <= DexFormat.MAX_TYPE_IDX + 1
+                    && newCounts[PROTOS] <= DexFormat.MAX_MEMBER_IDX + 1
+                    && newCounts[FIELDS] <= maxMemberIndexCount
+                    && newCounts[METHODS] <= maxMemberIndexCount;
+        }
+
+        void add(int dex, int classDef, IntList classIds) {
+            classDefs[dex].add(classDef);
+            classCount++;
+            for (int i = 0; i < classIds.size(); i += 2) {
+                int kind = classIds.get(i);
+                int id = classIds.get(i + 1);
+                if (!ids[kind].get(id)) {
+                    ids[kind].set(id);
+                    counts[kind]++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.merge;
+
+import static com.android.dex.EncodedValueReader.ENCODED_ANNOTATION;
+import static com.android.dex.EncodedValueReader.ENCODED_ARRAY;
+import static com.android.dex.EncodedValueReader.ENCODED_ENUM;
+import static com.android.dex.EncodedValueReader.ENCODED_FIELD;
+import static com.android.dex.EncodedValueReader.ENCODED_METHOD;
+import static com.android.dex.EncodedValueReader.ENCODED_METHOD_HANDLE;
+import static com.android.dex.EncodedValueReader.ENCODED_METHOD_TYPE;
+import static com.android.dex.EncodedValueReader.ENCODED_STRING;
+import static com.android.dex.EncodedValueReader.ENCODED_TYPE;
+
+import com.android.dex.ClassData;
+import com.android.dex.ClassDef;
+import com.android.dex.Code;
+import com.android.dex.Dex;
+import com.android.dex.EncodedValueReader;
+import com.android.dex.FieldId;
+import com.android.dex.MethodHandle;
+import com.android.dex.MethodId;
+import com.android.dex.ProtoId;
+import com.android.dex.SizeOf;
+import com.android.dex.TableOfContents;
+import com.android.dx.io.OpcodeInfo;
+import com.android.dx.io.Opcodes;
+import com.android.dx.io.instructions.InstructionCodec;
+import com.android.dx.util.IntList;
+import java.util.BitSet;
+
+/**
+ * The items of a dex that some of its classes need, found by following the
+ * references from their class defs: ids by index and data items by offset.
+ * A {@link DexMerger} given these items of each of its inputs merges only
+ * them, so that its result holds just the ids its classes use.
+ */
+final class ReferencedItems {
+    private final Dex dex;
+    private final TableOfContents contents;
+
+    private final BitSet classDefs = new BitSet();
+    private final BitSet stringIds = new BitSet();
+    private final BitSet typeIds = new BitSet();
+    private final BitSet protoIds = new BitSet();
+    private final BitSet fieldIds = new BitSet();
+    private final BitSet methodIds = new BitSet();
+    private final BitSet callSiteIds = new BitSet();
+    private final BitSet methodHandles = new BitSet();
+
+    /** type lists, annotations, their sets and directories, and encoded arrays */
+    private final BitSet offsets = new BitSet();
+
+    /**
+     * Section type and index or offset of each item added since the last
+     * {@link #clear}, as pairs.
+     */
+    private final IntList added = new IntList();
+
+    public ReferencedItems(Dex dex) {
+        this.dex = dex;
+        this.contents = dex.getTableOfContents();
+    }
+
+    public Dex getDex() {
+        return dex;
+    }
+
+    /**
+     * Removes all items, in time proportional to their number.
+     */
+    public void clear() {
+        for (int i = 0; i < added.size(); i += 2) {
+            bits(added.get(i)).clear(added.get(i + 1));
+        }
+        added.shrink(0);
+    }
+
+    /**
+     * Returns the items added since the last {@link #clear}, as pairs of
+     * the type of their section and their index, or their offset for data
+     * items.
+     */
+    public IntList getAdded() {
+        return added;
+    }
+
+    /**
+     * Returns whether the item of {@code section} at {@code index} and
+     * {@code offset} is needed. {@code section} is a section of the table
+     * of contents of the dex of these items.
+     */
+    public boolean contains(TableOfContents.Section section, int index, int offset) {
+        BitSet bits = bits(section.type);
+        return bits == offsets ? offsets.get(offset) : bits.get(index);
+    }
+
+    private BitSet bits(int sectionType) {
+        if (sectionType == contents.stringIds.type) {
+            return stringIds;
+        } else if (sectionType == contents.typeIds.type) {
+            return typeIds;
+        } else if (sectionType == contents.protoIds.type) {
+            return protoIds;
+        } else if (sectionType == contents.fieldIds.type) {
+            return fieldIds;
+        } else if (sectionType == contents.methodIds.type) {
+            return methodIds;
+        } else if (sectionType == contents.classDefs.type) {
+            return classDefs;
+        } else if (sectionType == contents.callSiteIds.type) {
+            return callSiteIds;
+        } else if (sectionType == contents.methodHandles.type) {
+            return methodHandles;
+        } else {
+            return offsets;
+        }
+    }
+
+    /**
+     * Marks the item at {@code key} of {@code section}, and returns whether
+     * it wasn't already. Items it references are the caller's to mark.
+     */
+    private boolean add(TableOfContents.Section section, BitSet bits, int key) {
+        if (bits.get(key)) {
+            return false;
+        }
+        bits.set(key);
+        added.add(section.type);
+        added.add(key);
+        return true;
+    }
+
+    /**
+     * Adds {@code classDef}, its members and everything they reference.
+     */
+    public void addClass(ClassDef classDef) {
+        int index = (classDef.getOffset() - contents.classDefs.off) / SizeOf.CLASS_DEF_ITEM;
+        if (!add(contents.classDefs, classDefs, index)) {
+            return;
+        }
+
+        addType(classDef.getTypeIndex());
+        if (classDef.getSupertypeIndex() != ClassDef.NO_INDEX) {
+            addType(classDef.getSupertypeIndex());
+        }
+        addTypeList(classDef.getInterfacesOffset());
+        if (classDef.getSourceFileIndex() != ClassDef.NO_INDEX) {
+            addString(classDef.getSourceFileIndex());
+        }
+        addAnnotationsDirectory(classDef.getAnnotationsOffset());
+        addEncodedArray(classDef.getStaticValuesOffset());
+
+        if (classDef.getClassDataOffset() != 0) {
+            ClassData classData = dex.readClassData(classDef);
+            for (ClassData.Field field : classData.allFields()) {
+                addField(field.getFieldIndex());
+            }
+            for (ClassData.Method method : classData.allMethods()) {
+                addMethod(method.getMethodIndex());
+                if (method.getCodeOffset() != 0) {
+                    addCode(dex.readCode(method));
+                }
+            }
+        }
+    }
+
+    private void addString(int index) {
+        add(contents.stringIds, stringIds, index);
+    }
+
+    private void addType(int index) {
+        if (add(contents.typeIds, typeIds, index)) {
+            addString(dex.descriptorIndexFromTypeIndex(index));
+        }
+    }
+
+    private void addProto(int index) {
+        if (add(contents.protoIds, protoIds, index)) {
+            ProtoId protoId = dex.protoIds().get(index);
+            addString(protoId.getShortyIndex());
+            addType(protoId.getReturnTypeIndex());
+            addTypeList(protoId.getParametersOffset());
+        }
+    }
+
+    private void addField(int index) {
+        if (add(contents.fieldIds, fieldIds, index)) {
+            FieldId fieldId = dex.fieldIds().get(index);
+            addType(fieldId.getDeclaringClassIndex());
+            addType(fieldId.getTypeIndex());
+            addString(fieldId.getNameIndex());
+        }
+    }
+
+    private void addMethod(int index) {
+        if (add(contents.methodIds, methodIds, index)) {
+            MethodId methodId = dex.methodIds().get(index);
+            addType(methodId.getDeclaringClassIndex());
+            addProto(methodId.getProtoIndex());
+            addString(methodId.getNameIndex());
+        }
+    }
+
+    private void addCallSite(int index) {
+        if (add(contents.callSiteIds, callSiteIds, index)) {
+            addEncodedArray(dex.open(contents.callSiteIds.off + index * SizeOf.CALL_SITE_ID_ITEM)
+                    .readInt());
+        }
+    }
+
+    private void addMethodHandle(int index) {
+        if (add(contents.methodHandles, methodHandles, index)) {
+            MethodHandle methodHandle = dex.open(
+                    contents.methodHandles.off + index * SizeOf.METHOD_HANDLE_ITEM)
+                    .readMethodHandle();
+            if (methodHandle.getMethodHandleType().isField()) {
+                addField(methodHandle.getFieldOrMethodId());
+            } else {
+                addMethod(methodHandle.getFieldOrMethodId());
+            }
+        }
+    }
+
+    private void addTypeList(int offset) {
+        if (offset != 0 && add(contents.typeLists, offsets, offset)) {
+            for (short type : dex.readTypeList(offset).getTypes()) {
+                addType(type & 0xffff);
+            }
+        }
+    }
+
+    private void addEncodedArray(int offset) {
+        if (offset != 0 && add(contents.encodedArrays, offsets, offset)) {
+            addArray(new EncodedValueReader(dex.open(offset), ENCODED_ARRAY));
+        }
+    }
+
+    private void addAnnotationsDirectory(int offset) {
+        if (offset == 0 || !add(contents.annotationsDirectories, offsets, offset)) {
+            return;
+        }
+
+        Dex.Section in = dex.open(offset);
+        addAnnotationSet(in.readInt());
+        int fieldsSize = in.readInt();
+        int methodsSize = in.readInt();
+        int parameterListSize = in.readInt();
+        for (int i = 0; i < fieldsSize; i++) {
+            addField(in.readInt());
+            addAnnotationSet(in.readInt());
+        }
+        for (int i = 0; i < methodsSize; i++) {
+            addMethod(in.readInt());
+            addAnnotationSet(in.readInt());
+        }
+        for (int i = 0; i < parameterListSize; i++) {
+            addMethod(in.readInt());
+            addAnnotationSetRefList(in.readInt());
+        }
+    }
+
+    private void addAnnotationSetRefList(int offset) {
+        if (offset != 0 && add(contents.annotationSetRefLists, offsets, offset)) {
+            Dex.Section in = dex.open(offset);
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                addAnnotationSet(in.readInt());
+            }
+        }
+    }
+
+    private void addAnnotationSet(int offset) {
+        if (offset != 0 && add(contents.annotationSets, offsets, offset)) {
+            Dex.Section in = dex.open(offset);
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                addAnnotation(in.readInt());
+            }
+        }
+    }
+
+    private void addAnnotation(int offset) {
+        if (add(contents.annotations, offsets, offset)) {
+            // Skip the visibility.
+            addEncodedAnnotation(new EncodedValueReader(dex.open(offset + 1), ENCODED_ANNOTATION));
+        }
+    }
+
+    private void addValue(EncodedValueReader reader) {
+        switch (reader.peek()) {
+        case ENCODED_METHOD_TYPE:
+            addProto(reader.readMethodType());
+            break;
+        case ENCODED_METHOD_HANDLE:
+            addMethodHandle(reader.readMethodHandle());
+            break;
+        case ENCODED_STRING:
+            addString(reader.readString());
+            break;
+        case ENCODED_TYPE:
+            addType(reader.readType());
+            break;
+        case ENCODED_FIELD:
+            addField(reader.readField());
+            break;
+        case ENCODED_ENUM:
+            addField(reader.readEnum());
+            break;
+        case ENCODED_METHOD:
+            addMethod(reader.readMethod());
+            break;
+        case ENCODED_ARRAY:
+            addArray(reader);
+            break;
+        case ENCODED_ANNOTATION:
+            addEncodedAnnotation(reader);
+            break;
+        default:
+            reader.skipValue();
+            break;
+        }
+    }
+
+    private void addArray(EncodedValueReader reader) {
+        int size = reader.readArray();
+        for (int i = 0; i < size; i++) {
+            addValue(reader);
+        }
+    }
+
+    private void addEncodedAnnotation(EncodedValueReader reader) {
+        int size = reader.readAnnotation();
+        addType(reader.getAnnotationType());
+        for (int i = 0; i < size; i++) {
+            addString(reader.readAnnotationName());
+            addValue(reader);
+        }
+    }
+
+    private void addCode(Code code) {
+        if (code.getDebugInfoOffset() != 0) {
+            addDebugInfo(dex.open(code.getDebugInfoOffset()));
+        }
+        for (Code.CatchHandler catchHandler : code.getCatchHandlers()) {
+            for (int type : catchHandler.getTypeIndexes()) {
+                addType(type);
+            }
+        }
+
+        // Walk the instructions like InstructionTransformer does.
+        short[] instructions = code.getInstructions();
+        int offset = 0;
+        while (offset < instructions.length) {
+            int opcode = Opcodes.extractOpcodeFromUnit(instructions[offset] & 0xffff);
+            OpcodeInfo.Info info = OpcodeInfo.get(opcode);
+            InstructionCodec format = info.getFormat();
+            int index = offset + 1 < instructions.length ? instructions[offset + 1] & 0xffff : 0;
+            switch (info.getIndexType()) {
+            case STRING_REF:
+                addString(format == InstructionCodec.FORMAT_31C
+                        ? index | (instructions[offset + 2] << 16)
+                        : index);
+                break;
+            case TYPE_REF:
+                addType(index);
+                break;
+            case FIELD_REF:
+                addField(index);
+                break;
+            case METHOD_REF:
+                addMethod(index);
+                break;
+            case METHOD_AND_PROTO_REF:
+                addMethod(index);
+                addProto(instructions[offset + 3] & 0xffff);
+                break;
+            case CALL_SITE_REF:
+                addCallSite(index);
+                break;
+            case METHOD_HANDLE_REF:
+                addMethodHandle(index);
+                break;
+            case PROTO_REF:
+                addProto(index);
+                break;
+            default:
+                break;
+            }
+            offset += format.codeUnitCount(instructions, offset);
+        }
+    }
+
+    private static final int DBG_END_SEQUENCE = 0x00;
+    private static final int DBG_ADVANCE_PC = 0x01;
+    private static final int DBG_ADVANCE_LINE = 0x02;
+    private static final int DBG_START_LOCAL = 0x03;
+    private static final int DBG_START_LOCAL_EXTENDED = 0x04;
+    private static final int DBG_END_LOCAL = 0x05;
+    private static final int DBG_RESTART_LOCAL = 0x06;
+    private static final int DBG_SET_FILE = 0x09;
+
+    private void addDebugInfo(Dex.Section in) {
+        in.readUleb128(); // line start
+        int parametersSize = in.readUleb128();
+        for (int p = 0; p < parametersSize; p++) {
+            addStringIfPresent(in.readUleb128p1());
+        }
+
+        while (true) {
+            int opcode = in.readByte();
+            switch (opcode) {
+            case DBG_END_SEQUENCE:
+                return;
+            case DBG_ADVANCE_PC:
+            case DBG_END_LOCAL:
+            case DBG_RESTART_LOCAL:
+                in.readUleb128();
+                break;
+            case DBG_ADVANCE_LINE:
+                in.readSleb128();
+                break;
+            case DBG_START_LOCAL:
+            case DBG_START_LOCAL_EXTENDED:
+                in.readUleb128(); // register
+                addStringIfPresent(in.readUleb128p1());
+                int type = in.readUleb128p1();
+                if (type != ClassDef.NO_INDEX) {
+                    addType(type);
+                }
+                if (opcode == DBG_START_LOCAL_EXTENDED) {
+                    addStringIfPresent(in.readUleb128p1());
+                }
+                break;
+            case DBG_SET_FILE:
+                addStringIfPresent(in.readUleb128p1());
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private void addStringIfPresent(int index) {
+        if (index != ClassDef.NO_INDEX) {
+            addString(index);
+        }
+    }
+}
@@ -20,8 +20,9 @@ import com.android.dx.rop.cst.Constant;
 import com.android.dx.rop.cst.CstString;
 import com.android.dx.rop.type.Type;
 import com.android.dx.rop.type.TypeBearer;
+import com.android.dx.util.Interner;
 import com.android.dx.util.ToHuman;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Combination of a register number and a type, used as the sources and
@@ -32,9 +33,9 @@ public final class RegisterSpec
     /** {@code non-null;} string to prefix register numbers with */
     public static final String PREFIX = "v";
 
-    /** {@code non-null;} intern table for instances */
-    private static final ConcurrentHashMap<Object, RegisterSpec> theInterns =
-        new ConcurrentHashMap<Object, RegisterSpec>(10_000, 0.75f);
+    /** {@code non-null;} intern table for instances, per {@link Interner} */
+    private static final Interner.Table<Object, RegisterSpec> theInterns =
+        new Interner.Table<Object, RegisterSpec>(10_000);
 
     /** {@code non-null;} common comparison instance used while interning */
     private static final ThreadLocal<ForComparison> theInterningItem =
@@ -70,10 +71,11 @@ public final class RegisterSpec
             LocalItem local) {
         ForComparison interningItem = theInterningItem.get();
         interningItem.set(reg, type, local);
-        RegisterSpec found = theInterns.get(interningItem);
+        ConcurrentMap<Object, RegisterSpec> table = Interner.current().get(theInterns);
+        RegisterSpec found = table.get(interningItem);
         if (found == null) {
             found = interningItem.toRegisterSpec();
-            RegisterSpec existing = theInterns.putIfAbsent(found, found);
+            RegisterSpec existing = table.putIfAbsent(found, found);
             if (existing != null) {
                 return existing;
             }
@@ -618,8 +620,11 @@ public final class RegisterSpec
         return sb.toString();
     }
 
+    /**
+     * Clears the intern table of the current {@link Interner}.
+     */
     public static void clearInternTable() {
-        theInterns.clear();
+        Interner.current().clear(theInterns);
     }
 
     /**
@@ -17,8 +17,8 @@
 package com.android.dx.rop.cst;
 
 import com.android.dx.rop.type.Type;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import com.android.dx.util.Interner;
+import java.util.HashMap;
 
 /**
  * Constants that represent an arbitrary type (reference or primitive).
@@ -26,12 +26,19 @@ import java.util.concurrent.ConcurrentMap;
 public final class CstType extends TypedConstant {
 
     /**
-     * Intern table for instances.
+     * Intern table for instances, per {@link Interner}.
      *
      * <p>The initial capacity is based on a medium-size project.
      */
-    private static final ConcurrentMap<Type, CstType> interns =
-            new ConcurrentHashMap<>(1_000, 0.75f);
+    private static final Interner.Table<Type, CstType> interns =
+            new Interner.Table<>(1_000);
+
+    /**
+     * Intern table for the constant fields below, which are shared by all
+     * {@link Interner}s. It is filled once by {@link #initInterns} and
+     * only read afterwards.
+     */
+    private static final HashMap<Type, CstType> sharedInterns = new HashMap<>(40);
 
     /** {@code non-null;} instance corresponding to the class {@code Object} */
     public static final CstType OBJECT = new CstType(Type.OBJECT);
@@ -124,7 +131,7 @@ public final class CstType extends TypedConstant {
     }
 
     private static void internInitial(CstType cst) {
-        if (interns.putIfAbsent(cst.getClassType(), cst) != null) {
+        if (sharedInterns.put(cst.getClassType(), cst) != null) {
             throw new IllegalStateException("Attempted re-init of " + cst);
         }
     }
@@ -171,8 +178,13 @@ public final class CstType extends TypedConstant {
      * @return {@code non-null;} an appropriately-constructed instance
      */
     public static CstType intern(Type type) {
+        CstType result = sharedInterns.get(type);
+        if (result != null) {
+            return result;
+        }
+
         CstType cst = new CstType(type);
-        CstType result = interns.putIfAbsent(type, cst);
+        result = Interner.current().get(interns).putIfAbsent(type, cst);
         return result != null ? result : cst;
     }
 
@@ -291,9 +303,12 @@ public final class CstType extends TypedConstant {
         }
     }
 
+    /**
+     * Clears the intern table of the current {@link Interner}. The
+     * constant fields are kept.
+     */
     public static void clearInternTable() {
-        interns.clear();
-        initInterns();
+        Interner.current().clear(interns);
     }
 
 }
@@ -16,7 +16,7 @@
 
 package com.android.dx.rop.type;
 
-import java.util.concurrent.ConcurrentHashMap;
+import com.android.dx.util.Interner;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -26,12 +26,12 @@ import java.util.concurrent.ConcurrentMap;
  */
 public final class Prototype implements Comparable<Prototype> {
     /**
-     * Intern table for instances.
+     * Intern table for instances, per {@link Interner}.
      *
      * <p>The initial capacity is based on a medium-size project.
      */
-    private static final ConcurrentMap<String, Prototype> internTable =
-            new ConcurrentHashMap<>(10_000, 0.75f);
+    private static final Interner.Table<String, Prototype> internTable =
+            new Interner.Table<>(10_000);
 
     /** {@code non-null;} method descriptor */
     private final String descriptor;
@@ -60,7 +60,7 @@ public final class Prototype implements Comparable<Prototype> {
             throw new NullPointerException("descriptor == null");
         }
 
-        Prototype result = internTable.get(descriptor);
+        Prototype result = Interner.current().get(internTable).get(descriptor);
         if (result != null) {
             return result;
         }
@@ -82,7 +82,7 @@ public final class Prototype implements Comparable<Prototype> {
      * invalid syntax
      */
     public static Prototype fromDescriptor(String descriptor) {
-        Prototype result = internTable.get(descriptor);
+        Prototype result = Interner.current().get(internTable).get(descriptor);
         if (result != null) {
             return result;
         }
@@ -131,8 +131,11 @@ public final class Prototype implements Comparable<Prototype> {
         return new Prototype(descriptor, returnType, parameterTypes);
     }
 
+    /**
+     * Clears the intern table of the current {@link Interner}.
+     */
     public static void clearInternTable() {
-        internTable.clear();
+        Interner.current().clear(internTable);
     }
 
     /**
@@ -415,7 +418,8 @@ public final class Prototype implements Comparable<Prototype> {
      * @return {@code non-null;} the actual interned object
      */
     private static Prototype putIntern(Prototype desc) {
-        Prototype result = internTable.putIfAbsent(desc.getDescriptor(), desc);
+        ConcurrentMap<String, Prototype> table = Interner.current().get(internTable);
+        Prototype result = table.putIfAbsent(desc.getDescriptor(), desc);
         return result != null ? result : desc;
     }
 }
@@ -17,8 +17,8 @@
 package com.android.dx.rop.type;
 
 import com.android.dx.util.Hex;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import com.android.dx.util.Interner;
+import java.util.HashMap;
 
 /**
  * Representation of a value type, such as may appear in a field, in a
@@ -28,12 +28,20 @@ import java.util.concurrent.ConcurrentMap;
  */
 public final class Type implements TypeBearer, Comparable<Type> {
     /**
-     * Intern table for instances.
+     * Intern table for instances, per {@link Interner}.
      *
      * <p>The initial capacity is based on a medium-size project.
      */
-    private static final ConcurrentMap<String, Type> internTable =
-            new ConcurrentHashMap<>(10_000, 0.75f);
+    private static final Interner.Table<String, Type> internTable =
+            new Interner.Table<>(10_000);
+
+    /**
+     * Intern table for the instances shared by all {@link Interner}s: the
+     * constant fields below, and the other types held in static fields,
+     * which must stay identical across interners. It is filled once by
+     * {@link #initInterns} and only read afterwards.
+     */
+    private static final HashMap<String, Type> sharedInternTable = new HashMap<>(100);
 
 
     /** basic type constant for {@code void} */
@@ -131,6 +139,9 @@ public final class Type implements TypeBearer, Comparable<Type> {
     /** {@code non-null;} instance representing {@code java.lang.Object} */
     public static final Type OBJECT = new Type("Ljava/lang/Object;", BT_OBJECT);
 
+    /** {@code non-null;} instance representing {@code java.lang.reflect.Array} */
+    public static final Type REFLECT_ARRAY = new Type("Ljava/lang/reflect/Array;", BT_OBJECT);
+
     /** {@code non-null;} instance representing {@code java.io.Serializable} */
     public static final Type SERIALIZABLE = new Type("Ljava/io/Serializable;", BT_OBJECT);
 
@@ -235,53 +246,86 @@ public final class Type implements TypeBearer, Comparable<Type> {
     }
 
     /**
-     * Put the constant fields, including primitive types in to the intern table.
+     * Put the constant fields, including primitive types in to the shared
+     * intern table, along with the types other classes hold in static
+     * fields.
      *
      * <p>Must be called after the types are initialized above.
      */
     private static void initInterns() {
-        putIntern(BOOLEAN);
-        putIntern(BYTE);
-        putIntern(CHAR);
-        putIntern(DOUBLE);
-        putIntern(FLOAT);
-        putIntern(INT);
-        putIntern(LONG);
-        putIntern(SHORT);
+        putSharedIntern(BOOLEAN);
+        putSharedIntern(BYTE);
+        putSharedIntern(CHAR);
+        putSharedIntern(DOUBLE);
+        putSharedIntern(FLOAT);
+        putSharedIntern(INT);
+        putSharedIntern(LONG);
+        putSharedIntern(SHORT);
         /*
          * Note: VOID isn't put in the intern table, since it's special and
          * shouldn't be found by a normal call to intern().
          */
 
-        putIntern(ANNOTATION);
-        putIntern(CLASS);
-        putIntern(CLONEABLE);
-        putIntern(METHOD_HANDLE);
-        putIntern(VAR_HANDLE);
-        putIntern(OBJECT);
-        putIntern(SERIALIZABLE);
-        putIntern(STRING);
-        putIntern(THROWABLE);
-        putIntern(BOOLEAN_CLASS);
-        putIntern(BYTE_CLASS);
-        putIntern(CHARACTER_CLASS);
-        putIntern(DOUBLE_CLASS);
-        putIntern(FLOAT_CLASS);
-        putIntern(INTEGER_CLASS);
-        putIntern(LONG_CLASS);
-        putIntern(SHORT_CLASS);
-        putIntern(VOID_CLASS);
+        putSharedIntern(ANNOTATION);
+        putSharedIntern(CLASS);
+        putSharedIntern(CLONEABLE);
+        putSharedIntern(METHOD_HANDLE);
+        putSharedIntern(VAR_HANDLE);
+        putSharedIntern(OBJECT);
+        putSharedIntern(REFLECT_ARRAY);
+        putSharedIntern(SERIALIZABLE);
+        putSharedIntern(STRING);
+        putSharedIntern(THROWABLE);
+        putSharedIntern(BOOLEAN_CLASS);
+        putSharedIntern(BYTE_CLASS);
+        putSharedIntern(CHARACTER_CLASS);
+        putSharedIntern(DOUBLE_CLASS);
+        putSharedIntern(FLOAT_CLASS);
+        putSharedIntern(INTEGER_CLASS);
+        putSharedIntern(LONG_CLASS);
+        putSharedIntern(SHORT_CLASS);
+        putSharedIntern(VOID_CLASS);
 
         // Array types
-        putIntern(BOOLEAN_ARRAY);
-        putIntern(BYTE_ARRAY);
-        putIntern(CHAR_ARRAY);
-        putIntern(DOUBLE_ARRAY);
-        putIntern(FLOAT_ARRAY);
-        putIntern(INT_ARRAY);
-        putIntern(LONG_ARRAY);
-        putIntern(OBJECT_ARRAY);
-        putIntern(SHORT_ARRAY);
+        putSharedIntern(BOOLEAN_ARRAY);
+        putSharedIntern(BYTE_ARRAY);
+        putSharedIntern(CHAR_ARRAY);
+        putSharedIntern(DOUBLE_ARRAY);
+        putSharedIntern(FLOAT_ARRAY);
+        putSharedIntern(INT_ARRAY);
+        putSharedIntern(LONG_ARRAY);
+        putSharedIntern(OBJECT_ARRAY);
+        putSharedIntern(SHORT_ARRAY);
+
+        // Types of com.android.dx.rop.code.Exceptions
+        String[] exceptionNames = {
+            "java/lang/ArithmeticException",
+            "java/lang/ArrayIndexOutOfBoundsException",
+            "java/lang/ArrayStoreException",
+            "java/lang/ClassCastException",
+            "java/lang/Error",
+            "java/lang/IllegalMonitorStateException",
+            "java/lang/NegativeArraySizeException",
+            "java/lang/NullPointerException",
+        };
+        for (String className : exceptionNames) {
+            putSharedIntern(new Type('L' + className + ';', BT_OBJECT));
+        }
+
+        // Types of com.android.dx.dex.file.AnnotationUtils
+        String[] annotationNames = {
+            "AnnotationDefault",
+            "EnclosingClass",
+            "EnclosingMethod",
+            "InnerClass",
+            "MemberClasses",
+            "Signature",
+            "SourceDebugExtension",
+            "Throws",
+        };
+        for (String simpleName : annotationNames) {
+            putSharedIntern(new Type("Ldalvik/annotation/" + simpleName + ';', BT_OBJECT));
+        }
     }
 
 
@@ -340,7 +384,13 @@ public final class Type implements TypeBearer, Comparable<Type> {
      * invalid syntax
      */
     public static Type intern(String descriptor) {
-        Type result = internTable.get(descriptor);
+        Type result = sharedInternTable.get(descriptor);
+
+        if (result != null) {
+            return result;
+        }
+
+        result = Interner.current().get(internTable).get(descriptor);
 
         if (result != null) {
             return result;
@@ -830,11 +880,21 @@ public final class Type implements TypeBearer, Comparable<Type> {
      * @return {@code non-null;} the array type
      */
     public Type getArrayType() {
-        if (arrayType == null) {
-            arrayType = putIntern(new Type('[' + descriptor, BT_OBJECT));
+        Type result = arrayType;
+
+        if (result == null) {
+            result = putIntern(new Type('[' + descriptor, BT_OBJECT));
+
+            /*
+             * A shared type keeps its array type only if that is shared
+             * too, as otherwise it belongs to the current interner.
+             */
+            if (result.isShared() || !isShared()) {
+                arrayType = result;
+            }
         }
 
-        return arrayType;
+        return result;
     }
 
     /**
@@ -902,12 +962,38 @@ public final class Type implements TypeBearer, Comparable<Type> {
      * @return {@code non-null;} the actual interned object
      */
     private static Type putIntern(Type type) {
-        Type result = internTable.putIfAbsent(type.getDescriptor(), type);
+        String descriptor = type.getDescriptor();
+        Type result = sharedInternTable.get(descriptor);
+        if (result == null) {
+            result = Interner.current().get(internTable).putIfAbsent(descriptor, type);
+        }
         return result != null ? result : type;
     }
 
+    /**
+     * Puts one of the constant fields in the shared intern table.
+     *
+     * @param type {@code non-null;} instance to make interned
+     */
+    private static void putSharedIntern(Type type) {
+        sharedInternTable.put(type.getDescriptor(), type);
+    }
+
+    /**
+     * Gets whether this instance is shared by all {@link Interner}s. Any
+     * other interned instance belongs to the current interner.
+     *
+     * @return whether this instance is shared
+     */
+    public boolean isShared() {
+        return sharedInternTable.get(descriptor) == this;
+    }
+
+    /**
+     * Clears the intern table of the current {@link Interner}. The shared
+     * types are kept.
+     */
     public static void clearInternTable() {
-        internTable.clear();
-        initInterns();
+        Interner.current().clear(internTable);
     }
 }
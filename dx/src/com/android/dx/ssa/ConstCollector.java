@@ -182,7 +182,7 @@ public class ConstCollector {
 
             // Find defining instruction for move-result-pseudo instructions
             if (insn.getOpcode().getOpcode() == RegOps.MOVE_RESULT_PSEUDO) {
-                int pred = insn.getBlock().getPredecessors().nextSetBit(0);
+                int pred = insn.getBlock().getPredecessors().first();
                 ArrayList<SsaInsn> predInsns;
                 predInsns = ssaMeth.getBlocks().get(pred).getInsns();
                 insn = predInsns.get(predInsns.size()-1);
@@ -200,7 +200,7 @@ public class ConstCollector {
                  * We can't move any throwable const whose throw will be
                  * caught, so don't count them.
                  */
-                if (insn.getBlock().getSuccessors().cardinality() > 1) {
+                if (insn.getBlock().getSuccessors().size() > 1) {
                     continue;
                 }
             }
@@ -390,7 +390,7 @@ public class ConstCollector {
 
             for (SsaInsn use : useList[origReg.getReg()]) {
                 if (use.canThrow()
-                        && use.getBlock().getSuccessors().cardinality() > 1) {
+                        && use.getBlock().getSuccessors().size() > 1) {
                     continue;
                 }
                 use.mapSourceRegisters(mapper);
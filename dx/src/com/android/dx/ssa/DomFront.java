@@ -18,7 +18,6 @@ package com.android.dx.ssa;
 
 import com.android.dx.util.IntSet;
 import java.util.ArrayList;
-import java.util.BitSet;
 
 /**
  * Calculates the dominance-frontiers of a method's basic blocks.
@@ -168,13 +167,11 @@ public class DomFront {
         for (int b = 0; b < szNodes; b++) {
             SsaBasicBlock nb = nodes.get(b);
             DomInfo nbInfo = domInfos[b];
-            BitSet pred = nb.getPredecessors();
+            EdgeSet pred = nb.getPredecessors();
 
-            if (pred.cardinality() > 1) {
-                for (int i = pred.nextSetBit(0); i >= 0;
-                     i = pred.nextSetBit(i + 1)) {
-
-                    for (int runnerIndex = i;
+            if (pred.size() > 1) {
+                for (int i = 0, sz = pred.size(); i < sz; i++) {
+                    for (int runnerIndex = pred.get(i);
                          runnerIndex != nbInfo.idom; /* empty */) {
                         /*
                          * We can stop if we hit a block we already
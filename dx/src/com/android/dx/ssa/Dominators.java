@@ -17,7 +17,6 @@
 package com.android.dx.ssa;
 
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.HashSet;
 
 /**
@@ -91,7 +90,7 @@ public final class Dominators {
         return result;
     }
 
-    private BitSet getSuccs(SsaBasicBlock block) {
+    private EdgeSet getSuccs(SsaBasicBlock block) {
         if (postdom) {
             return block.getPredecessors();
         } else {
@@ -99,7 +98,7 @@ public final class Dominators {
         }
     }
 
-    private BitSet getPreds(SsaBasicBlock block) {
+    private EdgeSet getPreds(SsaBasicBlock block) {
         if (postdom) {
             return block.getSuccessors();
         } else {
@@ -192,11 +191,9 @@ public final class Dominators {
             SsaBasicBlock w = vertex.get(i);
             DFSInfo wInfo = info[w.getIndex()];
 
-            BitSet preds = getPreds(w);
-            for (int j = preds.nextSetBit(0);
-                 j >= 0;
-                 j = preds.nextSetBit(j + 1)) {
-                SsaBasicBlock predBlock = blocks.get(j);
+            EdgeSet preds = getPreds(w);
+            for (int j = 0, sz = preds.size(); j < sz; j++) {
+                SsaBasicBlock predBlock = blocks.get(preds.get(j));
                 DFSInfo predInfo = info[predBlock.getIndex()];
 
                 /*
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.ssa;
+
+import com.android.dx.util.IntList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The predecessors or the successors of an {@link SsaBasicBlock}, as a
+ * set of block indices.
+ *
+ * <p>Most blocks have one or two of each, so the indices are kept in a
+ * sorted array, which takes space by the number of edges rather than by
+ * the number of blocks of the method as a {@code BitSet} would, and which
+ * is walked without scanning empty words. A block with many edges, such
+ * as a shared catch handler or the exit block, also keeps a
+ * {@code BitSet} of them so that {@link #has} doesn't search.</p>
+ *
+ * <p>The elements are walked in increasing order with {@link #size} and
+ * {@link #get}. Changing the set while walking it shifts the elements
+ * after the one changed, so callers that do iterate over a copy.</p>
+ */
+public final class EdgeSet {
+    /** number of elements above which a {@code BitSet} is kept as well */
+    private static final int DENSE_SIZE = 32;
+
+    /** {@code non-null;} empty array, shared by empty instances */
+    private static final int[] NO_INDICES = new int[0];
+
+    /** {@code non-null;} the elements, sorted, in the first {@code size} */
+    private int[] indices;
+
+    /** {@code >= 0;} the number of elements */
+    private int size;
+
+    /** {@code null-ok;} the elements, once there are more than {@code DENSE_SIZE} */
+    private BitSet dense;
+
+    /**
+     * Constructs an empty instance.
+     */
+    public EdgeSet() {
+        indices = NO_INDICES;
+    }
+
+    /**
+     * Constructs a copy of an instance.
+     *
+     * @param other {@code non-null;} the set to copy
+     */
+    public EdgeSet(EdgeSet other) {
+        indices = Arrays.copyOf(other.indices, other.size);
+        size = other.size;
+        if (other.dense != null) {
+            dense = (BitSet) other.dense.clone();
+        }
+    }
+
+    /**
+     * Constructs an instance with the elements of a list, in any order
+     * and possibly repeated.
+     *
+     * @param list {@code non-null;} the elements
+     */
+    public EdgeSet(IntList list) {
+        int sz = list.size();
+        int[] sorted = new int[sz];
+
+        for (int i = 0; i < sz; i++) {
+            sorted[i] = list.get(i);
+        }
+        Arrays.sort(sorted);
+
+        // Drop repeated elements.
+        int count = 0;
+        for (int i = 0; i < sz; i++) {
+            if (count == 0 || sorted[count - 1] != sorted[i]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+
+        indices = sorted;
+        size = count;
+        if (size > DENSE_SIZE) {
+            makeDense();
+        }
+    }
+
+    /**
+     * Gets the number of elements.
+     *
+     * @return {@code >= 0;} the number of elements
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets an element, by rank in increasing order.
+     *
+     * @param n {@code >= 0, < size();} the rank of the element
+     * @return the element
+     */
+    public int get(int n) {
+        if (n >= size) {
+            throw new IndexOutOfBoundsException("n >= size");
+        }
+        return indices[n];
+    }
+
+    /**
+     * Gets the smallest element, if any. Blocks with a single predecessor
+     * or successor use it to find it.
+     *
+     * @return {@code >= -1;} the smallest element, or {@code -1} if the
+     * set is empty
+     */
+    public int first() {
+        return size == 0 ? -1 : indices[0];
+    }
+
+    /**
+     * Returns whether an index is an element.
+     *
+     * @param index {@code >= 0;} the block index
+     * @return whether it is an element
+     */
+    public boolean has(int index) {
+        if (dense != null) {
+            return dense.get(index);
+        }
+        return Arrays.binarySearch(indices, 0, size, index) >= 0;
+    }
+
+    /**
+     * Adds an element, if it isn't one already.
+     *
+     * @param index {@code >= 0;} the block index
+     */
+    public void add(int index) {
+        int at = Arrays.binarySearch(indices, 0, size, index);
+
+        if (at >= 0) {
+            return;
+        }
+
+        at = -(at + 1);
+        if (size == indices.length) {
+            indices = Arrays.copyOf(indices, Math.max(2, size * 2));
+        }
+        System.arraycopy(indices, at, indices, at + 1, size - at);
+        indices[at] = index;
+        size++;
+
+        if (dense != null) {
+            dense.set(index);
+        } else if (size > DENSE_SIZE) {
+            makeDense();
+        }
+    }
+
+    /**
+     * Removes an element, if it is one.
+     *
+     * @param index {@code >= 0;} the block index
+     */
+    public void remove(int index) {
+        int at = Arrays.binarySearch(indices, 0, size, index);
+
+        if (at < 0) {
+            return;
+        }
+
+        System.arraycopy(indices, at + 1, indices, at, size - at - 1);
+        size--;
+
+        if (dense != null) {
+            dense.clear(index);
+        }
+    }
+
+    /**
+     * Sets the bits of the elements in a {@code BitSet}.
+     *
+     * @param bits {@code non-null;} the bits to set
+     */
+    public void addTo(BitSet bits) {
+        for (int i = 0; i < size; i++) {
+            bits.set(indices[i]);
+        }
+    }
+
+    /**
+     * Builds the {@code BitSet} of the elements, once there are many.
+     */
+    private void makeDense() {
+        dense = new BitSet(indices[size - 1] + 1);
+        addTo(dense);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(size * 4 + 2);
+
+        sb.append('{');
+        for (int i = 0; i < size; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(indices[i]);
+        }
+        sb.append('}');
+
+        return sb.toString();
+    }
+}
@@ -140,7 +140,7 @@ public class EscapeAnalysis {
      * the move
      */
     private SsaInsn getInsnForMove(SsaInsn moveInsn) {
-        int pred = moveInsn.getBlock().getPredecessors().nextSetBit(0);
+        int pred = moveInsn.getBlock().getPredecessors().first();
         ArrayList<SsaInsn> predInsns = ssaMeth.getBlocks().get(pred).getInsns();
         return predInsns.get(predInsns.size()-1);
     }
@@ -153,7 +153,7 @@ public class EscapeAnalysis {
      * @return {@code non-null;} the move result for the given instruction
      */
     private SsaInsn getMoveForInsn(SsaInsn insn) {
-        int succ = insn.getBlock().getSuccessors().nextSetBit(0);
+        int succ = insn.getBlock().getSuccessors().first();
         ArrayList<SsaInsn> succInsns = ssaMeth.getBlocks().get(succ).getInsns();
         return succInsns.get(0);
     }
@@ -79,7 +79,7 @@ public class LiteralOpUpgrader {
      * Run the literal op upgrader
      */
     private void run() {
-        final TranslationAdvice advice = Optimizer.getAdvice();
+        final TranslationAdvice advice = ssaMeth.getOptimizer().getAdvice();
 
         ssaMeth.forEachInsn(new SsaInsn.Visitor() {
             @Override
@@ -160,7 +160,7 @@ public class LiteralOpUpgrader {
 
                 // Remove the source as well if this is a move-result-pseudo
                 if (opcode.getOpcode() == RegOps.MOVE_RESULT_PSEUDO) {
-                    int pred = insn.getBlock().getPredecessors().nextSetBit(0);
+                    int pred = insn.getBlock().getPredecessors().first();
                     ArrayList<SsaInsn> predInsns =
                             ssaMeth.getBlocks().get(pred).getInsns();
                     NormalSsaInsn sourceInsn =
@@ -105,6 +105,18 @@ public final class NormalSsaInsn extends SsaInsn implements Cloneable {
         return (NormalSsaInsn) super.clone();
     }
 
+    /** {@inheritDoc} */
+    @Override
+    /*package*/ NormalSsaInsn copy(SsaBasicBlock block) {
+        NormalSsaInsn result = new NormalSsaInsn(insn, block);
+
+        if (getResult() != null) {
+            result.setResult(getResult());
+        }
+
+        return result;
+    }
+
     /**
      * Like rop.Insn.getSources().
      *
@@ -228,7 +240,8 @@ public final class NormalSsaInsn extends SsaInsn implements Cloneable {
         }
 
         boolean hasLocalSideEffect
-            = Optimizer.getPreserveLocals() && getLocalAssignment() != null;
+            = getBlock().getParent().getOptimizer().getPreserveLocals()
+                && getLocalAssignment() != null;
 
         switch (opcode.getOpcode()) {
             case RegOps.MOVE_RESULT:
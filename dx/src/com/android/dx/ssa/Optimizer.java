@@ -25,11 +25,49 @@ import java.util.EnumSet;
 /**
  * Runs a method through the SSA form conversion, any optimization algorithms,
  * and returns it to rop form.
+ *
+ * <p>An instance holds the options of the methods it optimizes, and keeps
+ * no other state, so one instance may optimize several methods at the
+ * same time on different threads.</p>
+ *
+ * <p>An instance may also have a budget of time per method. It is checked
+ * between the steps of the optimizer, so a method may overrun it by the
+ * time of one step before optimizing it fails with a
+ * {@link BudgetExceededException}.</p>
  */
 public class Optimizer {
-    private static boolean preserveLocals = true;
+    /**
+     * how many times the maximum optimal register count a method needs
+     * in SSA registers before a copy of it is kept in case the register
+     * count has to be minimized. Methods with fewer SSA registers hardly
+     * ever end up above that count, and start over when they do.
+     */
+    private static final int MINIMIZE_COPY_FACTOR = 4;
+
+    /**
+     * default number of SSA registers above which registers are allocated
+     * by linear scan. Past it, the sets of the interference graph are lists
+     * rather than bit sets, and building the graph takes much longer.
+     */
+    public static final int DEFAULT_LINEAR_SCAN_REGS = 3072;
+
+    /**
+     * true if local variable information should be preserved, even at
+     * code size/register size cost
+     */
+    private final boolean preserveLocals;
+
+    /** {@code non-null;} translation advice */
+    private final TranslationAdvice advice;
 
-    private static TranslationAdvice advice;
+    /** {@code >= 0;} time optimizing a method may take, or {@code 0} */
+    private final long budgetNanos;
+
+    /**
+     * {@code >= 0;} number of SSA registers above which registers are
+     * allocated by linear scan
+     */
+    private final int linearScanRegs;
 
     /** optional optimizer steps */
     public enum OptionalStep {
@@ -37,21 +75,91 @@ public class Optimizer {
             ESCAPE_ANALYSIS
     }
 
+    /**
+     * Constructs an instance.
+     *
+     * @param preserveLocals true if local variable info should be preserved,
+     * at the cost of some registers and insns
+     * @param advice {@code non-null;} translation advice
+     */
+    public Optimizer(boolean preserveLocals, TranslationAdvice advice) {
+        this(preserveLocals, advice, 0);
+    }
+
+    /**
+     * Constructs an instance with a budget of time per method.
+     *
+     * @param preserveLocals true if local variable info should be preserved,
+     * at the cost of some registers and insns
+     * @param advice {@code non-null;} translation advice
+     * @param budgetMillis {@code >= 0;} time optimizing a method may take,
+     * in milliseconds, or {@code 0} for no limit
+     */
+    public Optimizer(boolean preserveLocals, TranslationAdvice advice,
+            long budgetMillis) {
+        this(preserveLocals, advice, budgetMillis, DEFAULT_LINEAR_SCAN_REGS);
+    }
+
+    /**
+     * Constructs an instance with a budget of time per method, and a
+     * number of SSA registers above which registers are allocated by
+     * linear scan.
+     *
+     * @param preserveLocals true if local variable info should be preserved,
+     * at the cost of some registers and insns
+     * @param advice {@code non-null;} translation advice
+     * @param budgetMillis {@code >= 0;} time optimizing a method may take,
+     * in milliseconds, or {@code 0} for no limit
+     * @param linearScanRegs {@code >= 0;} number of SSA registers above
+     * which registers are allocated by linear scan, {@code 0} for all
+     * methods, or {@code Integer.MAX_VALUE} for none
+     */
+    public Optimizer(boolean preserveLocals, TranslationAdvice advice,
+            long budgetMillis, int linearScanRegs) {
+        if (advice == null) {
+            throw new NullPointerException("advice == null");
+        }
+
+        if (budgetMillis < 0) {
+            throw new IllegalArgumentException("budgetMillis < 0");
+        }
+
+        if (linearScanRegs < 0) {
+            throw new IllegalArgumentException("linearScanRegs < 0");
+        }
+
+        this.preserveLocals = preserveLocals;
+        this.advice = advice;
+        this.budgetNanos = budgetMillis * 1000000;
+        this.linearScanRegs = linearScanRegs;
+    }
+
     /**
      * @return true if local variable information should be preserved, even
      * at code size/register size cost
      */
-    public static boolean getPreserveLocals() {
+    public boolean getPreserveLocals() {
         return preserveLocals;
     }
 
     /**
      * @return {@code non-null;} translation advice
      */
-    public static TranslationAdvice getAdvice() {
+    public TranslationAdvice getAdvice() {
         return advice;
     }
 
+    /**
+     * Returns whether the registers of a method are allocated by linear
+     * scan rather than by the first-fit allocator.
+     *
+     * @param ssaMeth {@code non-null;} method to allocate registers of
+     * @return whether they are allocated by linear scan
+     */
+    public boolean usesLinearScan(SsaMethod ssaMeth) {
+        return ssaMeth.getRegCount() > linearScanRegs;
+    }
+
     /**
      * Runs optimization algorthims over this method, and returns a new
      * instance of RopMethod with the changes.
@@ -60,16 +168,12 @@ public class Optimizer {
      * @param paramWidth the total width, in register-units, of this method's
      * parameters
      * @param isStatic true if this method has no 'this' pointer argument.
-     * @param inPreserveLocals true if local variable info should be preserved,
-     * at the cost of some registers and insns
-     * @param inAdvice {@code non-null;} translation advice
      * @return optimized method
      */
-    public static RopMethod optimize(RopMethod rmeth, int paramWidth,
-            boolean isStatic, boolean inPreserveLocals,
-            TranslationAdvice inAdvice) {
+    public RopMethod optimize(RopMethod rmeth, int paramWidth,
+            boolean isStatic) {
 
-        return optimize(rmeth, paramWidth, isStatic, inPreserveLocals, inAdvice,
+        return optimize(rmeth, paramWidth, isStatic,
                 EnumSet.allOf(OptionalStep.class));
     }
 
@@ -81,30 +185,52 @@ public class Optimizer {
      * @param paramWidth the total width, in register-units, of this method's
      * parameters
      * @param isStatic true if this method has no 'this' pointer argument.
-     * @param inPreserveLocals true if local variable info should be preserved,
-     * at the cost of some registers and insns
-     * @param inAdvice {@code non-null;} translation advice
      * @param steps set of optional optimization steps to run
      * @return optimized method
+     * @throws BudgetExceededException if the optimizer has a budget of
+     * time per method, and the method takes longer
      */
-    public static RopMethod optimize(RopMethod rmeth, int paramWidth,
-            boolean isStatic, boolean inPreserveLocals,
-            TranslationAdvice inAdvice, EnumSet<OptionalStep> steps) {
+    public RopMethod optimize(RopMethod rmeth, int paramWidth,
+            boolean isStatic, EnumSet<OptionalStep> steps) {
         SsaMethod ssaMeth = null;
+        long start = System.nanoTime();
 
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
+        ssaMeth = SsaConverter.convertToSsaMethod(this, rmeth, paramWidth,
+                isStatic);
+        checkBudget(start);
+        runCommonSsaFormSteps(ssaMeth, steps, start);
 
-        ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
-        runSsaFormSteps(ssaMeth, steps);
+        /*
+         * Minimizing registers only differs from here on, so keep a copy
+         * to start it from, unless the method has so few SSA registers
+         * that it hardly ever needs it. Linear scan doesn't minimize
+         * registers, so there is no point in doing it again with it.
+         */
+        SsaMethod minimizeFrom = null;
+        if (ssaMeth.getRegCount() > advice.getMaxOptimalRegisterCount()
+                * MINIMIZE_COPY_FACTOR && !usesLinearScan(ssaMeth)) {
+            minimizeFrom = ssaMeth.copy();
+        }
 
+        runFinalSsaFormSteps(ssaMeth, steps, start);
+
+        boolean linearScan = usesLinearScan(ssaMeth);
         RopMethod resultMeth = SsaToRop.convertToRopMethod(ssaMeth, false);
 
         if (resultMeth.getBlocks().getRegCount()
-                > advice.getMaxOptimalRegisterCount()) {
+                > advice.getMaxOptimalRegisterCount() && !linearScan) {
+            checkBudget(start);
+
+            if (minimizeFrom == null) {
+                minimizeFrom = SsaConverter.convertToSsaMethod(this, rmeth,
+                        paramWidth, isStatic);
+                checkBudget(start);
+                runCommonSsaFormSteps(minimizeFrom, steps, start);
+            }
+
             // Try to see if we can squeeze it under the register count bar
-            resultMeth = optimizeMinimizeRegisters(rmeth, paramWidth, isStatic,
-                    steps);
+            resultMeth = optimizeMinimizeRegisters(minimizeFrom, steps,
+                    start);
         }
         return resultMeth;
     }
@@ -117,22 +243,16 @@ public class Optimizer {
      * with a different strategy to see if we can get under the bar. The end
      * result will be much more efficient.
      *
-     * @param rmeth method to process
-     * @param paramWidth the total width, in register-units, of this method's
-     * parameters
-     * @param isStatic true if this method has no 'this' pointer argument.
+     * @param ssaMeth method to process, which went through
+     * {@link #runCommonSsaFormSteps} only
      * @param steps set of optional optimization steps to run
+     * @param start start time of the optimization, for the budget
      * @return optimized method
      */
-    private static RopMethod optimizeMinimizeRegisters(RopMethod rmeth,
-            int paramWidth, boolean isStatic,
-            EnumSet<OptionalStep> steps) {
-        SsaMethod ssaMeth;
+    private RopMethod optimizeMinimizeRegisters(SsaMethod ssaMeth,
+            EnumSet<OptionalStep> steps, long start) {
         RopMethod resultMeth;
 
-        ssaMeth = SsaConverter.convertToSsaMethod(
-                rmeth, paramWidth, isStatic);
-
         EnumSet<OptionalStep> newSteps = steps.clone();
 
         /*
@@ -141,15 +261,40 @@ public class Optimizer {
          */
         newSteps.remove(OptionalStep.CONST_COLLECTOR);
 
-        runSsaFormSteps(ssaMeth, newSteps);
+        runFinalSsaFormSteps(ssaMeth, newSteps, start);
 
         resultMeth = SsaToRop.convertToRopMethod(ssaMeth, true);
         return resultMeth;
     }
 
-    private static void runSsaFormSteps(SsaMethod ssaMeth,
+    /**
+     * Throws if optimizing a method has taken longer than the budget.
+     *
+     * @param start start time of the optimization, as returned by
+     * {@link System#nanoTime}
+     */
+    private void checkBudget(long start) {
+        if (budgetNanos > 0 && System.nanoTime() - start > budgetNanos) {
+            throw new BudgetExceededException("optimization took longer than "
+                    + budgetNanos / 1000000 + "ms");
+        }
+    }
+
+    private void runSsaFormSteps(SsaMethod ssaMeth,
             EnumSet<OptionalStep> steps) {
-        boolean needsDeadCodeRemover = true;
+        long start = System.nanoTime();
+        runCommonSsaFormSteps(ssaMeth, steps, start);
+        runFinalSsaFormSteps(ssaMeth, steps, start);
+    }
+
+    /**
+     * Runs the steps that come before those that minimizing registers
+     * skips.
+     */
+    private void runCommonSsaFormSteps(SsaMethod ssaMeth,
+            EnumSet<OptionalStep> steps, long start) {
+        // The steps may be shared with methods optimized concurrently.
+        steps = steps.clone();
 
         if (steps.contains(OptionalStep.MOVE_PARAM_COMBINER)) {
             MoveParamCombiner.process(ssaMeth);
@@ -157,14 +302,14 @@ public class Optimizer {
 
         if (steps.contains(OptionalStep.SCCP)) {
             SCCP.process(ssaMeth);
+            checkBudget(start);
             DeadCodeRemover.process(ssaMeth);
-            needsDeadCodeRemover = false;
         }
 
         if (steps.contains(OptionalStep.LITERAL_UPGRADE)) {
+            checkBudget(start);
             LiteralOpUpgrader.process(ssaMeth);
             DeadCodeRemover.process(ssaMeth);
-            needsDeadCodeRemover = false;
         }
 
         /*
@@ -174,13 +319,25 @@ public class Optimizer {
         if (steps.contains(OptionalStep.ESCAPE_ANALYSIS)) {
             EscapeAnalysis.process(ssaMeth);
             DeadCodeRemover.process(ssaMeth);
-            needsDeadCodeRemover = false;
         }
+    }
+
+    /**
+     * Runs the steps from {@code CONST_COLLECTOR} on.
+     */
+    private void runFinalSsaFormSteps(SsaMethod ssaMeth,
+            EnumSet<OptionalStep> steps, long start) {
+        boolean needsDeadCodeRemover =
+            !steps.contains(OptionalStep.SCCP)
+            && !steps.contains(OptionalStep.LITERAL_UPGRADE);
+
+        checkBudget(start);
 
         if (steps.contains(OptionalStep.CONST_COLLECTOR)) {
             ConstCollector.process(ssaMeth);
             DeadCodeRemover.process(ssaMeth);
             needsDeadCodeRemover = false;
+            checkBudget(start);
         }
 
         // dead code remover must be run before phi type resolver
@@ -189,63 +346,45 @@ public class Optimizer {
         }
 
         PhiTypeResolver.process(ssaMeth);
+        checkBudget(start);
     }
 
-    public static SsaMethod debugEdgeSplit(RopMethod rmeth, int paramWidth,
-            boolean isStatic, boolean inPreserveLocals,
-            TranslationAdvice inAdvice) {
-
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
-
-        return SsaConverter.testEdgeSplit(rmeth, paramWidth, isStatic);
+    public SsaMethod debugEdgeSplit(RopMethod rmeth, int paramWidth,
+            boolean isStatic) {
+        return SsaConverter.testEdgeSplit(this, rmeth, paramWidth, isStatic);
     }
 
-    public static SsaMethod debugPhiPlacement(RopMethod rmeth, int paramWidth,
-            boolean isStatic, boolean inPreserveLocals,
-            TranslationAdvice inAdvice) {
-
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
-
-        return SsaConverter.testPhiPlacement(rmeth, paramWidth, isStatic);
+    public SsaMethod debugPhiPlacement(RopMethod rmeth, int paramWidth,
+            boolean isStatic) {
+        return SsaConverter.testPhiPlacement(this, rmeth, paramWidth,
+                isStatic);
     }
 
-    public static SsaMethod debugRenaming(RopMethod rmeth, int paramWidth,
-            boolean isStatic, boolean inPreserveLocals,
-            TranslationAdvice inAdvice) {
-
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
-
-        return SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
+    public SsaMethod debugRenaming(RopMethod rmeth, int paramWidth,
+            boolean isStatic) {
+        return SsaConverter.convertToSsaMethod(this, rmeth, paramWidth,
+                isStatic);
     }
 
-    public static SsaMethod debugDeadCodeRemover(RopMethod rmeth,
-            int paramWidth, boolean isStatic, boolean inPreserveLocals,
-            TranslationAdvice inAdvice) {
+    public SsaMethod debugDeadCodeRemover(RopMethod rmeth,
+            int paramWidth, boolean isStatic) {
 
         SsaMethod ssaMeth;
 
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
-
-        ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
+        ssaMeth = SsaConverter.convertToSsaMethod(this, rmeth, paramWidth,
+                isStatic);
         DeadCodeRemover.process(ssaMeth);
 
         return ssaMeth;
     }
 
-    public static SsaMethod debugNoRegisterAllocation(RopMethod rmeth,
-            int paramWidth, boolean isStatic, boolean inPreserveLocals,
-            TranslationAdvice inAdvice, EnumSet<OptionalStep> steps) {
+    public SsaMethod debugNoRegisterAllocation(RopMethod rmeth,
+            int paramWidth, boolean isStatic, EnumSet<OptionalStep> steps) {
 
         SsaMethod ssaMeth;
 
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
-
-        ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
+        ssaMeth = SsaConverter.convertToSsaMethod(this, rmeth, paramWidth,
+                isStatic);
 
         runSsaFormSteps(ssaMeth, steps);
 
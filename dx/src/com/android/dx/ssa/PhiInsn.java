@@ -76,12 +76,36 @@ public final class PhiInsn extends SsaInsn {
         ropResultReg = resultReg;
     }
 
+    /**
+     * Constructs a copy of a phi insn, for a copy of its block.
+     *
+     * @param phi {@code non-null;} the phi insn to copy
+     * @param block block containing the copy.
+     */
+    private PhiInsn(PhiInsn phi, SsaBasicBlock block) {
+        super(phi.getResult(), block);
+        ropResultReg = phi.ropResultReg;
+
+        for (Operand o : phi.operands) {
+            operands.add(new Operand(o.regSpec, o.blockIndex, o.ropLabel));
+        }
+
+        // The sources are immutable once built.
+        sources = phi.sources;
+    }
+
     /** {@inheritDoc} */
     @Override
     public PhiInsn clone() {
         throw new UnsupportedOperationException("can't clone phi");
     }
 
+    /** {@inheritDoc} */
+    @Override
+    /*package*/ PhiInsn copy(SsaBasicBlock block) {
+        return new PhiInsn(this, block);
+    }
+
     /**
      * Updates the TypeBearers of all the sources (phi operands) to be
      * the current TypeBearer of the register-defining instruction's result.
@@ -318,7 +342,8 @@ public final class PhiInsn extends SsaInsn {
     /** {@inheritDoc} */
     @Override
     public boolean hasSideEffect() {
-        return Optimizer.getPreserveLocals() && getLocalAssignment() != null;
+        return getBlock().getParent().getOptimizer().getPreserveLocals()
+                && getLocalAssignment() != null;
     }
 
     /** {@inheritDoc} */
@@ -51,10 +51,10 @@ public final class SsaBasicBlock {
     private final ArrayList<SsaInsn> insns;
 
     /** {@code non-null;} predecessor set (by block list index) */
-    private BitSet predecessors;
+    private EdgeSet predecessors;
 
     /** {@code non-null;} successor set (by block list index) */
-    private BitSet successors;
+    private EdgeSet successors;
 
     /**
      * {@code non-null;} ordered successor list
@@ -118,13 +118,39 @@ public final class SsaBasicBlock {
         this.insns = new ArrayList<SsaInsn>();
         this.ropLabel = ropLabel;
 
-        this.predecessors = new BitSet(parent.getBlocks().size());
-        this.successors = new BitSet(parent.getBlocks().size());
+        this.predecessors = new EdgeSet();
+        this.successors = new EdgeSet();
         this.successorList = new IntList();
 
         domChildren = new ArrayList<SsaBasicBlock>();
     }
 
+    /**
+     * Makes a copy of this block for a copy of its method, as part of
+     * {@link SsaMethod#copy}. The copy has no dom children, and no
+     * liveness information.
+     *
+     * @param copyParent {@code non-null;} the method of the copy
+     * @return {@code non-null;} the copy
+     */
+    /*package*/ SsaBasicBlock copy(SsaMethod copyParent) {
+        SsaBasicBlock result = new SsaBasicBlock(index, ropLabel, copyParent);
+
+        result.insns.ensureCapacity(insns.size());
+        for (SsaInsn insn : insns) {
+            result.insns.add(insn.copy(result));
+        }
+
+        result.predecessors = new EdgeSet(predecessors);
+        result.successors = new EdgeSet(successors);
+        result.successorList = successorList.mutableCopy();
+        result.primarySuccessor = primarySuccessor;
+        result.movesFromPhisAtEnd = movesFromPhisAtEnd;
+        result.movesFromPhisAtBeginning = movesFromPhisAtBeginning;
+
+        return result;
+    }
+
     /**
      * Creates a new SSA basic block from a ROP form basic block.
      *
@@ -148,17 +174,16 @@ public final class SsaBasicBlock {
             result.insns.add(new NormalSsaInsn (ropInsns.get(i), result));
         }
 
-        result.predecessors = SsaMethod.bitSetFromLabelList(
+        result.predecessors = new EdgeSet(SsaMethod.indexListFromLabelList(
                 ropBlocks,
-                rmeth.labelToPredecessors(bb.getLabel()));
-
-        result.successors
-                = SsaMethod.bitSetFromLabelList(ropBlocks, bb.getSuccessors());
+                rmeth.labelToPredecessors(bb.getLabel())));
 
         result.successorList
                 = SsaMethod.indexListFromLabelList(ropBlocks,
                     bb.getSuccessors());
 
+        result.successors = new EdgeSet(result.successorList);
+
         if (result.successorList.size() != 0) {
             int primarySuccessor = bb.getPrimarySuccessor();
 
@@ -333,14 +358,14 @@ public final class SsaBasicBlock {
     /**
      * @return {@code non-null;} predecessors set, indexed by block index
      */
-    public BitSet getPredecessors() {
+    public EdgeSet getPredecessors() {
         return predecessors;
     }
 
     /**
      * @return {@code non-null;} successors set, indexed by block index
      */
-    public BitSet getSuccessors() {
+    public EdgeSet getSuccessors() {
         return successors;
     }
 
@@ -411,20 +436,19 @@ public final class SsaBasicBlock {
 
         // Update the new block.
         newPred.predecessors = predecessors;
-        newPred.successors.set(index) ;
+        newPred.successors.add(index) ;
         newPred.successorList.add(index);
         newPred.primarySuccessor = index;
 
 
         // Update us.
-        predecessors = new BitSet(parent.getBlocks().size());
-        predecessors.set(newPred.index);
+        predecessors = new EdgeSet();
+        predecessors.add(newPred.index);
 
         // Update our (soon-to-be) old predecessors.
-        for (int i = newPred.predecessors.nextSetBit(0); i >= 0;
-                i = newPred.predecessors.nextSetBit(i + 1)) {
-
-            SsaBasicBlock predBlock = parent.getBlocks().get(i);
+        for (int i = 0, sz = newPred.predecessors.size(); i < sz; i++) {
+            SsaBasicBlock predBlock =
+                parent.getBlocks().get(newPred.predecessors.get(i));
 
             predBlock.replaceSuccessor(index, newPred.index);
         }
@@ -446,14 +470,14 @@ public final class SsaBasicBlock {
     public SsaBasicBlock insertNewSuccessor(SsaBasicBlock other) {
         SsaBasicBlock newSucc = parent.makeNewGotoBlock();
 
-        if (!successors.get(other.index)) {
+        if (!successors.has(other.index)) {
             throw new RuntimeException("Block " + other.getRopLabelString()
                     + " not successor of " + getRopLabelString());
         }
 
         // Update the new block.
-        newSucc.predecessors.set(this.index);
-        newSucc.successors.set(other.index) ;
+        newSucc.predecessors.add(this.index);
+        newSucc.successors.add(other.index) ;
         newSucc.successorList.add(other.index);
         newSucc.primarySuccessor = other.index;
 
@@ -467,12 +491,12 @@ public final class SsaBasicBlock {
         if (primarySuccessor == other.index) {
             primarySuccessor = newSucc.index;
         }
-        successors.clear(other.index);
-        successors.set(newSucc.index);
+        successors.remove(other.index);
+        successors.add(newSucc.index);
 
         // Update "other".
-        other.predecessors.set(newSucc.index);
-        other.predecessors.set(index, successors.get(other.index));
+        other.predecessors.add(newSucc.index);
+        other.predecessors.remove(index);
 
         return newSucc;
     }
@@ -490,7 +514,7 @@ public final class SsaBasicBlock {
         }
 
         // Update us.
-        successors.set(newIndex);
+        successors.add(newIndex);
 
         if (primarySuccessor == oldIndex) {
             primarySuccessor = newIndex;
@@ -502,13 +526,13 @@ public final class SsaBasicBlock {
             }
         }
 
-        successors.clear(oldIndex);
+        successors.remove(oldIndex);
 
         // Update new successor.
-        parent.getBlocks().get(newIndex).predecessors.set(index);
+        parent.getBlocks().get(newIndex).predecessors.add(index);
 
         // Update old successor.
-        parent.getBlocks().get(oldIndex).predecessors.clear(index);
+        parent.getBlocks().get(oldIndex).predecessors.remove(index);
     }
 
     /**
@@ -528,8 +552,8 @@ public final class SsaBasicBlock {
         }
 
         successorList.removeIndex(removeIndex);
-        successors.clear(oldIndex);
-        parent.getBlocks().get(oldIndex).predecessors.clear(index);
+        successors.remove(oldIndex);
+        parent.getBlocks().get(oldIndex).predecessors.remove(index);
     }
 
     /**
@@ -549,10 +573,10 @@ public final class SsaBasicBlock {
              * This is an exit predecessor.
              * Set the successor to the exit block
              */
-            successors.set(exitBlock.index);
+            successors.add(exitBlock.index);
             successorList.add(exitBlock.index);
             primarySuccessor = exitBlock.index;
-            exitBlock.predecessors.set(this.index);
+            exitBlock.predecessors.add(this.index);
         }
     }
 
@@ -570,7 +594,7 @@ public final class SsaBasicBlock {
          * Check that there are no other successors otherwise we may
          * insert a move that affects those (b/69128828).
          */
-        if (successors.cardinality() > 1) {
+        if (successors.size() > 1) {
             throw new IllegalStateException("Inserting a move to a block with multiple successors");
         }
 
@@ -597,13 +621,10 @@ public final class SsaBasicBlock {
              * only us as a predecessor.
              */
 
-            for (int i = successors.nextSetBit(0)
-                    ; i >= 0
-                    ; i = successors.nextSetBit(i + 1)) {
-
+            for (int i = 0, sz = successors.size(); i < sz; i++) {
                 SsaBasicBlock succ;
 
-                succ = parent.getBlocks().get(i);
+                succ = parent.getBlocks().get(successors.get(i));
                 succ.addMoveToBeginning(result, source);
             }
         } else {
@@ -32,6 +32,7 @@ public class SsaConverter {
      * Returns an SSA representation, edge-split and with phi
      * functions placed.
      *
+     * @param optimizer {@code non-null;} the optimizer of the method
      * @param rmeth input
      * @param paramWidth the total width, in register-units, of the method's
      * parameters
@@ -39,10 +40,10 @@ public class SsaConverter {
      * pointer argument
      * @return output in SSA form
      */
-    public static SsaMethod convertToSsaMethod(RopMethod rmeth,
-            int paramWidth, boolean isStatic) {
-        SsaMethod result
-            = SsaMethod.newFromRopMethod(rmeth, paramWidth, isStatic);
+    public static SsaMethod convertToSsaMethod(Optimizer optimizer,
+            RopMethod rmeth, int paramWidth, boolean isStatic) {
+        SsaMethod result = SsaMethod.newFromRopMethod(optimizer, rmeth,
+                paramWidth, isStatic);
 
         edgeSplit(result);
 
@@ -76,17 +77,19 @@ public class SsaConverter {
     /**
      * Returns an SSA represention with only the edge-splitter run.
      *
+     * @param optimizer {@code non-null;} the optimizer of the method
      * @param rmeth method to process
      * @param paramWidth width of all arguments in the method
      * @param isStatic {@code true} if this method has no {@code this}
      * pointer argument
      * @return an SSA represention with only the edge-splitter run
      */
-    public static SsaMethod testEdgeSplit (RopMethod rmeth, int paramWidth,
-            boolean isStatic) {
+    public static SsaMethod testEdgeSplit (Optimizer optimizer, RopMethod rmeth,
+            int paramWidth, boolean isStatic) {
         SsaMethod result;
 
-        result = SsaMethod.newFromRopMethod(rmeth, paramWidth, isStatic);
+        result = SsaMethod.newFromRopMethod(optimizer, rmeth, paramWidth,
+                isStatic);
 
         edgeSplit(result);
         return result;
@@ -96,17 +99,19 @@ public class SsaConverter {
      * Returns an SSA represention with only the steps through the
      * phi placement run.
      *
+     * @param optimizer {@code non-null;} the optimizer of the method
      * @param rmeth method to process
      * @param paramWidth width of all arguments in the method
      * @param isStatic {@code true} if this method has no {@code this}
      * pointer argument
      * @return an SSA represention with only the edge-splitter run
      */
-    public static SsaMethod testPhiPlacement (RopMethod rmeth, int paramWidth,
-            boolean isStatic) {
+    public static SsaMethod testPhiPlacement (Optimizer optimizer, RopMethod rmeth,
+            int paramWidth, boolean isStatic) {
         SsaMethod result;
 
-        result = SsaMethod.newFromRopMethod(rmeth, paramWidth, isStatic);
+        result = SsaMethod.newFromRopMethod(optimizer, rmeth, paramWidth,
+                isStatic);
 
         edgeSplit(result);
 
@@ -168,8 +173,8 @@ public class SsaConverter {
          * predecessors needs a new predecessor node.
          */
 
-        int countPredecessors = block.getPredecessors().cardinality();
-        int countSuccessors = block.getSuccessors().cardinality();
+        int countPredecessors = block.getPredecessors().size();
+        int countSuccessors = block.getSuccessors().size();
 
         return  (countPredecessors > 1 && countSuccessors > 1);
     }
@@ -198,14 +203,13 @@ public class SsaConverter {
              * one predecessor...
              */
             if (!block.isExitBlock()
-                    && block.getPredecessors().cardinality() > 1
+                    && block.getPredecessors().size() > 1
                     && block.getInsns().get(0).isMoveException()) {
 
                 // block.getPredecessors() is changed in the loop below.
-                BitSet preds = (BitSet)block.getPredecessors().clone();
-                for (int j = preds.nextSetBit(0); j >= 0;
-                     j = preds.nextSetBit(j + 1)) {
-                    SsaBasicBlock predecessor = blocks.get(j);
+                EdgeSet preds = new EdgeSet(block.getPredecessors());
+                for (int j = 0, sz = preds.size(); j < sz; j++) {
+                    SsaBasicBlock predecessor = blocks.get(preds.get(j));
                     SsaBasicBlock zNode
                         = predecessor.insertNewSuccessor(block);
 
@@ -239,11 +243,9 @@ public class SsaConverter {
             SsaBasicBlock block = blocks.get(i);
 
             // Successors list is modified in loop below.
-            BitSet successors = (BitSet)block.getSuccessors().clone();
-            for (int j = successors.nextSetBit(0);
-                 j >= 0; j = successors.nextSetBit(j+1)) {
-
-                SsaBasicBlock succ = blocks.get(j);
+            EdgeSet successors = new EdgeSet(block.getSuccessors());
+            for (int j = 0, sz = successors.size(); j < sz; j++) {
+                SsaBasicBlock succ = blocks.get(successors.get(j));
 
                 if (needsNewSuccessor(block, succ)) {
                     block.insertNewSuccessor(succ);
@@ -276,13 +278,13 @@ public class SsaConverter {
         // positioned before the first instruction in the predecessor
         // block. The generated bytecode was rejected by the ART
         // verifier.
-        if (block.getSuccessors().cardinality() > 1 && succ.getPredecessors().cardinality() > 1) {
+        if (block.getSuccessors().size() > 1 && succ.getPredecessors().size() > 1) {
             return true;
         }
 
         return ((lastInsn.getResult() != null)
                     || (lastInsn.getSources().size() > 0))
-                && succ.getPredecessors().cardinality() > 1;
+                && succ.getPredecessors().size() > 1;
     }
 
     /**
@@ -70,6 +70,15 @@ public abstract class SsaInsn implements ToHuman, Cloneable {
         }
     }
 
+    /**
+     * Makes a copy of this instance for a copy of its block, as part of
+     * {@link SsaMethod#copy}.
+     *
+     * @param block {@code non-null;} the block of the copy
+     * @return {@code non-null;} the copy
+     */
+    /*package*/ abstract SsaInsn copy(SsaBasicBlock block);
+
     /**
      * Like {@link com.android.dx.rop.code.Insn getResult()}.
      *
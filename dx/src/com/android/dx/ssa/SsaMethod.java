@@ -30,6 +30,7 @@ import com.android.dx.util.IntList;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.Stack;
@@ -68,6 +69,9 @@ public final class SsaMethod {
     /** true if this method has no {@code this} pointer argument */
     private final boolean isStatic;
 
+    /** {@code non-null;} the optimizer of this method */
+    private final Optimizer optimizer;
+
     /**
      * indexed by register: the insn where said register is defined or null
      * if undefined. null until (lazily) created.
@@ -90,15 +94,17 @@ public final class SsaMethod {
     private boolean backMode;
 
     /**
+     * @param optimizer {@code non-null;} the optimizer of the method
      * @param ropMethod rop-form method to convert from
      * @param paramWidth the total width, in register-units, of the
      * method's parameters
      * @param isStatic {@code true} if this method has no {@code this}
      * pointer argument
      */
-    public static SsaMethod newFromRopMethod(RopMethod ropMethod,
-            int paramWidth, boolean isStatic) {
-        SsaMethod result = new SsaMethod(ropMethod, paramWidth, isStatic);
+    public static SsaMethod newFromRopMethod(Optimizer optimizer,
+            RopMethod ropMethod, int paramWidth, boolean isStatic) {
+        SsaMethod result =
+            new SsaMethod(optimizer, ropMethod, paramWidth, isStatic);
 
         result.convertRopToSsaBlocks(ropMethod);
 
@@ -108,6 +114,7 @@ public final class SsaMethod {
     /**
      * Constructs an instance.
      *
+     * @param optimizer {@code non-null;} the optimizer of the method
      * @param ropMethod {@code non-null;} the original rop-form method that
      * this instance is based on
      * @param paramWidth the total width, in register-units, of the
@@ -115,7 +122,9 @@ public final class SsaMethod {
      * @param isStatic {@code true} if this method has no {@code this}
      * pointer argument
      */
-    private SsaMethod(RopMethod ropMethod, int paramWidth, boolean isStatic) {
+    private SsaMethod(Optimizer optimizer, RopMethod ropMethod, int paramWidth,
+            boolean isStatic) {
+        this.optimizer = optimizer;
         this.paramWidth = paramWidth;
         this.isStatic = isStatic;
         this.backMode = false;
@@ -125,24 +134,110 @@ public final class SsaMethod {
     }
 
     /**
-     * Builds a BitSet of block indices from a basic block list and a list
-     * of labels taken from Rop form.
+     * Constructs a copy of a method, without its blocks.
      *
-     * @param blocks Rop blocks
-     * @param labelList list of rop block labels
-     * @return BitSet of block indices
+     * @param method {@code non-null;} the method to copy
+     */
+    private SsaMethod(SsaMethod method) {
+        this.optimizer = method.optimizer;
+        this.paramWidth = method.paramWidth;
+        this.isStatic = method.isStatic;
+        this.backMode = method.backMode;
+        this.entryBlockIndex = method.entryBlockIndex;
+        this.exitBlockIndex = method.exitBlockIndex;
+        this.registerCount = method.registerCount;
+        this.spareRegisterBase = method.spareRegisterBase;
+        this.borrowedSpareRegisters = method.borrowedSpareRegisters;
+        this.maxLabel = method.maxLabel;
+    }
+
+    /**
+     * Makes a copy of this method, which the optimizer can go on with
+     * while this one is left as it is. The copy has the same blocks,
+     * insns, dominator tree and use lists, in the same order, so that
+     * the same steps produce the same result on both. It shares the rop
+     * insns and the register specs, which are immutable, but not the
+     * liveness information of the blocks. Insns removed from their block
+     * can still be in the use lists; their copies are too, in the copy of
+     * that block and likewise not in its insn list.
+     *
+     * @return {@code non-null;} the copy
      */
-    static BitSet bitSetFromLabelList(BasicBlockList blocks,
-            IntList labelList) {
-        BitSet result = new BitSet(blocks.size());
+    public SsaMethod copy() {
+        if (backMode) {
+            throw new IllegalStateException("copy in back-convert mode");
+        }
 
-        for (int i = 0, sz = labelList.size(); i < sz; i++) {
-            result.set(blocks.indexOfLabel(labelList.get(i)));
+        SsaMethod result = new SsaMethod(this);
+        int sz = blocks.size();
+        result.blocks = new ArrayList<SsaBasicBlock>(sz);
+        IdentityHashMap<SsaInsn, SsaInsn> copies =
+            new IdentityHashMap<SsaInsn, SsaInsn>();
+
+        for (int i = 0; i < sz; i++) {
+            SsaBasicBlock block = blocks.get(i);
+            SsaBasicBlock copy = block.copy(result);
+            result.blocks.add(copy);
+
+            ArrayList<SsaInsn> insns = block.getInsns();
+            ArrayList<SsaInsn> insnCopies = copy.getInsns();
+            for (int j = 0, insnsSz = insns.size(); j < insnsSz; j++) {
+                copies.put(insns.get(j), insnCopies.get(j));
+            }
+        }
+
+        for (int i = 0; i < sz; i++) {
+            SsaBasicBlock copy = result.blocks.get(i);
+            for (SsaBasicBlock child : blocks.get(i).getDomChildren()) {
+                copy.addDomChild(result.blocks.get(child.getIndex()));
+            }
+        }
+
+        if (definitionList != null) {
+            result.definitionList = new SsaInsn[definitionList.length];
+            for (int i = 0; i < definitionList.length; i++) {
+                result.definitionList[i] = copyOf(definitionList[i], copies, result);
+            }
+        }
+
+        if (useList != null) {
+            result.useList = newUseLists(useList.length);
+            result.unmodifiableUseList = newUnmodifiableUseLists(useList.length);
+            for (int i = 0; i < useList.length; i++) {
+                ArrayList<SsaInsn> uses = new ArrayList<SsaInsn>(useList[i].size());
+                for (SsaInsn use : useList[i]) {
+                    uses.add(copyOf(use, copies, result));
+                }
+                result.useList[i] = uses;
+                result.unmodifiableUseList[i] = Collections.unmodifiableList(uses);
+            }
         }
 
         return result;
     }
 
+    /**
+     * Gets the copy of {@code insn} made by {@link #copy}, making one in the
+     * copy of its block if it was removed from that block.
+     *
+     * @param insn {@code null-ok;} the insn
+     * @param copies {@code non-null;} the copies made so far
+     * @param copyParent {@code non-null;} the copy of this method
+     * @return {@code null-ok;} the copy, or {@code null} if {@code insn} is
+     */
+    private static SsaInsn copyOf(SsaInsn insn, IdentityHashMap<SsaInsn, SsaInsn> copies,
+            SsaMethod copyParent) {
+        if (insn == null) {
+            return null;
+        }
+        SsaInsn copy = copies.get(insn);
+        if (copy == null) {
+            copy = insn.copy(copyParent.blocks.get(insn.getBlock().getIndex()));
+            copies.put(insn, copy);
+        }
+        return copy;
+    }
+
     /**
      * Builds an IntList of block indices from a basic block list and a list
      * of labels taken from Rop form.
@@ -206,7 +301,7 @@ public final class SsaMethod {
             block.exitBlockFixup(exitBlock);
         }
 
-        if (exitBlock.getPredecessors().cardinality() == 0) {
+        if (exitBlock.getPredecessors().size() == 0) {
             // In cases where there is no exit...
             blocks.remove(exitBlockIndex);
             exitBlockIndex = -1;
@@ -308,6 +403,14 @@ public final class SsaMethod {
         return isStatic;
     }
 
+    /**
+     * @return {@code non-null;} the optimizer of this method, which holds
+     * its translation options
+     */
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
     /**
      * Borrows a register to use as a temp. Used in the phi removal process.
      * Call returnSpareRegisters() when done.
@@ -353,7 +456,7 @@ public final class SsaMethod {
         int index;
         while ((index = reachableUnvisited.nextSetBit(0)) != -1) {
             reachableVisited.set(index);
-            reachableUnvisited.or(blocks.get(index).getSuccessors());
+            blocks.get(index).getSuccessors().addTo(reachableUnvisited);
             reachableUnvisited.andNot(reachableVisited);
         }
 
@@ -422,10 +525,10 @@ public final class SsaMethod {
             throw new RuntimeException("No use list in back mode");
         }
 
-        useList = new ArrayList[registerCount];
+        useList = newUseLists(registerCount);
 
         for (int i = 0; i < registerCount; i++) {
-            useList[i] = new ArrayList();
+            useList[i] = new ArrayList<SsaInsn>();
         }
 
         forEachInsn(new SsaInsn.Visitor() {
@@ -458,7 +561,7 @@ public final class SsaMethod {
             }
         });
 
-        unmodifiableUseList = new List[registerCount];
+        unmodifiableUseList = newUnmodifiableUseLists(registerCount);
 
         for (int i = 0; i < registerCount; i++) {
             unmodifiableUseList[i] = Collections.unmodifiableList(useList[i]);
@@ -636,16 +739,38 @@ public final class SsaMethod {
             buildUseList();
         }
 
-        ArrayList<SsaInsn>[] useListCopy
-                = (ArrayList<SsaInsn>[])(new ArrayList[registerCount]);
+        ArrayList<SsaInsn>[] useListCopy = newUseLists(registerCount);
 
         for (int i = 0; i < registerCount; i++) {
-            useListCopy[i] = (ArrayList<SsaInsn>)(new ArrayList(useList[i]));
+            useListCopy[i] = new ArrayList<SsaInsn>(useList[i]);
         }
 
         return useListCopy;
     }
 
+    /**
+     * Makes an array of use-lists. Arrays of a generic type can only be
+     * made unchecked.
+     *
+     * @param size {@code >= 0;} number of registers
+     * @return {@code non-null;} array of {@code null} use-lists
+     */
+    @SuppressWarnings("unchecked")
+    private static ArrayList<SsaInsn>[] newUseLists(int size) {
+        return (ArrayList<SsaInsn>[]) new ArrayList<?>[size];
+    }
+
+    /**
+     * Makes an array of unmodifiable use-lists, as {@link #newUseLists}.
+     *
+     * @param size {@code >= 0;} number of registers
+     * @return {@code non-null;} array of {@code null} use-lists
+     */
+    @SuppressWarnings("unchecked")
+    private static List<SsaInsn>[] newUnmodifiableUseLists(int size) {
+        return (List<SsaInsn>[]) new List<?>[size];
+    }
+
     /**
      * Checks to see if the given SSA reg is ever associated with a local
      * local variable. Each SSA reg may be associated with at most one
@@ -755,12 +880,11 @@ public final class SsaMethod {
             SsaBasicBlock parent = stack.pop();
 
             if (!visited.get(cur.getIndex())) {
-                BitSet children
+                EdgeSet children
                     = reverse ? cur.getPredecessors() : cur.getSuccessors();
-                for (int i = children.nextSetBit(0); i >= 0
-                        ; i = children.nextSetBit(i + 1)) {
+                for (int i = 0, sz = children.size(); i < sz; i++) {
                     stack.add(cur);
-                    stack.add(blocks.get(i));
+                    stack.add(blocks.get(children.get(i)));
                 }
                 visited.set(cur.getIndex());
                 v.visitBlock(cur, parent);
@@ -833,11 +957,11 @@ public final class SsaMethod {
                 insns.add(SsaInsn.makeFromRop(gotoInsn, block));
 
                 // Remove secondary successors from this block
-                BitSet succs = block.getSuccessors();
-                for (int i = succs.nextSetBit(0); i >= 0;
-                         i = succs.nextSetBit(i + 1)) {
-                    if (i != block.getPrimarySuccessorIndex()) {
-                        block.removeSuccessor(i);
+                EdgeSet succs = new EdgeSet(block.getSuccessors());
+                for (int i = 0, sz = succs.size(); i < sz; i++) {
+                    int succ = succs.get(i);
+                    if (succ != block.getPrimarySuccessorIndex()) {
+                        block.removeSuccessor(succ);
                     }
                 }
             }
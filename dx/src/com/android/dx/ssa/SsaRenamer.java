@@ -25,7 +25,6 @@ import com.android.dx.rop.code.SourcePosition;
 import com.android.dx.rop.type.Type;
 import com.android.dx.util.IntList;
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -539,7 +538,7 @@ public class SsaRenamer implements Runnable {
                     = RegisterSpec.makeLocalOptional(
                         ssaSourceReg, ropResult.getType(), newLocal);
 
-            if (!Optimizer.getPreserveLocals() || (onlyOneAssociatedLocal
+            if (!ssaMeth.getOptimizer().getPreserveLocals() || (onlyOneAssociatedLocal
                     && equalsHandlesNulls(newLocal, sourceLocal)) &&
                     threshold == 0) {
                 /*
@@ -656,10 +655,10 @@ public class SsaRenamer implements Runnable {
                 }
             };
 
-            BitSet successors = block.getSuccessors();
-            for (int i = successors.nextSetBit(0); i >= 0;
-                    i = successors.nextSetBit(i + 1)) {
-                SsaBasicBlock successor = ssaMeth.getBlocks().get(i);
+            EdgeSet successors = block.getSuccessors();
+            for (int i = 0, sz = successors.size(); i < sz; i++) {
+                SsaBasicBlock successor =
+                    ssaMeth.getBlocks().get(successors.get(i));
                 successor.forEachPhiInsn(visitor);
             }
         }
@@ -24,9 +24,9 @@ import com.android.dx.rop.code.RegisterSpec;
 import com.android.dx.rop.code.RegisterSpecList;
 import com.android.dx.rop.code.Rop;
 import com.android.dx.rop.cst.CstInteger;
+import com.android.dx.ssa.EdgeSet;
 import com.android.dx.ssa.InterferenceRegisterMapper;
 import com.android.dx.ssa.NormalSsaInsn;
-import com.android.dx.ssa.Optimizer;
 import com.android.dx.ssa.PhiInsn;
 import com.android.dx.ssa.RegisterMapper;
 import com.android.dx.ssa.SsaBasicBlock;
@@ -536,15 +536,15 @@ public class FirstFitLocalCombiningAllocator extends RegisterAllocator {
         for (NormalSsaInsn insn : moveResultPseudoInsns) {
             RegisterSpec moveRegSpec = insn.getResult();
             int moveReg = moveRegSpec.getReg();
-            BitSet predBlocks = insn.getBlock().getPredecessors();
+            EdgeSet predBlocks = insn.getBlock().getPredecessors();
 
             // Expect one predecessor block only
-            if (predBlocks.cardinality() != 1) {
+            if (predBlocks.size() != 1) {
                 continue;
             }
 
             SsaBasicBlock predBlock =
-                    ssaMeth.getBlocks().get(predBlocks.nextSetBit(0));
+                    ssaMeth.getBlocks().get(predBlocks.first());
             ArrayList<SsaInsn> insnList = predBlock.getInsns();
 
             /**
@@ -750,7 +750,7 @@ public class FirstFitLocalCombiningAllocator extends RegisterAllocator {
                     if (insn.getOpcode().getOpcode() ==
                             RegOps.MOVE_RESULT_PSEUDO) {
                         moveResultPseudoInsns.add((NormalSsaInsn) insn);
-                    } else if (Optimizer.getAdvice().requiresSourcesInOrder(
+                    } else if (ssaMeth.getOptimizer().getAdvice().requiresSourcesInOrder(
                             insn.getOriginalRopInsn().getOpcode(),
                             insn.getSources())) {
                         invokeRangeInsns.add((NormalSsaInsn) insn);
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.ssa.back;
+
+import com.android.dx.dex.DexOptions;
+import com.android.dx.rop.code.CstInsn;
+import com.android.dx.rop.code.RegOps;
+import com.android.dx.rop.code.RegisterSpec;
+import com.android.dx.rop.code.RegisterSpecList;
+import com.android.dx.rop.cst.CstInteger;
+import com.android.dx.ssa.BasicRegisterMapper;
+import com.android.dx.ssa.NormalSsaInsn;
+import com.android.dx.ssa.PhiInsn;
+import com.android.dx.ssa.RegisterMapper;
+import com.android.dx.ssa.SsaBasicBlock;
+import com.android.dx.ssa.SsaInsn;
+import com.android.dx.ssa.SsaMethod;
+import com.android.dx.util.IntList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Allocates registers by a linear scan of the live intervals of the SSA
+ * registers, in the order they start. Each register first tries the rop
+ * registers of the registers it is moved from or to, which it may share
+ * where it is live in the holes of their intervals, and otherwise gets
+ * the lowest rop register that no register whose interval is still live
+ * holds.
+ *
+ * <p>This takes time by the number of registers rather than by the
+ * number of interferences between them, and so it is used for methods
+ * too large to build an {@link InterferenceGraph} of, at the cost of
+ * more registers and more moves than {@link
+ * FirstFitLocalCombiningAllocator}: registers only share rop registers
+ * they are moved from or to, and aren't combined by local variable.</p>
+ *
+ * <p>Once all are mapped, the rop registers are renumbered so that the most
+ * used ones are the lowest, as dex instructions address those with fewer
+ * bits.</p>
+ *
+ * <p>As with the other allocators, parameters are placed at the bottom of
+ * the frame, and the rest of the registers above them.</p>
+ */
+public class LinearScanAllocator extends RegisterAllocator {
+    /** {@code non-null;} live intervals of the SSA registers */
+    private final LiveIntervals intervals;
+
+    /** {@code non-null;} the mapping found by the scan */
+    private final BasicRegisterMapper mapper;
+
+    /** {@code non-null;} rop registers held by live intervals */
+    private final BitSet heldRopRegs;
+
+    /**
+     * {@code non-null;} indexed by rop register; the registers whose
+     * intervals are still live that hold it, or {@code null} if none ever
+     * did
+     */
+    private IntList[] holders;
+
+    /**
+     * Constructs an instance.
+     *
+     * @param ssaMeth {@code non-null;} method to process
+     * @param intervals {@code non-null;} live intervals of its registers
+     */
+    public LinearScanAllocator(SsaMethod ssaMeth, LiveIntervals intervals) {
+        super(ssaMeth, null);
+
+        this.intervals = intervals;
+        mapper = new BasicRegisterMapper(ssaMeth.getRegCount());
+        heldRopRegs = new BitSet();
+        holders = new IntList[ssaMeth.getParamWidth() + 16];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean wantsParamsMovedHigh() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RegisterMapper allocateRegisters() {
+        int regCount = ssaMeth.getRegCount();
+        int paramWidth = ssaMeth.getParamWidth();
+        long[] byStart = new long[regCount];
+        long[] byEnd = new long[regCount];
+        int count = 0;
+
+        for (int reg = 0; reg < regCount; reg++) {
+            if (isDefinitionMoveParam(reg)) {
+                NormalSsaInsn defInsn =
+                    (NormalSsaInsn) ssaMeth.getDefinitionForRegister(reg);
+                mapper.addMapping(reg, paramNumberFromMoveParam(defInsn),
+                        getCategoryForSsaReg(reg));
+            } else if (intervals.isLive(reg)) {
+                byStart[count] = ((long) intervals.getStart(reg) << 32) | reg;
+                byEnd[count] = ((long) intervals.getEnd(reg) << 32) | reg;
+                count++;
+            }
+            // Registers never used nor written need no mapping.
+        }
+
+        Arrays.sort(byStart, 0, count);
+        Arrays.sort(byEnd, 0, count);
+
+        int nextEnd = 0;
+        for (int i = 0; i < count; i++) {
+            int reg = (int) byStart[i];
+            int start = (int) (byStart[i] >>> 32);
+
+            /*
+             * Every interval that ends before this one starts has started
+             * before it, so it has a rop register to release.
+             */
+            while (nextEnd < count && (int) (byEnd[nextEnd] >>> 32) < start) {
+                int endReg = (int) byEnd[nextEnd++];
+                int ropReg = mapper.oldToNew(endReg);
+                int endCategory = getCategoryForSsaReg(endReg);
+
+                for (int r = ropReg; r < ropReg + endCategory; r++) {
+                    IntList regs = holders[r];
+                    regs.removeIndex(regs.indexOf(endReg));
+                    if (regs.size() == 0) {
+                        heldRopRegs.clear(r);
+                    }
+                }
+            }
+
+            int category = getCategoryForSsaReg(reg);
+            int ropReg = findHintedRopReg(reg, paramWidth, category);
+
+            if (ropReg < 0) {
+                ropReg = findRopReg(reg, paramWidth, category);
+            }
+
+            mapper.addMapping(reg, ropReg, category);
+            hold(reg, ropReg, category);
+        }
+
+        return renumberByUses(paramWidth);
+    }
+
+    /**
+     * Renumbers the rop registers that only hold category 1 registers so
+     * that the most used are the lowest. The scan gives the lowest rop
+     * registers to the registers that start first, which in large methods
+     * are often long-lived ones that are seldom used, while most dex
+     * instructions can only address the lowest 16 or 256 registers, and
+     * need moves to reach the others. Renumbering keeps the registers
+     * that share rop registers the same, so it keeps the allocation valid.
+     *
+     * @param paramWidth {@code >= 0;} width of the parameters, whose rop
+     * registers aren't renumbered
+     * @return {@code non-null;} the renumbered mapping
+     */
+    private BasicRegisterMapper renumberByUses(int paramWidth) {
+        int regCount = ssaMeth.getRegCount();
+        int ropRegCount = mapper.getNewRegisterCount();
+        int[] uses = new int[ropRegCount];
+        BitSet wide = new BitSet(ropRegCount);
+
+        for (SsaBasicBlock block : ssaMeth.getBlocks()) {
+            for (SsaInsn insn : block.getInsns()) {
+                RegisterSpec result = insn.getResult();
+                if (result != null) {
+                    countUse(result, uses, wide);
+                }
+
+                RegisterSpecList sources = insn.getSources();
+                int sz = sources.size();
+                for (int i = 0; i < sz; i++) {
+                    countUse(sources.get(i), uses, wide);
+                }
+            }
+        }
+
+        // Sort by decreasing uses, then increasing rop register.
+        long[] byUses = new long[ropRegCount];
+        int count = 0;
+        for (int ropReg = paramWidth; ropReg < ropRegCount; ropReg++) {
+            if (!wide.get(ropReg)) {
+                byUses[count++] = ((long) -uses[ropReg] << 32) | ropReg;
+            }
+        }
+        Arrays.sort(byUses, 0, count);
+
+        int[] newRopRegs = new int[ropRegCount];
+        for (int ropReg = 0; ropReg < ropRegCount; ropReg++) {
+            newRopRegs[ropReg] = ropReg;
+        }
+
+        int nextRopReg = wide.nextClearBit(paramWidth);
+        for (int i = 0; i < count; i++) {
+            newRopRegs[(int) byUses[i]] = nextRopReg;
+            nextRopReg = wide.nextClearBit(nextRopReg + 1);
+        }
+
+        BasicRegisterMapper result = new BasicRegisterMapper(regCount);
+        for (int reg = 0; reg < regCount; reg++) {
+            int ropReg = mapper.oldToNew(reg);
+            if (ropReg >= 0) {
+                result.addMapping(reg, newRopRegs[ropReg],
+                        getCategoryForSsaReg(reg));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Counts a use of the rop register a register is mapped to, and marks
+     * it as holding a pair if the register is of category 2.
+     *
+     * @param spec {@code non-null;} the register
+     * @param uses {@code non-null;} indexed by rop register; the uses
+     * @param wide {@code non-null;} rop registers that hold pairs
+     */
+    private void countUse(RegisterSpec spec, int[] uses, BitSet wide) {
+        int ropReg = mapper.oldToNew(spec.getReg());
+
+        if (ropReg < 0) {
+            return;
+        }
+
+        uses[ropReg]++;
+        if (spec.getCategory() == 2) {
+            wide.set(ropReg, ropReg + 2);
+        }
+    }
+
+    /**
+     * Adds a register to the holders of the rop registers it is mapped to.
+     *
+     * @param reg {@code >= 0;} SSA register
+     * @param ropReg {@code >= 0;} rop register it is mapped to
+     * @param category {@code 1..2;} category of the register
+     */
+    private void hold(int reg, int ropReg, int category) {
+        if (ropReg + category > holders.length) {
+            holders = Arrays.copyOf(holders,
+                    Math.max(holders.length * 2, ropReg + category));
+        }
+
+        for (int r = ropReg; r < ropReg + category; r++) {
+            if (holders[r] == null) {
+                holders[r] = new IntList();
+            }
+            holders[r].add(reg);
+            heldRopRegs.set(r);
+        }
+    }
+
+    /**
+     * Finds a rop register for a register among those of the registers it
+     * is moved from or to: the sources of the phi or the move that defines
+     * it, or the results of the phis it is a source of. It may share the
+     * rop register with registers whose intervals don't intersect its own.
+     *
+     * @param reg {@code >= 0;} SSA register to map
+     * @param paramWidth {@code >= 0;} width of the parameters
+     * @param category {@code 1..2;} category of the register
+     * @return the rop register, or {@code -1} if none of the hints fit
+     */
+    private int findHintedRopReg(int reg, int paramWidth, int category) {
+        SsaInsn def = ssaMeth.getDefinitionForRegister(reg);
+
+        if (def instanceof PhiInsn
+                || (def != null && def.getOpcode().getOpcode() == RegOps.MOVE)) {
+            RegisterSpecList sources = def.getSources();
+            int sz = sources.size();
+
+            for (int i = 0; i < sz; i++) {
+                int ropReg = tryHint(reg, sources.get(i).getReg(),
+                        paramWidth, category);
+                if (ropReg >= 0) {
+                    return ropReg;
+                }
+            }
+        }
+
+        List<SsaInsn> uses = ssaMeth.getUseListForRegister(reg);
+        int sz = uses.size();
+        for (int i = 0; i < sz; i++) {
+            SsaInsn use = uses.get(i);
+            if (use instanceof PhiInsn) {
+                int ropReg = tryHint(reg, use.getResult().getReg(),
+                        paramWidth, category);
+                if (ropReg >= 0) {
+                    return ropReg;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Tries to map a register to the rop register of another.
+     *
+     * @param reg {@code >= 0;} SSA register to map
+     * @param hint {@code >= 0;} SSA register whose rop register to try
+     * @param paramWidth {@code >= 0;} width of the parameters
+     * @param category {@code 1..2;} category of the register
+     * @return the rop register, or {@code -1} if the other register isn't
+     * mapped yet or its rop register doesn't fit
+     */
+    private int tryHint(int reg, int hint, int paramWidth, int category) {
+        int ropReg = mapper.oldToNew(hint);
+
+        if (ropReg < paramWidth || getCategoryForSsaReg(hint) != category) {
+            return -1;
+        }
+
+        for (int r = ropReg; r < ropReg + category; r++) {
+            IntList regs = r < holders.length ? holders[r] : null;
+            int sz = (regs == null) ? 0 : regs.size();
+
+            for (int i = 0; i < sz; i++) {
+                if (intervals.intersect(reg, regs.get(i))) {
+                    return -1;
+                }
+            }
+        }
+
+        if (conflictsWithPhis(reg, ropReg, category)) {
+            return -1;
+        }
+
+        return ropReg;
+    }
+
+    /**
+     * Finds the lowest rop register above the parameters that no live
+     * interval holds, and that may hold a register.
+     *
+     * @param reg {@code >= 0;} SSA register to map
+     * @param paramWidth {@code >= 0;} width of the parameters
+     * @param category {@code 1..2;} category of the register
+     * @return {@code >= paramWidth;} rop register
+     */
+    private int findRopReg(int reg, int paramWidth, int category) {
+        /*
+         * As in FirstFitLocalCombiningAllocator, align register pairs so
+         * that they are aligned once the parameters are moved high.
+         */
+        boolean aligned = DexOptions.ALIGN_64BIT_REGS_SUPPORT && category == 2;
+        int ropReg = paramWidth;
+
+        while (true) {
+            ropReg = heldRopRegs.nextClearBit(ropReg);
+            if (aligned && ((ropReg - paramWidth) & 1) != 0) {
+                ropReg++;
+            } else if (category == 2 && heldRopRegs.get(ropReg + 1)) {
+                ropReg += 2;
+            } else if (conflictsWithPhis(reg, ropReg, category)) {
+                ropReg++;
+            } else {
+                return ropReg;
+            }
+        }
+    }
+
+    /**
+     * Returns whether mapping a register to a rop register would conflict
+     * with the registers of the phis it is the result or a source of.
+     * The moves that replace the phis of a block are scheduled together,
+     * so, as with {@link LivenessAnalyzer#constructInterferenceGraph}, the
+     * result of a phi may not share a rop register with the result or the
+     * sources of another phi of its block, even where their intervals
+     * don't overlap. It may share one with its own sources, but not only
+     * part of a register pair.
+     *
+     * @param reg {@code >= 0;} SSA register to map
+     * @param ropReg {@code >= 0;} rop register to map it to
+     * @param category {@code 1..2;} category of the register
+     * @return whether the mapping conflicts
+     */
+    private boolean conflictsWithPhis(int reg, int ropReg, int category) {
+        SsaInsn def = ssaMeth.getDefinitionForRegister(reg);
+
+        if (def instanceof PhiInsn
+                && conflictsWithPhisOf((PhiInsn) def, reg, ropReg, category)) {
+            return true;
+        }
+
+        List<SsaInsn> uses = ssaMeth.getUseListForRegister(reg);
+        int sz = uses.size();
+        for (int i = 0; i < sz; i++) {
+            SsaInsn use = uses.get(i);
+            if (use instanceof PhiInsn
+                    && conflictsWithPhisOf((PhiInsn) use, reg, ropReg,
+                            category)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns whether mapping a register that is the result or a source
+     * of a phi to a rop register would conflict with the phis of its
+     * block.
+     *
+     * @param phi {@code non-null;} the phi
+     * @param reg {@code >= 0;} SSA register to map
+     * @param ropReg {@code >= 0;} rop register to map it to
+     * @param category {@code 1..2;} category of the register
+     * @return whether the mapping conflicts
+     */
+    private boolean conflictsWithPhisOf(PhiInsn phi, int reg, int ropReg,
+            int category) {
+        boolean isResult = phi.getResult().getReg() == reg;
+        List<SsaInsn> phis = phi.getBlock().getPhiInsns();
+        int szPhis = phis.size();
+
+        for (int i = 0; i < szPhis; i++) {
+            SsaInsn other = phis.get(i);
+            boolean same = other == phi;
+
+            // Its own result, or another's, whether it's a source or not.
+            if (!(same && isResult)
+                    && conflicts(other.getResult().getReg(), ropReg,
+                            category, same)) {
+                return true;
+            }
+
+            // The sources of others, if it's a result.
+            if (!isResult) {
+                continue;
+            }
+
+            RegisterSpecList sources = other.getSources();
+            int szSources = sources.size();
+            for (int j = 0; j < szSources; j++) {
+                if (conflicts(sources.get(j).getReg(), ropReg, category,
+                        same)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns whether a register, if it is already mapped, overlaps a
+     * range of rop registers.
+     *
+     * @param other {@code >= 0;} the register
+     * @param ropReg {@code >= 0;} start of the range
+     * @param category {@code 1..2;} width of the range
+     * @param mayBeEqual whether the register may be mapped to the same
+     * range
+     * @return whether it overlaps
+     */
+    private boolean conflicts(int other, int ropReg, int category,
+            boolean mayBeEqual) {
+        int otherRopReg = mapper.oldToNew(other);
+
+        if (otherRopReg < 0) {
+            return false;
+        }
+
+        int otherCategory = getCategoryForSsaReg(other);
+
+        if (mayBeEqual && otherRopReg == ropReg && otherCategory == category) {
+            return false;
+        }
+
+        return otherRopReg < ropReg + category
+                && ropReg < otherRopReg + otherCategory;
+    }
+
+    /**
+     * Returns the parameter number that this move-param insn refers to
+     * @param ndefInsn a move-param insn (otherwise, exceptions will be thrown)
+     * @return parameter number (offset in the total parameter width)
+     */
+    private int paramNumberFromMoveParam(NormalSsaInsn ndefInsn) {
+        CstInsn origInsn = (CstInsn) ndefInsn.getOriginalRopInsn();
+
+        return ((CstInteger) origInsn.getConstant()).getValue();
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.ssa.back;
+
+import com.android.dx.rop.code.RegOps;
+import com.android.dx.rop.code.RegisterSpec;
+import com.android.dx.rop.code.RegisterSpecList;
+import com.android.dx.ssa.EdgeSet;
+import com.android.dx.ssa.PhiInsn;
+import com.android.dx.ssa.SsaBasicBlock;
+import com.android.dx.ssa.SsaInsn;
+import com.android.dx.ssa.SsaMethod;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The live intervals of the SSA registers of a method, for
+ * {@link LinearScanAllocator}.
+ *
+ * <p>The blocks are laid out in reverse postorder, and each insn has two
+ * points: one where it reads its sources, then one where it writes its
+ * result. The interval of a register is the list of ranges of points
+ * where it is live, and two registers whose intervals don't intersect
+ * never interfere. The interval runs from the start of the first range to
+ * the end of the last one, and the holes between ranges are where other
+ * registers may share its rop register.</p>
+ *
+ * <p>Registers written somewhere else than at the insn that defines them
+ * in SSA form have their intervals extended to there: a phi result to
+ * the end of each predecessor, where its moves are added when leaving SSA
+ * form, and the result of a move-result-pseudo to the insn it is the
+ * result of, which writes it in dex form.</p>
+ */
+public final class LiveIntervals {
+    /** {@code non-null;} method the intervals are of */
+    private final SsaMethod ssaMeth;
+
+    /** {@code non-null;} indexed by block; the index of its first insn */
+    private final int[] blockStarts;
+
+    /** initial capacity of the list of ranges of a register */
+    private static final int INITIAL_RANGES = 4;
+
+    /**
+     * {@code non-null;} indexed by SSA register; the starts and ends of
+     * its ranges, in pairs. They are in no particular order and may
+     * overlap until {@link #finish} sorts and merges them.
+     */
+    private final int[][] ranges;
+
+    /** {@code non-null;} indexed by SSA register; the size of its ranges */
+    private final int[] rangeSizes;
+
+    /**
+     * Constructs an instance, with the points where registers are
+     * written. {@link LivenessAnalyzer} adds those where they are live.
+     *
+     * @param ssaMeth {@code non-null;} method to process
+     */
+    /*package*/ LiveIntervals(SsaMethod ssaMeth) {
+        int regCount = ssaMeth.getRegCount();
+
+        this.ssaMeth = ssaMeth;
+        blockStarts = layoutBlocks(ssaMeth);
+        ranges = new int[regCount][];
+        rangeSizes = new int[regCount];
+
+        addWrites();
+    }
+
+    /**
+     * Lays out the blocks of a method in reverse postorder, followed by
+     * any unreachable block.
+     *
+     * @param ssaMeth {@code non-null;} method to process
+     * @return {@code non-null;} indexed by block, the index of its first
+     * insn in the layout
+     */
+    private static int[] layoutBlocks(SsaMethod ssaMeth) {
+        ArrayList<SsaBasicBlock> blocks = ssaMeth.getBlocks();
+        int szBlocks = blocks.size();
+        int[] postorder = new int[szBlocks];
+        int count = 0;
+        BitSet visited = new BitSet(szBlocks);
+
+        // Each frame of the walk is a block and its next successor.
+        int[] stackBlocks = new int[szBlocks];
+        int[] stackNext = new int[szBlocks];
+        int depth = 0;
+        int entry = ssaMeth.getEntryBlockIndex();
+
+        stackBlocks[depth++] = entry;
+        visited.set(entry);
+        while (depth > 0) {
+            int top = depth - 1;
+            EdgeSet succs = blocks.get(stackBlocks[top]).getSuccessors();
+
+            if (stackNext[top] < succs.size()) {
+                int succ = succs.get(stackNext[top]++);
+                if (!visited.get(succ)) {
+                    visited.set(succ);
+                    stackBlocks[depth] = succ;
+                    stackNext[depth] = 0;
+                    depth++;
+                }
+            } else {
+                postorder[count++] = stackBlocks[top];
+                depth--;
+            }
+        }
+
+        int[] result = new int[szBlocks];
+        int insnIndex = 0;
+
+        for (int i = count - 1; i >= 0; i--) {
+            result[postorder[i]] = insnIndex;
+            insnIndex += blocks.get(postorder[i]).getInsns().size();
+        }
+
+        for (int i = visited.nextClearBit(0); i < szBlocks;
+                i = visited.nextClearBit(i + 1)) {
+            result[i] = insnIndex;
+            insnIndex += blocks.get(i).getInsns().size();
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds the points where registers are written, including those that
+     * are written somewhere else than at their definition, and extends
+     * the sources of insns that mix categories to the point where the
+     * result is written, so that a register pair doesn't overlap only
+     * part of another.
+     */
+    private void addWrites() {
+        for (SsaBasicBlock block : ssaMeth.getBlocks()) {
+            ArrayList<SsaInsn> insns = block.getInsns();
+            int sz = insns.size();
+
+            for (int i = 0; i < sz; i++) {
+                SsaInsn insn = insns.get(i);
+                RegisterSpec result = insn.getResult();
+
+                if (result == null) {
+                    continue;
+                }
+
+                liveOut(result.getReg(), block, i);
+
+                if (insn instanceof PhiInsn) {
+                    addPhiMoves((PhiInsn) insn);
+                } else if (insn.getOpcode().getOpcode()
+                        == RegOps.MOVE_RESULT_PSEUDO) {
+                    addMoveResultPseudo(result, block);
+                } else if (isWide(result, insn.getSources())) {
+                    extendSources(insn.getSources(), block, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Extends the result of a phi to the moves that replace it at the
+     * end of its predecessors, or the start of its block.
+     *
+     * @param phi {@code non-null;} the phi
+     */
+    private void addPhiMoves(PhiInsn phi) {
+        ArrayList<SsaBasicBlock> blocks = ssaMeth.getBlocks();
+        int reg = phi.getResult().getReg();
+        int sz = phi.getSources().size();
+
+        for (int i = 0; i < sz; i++) {
+            SsaBasicBlock pred =
+                blocks.get(phi.predBlockIndexForSourcesIndex(i));
+
+            if (hasMovesAtEnd(pred)) {
+                liveOut(reg, pred, pred.getInsns().size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Extends the result of a move-result-pseudo to the insn in the
+     * predecessor that it is the result of.
+     *
+     * @param result {@code non-null;} the result
+     * @param block {@code non-null;} block of the move-result-pseudo
+     */
+    private void addMoveResultPseudo(RegisterSpec result,
+            SsaBasicBlock block) {
+        SsaBasicBlock pred =
+            ssaMeth.getBlocks().get(block.getPredecessors().first());
+        ArrayList<SsaInsn> predInsns = pred.getInsns();
+        int last = predInsns.size() - 1;
+        RegisterSpecList sources = predInsns.get(last).getSources();
+
+        liveOut(result.getReg(), pred, last);
+        if (isWide(result, sources)) {
+            extendSources(sources, pred, last);
+        }
+    }
+
+    /**
+     * Extends sources to the point where the result of their insn is
+     * written.
+     *
+     * @param sources {@code non-null;} the sources
+     * @param block {@code non-null;} block of the insn
+     * @param index {@code >= 0;} index of the insn in its block
+     */
+    private void extendSources(RegisterSpecList sources,
+            SsaBasicBlock block, int index) {
+        int sz = sources.size();
+
+        for (int i = 0; i < sz; i++) {
+            liveOut(sources.get(i).getReg(), block, index);
+        }
+    }
+
+    /**
+     * Returns whether the result or a source of an insn is a register
+     * pair.
+     *
+     * @param result {@code non-null;} the result
+     * @param sources {@code non-null;} the sources
+     * @return whether any of them is of category 2
+     */
+    private static boolean isWide(RegisterSpec result,
+            RegisterSpecList sources) {
+        if (result.getCategory() == 2) {
+            return true;
+        }
+
+        int sz = sources.size();
+        for (int i = 0; i < sz; i++) {
+            if (sources.get(i).getCategory() == 2) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns whether the moves that replace phis are added to the end of
+     * a predecessor, before its last insn, rather than to the start of its
+     * successor. This matches {@link SsaBasicBlock#addMoveToEnd}.
+     *
+     * @param pred {@code non-null;} predecessor of a block with phis
+     * @return whether the moves are at its end
+     */
+    /*package*/ static boolean hasMovesAtEnd(SsaBasicBlock pred) {
+        ArrayList<SsaInsn> insns = pred.getInsns();
+        SsaInsn lastInsn = insns.get(insns.size() - 1);
+
+        return lastInsn.getResult() == null
+                && lastInsn.getSources().size() == 0;
+    }
+
+    /**
+     * Marks a register live where an insn reads its sources.
+     *
+     * @param reg {@code >= 0;} SSA register
+     * @param block {@code non-null;} block of the insn
+     * @param index {@code >= 0;} index of the insn in its block
+     */
+    /*package*/ void liveIn(int reg, SsaBasicBlock block, int index) {
+        add(reg, (blockStarts[block.getIndex()] + index) * 2);
+    }
+
+    /**
+     * Marks a register live where an insn writes its result.
+     *
+     * @param reg {@code >= 0;} SSA register
+     * @param block {@code non-null;} block of the insn
+     * @param index {@code >= 0;} index of the insn in its block
+     */
+    /*package*/ void liveOut(int reg, SsaBasicBlock block, int index) {
+        add(reg, (blockStarts[block.getIndex()] + index) * 2 + 1);
+    }
+
+    /**
+     * Adds a point to the interval of a register. The liveness analysis
+     * walks insns backwards, so the point usually extends the last range
+     * added.
+     */
+    private void add(int reg, int point) {
+        int[] regRanges = ranges[reg];
+        int size = rangeSizes[reg];
+
+        if (size > 0) {
+            int start = regRanges[size - 2];
+            int end = regRanges[size - 1];
+
+            if (point >= start - 1 && point <= end + 1) {
+                regRanges[size - 2] = Math.min(start, point);
+                regRanges[size - 1] = Math.max(end, point);
+                return;
+            }
+        }
+
+        if (regRanges == null) {
+            regRanges = new int[INITIAL_RANGES * 2];
+            ranges[reg] = regRanges;
+        } else if (size == regRanges.length) {
+            regRanges = Arrays.copyOf(regRanges, size * 2);
+            ranges[reg] = regRanges;
+        }
+
+        regRanges[size] = point;
+        regRanges[size + 1] = point;
+        rangeSizes[reg] = size + 2;
+    }
+
+    /**
+     * Sorts the ranges of each register, and merges those that overlap or
+     * are adjacent. Called once all the points are added.
+     */
+    /*package*/ void finish() {
+        int regCount = ranges.length;
+
+        for (int reg = 0; reg < regCount; reg++) {
+            int size = rangeSizes[reg];
+
+            if (size <= 2) {
+                continue;
+            }
+
+            int[] regRanges = ranges[reg];
+            long[] sorted = new long[size / 2];
+
+            for (int i = 0; i < size; i += 2) {
+                sorted[i / 2] = ((long) regRanges[i] << 32) | regRanges[i + 1];
+            }
+            Arrays.sort(sorted);
+
+            int newSize = 0;
+            for (long range : sorted) {
+                int start = (int) (range >>> 32);
+                int end = (int) range;
+
+                if (newSize > 0 && start <= regRanges[newSize - 1] + 1) {
+                    if (end > regRanges[newSize - 1]) {
+                        regRanges[newSize - 1] = end;
+                    }
+                } else {
+                    regRanges[newSize] = start;
+                    regRanges[newSize + 1] = end;
+                    newSize += 2;
+                }
+            }
+
+            ranges[reg] = Arrays.copyOf(regRanges, newSize);
+            rangeSizes[reg] = newSize;
+        }
+    }
+
+    /**
+     * Returns whether a register is ever used or written.
+     *
+     * @param reg {@code >= 0;} SSA register
+     * @return whether its interval isn't empty
+     */
+    public boolean isLive(int reg) {
+        return rangeSizes[reg] > 0;
+    }
+
+    /**
+     * Gets the first point where a register is live.
+     *
+     * @param reg {@code >= 0;} SSA register, which {@link #isLive}
+     * @return the point
+     */
+    public int getStart(int reg) {
+        return ranges[reg][0];
+    }
+
+    /**
+     * Gets the last point where a register is live.
+     *
+     * @param reg {@code >= 0;} SSA register, which {@link #isLive}
+     * @return the point
+     */
+    public int getEnd(int reg) {
+        return ranges[reg][rangeSizes[reg] - 1];
+    }
+
+    /**
+     * Returns whether two registers are live at a same point.
+     *
+     * @param reg {@code >= 0;} SSA register, which {@link #isLive}
+     * @param other {@code >= 0;} SSA register, which {@link #isLive}
+     * @return whether their intervals intersect
+     */
+    public boolean intersect(int reg, int other) {
+        int[] ranges1 = ranges[reg];
+        int[] ranges2 = ranges[other];
+        int size1 = rangeSizes[reg];
+        int size2 = rangeSizes[other];
+        int i = 0;
+        int j = 0;
+
+        while (i < size1 && j < size2) {
+            if (ranges1[i + 1] < ranges2[j]) {
+                i += 2;
+            } else if (ranges2[j + 1] < ranges1[i]) {
+                j += 2;
+            } else {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
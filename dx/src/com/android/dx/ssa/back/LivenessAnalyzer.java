@@ -33,6 +33,9 @@ import java.util.List;
  * v = regV <p>
  * s = insn <p>
  * M = visitedBlocks <p>
+ *
+ * The live ranges either update an interference graph and the live in/out
+ * sets of the blocks, or extend {@link LiveIntervals}.
  */
 public class LivenessAnalyzer {
     /**
@@ -56,9 +59,12 @@ public class LivenessAnalyzer {
     /** method to process */
     private final SsaMethod ssaMeth;
 
-    /** interference graph being updated */
+    /** {@code null-ok;} interference graph being updated */
     private final InterferenceGraph interference;
 
+    /** {@code null-ok;} live intervals being updated, if no graph is */
+    private final LiveIntervals intervals;
+
     /** block "n" in Appel 19.17 */
     private SsaBasicBlock blockN;
 
@@ -91,7 +97,7 @@ public class LivenessAnalyzer {
         InterferenceGraph interference = new InterferenceGraph(szRegs);
 
         for (int i = 0; i < szRegs; i++) {
-            new LivenessAnalyzer(ssaMeth, i, interference).run();
+            new LivenessAnalyzer(ssaMeth, i, interference, null).run();
         }
 
         coInterferePhis(ssaMeth, interference);
@@ -99,17 +105,38 @@ public class LivenessAnalyzer {
         return interference;
     }
 
+    /**
+     * Runs register liveness algorithm for a method, returning the live
+     * intervals of its registers. This doesn't update the live in/out
+     * information in {@code SsaBasicBlock} instances.
+     *
+     * @param ssaMeth {@code non-null;} method to process
+     * @return {@code non-null;} live intervals indexed by SSA register
+     */
+    public static LiveIntervals constructLiveIntervals(SsaMethod ssaMeth) {
+        int szRegs = ssaMeth.getRegCount();
+        LiveIntervals intervals = new LiveIntervals(ssaMeth);
+
+        for (int i = 0; i < szRegs; i++) {
+            new LivenessAnalyzer(ssaMeth, i, null, intervals).run();
+        }
+
+        intervals.finish();
+        return intervals;
+    }
+
     /**
      * Makes liveness analyzer instance for specific register.
      *
      * @param ssaMeth {@code non-null;} method to process
      * @param reg register whose liveness to analyze
-     * @param interference {@code non-null;} indexed by SSA reg in
+     * @param interference {@code null-ok;} indexed by SSA reg in
      * both dimensions; graph to update
-     *
+     * @param intervals {@code null-ok;} live intervals to update, if
+     * {@code interference} is null
      */
     private LivenessAnalyzer(SsaMethod ssaMeth, int reg,
-            InterferenceGraph interference) {
+            InterferenceGraph interference, LiveIntervals intervals) {
         int blocksSz = ssaMeth.getBlocks().size();
 
         this.ssaMeth = ssaMeth;
@@ -117,6 +144,7 @@ public class LivenessAnalyzer {
         visitedBlocks = new BitSet(blocksSz);
         liveOutBlocks = new BitSet(blocksSz);
         this.interference = interference;
+        this.intervals = intervals;
     }
 
     /**
@@ -164,7 +192,22 @@ public class LivenessAnalyzer {
                          phi.predBlocksForReg(regV, ssaMeth)) {
                     blockN = pred;
 
-                    nextFunction = NextFunction.LIVE_OUT_AT_BLOCK;
+                    if (intervals != null
+                            && LiveIntervals.hasMovesAtEnd(pred)) {
+                        /*
+                         * The move that replaces the phi reads v before
+                         * the last statement of the predecessor, and its
+                         * result is written there, so v isn't live-out.
+                         */
+                        statementIndex = pred.getInsns().size() - 1;
+                        nextFunction = NextFunction.LIVE_IN_AT_STATEMENT;
+                    } else {
+                        if (intervals != null) {
+                            // The move is at the start of the phi's block.
+                            intervals.liveIn(regV, insn.getBlock(), 0);
+                        }
+                        nextFunction = NextFunction.LIVE_OUT_AT_BLOCK;
+                    }
                     handleTailRecursion();
                 }
             } else {
@@ -197,7 +240,9 @@ public class LivenessAnalyzer {
         if (! visitedBlocks.get(blockN.getIndex())) {
             visitedBlocks.set(blockN.getIndex());
 
-            blockN.addLiveOut(regV);
+            if (intervals == null) {
+                blockN.addLiveOut(regV);
+            }
 
             ArrayList<SsaInsn> insns;
 
@@ -213,14 +258,18 @@ public class LivenessAnalyzer {
      * "v is live-in at s."
      */
     private void liveInAtStatement() {
+        if (intervals != null) {
+            intervals.liveIn(regV, blockN, statementIndex);
+        }
+
         // if s is the first statement in block N
         if (statementIndex == 0) {
             // v is live-in at n
-            blockN.addLiveIn(regV);
-
-            BitSet preds = blockN.getPredecessors();
+            if (intervals == null) {
+                blockN.addLiveIn(regV);
+            }
 
-            liveOutBlocks.or(preds);
+            blockN.getPredecessors().addTo(liveOutBlocks);
         } else {
             // Let s' be the statement preceeding s
             statementIndex -= 1;
@@ -235,8 +284,12 @@ public class LivenessAnalyzer {
         SsaInsn statement = blockN.getInsns().get(statementIndex);
         RegisterSpec rs = statement.getResult();
 
+        if (intervals != null) {
+            intervals.liveOut(regV, blockN, statementIndex);
+        }
+
         if (!statement.isResultReg(regV)) {
-            if (rs != null) {
+            if (rs != null && interference != null) {
                 interference.add(regV, rs.getReg());
             }
             nextFunction = NextFunction.LIVE_IN_AT_STATEMENT;
@@ -25,6 +25,7 @@ import com.android.dx.rop.code.Rop;
 import com.android.dx.rop.code.RopMethod;
 import com.android.dx.rop.code.Rops;
 import com.android.dx.ssa.BasicRegisterMapper;
+import com.android.dx.ssa.EdgeSet;
 import com.android.dx.ssa.PhiInsn;
 import com.android.dx.ssa.RegisterMapper;
 import com.android.dx.ssa.SsaBasicBlock;
@@ -53,9 +54,6 @@ public class SsaToRop {
      */
     private final boolean minimizeRegisters;
 
-    /** {@code non-null;} interference graph */
-    private final InterferenceGraph interference;
-
     /**
      * Converts a method in SSA form to ROP form.
      *
@@ -79,8 +77,6 @@ public class SsaToRop {
     private SsaToRop(SsaMethod ssaMethod, boolean minimizeRegisters) {
         this.minimizeRegisters = minimizeRegisters;
         this.ssaMeth = ssaMethod;
-        this.interference =
-            LivenessAnalyzer.constructInterferenceGraph(ssaMethod);
     }
 
     /**
@@ -89,17 +85,28 @@ public class SsaToRop {
      * @return {@code non-null;} rop-form output
      */
     private RopMethod convert() {
-        if (DEBUG) {
-            interference.dumpToStdout();
-        }
+        RegisterAllocator allocator;
+
+        if (ssaMeth.getOptimizer().usesLinearScan(ssaMeth)) {
+            // The method is too large for an interference graph.
+            allocator = new LinearScanAllocator(ssaMeth,
+                    LivenessAnalyzer.constructLiveIntervals(ssaMeth));
+        } else {
+            InterferenceGraph interference =
+                LivenessAnalyzer.constructInterferenceGraph(ssaMeth);
+
+            if (DEBUG) {
+                interference.dumpToStdout();
+            }
 
-        // These are other allocators for debugging or historical comparison:
-        // allocator = new NullRegisterAllocator(ssaMeth, interference);
-        // allocator = new FirstFitAllocator(ssaMeth, interference);
+            // These are other allocators for debugging or historical
+            // comparison:
+            // allocator = new NullRegisterAllocator(ssaMeth, interference);
+            // allocator = new FirstFitAllocator(ssaMeth, interference);
 
-        RegisterAllocator allocator =
-            new FirstFitLocalCombiningAllocator(ssaMeth, interference,
-                    minimizeRegisters);
+            allocator = new FirstFitLocalCombiningAllocator(ssaMeth,
+                    interference, minimizeRegisters);
+        }
 
         RegisterMapper mapper = allocator.allocateRegisters();
 
@@ -145,11 +152,10 @@ public class SsaToRop {
 
                 if ((insns.size() == 1)
                         && (insns.get(0).getOpcode() == Rops.GOTO)) {
-                    BitSet preds = (BitSet) b.getPredecessors().clone();
+                    EdgeSet preds = new EdgeSet(b.getPredecessors());
 
-                    for (int i = preds.nextSetBit(0); i >= 0;
-                            i = preds.nextSetBit(i + 1)) {
-                        SsaBasicBlock pb = blocks.get(i);
+                    for (int i = 0, sz = preds.size(); i < sz; i++) {
+                        SsaBasicBlock pb = blocks.get(preds.get(i));
                         pb.replaceSuccessor(b.getIndex(),
                                 b.getPrimarySuccessorIndex());
                     }
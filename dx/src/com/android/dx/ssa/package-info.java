@@ -31,8 +31,8 @@ package com.android.dx.ssa;
  *
  * <h3>Classes related to conversion and lifetime</h3>
  * <ul>
- * <li> {@link Optimizer} is a singleton class containing methods for
- * converting, optimizing, and then back-converting Rop-form methods. It's the
+ * <li> {@link Optimizer} holds the options of a translation, and has methods
+ * for converting, optimizing, and then back-converting Rop-form methods. It's the
  * typical gateway into the rest of the package.
  * <li> {@link SsaConverter} converts a Rop-form method to SSA form.
  * <li> {@link SsaToRop} converts an SSA-form method back to Rop form.
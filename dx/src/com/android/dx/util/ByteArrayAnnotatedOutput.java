@@ -79,6 +79,26 @@ public final class ByteArrayAnnotatedOutput
         this(data, false);
     }
 
+    /**
+     * Constructs an instance with a fixed maximum size, whose cursor
+     * starts at the given offset instead of at the start of the array.
+     * This lets several instances write disjoint parts of the same
+     * array, possibly concurrently. The constructed instance does not
+     * keep annotations by default.
+     *
+     * @param data {@code non-null;} data array to use for output
+     * @param cursor {@code >= 0;} initial output cursor
+     */
+    public ByteArrayAnnotatedOutput(byte[] data, int cursor) {
+        this(data, false);
+
+        if ((cursor < 0) || (cursor > data.length)) {
+            throw new IllegalArgumentException("bogus cursor");
+        }
+
+        this.cursor = cursor;
+    }
+
     /**
      * Constructs a "stretchy" instance. The underlying array may be
      * reallocated. The constructed instance does not keep annotations
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.util;
+
+/**
+ * Map from {@code int} keys to {@code int} values, held in an
+ * open-addressing hash table of parallel arrays so that neither keys nor
+ * values are boxed.
+ */
+public final class IntIntMap {
+    /** largest number of entries for each 4 slots */
+    private static final int MAX_LOAD = 3;
+
+    /** {@code non-null;} keys of the entries, 0 for free slots */
+    private int[] keys;
+
+    /** {@code non-null;} values of the entries, by slot */
+    private int[] values;
+
+    /** whether 0 is a key, which can't be kept in {@link #keys} */
+    private boolean hasZeroKey;
+
+    /** value of key 0, if {@link #hasZeroKey} */
+    private int zeroValue;
+
+    /** {@code >= 0;} number of entries */
+    private int size;
+
+    /**
+     * Constructs an empty instance with a default initial capacity.
+     */
+    public IntIntMap() {
+        this(8);
+    }
+
+    /**
+     * Constructs an empty instance with room for {@code expectedSize}
+     * entries before it grows.
+     *
+     * @param expectedSize {@code >= 0;} the expected number of entries
+     */
+    public IntIntMap(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("expectedSize < 0");
+        }
+
+        int capacity = Integer.highestOneBit(
+                Math.max(4, expectedSize * 4 / MAX_LOAD + 1) * 2 - 1);
+        keys = new int[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return {@code >= 0;} the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether {@code key} has a value.
+     *
+     * @param key the key
+     * @return whether {@code key} has a value
+     */
+    public boolean containsKey(int key) {
+        return key == 0 ? hasZeroKey : keys[slot(key)] == key;
+    }
+
+    /**
+     * Gets the value of {@code key}.
+     *
+     * @param key the key
+     * @return the value of {@code key}
+     * @throws IllegalArgumentException if {@code key} has no value
+     */
+    public int get(int key) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                throw new IllegalArgumentException("no value for key 0");
+            }
+            return zeroValue;
+        }
+
+        int slot = slot(key);
+        if (keys[slot] != key) {
+            throw new IllegalArgumentException("no value for key " + key);
+        }
+        return values[slot];
+    }
+
+    /**
+     * Sets the value of {@code key}, replacing any value it had.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public void put(int key, int value) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+
+        int slot = slot(key);
+        if (keys[slot] != key) {
+            if ((size + 1) * 4 > keys.length * MAX_LOAD) {
+                grow();
+                slot = slot(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Returns the slot holding {@code key}, or else the free slot where it
+     * belongs. {@code key} must not be 0.
+     */
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        // Fibonacci hashing spreads offsets, which share their low bits.
+        int slot = (key * 0x9e3779b9) >>> Integer.numberOfLeadingZeros(mask);
+        while (true) {
+            int k = keys[slot];
+            if (k == key || k == 0) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Doubles the number of slots and reinserts the entries.
+     */
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(size * 12);
+        sb.append('{');
+        boolean first = !hasZeroKey;
+        if (hasZeroKey) {
+            sb.append("0=").append(zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append(keys[i]).append('=').append(values[i]);
+            }
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Owner of a set of intern tables, such as the ones of
+ * {@link com.android.dx.rop.type.Type} and
+ * {@link com.android.dx.rop.cst.CstType}. Interning goes through the
+ * instance bound to the current thread, so that independent invocations
+ * of dx running in the same VM neither share nor leak interned instances.
+ * Threads that were never bound use a VM-wide instance.
+ *
+ * <p>Each interning class declares its table as a static {@link Table},
+ * and looks up the actual map with {@link #get}.</p>
+ */
+public final class Interner {
+    /** maximum number of tables */
+    private static final int MAX_TABLES = 8;
+
+    /** number of tables declared so far */
+    private static final AtomicInteger tableCount = new AtomicInteger(0);
+
+    /** {@code non-null;} instance used by threads that were never bound */
+    private static final Interner GLOBAL = new Interner();
+
+    /** {@code non-null;} instance bound to each thread */
+    private static final ThreadLocal<Interner> current =
+            new ThreadLocal<Interner>() {
+                @Override
+                protected Interner initialValue() {
+                    return GLOBAL;
+                }
+            };
+
+    /** {@code non-null;} maps of this instance, indexed by table */
+    private final AtomicReferenceArray<ConcurrentMap<?, ?>> maps =
+            new AtomicReferenceArray<ConcurrentMap<?, ?>>(MAX_TABLES);
+
+    /**
+     * Declaration of an intern table.
+     *
+     * @param <K> type of the keys
+     * @param <V> type of the interned instances
+     */
+    public static final class Table<K, V> {
+        /** index of the table in {@link #maps} */
+        private final int index;
+
+        /** initial capacity of the map */
+        private final int initialCapacity;
+
+        /**
+         * Constructs an instance. This is meant to be assigned to a
+         * static field.
+         *
+         * @param initialCapacity initial capacity of the map
+         */
+        public Table(int initialCapacity) {
+            this.index = tableCount.getAndIncrement();
+            this.initialCapacity = initialCapacity;
+
+            if (index >= MAX_TABLES) {
+                throw new IllegalStateException("too many intern tables");
+            }
+        }
+    }
+
+    /**
+     * Gets the instance bound to the current thread.
+     *
+     * @return {@code non-null;} the current instance
+     */
+    public static Interner current() {
+        return current.get();
+    }
+
+    /**
+     * Binds an instance to the current thread.
+     *
+     * @param interner {@code non-null;} the instance to bind
+     * @return {@code non-null;} the previously bound instance, to be
+     * restored with another call to this method
+     */
+    public static Interner bind(Interner interner) {
+        if (interner == null) {
+            throw new NullPointerException("interner == null");
+        }
+
+        Interner previous = current.get();
+        current.set(interner);
+        return previous;
+    }
+
+    /**
+     * Returns a thread factory for thread pools working on behalf of the
+     * given instance. Every thread it creates is bound to
+     * {@code interner}.
+     *
+     * @param interner {@code non-null;} the instance to bind
+     * @return {@code non-null;} the thread factory
+     */
+    public static ThreadFactory threadFactory(final Interner interner) {
+        final ThreadFactory delegate = Executors.defaultThreadFactory();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return delegate.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        bind(interner);
+                        r.run();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Returns a thread factory for fork-join pools working on behalf of the
+     * given instance. Every thread it creates is bound to
+     * {@code interner}.
+     *
+     * @param interner {@code non-null;} the instance to bind
+     * @return {@code non-null;} the thread factory
+     */
+    public static ForkJoinPool.ForkJoinWorkerThreadFactory forkJoinThreadFactory(
+            final Interner interner) {
+        return new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                return new ForkJoinWorkerThread(pool) {
+                    @Override
+                    protected void onStart() {
+                        super.onStart();
+                        bind(interner);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Gets the map of this instance for the given table, creating it if
+     * needed.
+     *
+     * @param table {@code non-null;} the table
+     * @return {@code non-null;} the map
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> ConcurrentMap<K, V> get(Table<K, V> table) {
+        ConcurrentMap<?, ?> map = maps.get(table.index);
+
+        if (map == null) {
+            map = new ConcurrentHashMap<K, V>(table.initialCapacity, 0.75f);
+            if (!maps.compareAndSet(table.index, null, map)) {
+                map = maps.get(table.index);
+            }
+        }
+
+        return (ConcurrentMap<K, V>) map;
+    }
+
+    /**
+     * Clears the map of this instance for the given table.
+     *
+     * @param table {@code non-null;} the table
+     */
+    public void clear(Table<?, ?> table) {
+        ConcurrentMap<?, ?> map = maps.get(table.index);
+
+        if (map != null) {
+            map.clear();
+        }
+    }
+}
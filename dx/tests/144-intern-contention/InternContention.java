@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.android.dx.dex.DexOptions;
+import com.android.dx.dex.file.DexFile;
+import com.android.dx.rop.cst.Constant;
+import com.android.dx.rop.cst.CstFieldRef;
+import com.android.dx.rop.cst.CstMethodRef;
+import com.android.dx.rop.cst.CstNat;
+import com.android.dx.rop.cst.CstString;
+import com.android.dx.rop.cst.CstType;
+import com.android.dx.rop.type.Type;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns the constant pool references of many synthetic classes into the
+ * id sections of a {@link DexFile} from 1 to 32 threads, the way the
+ * translator threads of {@code dx --num-threads} do.
+ */
+public class InternContention {
+
+    static final int TYPES = 500;
+    static final int METHODS = 8000;
+    static final int FIELDS = 4000;
+
+    public static void main(String... args) throws Exception {
+        boolean verbose = args.length > 0 && args[0].equals("-v");
+        int classes = 2000;
+        int refsPerClass = 60;
+        int rounds = 5;
+
+        // Each class gets its own constant instances, as it does when
+        // its constant pool is parsed.
+        Random random = new Random(42);
+        Constant[][] pools = new Constant[classes][refsPerClass];
+        for (int c = 0; c < classes; c++) {
+            for (int r = 0; r < refsPerClass; r++) {
+                boolean method = random.nextInt(3) != 0;
+                int member = random.nextInt(method ? METHODS : FIELDS);
+                pools[c][r] = makeRef(method, member);
+            }
+        }
+
+        long baseline = 0;
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            long best = Long.MAX_VALUE;
+            DexFile dexFile = null;
+            for (int round = 0; round < rounds; round++) {
+                dexFile = new DexFile(new DexOptions());
+                long start = System.nanoTime();
+                intern(dexFile, pools, threads);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            if (threads == 1) {
+                baseline = best;
+            }
+
+            System.out.println("threads " + threads + ": "
+                    + dexFile.getMethodIds().items().size() + " method ids, "
+                    + dexFile.getFieldIds().items().size() + " field ids, "
+                    + dexFile.getTypeIds().items().size() + " type ids");
+            if (verbose) {
+                System.out.printf("    %.2f ms, speedup %.2f%n",
+                        best / 1e6, (double) baseline / best);
+            }
+        }
+    }
+
+    private static Constant makeRef(boolean method, int member) {
+        int owner = member % TYPES;
+        CstType definingClass = new CstType(Type.intern("Lpkg/C" + owner + ";"));
+        if (method) {
+            int arg = (member / TYPES) % TYPES;
+            return new CstMethodRef(definingClass, new CstNat(
+                    new CstString("m" + member),
+                    new CstString("(Lpkg/C" + arg + ";)V")));
+        } else {
+            return new CstFieldRef(definingClass, new CstNat(
+                    new CstString("f" + member),
+                    new CstString("I")));
+        }
+    }
+
+    private static void intern(final DexFile dexFile, final Constant[][] pools,
+            int threadCount) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger(0);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    int c;
+                    while ((c = next.getAndIncrement()) < pools.length) {
+                        for (Constant constant : pools[c]) {
+                            if (constant instanceof CstMethodRef) {
+                                CstMethodRef ref = (CstMethodRef) constant;
+                                dexFile.getMethodIds().intern(ref);
+                                dexFile.getTypeIds().intern(ref.getDefiningClass());
+                            } else {
+                                CstFieldRef ref = (CstFieldRef) constant;
+                                dexFile.getFieldIds().intern(ref);
+                                dexFile.getTypeIds().intern(ref.getDefiningClass());
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.android.dex.Dex;
+import com.android.dx.command.dexer.DxContext;
+import com.android.dx.dex.DexOptions;
+import com.android.dx.dex.file.ClassDefItem;
+import com.android.dx.dex.file.DexFile;
+import com.android.dx.dex.file.EncodedField;
+import com.android.dx.merge.CollisionPolicy;
+import com.android.dx.merge.DexMerger;
+import com.android.dx.rop.code.AccessFlags;
+import com.android.dx.rop.cst.CstFieldRef;
+import com.android.dx.rop.cst.CstNat;
+import com.android.dx.rop.cst.CstString;
+import com.android.dx.rop.cst.CstType;
+import com.android.dx.rop.type.StdTypeList;
+import com.android.dx.rop.type.Type;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Merges the string ids of 120 library dexes sharing most of their
+ * strings, both the way {@link DexMerger} does and with a {@link TreeMap}
+ * of decoded strings, and checks that both agree with the strings of the
+ * dex merged by {@link DexMerger}.
+ */
+public class MergeSortedIds {
+
+    static final int DEXES = 120;
+    static final int CLASSES_PER_DEX = 10;
+    static final int FIELDS_PER_CLASS = 40;
+    static final int SHARED_STRINGS = 3000;
+
+    public static void main(String... args) throws Exception {
+        boolean verbose = args.length > 0 && args[0].equals("-v");
+        int rounds = 20;
+
+        Random random = new Random(42);
+        String[] shared = new String[SHARED_STRINGS];
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = randomString(random);
+        }
+        Dex[] dexes = new Dex[DEXES];
+        for (int d = 0; d < dexes.length; d++) {
+            dexes[d] = makeDex(d, shared, random);
+        }
+
+        List<String> merged = new DexMerger(dexes, CollisionPolicy.FAIL,
+                new DxContext(new ByteArrayOutputStream(), System.err)).merge().strings();
+
+        long treeMapBest = Long.MAX_VALUE;
+        long treeBest = Long.MAX_VALUE;
+        List<String> treeMapResult = null;
+        int[] treeResult = null;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            treeMapResult = mergeWithTreeMap(dexes);
+            treeMapBest = Math.min(treeMapBest, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            treeResult = mergeWithTree(dexes);
+            treeBest = Math.min(treeBest, System.nanoTime() - start);
+        }
+
+        System.out.println("merged " + merged.size() + " strings");
+        System.out.println("treemap agrees: " + treeMapResult.equals(merged));
+        System.out.println("tree agrees: " + treeAgrees(dexes, treeResult, merged));
+        if (verbose) {
+            System.out.printf("treemap %.2f ms, tree %.2f ms, speedup %.2f%n",
+                    treeMapBest / 1e6, treeBest / 1e6, (double) treeMapBest / treeBest);
+        }
+    }
+
+    private static String randomString(Random random) {
+        if (random.nextBoolean()) {
+            // descriptors share long prefixes
+            return "Lcom/example/library/package" + random.nextInt(20)
+                    + "/Class" + random.nextInt(1000) + ";";
+        }
+        StringBuilder sb = new StringBuilder();
+        int length = 4 + random.nextInt(30);
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(40);
+            if (kind == 0) {
+                sb.append('\0');
+            } else if (kind == 1) {
+                sb.append((char) (0x80 + random.nextInt(0x780)));
+            } else if (kind == 2) {
+                sb.appendCodePoint(0x10000 + random.nextInt(0x1000));
+            } else {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Dex makeDex(int d, String[] shared, Random random) throws Exception {
+        DexFile dexFile = new DexFile(new DexOptions());
+        CstString stringType = new CstString(Type.STRING.getDescriptor());
+        for (int c = 0; c < CLASSES_PER_DEX; c++) {
+            CstType type = new CstType(Type.intern("Llib" + d + "/C" + c + ";"));
+            ClassDefItem classDef = new ClassDefItem(type, AccessFlags.ACC_PUBLIC,
+                    CstType.OBJECT, StdTypeList.EMPTY, null);
+            for (int f = 0; f < FIELDS_PER_CLASS; f++) {
+                CstFieldRef field = new CstFieldRef(type,
+                        new CstNat(new CstString("f" + f), stringType));
+                classDef.addStaticField(new EncodedField(field, AccessFlags.ACC_STATIC),
+                        new CstString(shared[random.nextInt(shared.length)]));
+            }
+            dexFile.add(classDef);
+        }
+        return new Dex(dexFile.toDex(null, false));
+    }
+
+    /**
+     * Merges the sorted string ids of {@code dexes} the way
+     * {@link DexMerger} used to, reading each string into a {@link TreeMap}
+     * holding the current string of each dex.
+     */
+    private static List<String> mergeWithTreeMap(Dex[] dexes) {
+        Dex.Section[] in = new Dex.Section[dexes.length];
+        int[] indexes = new int[dexes.length];
+        TreeMap<String, List<Integer>> values = new TreeMap<String, List<Integer>>();
+        for (int i = 0; i < dexes.length; i++) {
+            in[i] = dexes[i].open(dexes[i].getTableOfContents().stringIds.off);
+            readIntoMap(dexes, in, indexes, values, i);
+        }
+
+        List<String> result = new ArrayList<String>();
+        while (!values.isEmpty()) {
+            Map.Entry<String, List<Integer>> first = values.pollFirstEntry();
+            for (Integer dex : first.getValue()) {
+                indexes[dex]++;
+                readIntoMap(dexes, in, indexes, values, dex);
+            }
+            result.add(first.getKey());
+        }
+        return result;
+    }
+
+    private static void readIntoMap(Dex[] dexes, Dex.Section[] in, int[] indexes,
+            TreeMap<String, List<Integer>> values, int dex) {
+        if (indexes[dex] < dexes[dex].getTableOfContents().stringIds.size) {
+            String value = in[dex].readString();
+            List<Integer> l = values.get(value);
+            if (l == null) {
+                l = new ArrayList<Integer>();
+                values.put(value, l);
+            }
+            l.add(dex);
+        }
+    }
+
+    /**
+     * Merges the sorted string ids of {@code dexes} the way
+     * {@link DexMerger} does, with a tree of losers of the dexes ordered
+     * by the offset-value codes of their current string.
+     *
+     * @return the dex and string index of each merged string, packed as
+     * pairs
+     */
+    private static int[] mergeWithTree(Dex[] dexes) {
+        Tournament t = new Tournament(dexes);
+        int k = dexes.length;
+        int[] winners = new int[k * 2];
+        for (int i = 0; i < k; i++) {
+            winners[k + i] = i;
+            t.next(i);
+        }
+        int[] tree = new int[k];
+        for (int n = k - 1; n > 0; n--) {
+            int a = winners[n * 2];
+            int b = winners[n * 2 + 1];
+            boolean aWins = t.beats(a, b);
+            winners[n] = aWins ? a : b;
+            tree[n] = aWins ? b : a;
+        }
+        tree[0] = winners[1];
+
+        int[] result = new int[16];
+        int count = 0;
+        while (true) {
+            int dex = tree[0];
+            if (t.done(dex)) {
+                break;
+            }
+            if (count == 0 || t.codes[dex] != 0) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = dex;
+                result[count++] = t.indexes[dex];
+            }
+            t.next(dex);
+            for (int n = (k + dex) / 2; n > 0; n /= 2) {
+                if (!t.beats(dex, tree[n])) {
+                    int winner = tree[n];
+                    tree[n] = dex;
+                    dex = winner;
+                }
+            }
+            tree[0] = dex;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * The current string and its offset-value code of each dex, as kept
+     * by {@link DexMerger}.
+     */
+    static final class Tournament {
+        static final int MAX_CODE_OFFSET = 1 << 21;
+
+        final Dex[] dexes;
+        final Dex.Section[] in;
+        final int[] indexes;
+        final int[] offsets;
+        final int[] codes;
+
+        Tournament(Dex[] dexes) {
+            this.dexes = dexes;
+            in = new Dex.Section[dexes.length];
+            indexes = new int[dexes.length];
+            offsets = new int[dexes.length];
+            codes = new int[dexes.length];
+            for (int i = 0; i < dexes.length; i++) {
+                in[i] = dexes[i].open(dexes[i].getTableOfContents().stringIds.off);
+                indexes[i] = -1;
+            }
+        }
+
+        boolean done(int dex) {
+            return indexes[dex] == dexes[dex].getTableOfContents().stringIds.size;
+        }
+
+        void next(int dex) {
+            if (++indexes[dex] == dexes[dex].getTableOfContents().stringIds.size) {
+                return;
+            }
+            int previous = offsets[dex];
+            offsets[dex] = in[dex].readInt();
+            int mismatch;
+            if (indexes[dex] == 0) {
+                mismatch = dexes[dex].stringDataOrder(offsets[dex], 0) == 0 ? -1 : 0;
+            } else {
+                mismatch = dexes[dex].stringDataMismatch(offsets[dex], dexes[dex], previous, 0);
+            }
+            codes[dex] = code(dex, mismatch);
+        }
+
+        boolean beats(int a, int b) {
+            if (done(b)) {
+                return true;
+            } else if (done(a)) {
+                return false;
+            } else if (codes[a] != codes[b]) {
+                return codes[a] < codes[b];
+            } else if (codes[a] == 0) {
+                return true;
+            }
+            int index = dexes[a].stringDataMismatch(offsets[a], dexes[b], offsets[b],
+                    MAX_CODE_OFFSET - (codes[a] >>> 9) + 1);
+            if (index == -1) {
+                codes[b] = 0;
+                return true;
+            }
+            int aCode = code(a, index);
+            int bCode = code(b, index);
+            if (aCode < bCode) {
+                codes[b] = bCode;
+                return true;
+            } else {
+                codes[a] = aCode;
+                return false;
+            }
+        }
+
+        int code(int dex, int index) {
+            if (index == -1) {
+                return 0;
+            }
+            return ((MAX_CODE_OFFSET - index) << 9) | dexes[dex].stringDataOrder(offsets[dex], index);
+        }
+    }
+
+    private static boolean treeAgrees(Dex[] dexes, int[] treeResult, List<String> merged) {
+        if (treeResult.length != merged.size() * 2) {
+            return false;
+        }
+        for (int i = 0; i < merged.size(); i++) {
+            String value = dexes[treeResult[i * 2]].strings().get(treeResult[i * 2 + 1]);
+            if (!value.equals(merged.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
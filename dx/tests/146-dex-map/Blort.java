@@ -0,0 +1,12 @@
+public class Blort {
+    private int count;
+
+    public void bump() {
+        count++;
+    }
+
+    public static void zorch() {
+        new Blort().bump();
+        new Blort().bump();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.android.dex.Dex;
+import com.android.dex.DexException;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Maps a dex file, and the same dex as entries of archives, and checks
+ * that each mapping reads the same bytes as loading the dex file.
+ */
+public class DexMap {
+    public static void main(String... args) throws Exception {
+        byte[] expected = new Dex(new File("classes.dex")).getBytes();
+
+        check("classes.dex", Dex.map(new File("classes.dex")), expected);
+        check("stored.jar", Dex.map(new File("stored.jar")), expected);
+        check("stored.jar!classes2.dex",
+                Dex.map(new File("stored.jar"), "classes2.dex"), expected);
+        check("deflated.jar", Dex.map(new File("deflated.jar")), expected);
+
+        try {
+            Dex.map(new File("stored.jar"), "classes3.dex");
+            System.out.println("classes3.dex: mapped");
+        } catch (DexException expectedException) {
+            System.out.println("classes3.dex: " + expectedException.getMessage()
+                    .replace(new File("stored.jar").getAbsolutePath(), "stored.jar"));
+        }
+    }
+
+    private static void check(String name, Dex dex, byte[] expected) {
+        System.out.println(name + ": " + dex.getTableOfContents().classDefs.size
+                + " class, " + dex.strings().size() + " strings, same bytes: "
+                + Arrays.equals(expected, dex.getBytes()));
+    }
+}
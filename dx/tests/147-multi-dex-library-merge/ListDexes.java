@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.android.dex.ClassDef;
+import com.android.dex.Dex;
+import java.io.File;
+
+/**
+ * Lists the classes of each dex file of a multi-dex output directory, and
+ * checks that their method and field ids are within a limit.
+ */
+public class ListDexes {
+    public static void main(String... args) throws Exception {
+        File dir = new File(args[0]);
+        int limit = Integer.parseInt(args[1]);
+        for (int i = 1; ; i++) {
+            File file = new File(dir, i == 1 ? "classes.dex" : "classes" + i + ".dex");
+            if (!file.exists()) {
+                break;
+            }
+            Dex dex = new Dex(file);
+            int methods = dex.getTableOfContents().methodIds.size;
+            int fields = dex.getTableOfContents().fieldIds.size;
+            System.out.println(file.getName() + ": ids within limit: "
+                    + (methods <= limit && fields <= limit));
+            for (ClassDef classDef : dex.classDefs()) {
+                System.out.println("  " + dex.typeNames().get(classDef.getTypeIndex()));
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package app;
+
+import lib.Lib1;
+import lib.Lib2;
+
+public class App3 {
+    private int count3;
+
+    public int run(Lib2 lib) { return m1(lib.size()) + m2(lib.e()); }
+    int m1(int i) { return Lib1.a(i) + count3; }
+    int m2(int i) { return Lib1.b(i) + Integer.parseInt("3"); }
+    int m3(int i) { return Lib1.c(i) + Math.abs(i); }
+    String m4(Object o) { return Lib1.d(o) + Integer.toHexString(count3); }
+    StringBuilder m5() { return new StringBuilder().append(m4(this)); }
+}
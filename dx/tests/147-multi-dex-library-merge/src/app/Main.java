@@ -0,0 +1,11 @@
+package app;
+
+import lib.Lib2;
+
+public class Main {
+    public static void main(String[] args) {
+        Lib2 lib = new Lib2();
+        lib.task().run();
+        System.out.println(new App1().run(lib) + new App2().run(lib));
+    }
+}
@@ -0,0 +1,9 @@
+package lib;
+
+public class Lib1 {
+    public static int a(int i) { return i + 1; }
+    public static int b(int i) { return a(i) * 2; }
+    public static int c(int i) { return b(i) - a(i); }
+    public static String d(Object o) { return String.valueOf(o); }
+    public int e() { return c(hashCode()); }
+}
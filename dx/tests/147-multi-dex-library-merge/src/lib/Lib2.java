@@ -0,0 +1,17 @@
+package lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Lib2 extends Lib1 {
+    private final List<String> names = new ArrayList<String>();
+
+    public void add(String name) { names.add(name); }
+    public int size() { return names.size(); }
+    public String get(int i) { return names.get(i); }
+    public Runnable task() {
+        return new Runnable() {
+            public void run() { add(d(e())); }
+        };
+    }
+}
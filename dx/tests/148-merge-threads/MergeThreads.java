@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.android.dex.Dex;
+import com.android.dx.command.dexer.DxContext;
+import com.android.dx.merge.CollisionPolicy;
+import com.android.dx.merge.DexMerger;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Merges dex files on 1 thread and on several, and checks that the
+ * results have the same bytes.
+ */
+public class MergeThreads {
+    public static void main(String... args) throws Exception {
+        Dex[] dexes = new Dex[args.length];
+        int classCount = 0;
+        for (int i = 0; i < args.length; i++) {
+            dexes[i] = new Dex(new File(args[i]));
+            classCount += dexes[i].getTableOfContents().classDefs.size;
+        }
+
+        // The inputs are packages of dx itself, so only check that none is lost.
+        Dex expected = merge(dexes, 1);
+        int mergedCount = expected.getTableOfContents().classDefs.size;
+        if (mergedCount == classCount) {
+            System.out.println("merged all classes");
+        } else {
+            System.out.println("merged " + mergedCount + " of " + classCount + " classes");
+        }
+        for (int threadCount : new int[] {2, 4}) {
+            for (int round = 0; round < 5; round++) {
+                Dex merged = merge(dexes, threadCount);
+                if (!Arrays.equals(expected.getBytes(), merged.getBytes())) {
+                    System.out.println(threadCount + " threads: different bytes");
+                    return;
+                }
+            }
+            System.out.println(threadCount + " threads: same bytes");
+        }
+    }
+
+    private static Dex merge(Dex[] dexes, int threadCount) throws Exception {
+        DexMerger merger = new DexMerger(dexes, CollisionPolicy.FAIL,
+                new DxContext(new ByteArrayOutputStream(), System.err));
+        merger.setThreadCount(threadCount);
+        return merger.merge();
+    }
+}
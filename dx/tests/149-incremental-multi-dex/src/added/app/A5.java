@@ -0,0 +1,5 @@
+package app;
+
+public class A5 {
+    public int run(String s) { return s.length() + Long.numberOfTrailingZeros(s.hashCode()); }
+}
@@ -0,0 +1,10 @@
+package app;
+
+public class A1 {
+    private int count1;
+
+    public int run(String s) { return m1(s.length()) + m2(s.hashCode()); }
+    int m1(int i) { return Integer.bitCount(i) + count1; }
+    int m2(int i) { return Integer.parseInt("1") + Math.abs(i); }
+    String m3(Object o) { return String.valueOf(o) + Integer.toHexString(count1); }
+}
@@ -0,0 +1,10 @@
+package app;
+
+public class A3 {
+    private int count3;
+
+    public int run(String s) { return m1(s.length()) + m2(s.hashCode()); }
+    int m1(int i) { return Integer.bitCount(i) + count3; }
+    int m2(int i) { return Integer.parseInt("3") + Math.abs(i); }
+    String m3(Object o) { return String.valueOf(o) + Integer.toHexString(count3); }
+}
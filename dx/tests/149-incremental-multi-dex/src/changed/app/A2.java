@@ -0,0 +1,10 @@
+package app;
+
+public class A2 {
+    private int count2;
+
+    public int run(String s) { return m1(s.length()) + m2(s.hashCode()); }
+    int m1(int i) { return Integer.bitCount(i) + count2; }
+    int m2(int i) { return Integer.parseInt("22") + Math.abs(i); }
+    String m3(Object o) { return String.valueOf(o) + Integer.toOctalString(count2); }
+}
@@ -0,0 +1,7 @@
+package app;
+
+public class C2 {
+    public int run() {
+        return Y.y1() + Y.y2() + Y.y3() + Y.y4() + Y.y5() + Y.y6();
+    }
+}
@@ -0,0 +1,7 @@
+package app;
+
+public class C3 {
+    public int run() {
+        return X.x1() + X.x2() + X.x3() + X.x4() + X.x5() + X.x6();
+    }
+}
@@ -0,0 +1,7 @@
+package app;
+
+public class Main {
+    public static void main(String[] args) {
+        System.out.println(new C1().run() + new C2().run() + new C3().run() + new C4().run());
+    }
+}
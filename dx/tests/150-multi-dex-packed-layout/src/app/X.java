@@ -0,0 +1,10 @@
+package app;
+
+public class X {
+    public static int x1() { return 1; }
+    public static int x2() { return 2; }
+    public static int x3() { return 3; }
+    public static int x4() { return 4; }
+    public static int x5() { return 5; }
+    public static int x6() { return 6; }
+}
@@ -0,0 +1,10 @@
+package app;
+
+public class Y {
+    public static int y1() { return 1; }
+    public static int y2() { return 2; }
+    public static int y3() { return 3; }
+    public static int y4() { return 4; }
+    public static int y5() { return 5; }
+    public static int y6() { return 6; }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Sends the daemon a request with the given argument count but no
+ * arguments, and prints its reply.
+ */
+public class Request {
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        String token = new String(Files.readAllBytes(Paths.get(args[1])), "UTF-8");
+        int argCount = Integer.parseInt(args[2]);
+
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(token);
+            out.writeInt(argCount);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int result = in.readInt();
+            in.readLong();
+            byte[] jobOut = new byte[in.readInt()];
+            in.readFully(jobOut);
+            byte[] jobErr = new byte[in.readInt()];
+            in.readFully(jobErr);
+            System.out.println("count " + argCount + ": exit " + result + ", "
+                    + new String(jobErr, "UTF-8").trim());
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.android.dex.Dex;
+import com.android.dex.EncodedValueReader;
+import com.android.dex.MethodHandle;
+import com.android.dex.MethodId;
+import com.android.dex.TableOfContents;
+import com.android.dx.command.dexer.DxContext;
+import com.android.dx.merge.CollisionPolicy;
+import com.android.dx.merge.DexMerger;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Merges dex files with call sites, and prints the method handles that
+ * the call sites of each input and of the merged dex refer to.
+ */
+public class MergeMethodHandles {
+    public static void main(String... args) throws Exception {
+        Dex[] dexes = new Dex[args.length];
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            dexes[i] = new Dex(new File(args[i]));
+            System.out.println(args[i] + ": " + dexes[i].getTableOfContents().methodHandles.size
+                    + " method handles");
+            expected.addAll(callSites(dexes[i]));
+        }
+
+        DexMerger merger = new DexMerger(dexes, CollisionPolicy.FAIL,
+                new DxContext(new ByteArrayOutputStream(), System.err));
+        Dex merged = merger.merge();
+        System.out.println("merged: " + merged.getTableOfContents().methodHandles.size
+                + " method handles");
+
+        List<String> actual = callSites(merged);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        for (String callSite : actual) {
+            System.out.println("  " + callSite);
+        }
+        System.out.println(actual.equals(expected)
+                ? "same call sites as the inputs" : "different call sites from the inputs");
+    }
+
+    /**
+     * Describes the call sites of {@code dex} by the method handles they
+     * refer to.
+     */
+    private static List<String> callSites(Dex dex) {
+        TableOfContents toc = dex.getTableOfContents();
+        List<MethodHandle> methodHandles = new ArrayList<MethodHandle>();
+        if (toc.methodHandles.exists()) {
+            Dex.Section in = dex.open(toc.methodHandles.off);
+            for (int i = 0; i < toc.methodHandles.size; i++) {
+                methodHandles.add(in.readMethodHandle());
+            }
+        }
+
+        List<String> result = new ArrayList<String>();
+        if (!toc.callSiteIds.exists()) {
+            return result;
+        }
+        Dex.Section in = dex.open(toc.callSiteIds.off);
+        for (int i = 0; i < toc.callSiteIds.size; i++) {
+            int offset = in.readCallSiteId().getCallSiteOffset();
+            EncodedValueReader reader = new EncodedValueReader(
+                    dex.open(offset).readEncodedArray(), EncodedValueReader.ENCODED_ARRAY);
+            StringBuilder sb = new StringBuilder();
+            int size = reader.readArray();
+            for (int j = 0; j < size; j++) {
+                if (reader.peek() == EncodedValueReader.ENCODED_METHOD_HANDLE) {
+                    MethodHandle handle = methodHandles.get(reader.readMethodHandle());
+                    MethodId method = dex.methodIds().get(handle.getFieldOrMethodId());
+                    sb.append(sb.length() == 0 ? "" : ", ")
+                            .append(dex.typeNames().get(method.getDeclaringClassIndex()))
+                            .append('.')
+                            .append(dex.strings().get(method.getNameIndex()));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            result.add(sb.toString());
+        }
+        return result;
+    }
+}
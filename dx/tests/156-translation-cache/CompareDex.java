@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.android.dex.Annotation;
+import com.android.dex.ClassData;
+import com.android.dex.ClassDef;
+import com.android.dex.Code;
+import com.android.dex.Dex;
+import com.android.dex.EncodedValueReader;
+import com.android.dex.FieldId;
+import com.android.dex.MethodId;
+import com.android.dx.io.IndexType;
+import com.android.dx.io.OpcodeInfo;
+import com.android.dx.io.instructions.DecodedInstruction;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Compares two dex files by their contents with all indexes and offsets
+ * resolved, so that dex files laid out differently compare equal if they
+ * define the same classes with the same code, in any order.
+ */
+public class CompareDex {
+    public static void main(String... args) throws Exception {
+        List<String> a = describe(new Dex(new File(args[0])));
+        List<String> b = describe(new Dex(new File(args[1])));
+        for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+            if (!a.get(i).equals(b.get(i))) {
+                System.out.println(args[0] + " and " + args[1] + " differ:");
+                System.out.println("  " + a.get(i));
+                System.out.println("  " + b.get(i));
+                return;
+            }
+        }
+        if (a.size() != b.size()) {
+            System.out.println(args[0] + " and " + args[1] + " differ in length");
+            return;
+        }
+        System.out.println(args[0] + " and " + args[1] + " are equivalent");
+    }
+
+    private static List<String> describe(Dex dex) throws Exception {
+        SortedMap<String, List<String>> classes = new TreeMap<String, List<String>>();
+        for (ClassDef classDef : dex.classDefs()) {
+            List<String> out = new ArrayList<String>();
+            classes.put(type(dex, classDef.getTypeIndex()), out);
+            out.add("class " + type(dex, classDef.getTypeIndex())
+                    + " flags " + Integer.toHexString(classDef.getAccessFlags())
+                    + " extends " + type(dex, classDef.getSupertypeIndex())
+                    + " source " + string(dex, classDef.getSourceFileIndex()));
+            for (short i : classDef.getInterfaces()) {
+                out.add("  implements " + type(dex, i));
+            }
+            if (classDef.getStaticValuesOffset() != 0) {
+                EncodedValueReader reader = new EncodedValueReader(
+                        dex.open(classDef.getStaticValuesOffset()).readEncodedArray(),
+                        EncodedValueReader.ENCODED_ARRAY);
+                out.add("  static values " + value(dex, reader));
+            }
+            describeAnnotations(dex, classDef.getAnnotationsOffset(), out);
+            if (classDef.getClassDataOffset() == 0) {
+                continue;
+            }
+
+            ClassData classData = dex.readClassData(classDef);
+            for (ClassData.Field field : classData.allFields()) {
+                out.add("  field " + field(dex, field.getFieldIndex())
+                        + " flags " + Integer.toHexString(field.getAccessFlags()));
+            }
+            for (ClassData.Method method : classData.allMethods()) {
+                out.add("  method " + method(dex, method.getMethodIndex())
+                        + " flags " + Integer.toHexString(method.getAccessFlags()));
+                if (method.getCodeOffset() != 0) {
+                    describeCode(dex, dex.readCode(method), out);
+                }
+            }
+        }
+
+        List<String> result = new ArrayList<String>();
+        for (List<String> out : classes.values()) {
+            result.addAll(out);
+        }
+        return result;
+    }
+
+    private static void describeCode(Dex dex, Code code, List<String> out) {
+        out.add("    registers " + code.getRegistersSize() + " ins " + code.getInsSize()
+                + " outs " + code.getOutsSize()
+                + " debug info " + (code.getDebugInfoOffset() != 0));
+        DecodedInstruction[] insns = DecodedInstruction.decodeAll(code.getInstructions());
+        for (int i = 0; i < insns.length; i++) {
+            DecodedInstruction insn = insns[i];
+            if (insn == null) {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder("    ").append(i).append(": ")
+                    .append(OpcodeInfo.getName(insn.getOpcode()));
+            int registerCount = insn.getRegisterCount();
+            int[] registers = { insn.getA(), insn.getB(), insn.getC(), insn.getD(),
+                    insn.getE() };
+            for (int r = 0; r < Math.min(registerCount, registers.length); r++) {
+                sb.append(" v").append(registers[r]);
+            }
+            sb.append(" ").append(index(dex, insn.getIndexType(), insn.getIndex()));
+            sb.append(" #").append(insn.getLiteral()).append(" @").append(insn.getTarget());
+            out.add(sb.toString());
+        }
+        for (Code.Try tryItem : code.getTries()) {
+            Code.CatchHandler handler = code.getCatchHandlers()[tryItem.getCatchHandlerIndex()];
+            StringBuilder sb = new StringBuilder("    try ")
+                    .append(tryItem.getStartAddress()).append("+")
+                    .append(tryItem.getInstructionCount());
+            for (int t = 0; t < handler.getTypeIndexes().length; t++) {
+                sb.append(" catch ").append(type(dex, handler.getTypeIndexes()[t]))
+                        .append(" @").append(handler.getAddresses()[t]);
+            }
+            sb.append(" catch-all @").append(handler.getCatchAllAddress());
+            out.add(sb.toString());
+        }
+    }
+
+    private static void describeAnnotations(Dex dex, int directoryOffset, List<String> out) {
+        if (directoryOffset == 0) {
+            return;
+        }
+        Dex.Section in = dex.open(directoryOffset);
+        int classAnnotations = in.readInt();
+        int fieldCount = in.readInt();
+        int methodCount = in.readInt();
+        int parameterCount = in.readInt();
+        describeAnnotationSet(dex, "class", classAnnotations, out);
+        for (int i = 0; i < fieldCount; i++) {
+            String name = "field " + field(dex, in.readInt());
+            describeAnnotationSet(dex, name, in.readInt(), out);
+        }
+        for (int i = 0; i < methodCount; i++) {
+            String name = "method " + method(dex, in.readInt());
+            describeAnnotationSet(dex, name, in.readInt(), out);
+        }
+        for (int i = 0; i < parameterCount; i++) {
+            String name = "parameters of " + method(dex, in.readInt());
+            Dex.Section refList = dex.open(in.readInt());
+            int size = refList.readInt();
+            for (int p = 0; p < size; p++) {
+                describeAnnotationSet(dex, name + " #" + p, refList.readInt(), out);
+            }
+        }
+    }
+
+    private static void describeAnnotationSet(Dex dex, String name, int offset,
+            List<String> out) {
+        if (offset == 0) {
+            return;
+        }
+        Dex.Section in = dex.open(offset);
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            Annotation annotation = dex.open(in.readInt()).readAnnotation();
+            out.add("  annotation on " + name + ": " + annotation.getVisibility() + " "
+                    + value(dex, annotation.getReader()));
+        }
+    }
+
+    private static String value(Dex dex, EncodedValueReader reader) {
+        switch (reader.peek()) {
+        case EncodedValueReader.ENCODED_BYTE:
+            return "byte " + reader.readByte();
+        case EncodedValueReader.ENCODED_SHORT:
+            return "short " + reader.readShort();
+        case EncodedValueReader.ENCODED_CHAR:
+            return "char " + (int) reader.readChar();
+        case EncodedValueReader.ENCODED_INT:
+            return "int " + reader.readInt();
+        case EncodedValueReader.ENCODED_LONG:
+            return "long " + reader.readLong();
+        case EncodedValueReader.ENCODED_FLOAT:
+            return "float " + reader.readFloat();
+        case EncodedValueReader.ENCODED_DOUBLE:
+            return "double " + reader.readDouble();
+        case EncodedValueReader.ENCODED_METHOD_TYPE:
+            return "method type " + dex.protoIds().get(reader.readMethodType());
+        case EncodedValueReader.ENCODED_METHOD_HANDLE:
+            return "method handle #" + reader.readMethodHandle();
+        case EncodedValueReader.ENCODED_STRING:
+            return "string " + string(dex, reader.readString());
+        case EncodedValueReader.ENCODED_TYPE:
+            return "type " + type(dex, reader.readType());
+        case EncodedValueReader.ENCODED_FIELD:
+            return "field " + field(dex, reader.readField());
+        case EncodedValueReader.ENCODED_ENUM:
+            return "enum " + field(dex, reader.readEnum());
+        case EncodedValueReader.ENCODED_METHOD:
+            return "method " + method(dex, reader.readMethod());
+        case EncodedValueReader.ENCODED_ARRAY: {
+            StringBuilder sb = new StringBuilder("[");
+            int size = reader.readArray();
+            for (int i = 0; i < size; i++) {
+                sb.append(i == 0 ? "" : ", ").append(value(dex, reader));
+            }
+            return sb.append("]").toString();
+        }
+        case EncodedValueReader.ENCODED_ANNOTATION: {
+            int size = reader.readAnnotation();
+            StringBuilder sb = new StringBuilder("@")
+                    .append(type(dex, reader.getAnnotationType())).append("(");
+            for (int i = 0; i < size; i++) {
+                sb.append(i == 0 ? "" : ", ")
+                        .append(string(dex, reader.readAnnotationName())).append("=")
+                        .append(value(dex, reader));
+            }
+            return sb.append(")").toString();
+        }
+        case EncodedValueReader.ENCODED_NULL:
+            reader.readNull();
+            return "null";
+        case EncodedValueReader.ENCODED_BOOLEAN:
+            return "boolean " + reader.readBoolean();
+        default:
+            throw new IllegalArgumentException("unexpected value " + reader.peek());
+        }
+    }
+
+    private static String index(Dex dex, IndexType indexType, int index) {
+        if (indexType == null) {
+            return "payload"; // of a switch or fill-array-data
+        }
+        switch (indexType) {
+        case STRING_REF:
+            return "string " + string(dex, index);
+        case TYPE_REF:
+            return "type " + type(dex, index);
+        case FIELD_REF:
+            return "field " + field(dex, index);
+        case METHOD_REF:
+        case METHOD_AND_PROTO_REF:
+            return "method " + method(dex, index);
+        case PROTO_REF:
+            return "proto " + dex.protoIds().get(index);
+        default:
+            return indexType + " " + index;
+        }
+    }
+
+    private static String string(Dex dex, int index) {
+        return index == -1 ? "none" : dex.strings().get(index);
+    }
+
+    private static String type(Dex dex, int index) {
+        return index == -1 ? "none" : dex.typeNames().get(index);
+    }
+
+    private static String field(Dex dex, int index) {
+        FieldId field = dex.fieldIds().get(index);
+        return type(dex, field.getDeclaringClassIndex()) + "." + field;
+    }
+
+    private static String method(Dex dex, int index) {
+        MethodId method = dex.methodIds().get(index);
+        return method + " " + dex.protoIds().get(method.getProtoIndex());
+    }
+}